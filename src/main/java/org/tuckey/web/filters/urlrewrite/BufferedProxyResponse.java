@@ -0,0 +1,170 @@
+/**
+ * Copyright (c) 2005-2007, Paul Tuckey
+ * All rights reserved.
+ * ====================================================================
+ * Licensed under the BSD License. Text as follows.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *   - Redistributions of source code must retain the above copyright
+ *     notice, this list of conditions and the following disclaimer.
+ *   - Redistributions in binary form must reproduce the above
+ *     copyright notice, this list of conditions and the following
+ *     disclaimer in the documentation and/or other materials provided
+ *     with the distribution.
+ *   - Neither the name tuckey.org nor the names of its contributors
+ *     may be used to endorse or promote products derived from this
+ *     software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ * COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN
+ * ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * ====================================================================
+ */
+package org.tuckey.web.filters.urlrewrite;
+
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A response from a proxy target read fully into memory (or mapped from a file) so that it can be written to more
+ * than one client.  The headers have already been filtered as they would be when copying the response to the client.
+ */
+public final class BufferedProxyResponse {
+
+    private final int statusCode;
+    private final String[] headerNames;
+    private final String[] headerValues;
+    private final ByteBuffer body;
+
+    public BufferedProxyResponse(int statusCode, List<String[]> headers, byte[] body) {
+        this(statusCode, headers, ByteBuffer.wrap(body));
+    }
+
+    /**
+     * @param headers name, value pairs
+     * @param body    from position to limit, must not be changed after this
+     */
+    public BufferedProxyResponse(int statusCode, List<String[]> headers, ByteBuffer body) {
+        this.statusCode = statusCode;
+        this.headerNames = new String[headers.size()];
+        this.headerValues = new String[headers.size()];
+        for (int i = 0; i < headers.size(); i++) {
+            headerNames[i] = headers.get(i)[0];
+            headerValues[i] = headers.get(i)[1];
+        }
+        this.body = body.slice().asReadOnlyBuffer();
+    }
+
+    public int getStatusCode() {
+        return statusCode;
+    }
+
+    public int getHeaderCount() {
+        return headerNames.length;
+    }
+
+    public String getHeaderName(int i) {
+        return headerNames[i];
+    }
+
+    public String getHeaderValue(int i) {
+        return headerValues[i];
+    }
+
+    /**
+     * @return the first value of the header (case insensitive) or null if the response doesn't have it
+     */
+    public String getHeader(String name) {
+        for (int i = 0; i < headerNames.length; i++) {
+            if (headerNames[i].equalsIgnoreCase(name)) return headerValues[i];
+        }
+        return null;
+    }
+
+    /**
+     * @return the headers as name, value pairs
+     */
+    public List<String[]> getHeaders() {
+        List<String[]> headers = new ArrayList<>(headerNames.length);
+        for (int i = 0; i < headerNames.length; i++) {
+            headers.add(new String[]{headerNames[i], headerValues[i]});
+        }
+        return headers;
+    }
+
+    /**
+     * @return a read only view of the body, positioned at the start
+     */
+    public ByteBuffer getBody() {
+        return body.duplicate();
+    }
+
+    public int getBodyLength() {
+        return body.remaining();
+    }
+
+    /**
+     * Write the status, headers and body to a client response.
+     */
+    public void writeTo(HttpServletResponse hsResponse) throws IOException {
+        writeTo(hsResponse, true);
+    }
+
+    /**
+     * Write the status, headers and optionally the body (ie, not for a HEAD request) to a client response.
+     */
+    public void writeTo(HttpServletResponse hsResponse, boolean withBody) throws IOException {
+        if (statusCode != HttpServletResponse.SC_OK) {
+            hsResponse.setStatus(statusCode);
+        }
+        for (int i = 0; i < headerNames.length; i++) {
+            hsResponse.addHeader(headerNames[i], headerValues[i]);
+        }
+        if (body.remaining() > 0) {
+            hsResponse.setContentLength(body.remaining());
+            if (withBody) {
+                writeBody(hsResponse.getOutputStream());
+            }
+        }
+    }
+
+    private void writeBody(OutputStream out) throws IOException {
+        ByteBuffer buffer = body.duplicate();
+        if (out instanceof WritableByteChannel) {
+            // ie, a mapped file straight to the socket
+            WritableByteChannel channel = (WritableByteChannel) out;
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+        } else {
+            ProxyBufferPool bufferPool = RequestProxy.getBufferPool();
+            byte[] chunk = bufferPool.acquire();
+            try {
+                while (buffer.hasRemaining()) {
+                    int count = Math.min(buffer.remaining(), chunk.length);
+                    buffer.get(chunk, 0, count);
+                    out.write(chunk, 0, count);
+                }
+            } finally {
+                bufferPool.release(chunk);
+            }
+        }
+    }
+}
@@ -0,0 +1,336 @@
+/**
+ * Copyright (c) 2005-2007, Paul Tuckey
+ * All rights reserved.
+ * ====================================================================
+ * Licensed under the BSD License. Text as follows.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *   - Redistributions of source code must retain the above copyright
+ *     notice, this list of conditions and the following disclaimer.
+ *   - Redistributions in binary form must reproduce the above
+ *     copyright notice, this list of conditions and the following
+ *     disclaimer in the documentation and/or other materials provided
+ *     with the distribution.
+ *   - Neither the name tuckey.org nor the names of its contributors
+ *     may be used to endorse or promote products derived from this
+ *     software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ * COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN
+ * ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * ====================================================================
+ */
+package org.tuckey.web.filters.urlrewrite;
+
+import org.apache.http.Header;
+import org.apache.http.HttpRequest;
+import org.apache.http.client.utils.DateUtils;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A response held in the proxy response cache, along with what is needed to work out if it is fresh (RFC 7234).
+ * Immutable, revalidating a response creates a new one.
+ */
+public final class CachedProxyResponse {
+
+    /**
+     * Status codes that can be cached without being explicitly marked as cacheable (RFC 7231 section 6.1).
+     */
+    private static final int[] CACHEABLE_STATUS_CODES = {200, 203, 204, 300, 301, 404, 405, 410, 414, 501};
+
+    /**
+     * Headers from a 304 that must not replace those of the stored response.
+     */
+    private static final String[] NOT_UPDATED_HEADERS = {"content-length", "content-type", "content-encoding",
+            "content-range", "transfer-encoding"};
+
+    private final BufferedProxyResponse response;
+    private final long requestTime;
+    private final long responseTime;
+    private final long correctedInitialAge;
+    private final long freshnessLifetime;
+    private final long staleWhileRevalidate;
+    private final long staleIfError;
+    private final boolean mustRevalidate;
+    private final String etag;
+    private final String lastModified;
+    private final Map<String, String> varyValues;
+
+    private CachedProxyResponse(BufferedProxyResponse response, long requestTime, long responseTime,
+                                Map<String, String> varyValues) {
+        this.response = response;
+        this.requestTime = requestTime;
+        this.responseTime = responseTime;
+        this.varyValues = varyValues;
+
+        Map<String, String> cacheControl = parseCacheControl(response);
+        Date date = parseDate(response.getHeader("date"));
+        long dateValue = date == null ? responseTime : date.getTime();
+        long apparentAge = Math.max(0, responseTime - dateValue);
+        long ageValue = TimeUnit.SECONDS.toMillis(parseSeconds(response.getHeader("age"), 0));
+        long responseDelay = responseTime - requestTime;
+        this.correctedInitialAge = Math.max(apparentAge, ageValue + responseDelay);
+
+        long lifetime = 0;
+        if (cacheControl.containsKey("no-cache")) {
+            lifetime = 0;
+        } else if (cacheControl.containsKey("s-maxage")) {
+            lifetime = TimeUnit.SECONDS.toMillis(parseSeconds(cacheControl.get("s-maxage"), 0));
+        } else if (cacheControl.containsKey("max-age")) {
+            lifetime = TimeUnit.SECONDS.toMillis(parseSeconds(cacheControl.get("max-age"), 0));
+        } else if (response.getHeader("expires") != null) {
+            Date expires = parseDate(response.getHeader("expires"));
+            lifetime = expires == null ? 0 : Math.max(0, expires.getTime() - dateValue);
+        }
+        this.freshnessLifetime = lifetime;
+        this.mustRevalidate = cacheControl.containsKey("must-revalidate") || cacheControl.containsKey("proxy-revalidate")
+                || cacheControl.containsKey("no-cache");
+        this.staleWhileRevalidate = mustRevalidate ? 0 :
+                TimeUnit.SECONDS.toMillis(parseSeconds(cacheControl.get("stale-while-revalidate"), 0));
+        this.staleIfError = TimeUnit.SECONDS.toMillis(parseSeconds(cacheControl.get("stale-if-error"), 0));
+        this.etag = response.getHeader("etag");
+        this.lastModified = response.getHeader("last-modified");
+    }
+
+    /**
+     * Create a cache entry for a response, if it may be stored by a shared cache.
+     *
+     * @param targetRequest the request to the target, used to record the values of the headers the response
+     *                      varies on
+     * @param requestTime  when the request to the target was made
+     * @param responseTime when the response was received
+     * @return the entry or null if the response may not be cached
+     */
+    public static CachedProxyResponse create(BufferedProxyResponse response, HttpRequest targetRequest,
+                                             long requestTime, long responseTime) {
+        if (Arrays.binarySearch(CACHEABLE_STATUS_CODES, response.getStatusCode()) < 0) return null;
+        Map<String, String> cacheControl = parseCacheControl(response);
+        if (cacheControl.containsKey("no-store") || cacheControl.containsKey("private")) return null;
+        for (int i = 0; i < response.getHeaderCount(); i++) {
+            if (response.getHeaderName(i).toLowerCase().startsWith("set-cookie")) return null;
+        }
+        boolean explicitFreshness = cacheControl.containsKey("s-maxage") || cacheControl.containsKey("max-age") ||
+                response.getHeader("expires") != null;
+        boolean validator = response.getHeader("etag") != null || response.getHeader("last-modified") != null;
+        if (!explicitFreshness && !validator) return null;
+
+        Map<String, String> varyValues = new HashMap<>();
+        String vary = response.getHeader("vary");
+        if (vary != null) {
+            for (String headerName : vary.split(",")) {
+                headerName = headerName.trim().toLowerCase();
+                if (headerName.isEmpty()) continue;
+                if ("*".equals(headerName)) return null;
+                varyValues.put(headerName, getHeaderValues(targetRequest, headerName));
+            }
+        }
+        return new CachedProxyResponse(response, requestTime, responseTime, varyValues);
+    }
+
+    private static String getHeaderValues(HttpRequest targetRequest, String headerName) {
+        StringBuilder values = new StringBuilder();
+        for (Header header : targetRequest.getHeaders(headerName)) {
+            if (values.length() > 0) values.append(',');
+            values.append(header.getValue());
+        }
+        return values.toString();
+    }
+
+    /**
+     * Is the response for a request to the target with the same values for the headers it varies on.
+     */
+    public boolean matchesVary(HttpRequest targetRequest) {
+        for (Map.Entry<String, String> varyValue : varyValues.entrySet()) {
+            if (!varyValue.getValue().equals(getHeaderValues(targetRequest, varyValue.getKey()))) return false;
+        }
+        return true;
+    }
+
+    /**
+     * Do the conditional headers of the client's request match this response, so it can be answered with a 304
+     * (RFC 7232 section 6).
+     */
+    public boolean isNotModified(HttpServletRequest hsRequest) {
+        if (response.getStatusCode() != HttpServletResponse.SC_OK) return false;
+        String ifNoneMatch = hsRequest.getHeader("If-None-Match");
+        if (ifNoneMatch != null) {
+            if (etag == null) return false;
+            if ("*".equals(ifNoneMatch.trim())) return true;
+            String opaqueEtag = stripWeak(etag);
+            for (String candidate : ifNoneMatch.split(",")) {
+                if (stripWeak(candidate.trim()).equals(opaqueEtag)) return true;
+            }
+            return false;
+        }
+        String ifModifiedSince = hsRequest.getHeader("If-Modified-Since");
+        if (ifModifiedSince != null && lastModified != null) {
+            Date since = parseDate(ifModifiedSince);
+            Date modified = parseDate(lastModified);
+            return since != null && modified != null && !modified.after(since);
+        }
+        return false;
+    }
+
+    private static String stripWeak(String etag) {
+        return etag.startsWith("W/") ? etag.substring(2) : etag;
+    }
+
+    /**
+     * The same entry with a different body store (ie, a memory mapped file).
+     */
+    public CachedProxyResponse withResponse(BufferedProxyResponse newResponse) {
+        return new CachedProxyResponse(newResponse, requestTime, responseTime, varyValues);
+    }
+
+    /**
+     * The entry updated with the headers of a 304 response to a revalidation request.
+     */
+    public CachedProxyResponse revalidated(List<String[]> notModifiedHeaders, long newRequestTime, long newResponseTime) {
+        List<String[]> headers = new ArrayList<>();
+        for (String[] header : response.getHeaders()) {
+            if (!containsHeader(notModifiedHeaders, header[0]) || isNotUpdatedHeader(header[0])) headers.add(header);
+        }
+        for (String[] header : notModifiedHeaders) {
+            if (!isNotUpdatedHeader(header[0])) headers.add(header);
+        }
+        return new CachedProxyResponse(new BufferedProxyResponse(response.getStatusCode(), headers, response.getBody()),
+                newRequestTime, newResponseTime, varyValues);
+    }
+
+    private static boolean containsHeader(List<String[]> headers, String name) {
+        for (String[] header : headers) {
+            if (header[0].equalsIgnoreCase(name)) return true;
+        }
+        return false;
+    }
+
+    private static boolean isNotUpdatedHeader(String name) {
+        for (String notUpdated : NOT_UPDATED_HEADERS) {
+            if (notUpdated.equalsIgnoreCase(name)) return true;
+        }
+        return false;
+    }
+
+    /**
+     * @return the current age in milliseconds
+     */
+    public long getAge(long now) {
+        return correctedInitialAge + Math.max(0, now - responseTime);
+    }
+
+    public boolean isFresh(long now) {
+        return getAge(now) < freshnessLifetime;
+    }
+
+    /**
+     * Stale, but within the stale-while-revalidate period, so it can be used while it is revalidated.
+     */
+    public boolean isUsableWhileRevalidating(long now) {
+        long staleness = getAge(now) - freshnessLifetime;
+        return staleness >= 0 && staleness < staleWhileRevalidate;
+    }
+
+    /**
+     * Within the stale-if-error period, so it can be used if revalidating it fails.
+     */
+    public boolean isUsableIfError(long now) {
+        return !mustRevalidate && getAge(now) - freshnessLifetime < staleIfError;
+    }
+
+    /**
+     * Can the entry be revalidated with a conditional request.
+     */
+    public boolean hasValidator() {
+        return etag != null || lastModified != null;
+    }
+
+    public String getEtag() {
+        return etag;
+    }
+
+    public String getLastModified() {
+        return lastModified;
+    }
+
+    public BufferedProxyResponse getResponse() {
+        return response;
+    }
+
+    /**
+     * Write the response to the client, with its current age.
+     */
+    public void writeTo(HttpServletResponse hsResponse, boolean withBody, long now) throws IOException {
+        response.writeTo(hsResponse, withBody);
+        hsResponse.setHeader("Age", String.valueOf(TimeUnit.MILLISECONDS.toSeconds(getAge(now))));
+    }
+
+    /**
+     * Write a 304 for the response to the client, with the headers but not the body.
+     */
+    public void writeNotModifiedTo(HttpServletResponse hsResponse, long now) {
+        hsResponse.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+        for (int i = 0; i < response.getHeaderCount(); i++) {
+            if (isNotUpdatedHeader(response.getHeaderName(i))) continue;
+            hsResponse.addHeader(response.getHeaderName(i), response.getHeaderValue(i));
+        }
+        hsResponse.setHeader("Age", String.valueOf(TimeUnit.MILLISECONDS.toSeconds(getAge(now))));
+    }
+
+    static Map<String, String> parseCacheControl(BufferedProxyResponse response) {
+        Map<String, String> directives = new HashMap<>();
+        for (int i = 0; i < response.getHeaderCount(); i++) {
+            if (!"cache-control".equalsIgnoreCase(response.getHeaderName(i))) continue;
+            for (String directive : response.getHeaderValue(i).split(",")) {
+                directive = directive.trim();
+                if (directive.isEmpty()) continue;
+                int eqIdx = directive.indexOf('=');
+                if (eqIdx == -1) {
+                    directives.put(directive.toLowerCase(Locale.ENGLISH), null);
+                } else {
+                    String value = directive.substring(eqIdx + 1).trim();
+                    if (value.length() > 1 && value.startsWith("\"") && value.endsWith("\"")) {
+                        value = value.substring(1, value.length() - 1);
+                    }
+                    directives.put(directive.substring(0, eqIdx).trim().toLowerCase(Locale.ENGLISH), value);
+                }
+            }
+        }
+        return directives;
+    }
+
+    private static long parseSeconds(String value, long defaultValue) {
+        if (value == null) return defaultValue;
+        try {
+            return Math.max(0, Long.parseLong(value.trim()));
+        } catch (NumberFormatException e) {
+            return defaultValue;
+        }
+    }
+
+    private static Date parseDate(String value) {
+        return value == null ? null : DateUtils.parseDate(value);
+    }
+}
@@ -46,10 +46,16 @@ import javax.servlet.ServletResponse;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import java.io.IOException;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.invoke.WrongMethodTypeException;
 import java.lang.reflect.Constructor;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 
 
@@ -94,6 +100,13 @@ public class ClassRule implements Rule {
     private Method initMethod;
     private Method matchesMethod;
 
+    /**
+     * True when the method is RewriteRule.matches (or an override of it) so it can be called directly, otherwise
+     * matchesHandle is used.
+     */
+    private boolean matchesDirect;
+    private MethodHandle matchesHandle;
+
 
     public RewrittenUrl matches(final String url, final HttpServletRequest hsRequest,
                                 final HttpServletResponse hsResponse, final RuleChain chain)
@@ -106,38 +119,30 @@ public class ClassRule implements Rule {
             throws ServletException, IOException {
         if (! initialised) return null;
 
-        Object[] args = new Object[2];
-        args[0] = hsRequest;
-        args[1] = hsResponse;
-
         if (log.isDebugEnabled()) {
             log.debug("running " + classStr + "." + methodStr + "(HttpServletRequest, HttpServletResponse)");
         }
-        if (matchesMethod == null) return null;
+        if (matchesDirect) {
+            return toRewrittenUrl(localRule.matches(hsRequest, hsResponse));
+        }
+        if (matchesHandle == null) return null;
         Object returnedObj;
         try {
-            returnedObj = matchesMethod.invoke(localRule, (Object[]) args);
+            returnedObj = matchesHandle.invokeExact(localRule, hsRequest, hsResponse);
 
-        } catch (IllegalAccessException e) {
+        } catch (Error | RuntimeException | ServletException | IOException e) {
             if (log.isDebugEnabled()) log.debug(e);
-            throw new ServletException(e);
+            throw e;
 
-        } catch (InvocationTargetException e) {
+        } catch (Throwable e) {
             if (log.isDebugEnabled()) log.debug(e);
-            Throwable originalThrowable = e.getTargetException();
-            if (originalThrowable == null) {
-                originalThrowable = e.getCause();
-                if (originalThrowable == null) {
-                    throw new ServletException(e);
-                }
-            }
-            if (originalThrowable instanceof Error) throw (Error) originalThrowable;
-            if (originalThrowable instanceof RuntimeException) throw (RuntimeException) originalThrowable;
-            if (originalThrowable instanceof ServletException) throw (ServletException) originalThrowable;
-            if (originalThrowable instanceof IOException) throw (IOException) originalThrowable;
-            throw new ServletException(originalThrowable);
+            throw new ServletException(e);
         }
 
+        return toRewrittenUrl(returnedObj);
+    }
+
+    private static RewrittenUrl toRewrittenUrl(Object returnedObj) {
         if ( returnedObj != null && returnedObj instanceof RewriteMatch) {
             return new RewrittenUrlClass((RewriteMatch) returnedObj);
         }
@@ -221,6 +226,29 @@ public class ClassRule implements Rule {
 
         localRule = (RewriteRule) instance;
 
+        matchesDirect = false;
+        matchesHandle = null;
+        if (matchesMethod != null) {
+            if (DEAULT_METHOD_STR.equals(matchesMethod.getName()) &&
+                    Arrays.equals(methodParameterTypesHttp, matchesMethod.getParameterTypes())) {
+                // RewriteRule.matches or an override of it
+                matchesDirect = true;
+            } else {
+                try {
+                    MethodHandle handle = MethodHandles.lookup().unreflect(matchesMethod);
+                    if (Modifier.isStatic(matchesMethod.getModifiers())) {
+                        // static, the rule instance is not needed
+                        handle = MethodHandles.dropArguments(handle, 0, RewriteRule.class);
+                    }
+                    matchesHandle = handle.asType(MethodType.methodType(
+                            Object.class, RewriteRule.class, HttpServletRequest.class, HttpServletResponse.class));
+                } catch (IllegalAccessException | WrongMethodTypeException e) {
+                    addError("could not access " + methodStr + " on " + classStr, e);
+                    return false;
+                }
+            }
+        }
+
         valid = true;
         return true;
     }
@@ -293,6 +321,13 @@ public class ClassRule implements Rule {
         return false;
     }
 
+    /**
+     * True if the rule's matches method is called directly rather than through a method handle.
+     */
+    boolean isMatchesDirect() {
+        return matchesDirect;
+    }
+
     public List<String> getErrors() {
         return errors;
     }
@@ -0,0 +1,169 @@
+/**
+ * Copyright (c) 2005-2007, Paul Tuckey
+ * All rights reserved.
+ * ====================================================================
+ * Licensed under the BSD License. Text as follows.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *   - Redistributions of source code must retain the above copyright
+ *     notice, this list of conditions and the following disclaimer.
+ *   - Redistributions in binary form must reproduce the above
+ *     copyright notice, this list of conditions and the following
+ *     disclaimer in the documentation and/or other materials provided
+ *     with the distribution.
+ *   - Neither the name tuckey.org nor the names of its contributors
+ *     may be used to endorse or promote products derived from this
+ *     software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ * COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN
+ * ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * ====================================================================
+ */
+package org.tuckey.web.filters.urlrewrite;
+
+import org.tuckey.web.filters.urlrewrite.substitution.SubstitutionContext;
+import org.tuckey.web.filters.urlrewrite.substitution.SubstitutionTemplate;
+import org.tuckey.web.filters.urlrewrite.utils.StringMatchingMatcher;
+import org.tuckey.web.filters.urlrewrite.utils.StringMatchingPattern;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+
+/**
+ * A rule specialised when the conf is loaded (see Conf#isCompiledRules()).
+ * <p/>
+ * Plain rewrite rules (a "from" and a "to", with optional conditions whose matches aren't used) are turned into a
+ * {@link Rewrite} that holds just what is needed to run them.  None of the flags RuleBase.matchesBase checks on each
+ * request (enabled, to empty, no substitution, sets, runs etc) are looked at and there is no RuleExecutionOutput
+ * work beyond building the result.  All other rules are run as normal.  RuleChain then calls at most two classes
+ * of rule which lets the JIT inline the call.
+ *
+ * @see RuleSnapshot#getCompiledRule(int)
+ */
+abstract class CompiledRule {
+
+    private final boolean last;
+    private final boolean filter;
+
+    CompiledRule(Rule rule) {
+        this.last = rule.isLast();
+        this.filter = rule.isFilter();
+    }
+
+    /**
+     * Compile the rule, rules that can't be specialised are run as they are.
+     */
+    static CompiledRule compile(Rule rule) {
+        if (rule instanceof NormalRule && Rewrite.isCompilable((NormalRule) rule)) {
+            return new Rewrite((NormalRule) rule);
+        }
+        return new Interpreted(rule);
+    }
+
+    /**
+     * As Rule.matches.
+     */
+    abstract RewrittenUrl matches(String url, HttpServletRequest hsRequest, HttpServletResponse hsResponse,
+                                  RuleChain chain)
+            throws IOException, ServletException, InvocationTargetException;
+
+    /**
+     * True if this was specialised, false if the rule is run as normal.
+     */
+    abstract boolean isSpecialised();
+
+    final boolean isLast() {
+        return last;
+    }
+
+    final boolean isFilter() {
+        return filter;
+    }
+
+    /**
+     * Runs the rule as normal.
+     */
+    private static final class Interpreted extends CompiledRule {
+        private final Rule rule;
+
+        Interpreted(Rule rule) {
+            super(rule);
+            this.rule = rule;
+        }
+
+        RewrittenUrl matches(String url, HttpServletRequest hsRequest, HttpServletResponse hsResponse, RuleChain chain)
+                throws IOException, ServletException, InvocationTargetException {
+            return rule.matches(url, hsRequest, hsResponse, chain);
+        }
+
+        boolean isSpecialised() {
+            return false;
+        }
+    }
+
+    /**
+     * A rule that matches "from", checks its conditions and substitutes "to".
+     */
+    private static final class Rewrite extends CompiledRule {
+        private final NormalRule rule;
+        private final StringMatchingPattern pattern;
+        private final ConditionExpression conditionExpression;
+        private final SubstitutionTemplate toTemplate;
+        private final String to;
+
+        Rewrite(NormalRule rule) {
+            super(rule);
+            this.rule = rule;
+            this.pattern = rule.getPattern();
+            this.conditionExpression = rule.getConditions().isEmpty() ? null : rule.getConditionExpression();
+            this.toTemplate = rule.getToTemplate();
+            this.to = rule.getTo();
+        }
+
+        static boolean isCompilable(NormalRule rule) {
+            if (!rule.initialised || !rule.isValid() || !rule.isEnabled() || rule.getPattern() == null) return false;
+            if (rule.isFilter() || !rule.getRuns().isEmpty() || !rule.getSetAttributes().isEmpty()) return false;
+            if (rule.isToEmpty() || rule.isNoSubstitution() || rule.isStopFilterChainOnMatch()) return false;
+            if (rule.getToTemplate() == null || !rule.getToTemplate().getTemplate().equals(rule.getTo())) return false;
+            // conditions are only compiled into an expression when the last condition match isn't needed
+            if (!rule.getConditions().isEmpty()) {
+                ConditionExpression expression = rule.getConditionExpression();
+                if (expression == null || expression.getConditionCount() != rule.getConditions().size()) return false;
+            }
+            return true;
+        }
+
+        RewrittenUrl matches(String url, HttpServletRequest hsRequest, HttpServletResponse hsResponse, RuleChain chain) {
+            if (url == null) return null;
+            StringMatchingMatcher matcher = pattern.matcher(url);
+            if (!matcher.find()) return null;
+            if (conditionExpression != null && !conditionExpression.matches(hsRequest)) return null;
+
+            // set a req attrib in case people want to use it
+            hsRequest.setAttribute("org.tuckey.web.filters.urlrewrite.RuleMatched", Boolean.TRUE);
+            String replacedTo = toTemplate.substituteMatches(url, new SubstitutionContext(hsRequest, matcher, null, to));
+            return rule.getRewrittenUrl(new RuleExecutionOutput(replacedTo, true, null), hsRequest);
+        }
+
+        boolean isSpecialised() {
+            return true;
+        }
+    }
+
+}
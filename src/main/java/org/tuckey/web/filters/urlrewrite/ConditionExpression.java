@@ -0,0 +1,176 @@
+/**
+ * Copyright (c) 2005-2007, Paul Tuckey
+ * All rights reserved.
+ * ====================================================================
+ * Licensed under the BSD License. Text as follows.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *   - Redistributions of source code must retain the above copyright
+ *     notice, this list of conditions and the following disclaimer.
+ *   - Redistributions in binary form must reproduce the above
+ *     copyright notice, this list of conditions and the following
+ *     disclaimer in the documentation and/or other materials provided
+ *     with the distribution.
+ *   - Neither the name tuckey.org nor the names of its contributors
+ *     may be used to endorse or promote products derived from this
+ *     software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ * COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN
+ * ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * ====================================================================
+ */
+package org.tuckey.web.filters.urlrewrite;
+
+import javax.servlet.http.HttpServletRequest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * The conditions of a rule compiled into a boolean expression tree that stops evaluating as soon as the result is
+ * known.
+ * <p/>
+ * Conditions are combined left to right, each with the result so far, using the "next" of the condition before
+ * (ie, a, or b, c is "(a or b) and c").  Runs of the same operator are grouped into one node and, as conditions
+ * do not change the request, the members of each group are sorted so that cheap conditions (see
+ * TypeConverter#getEvaluationCost) are checked before expensive ones.
+ * <p/>
+ * Note, as not every condition is checked the last condition to match is not known, rules that use condition back
+ * references must still check every condition.
+ */
+public class ConditionExpression {
+
+    private final Node root;
+    private final int conditionCount;
+
+    public ConditionExpression(List<Condition> conditions) {
+        conditionCount = conditions.size();
+        Node node = null;
+        for (int i = 0; i < conditions.size(); i++) {
+            Leaf leaf = new Leaf(conditions.get(i));
+            if (node == null) {
+                node = leaf;
+                continue;
+            }
+            boolean or = conditions.get(i - 1).isProcessNextOr();
+            if (node instanceof Group && ((Group) node).or == or) {
+                ((Group) node).children.add(leaf);
+            } else {
+                Group group = new Group(or);
+                group.children.add(node);
+                group.children.add(leaf);
+                node = group;
+            }
+        }
+        root = node;
+        if (root != null) {
+            root.compile();
+        }
+    }
+
+    /**
+     * @return true if the conditions match the request (or there are none)
+     */
+    public boolean matches(final HttpServletRequest hsRequest) {
+        return root == null || root.matches(hsRequest);
+    }
+
+    public int getConditionCount() {
+        return conditionCount;
+    }
+
+    /**
+     * Shows the order conditions will be evaluated in, ie, "(method and (header or cookie))".
+     */
+    public String toString() {
+        return root == null ? "" : root.toString();
+    }
+
+    private abstract static class Node {
+        abstract boolean matches(HttpServletRequest hsRequest);
+
+        abstract int getCost();
+
+        void compile() {
+        }
+    }
+
+    private static class Leaf extends Node {
+        private final Condition condition;
+
+        Leaf(Condition condition) {
+            this.condition = condition;
+        }
+
+        boolean matches(HttpServletRequest hsRequest) {
+            return condition.getConditionMatch(hsRequest) != null;
+        }
+
+        int getCost() {
+            return condition.getEvaluationCost();
+        }
+
+        public String toString() {
+            return condition.getType();
+        }
+    }
+
+    private static class Group extends Node {
+        private final boolean or;
+        private final List<Node> children = new ArrayList<>();
+        private Node[] ordered;
+        private int cost;
+
+        Group(boolean or) {
+            this.or = or;
+        }
+
+        void compile() {
+            ordered = children.toArray(new Node[children.size()]);
+            for (Node child : ordered) {
+                child.compile();
+                cost += child.getCost();
+            }
+            // stable, so conditions of the same cost are checked in conf order
+            Arrays.sort(ordered, Comparator.comparingInt(Node::getCost));
+        }
+
+        boolean matches(HttpServletRequest hsRequest) {
+            for (Node child : ordered) {
+                if (child.matches(hsRequest) == or) {
+                    // true for an "or" or false for an "and" decides it
+                    return or;
+                }
+            }
+            return !or;
+        }
+
+        int getCost() {
+            return cost;
+        }
+
+        public String toString() {
+            StringBuilder sb = new StringBuilder("(");
+            for (int i = 0; i < ordered.length; i++) {
+                if (i > 0) sb.append(or ? " or " : " and ");
+                sb.append(ordered[i]);
+            }
+            return sb.append(')').toString();
+        }
+    }
+
+}
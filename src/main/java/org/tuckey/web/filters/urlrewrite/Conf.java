@@ -42,6 +42,11 @@ import java.net.URLDecoder;
 import java.util.ArrayList;
 import java.util.Date;
 import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 import javax.servlet.ServletContext;
 import javax.xml.parsers.DocumentBuilder;
@@ -51,6 +56,7 @@ import javax.xml.parsers.ParserConfigurationException;
 import org.tuckey.web.filters.urlrewrite.gzip.GzipFilter;
 import org.tuckey.web.filters.urlrewrite.utils.Log;
 import org.tuckey.web.filters.urlrewrite.utils.ModRewriteConfLoader;
+import org.tuckey.web.filters.urlrewrite.utils.NumberUtils;
 import org.tuckey.web.filters.urlrewrite.utils.StringUtils;
 import org.w3c.dom.CharacterData;
 import org.w3c.dom.Document;
@@ -74,7 +80,16 @@ public class Conf {
     private final List<String> errors = new ArrayList<>();
     private final List<Rule> rules = new ArrayList<>(50);
     private final List<CatchElem> catchElems = new ArrayList<>(10);
+    private final List<ProxyPool> proxyPools = new ArrayList<>();
     private List<OutboundRule> outboundRules = new ArrayList<>(50);
+    private volatile RuleSnapshot ruleSnapshot;
+    private RuleReorderer ruleReorderer;
+    private ExecutorService ruleReorderExecutor;
+    private int ruleReorderInterval = 0;
+    private boolean compiledRules = false;
+    private ProxyConnectionManager proxyConnectionManager;
+    private int rewriteCacheSize = DEFAULT_REWRITE_CACHE_SIZE;
+    private int noMatchCacheSize = 0;
     private boolean ok = false;
     private Date loadedDate = null;
     private int ruleIdCounter = 0;
@@ -88,6 +103,7 @@ public class Conf {
     private static final String NONE_DECODE_USING = "null";
     private static final String HEADER_DECODE_USING = "header";
     private static final String DEFAULT_DECODE_USING = "header,utf-8";
+    private static final int DEFAULT_REWRITE_CACHE_SIZE = 1000;
 
     protected String decodeUsing = DEFAULT_DECODE_USING;
     private boolean decodeUsingEncodingHeader;
@@ -233,6 +249,11 @@ public class Conf {
         }
         setDecodeUsing(getAttrValue(rootElement, "decode-using"));
         setDefaultMatchType(getAttrValue(rootElement, "default-match-type"));
+        setRewriteCacheSize(NumberUtils.stringToInt(getAttrValue(rootElement, "rewrite-cache-size"),
+                DEFAULT_REWRITE_CACHE_SIZE));
+        setNoMatchCacheSize(NumberUtils.stringToInt(getAttrValue(rootElement, "no-match-cache-size"), 0));
+        setRuleReorderInterval(NumberUtils.stringToInt(getAttrValue(rootElement, "rule-reorder-interval"), 0));
+        if ("true".equalsIgnoreCase(getAttrValue(rootElement, "compiled-rules"))) setCompiledRules(true);
 
         NodeList rootElementList = rootElement.getChildNodes();
         for (int i = 0; i < rootElementList.getLength(); i++) {
@@ -258,6 +279,9 @@ public class Conf {
                 if ("true".equalsIgnoreCase(getAttrValue(toNode, "encode"))) rule.setEncodeToUrl(true);
                 rule.setFollowRedirects("true".equals(getAttrValue(toNode, "followRedirects")));
                 rule.setUseSystemProperties("true".equals((getAttrValue(toNode, "useSystemProperties"))));
+                rule.setProxyMaxConnections(NumberUtils.stringToInt(getAttrValue(toNode, "max-connections"), 0));
+                rule.setProxyAsync("true".equalsIgnoreCase(getAttrValue(toNode, "async")));
+                processProxyOptions(toNode, rule.getProxyOptions());
 
                 processSetAttributes(ruleElement, rule);
 
@@ -310,6 +334,26 @@ public class Conf {
 
                 catchElems.add(catchElem);
 
+            } else if (node.getNodeType() == Node.ELEMENT_NODE &&
+                    ((Element) node).getTagName().equals("proxy-pool")) {
+
+                Element poolElement = (Element) node;
+                ProxyPool proxyPool = new ProxyPool();
+                proxyPool.setName(getAttrValue(poolElement, "name"));
+                proxyPool.setStrategy(getAttrValue(poolElement, "strategy"));
+                proxyPool.setMaxFailures(NumberUtils.stringToInt(getAttrValue(poolElement, "max-failures"),
+                        ProxyPool.DEFAULT_MAX_FAILURES));
+                proxyPool.setCooldown(NumberUtils.stringToInt(getAttrValue(poolElement, "cooldown"),
+                        ProxyPool.DEFAULT_COOLDOWN));
+                proxyPool.setMaxConnections(NumberUtils.stringToInt(getAttrValue(poolElement, "max-connections"), 0));
+                NodeList upstreamNodes = poolElement.getElementsByTagName("upstream");
+                for (int j = 0; j < upstreamNodes.getLength(); j++) {
+                    String upstreamUrl = StringUtils.trimToNull(getNodeValue(upstreamNodes.item(j)));
+                    if (upstreamUrl != null) proxyPool.addUpstream(new ProxyUpstream(upstreamUrl));
+                }
+
+                proxyPools.add(proxyPool);
+
             }
         }
         docProcessed = true;
@@ -346,6 +390,31 @@ public class Conf {
         }
     }
 
+    private static void processProxyOptions(Node toNode, ProxyOptions proxyOptions) {
+        proxyOptions.setCoalesce("true".equalsIgnoreCase(getAttrValue(toNode, "coalesce")));
+        proxyOptions.setCoalesceVary(getAttrValue(toNode, "coalesce-vary"));
+        proxyOptions.setCoalesceMaxWaiters(NumberUtils.stringToInt(getAttrValue(toNode, "coalesce-max-waiters"),
+                ProxyOptions.DEFAULT_COALESCE_MAX_WAITERS));
+        proxyOptions.setCoalesceTimeout(NumberUtils.stringToInt(getAttrValue(toNode, "coalesce-timeout"),
+                ProxyOptions.DEFAULT_COALESCE_TIMEOUT));
+        proxyOptions.setCache("true".equalsIgnoreCase(getAttrValue(toNode, "cache")));
+        proxyOptions.setPoolName(StringUtils.trimToNull(getAttrValue(toNode, "pool")));
+        proxyOptions.setConnectTimeout(NumberUtils.stringToInt(getAttrValue(toNode, "connect-timeout"), 0));
+        proxyOptions.setReadTimeout(NumberUtils.stringToInt(getAttrValue(toNode, "read-timeout"), 0));
+        proxyOptions.setTimeout(NumberUtils.stringToInt(getAttrValue(toNode, "timeout"), 0));
+        proxyOptions.setMaxConcurrent(NumberUtils.stringToInt(getAttrValue(toNode, "max-concurrent"), 0));
+        proxyOptions.setBreakerFailures(NumberUtils.stringToInt(getAttrValue(toNode, "breaker-failures"), 0));
+        proxyOptions.setBreakerOpenTime(NumberUtils.stringToInt(getAttrValue(toNode, "breaker-open-time"),
+                ProxyOptions.DEFAULT_BREAKER_OPEN_TIME));
+        proxyOptions.setHedge("true".equalsIgnoreCase(getAttrValue(toNode, "hedge")));
+        proxyOptions.setHedgePercentile(NumberUtils.stringToInt(getAttrValue(toNode, "hedge-percentile"),
+                ProxyOptions.DEFAULT_HEDGE_PERCENTILE));
+        proxyOptions.setHedgeDelay(NumberUtils.stringToInt(getAttrValue(toNode, "hedge-delay"),
+                ProxyOptions.DEFAULT_HEDGE_DELAY));
+        proxyOptions.setCompressedPassthrough("true".equalsIgnoreCase(getAttrValue(toNode, "compressed-passthrough")));
+        proxyOptions.setHttp2("true".equalsIgnoreCase(getAttrValue(toNode, "http2")));
+    }
+
     private static void processRuns(Element ruleElement, Runnable runnable) {
         NodeList runNodes = ruleElement.getElementsByTagName("run");
         for (int j = 0; j < runNodes.getLength(); j++) {
@@ -452,6 +521,25 @@ public class Conf {
         initDecodeUsing(decodeUsing);
 
         boolean rulesOk = true;
+        for (final ProxyPool proxyPool : proxyPools) {
+            if (!proxyPool.initialise()) {
+                addError(proxyPool.getError());
+                rulesOk = false;
+            }
+        }
+        for (final Rule rule : rules) {
+            if (!(rule instanceof NormalRule)) continue;
+            ProxyOptions proxyOptions = ((NormalRule) rule).getProxyOptions();
+            if (proxyOptions.getPoolName() == null) continue;
+            ProxyPool proxyPool = getProxyPool(proxyOptions.getPoolName());
+            if (proxyPool == null || !proxyPool.isValid()) {
+                addError(((NormalRule) rule).getDisplayName() + " uses proxy-pool " + proxyOptions.getPoolName() +
+                        " which is not defined or not valid");
+                rulesOk = false;
+            } else {
+                proxyOptions.setPool(proxyPool);
+            }
+        }
         for (final Rule rule : rules) {
             if (!rule.initialise(context)) {
                 // if we failed to initialise anything set the status to bad
@@ -473,6 +561,32 @@ public class Conf {
         if (rulesOk) {
             ok = true;
         }
+        ruleReorderer = null;
+        if (ruleReorderInterval > 0) {
+            RuleReorderer reorderer = new RuleReorderer(rules, ruleReorderInterval * 1000L);
+            if (reorderer.hasGroups()) {
+                ruleReorderer = reorderer;
+                if (ruleReorderExecutor == null) {
+                    ruleReorderExecutor = new ThreadPoolExecutor(1, 1, 0, TimeUnit.SECONDS,
+                            new LinkedBlockingQueue<>(), runnable -> {
+                        Thread thread = new Thread(runnable, "urlrewrite-rule-reorder");
+                        thread.setDaemon(true);
+                        return thread;
+                    });
+                }
+            } else {
+                log.debug("no rules can be reordered");
+            }
+        }
+        CompiledRule[] compiled = null;
+        if (compiledRules) {
+            compiled = new CompiledRule[rules.size()];
+            for (int i = 0; i < compiled.length; i++) {
+                compiled[i] = CompiledRule.compile(rules.get(i));
+            }
+        }
+        ruleSnapshot = new RuleSnapshot(rules, null, ruleReorderer == null ? null : ruleReorderer.getMatchCounts(),
+                compiled);
         if (log.isDebugEnabled()) {
             log.debug("conf status " + ok);
         }
@@ -510,6 +624,9 @@ public class Conf {
      * Destroy the conf gracefully.
      */
     public void destroy() {
+        if (ruleReorderExecutor != null) {
+            ruleReorderExecutor.shutdownNow();
+        }
         for (final Rule rule : rules) {
             rule.destroy();
         }
@@ -553,6 +670,37 @@ public class Conf {
         return rules;
     }
 
+    /**
+     * Will get the rules in the order they should be run along with the structures to look them up.  Built on
+     * initialise and replaced when the rules are reordered.
+     *
+     * @return the snapshot or null if the conf has not been initialised
+     */
+    public RuleSnapshot getRuleSnapshot() {
+        return ruleSnapshot;
+    }
+
+    /**
+     * Reorder the rules if rule reordering is enabled and a reorder is due.  The new snapshot is built on a
+     * background thread, requests keep using the current one until it is published.
+     */
+    public void reorderRulesIfDue() {
+        final RuleReorderer reorderer = ruleReorderer;
+        if (reorderer == null || !reorderer.claimReorder()) return;
+        try {
+            ruleReorderExecutor.execute(() -> {
+                RuleSnapshot reordered = reorderer.reorder(ruleSnapshot);
+                if (reordered != null) ruleSnapshot = reordered;
+            });
+        } catch (RejectedExecutionException e) {
+            log.debug("conf destroyed, rules not reordered");
+        }
+    }
+
+    public RuleReorderer getRuleReorderer() {
+        return ruleReorderer;
+    }
+
     /**
      * Will get the List of outbound rules.
      *
@@ -629,10 +777,120 @@ public class Conf {
         return catchElems;
     }
 
+    public List<ProxyPool> getProxyPools() {
+        return proxyPools;
+    }
+
+    /**
+     * @return the proxy-pool with the name or null if there isn't one
+     */
+    public ProxyPool getProxyPool(String name) {
+        for (ProxyPool proxyPool : proxyPools) {
+            if (proxyPool.getName() != null && proxyPool.getName().equals(name)) return proxyPool;
+        }
+        return null;
+    }
+
     public boolean isDecodeUsingCustomCharsetRequired() {
         return decodeUsing != null;
     }
 
+    /**
+     * The maximum number of rewritten urls to cache for requests that only url pure rules matched, 0 to disable.
+     */
+    public int getRewriteCacheSize() {
+        return rewriteCacheSize;
+    }
+
+    public void setRewriteCacheSize(int rewriteCacheSize) {
+        this.rewriteCacheSize = Math.max(0, rewriteCacheSize);
+    }
+
+    /**
+     * The maximum number of urls to remember that matched no rule when only url pure rules were run, 0 (the
+     * default) to disable.
+     */
+    public int getNoMatchCacheSize() {
+        return noMatchCacheSize;
+    }
+
+    public void setNoMatchCacheSize(int noMatchCacheSize) {
+        this.noMatchCacheSize = Math.max(0, noMatchCacheSize);
+    }
+
+    /**
+     * How often (in seconds) to reorder independent rules by the number of times they matched, 0 (the default) to
+     * never reorder.
+     *
+     * @see RuleReorderer
+     */
+    public int getRuleReorderInterval() {
+        return ruleReorderInterval;
+    }
+
+    public void setRuleReorderInterval(int ruleReorderInterval) {
+        this.ruleReorderInterval = Math.max(0, ruleReorderInterval);
+    }
+
+    /**
+     * If rules should be specialised when the conf is initialised, rather than checking all of their settings on
+     * each request.  False by default.
+     *
+     * @see CompiledRule
+     */
+    public boolean isCompiledRules() {
+        return compiledRules;
+    }
+
+    public void setCompiledRules(boolean compiledRules) {
+        this.compiledRules = compiledRules;
+    }
+
+    public ProxyConnectionManager getProxyConnectionManager() {
+        return proxyConnectionManager;
+    }
+
+    /**
+     * True if any of the rules has type="proxy".
+     */
+    public boolean hasProxyRules() {
+        for (final Rule rule : rules) {
+            if (rule instanceof NormalRule && "proxy".equals(((NormalRule) rule).getToType())) return true;
+        }
+        return false;
+    }
+
+    /**
+     * Sets the connection pool the proxy rules will use, and the max connections to the hosts of the rules that have
+     * them set.  The pool is not owned by the conf, it will not be shutdown by destroy().
+     */
+    public void setProxyConnectionManager(ProxyConnectionManager proxyConnectionManager) {
+        this.proxyConnectionManager = proxyConnectionManager;
+        for (final Rule rule : rules) {
+            if (!(rule instanceof NormalRule)) continue;
+            NormalRule normalRule = (NormalRule) rule;
+            if (!"proxy".equals(normalRule.getToType())) continue;
+            normalRule.setProxyConnectionManager(proxyConnectionManager);
+            ProxyPool proxyPool = normalRule.getProxyOptions().getPool();
+            if (proxyConnectionManager != null && normalRule.getProxyMaxConnections() > 0 && proxyPool != null) {
+                for (ProxyUpstream upstream : proxyPool.getUpstreams()) {
+                    proxyConnectionManager.setMaxConnections(upstream.getUrl(), normalRule.getProxyMaxConnections());
+                }
+            } else if (proxyConnectionManager != null && normalRule.getProxyMaxConnections() > 0 &&
+                    !proxyConnectionManager.setMaxConnections(normalRule.getTo(), normalRule.getProxyMaxConnections())) {
+                log.warn("max-connections ignored on " + normalRule.getDisplayName() +
+                        " as the host it proxies to is not fixed");
+            }
+        }
+        if (proxyConnectionManager == null) return;
+        for (final ProxyPool proxyPool : proxyPools) {
+            if (proxyPool.getMaxConnections() <= 0) continue;
+            for (ProxyUpstream upstream : proxyPool.getUpstreams()) {
+                proxyConnectionManager.setMaxConnections(upstream.getUrl(), proxyPool.getMaxConnections());
+            }
+        }
+    }
+
     public boolean isEngineEnabled() {
         return engineEnabled;
     }
@@ -0,0 +1,99 @@
+/**
+ * Copyright (c) 2005-2007, Paul Tuckey
+ * All rights reserved.
+ * ====================================================================
+ * Licensed under the BSD License. Text as follows.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *   - Redistributions of source code must retain the above copyright
+ *     notice, this list of conditions and the following disclaimer.
+ *   - Redistributions in binary form must reproduce the above
+ *     copyright notice, this list of conditions and the following
+ *     disclaimer in the documentation and/or other materials provided
+ *     with the distribution.
+ *   - Neither the name tuckey.org nor the names of its contributors
+ *     may be used to endorse or promote products derived from this
+ *     software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ * COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN
+ * ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * ====================================================================
+ */
+package org.tuckey.web.filters.urlrewrite;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Proxy cache store that keeps entries on the heap, discarding the least recently used ones once the size of the
+ * bodies goes over a limit.
+ */
+public class HeapProxyCacheStore implements ProxyCacheStore {
+
+    private final long maxBytes;
+    private final LinkedHashMap<String, CachedProxyResponse> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long bytes;
+
+    public HeapProxyCacheStore(long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    public synchronized CachedProxyResponse get(String key) {
+        return entries.get(key);
+    }
+
+    public synchronized CachedProxyResponse put(String key, CachedProxyResponse entry) {
+        long size = entry.getResponse().getBodyLength();
+        if (size > maxBytes) {
+            remove(key);
+            return entry;
+        }
+        CachedProxyResponse previous = entries.put(key, entry);
+        if (previous != null) bytes -= previous.getResponse().getBodyLength();
+        bytes += size;
+        Iterator<Map.Entry<String, CachedProxyResponse>> it = entries.entrySet().iterator();
+        while (bytes > maxBytes && it.hasNext()) {
+            Map.Entry<String, CachedProxyResponse> eldest = it.next();
+            if (eldest.getKey().equals(key)) continue;
+            bytes -= eldest.getValue().getResponse().getBodyLength();
+            it.remove();
+        }
+        return entry;
+    }
+
+    public synchronized void remove(String key) {
+        CachedProxyResponse previous = entries.remove(key);
+        if (previous != null) bytes -= previous.getResponse().getBodyLength();
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    public synchronized long getBytes() {
+        return bytes;
+    }
+
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    public synchronized void close() {
+        entries.clear();
+        bytes = 0;
+    }
+}
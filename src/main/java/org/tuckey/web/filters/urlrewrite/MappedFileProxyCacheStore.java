@@ -0,0 +1,169 @@
+/**
+ * Copyright (c) 2005-2007, Paul Tuckey
+ * All rights reserved.
+ * ====================================================================
+ * Licensed under the BSD License. Text as follows.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *   - Redistributions of source code must retain the above copyright
+ *     notice, this list of conditions and the following disclaimer.
+ *   - Redistributions in binary form must reproduce the above
+ *     copyright notice, this list of conditions and the following
+ *     disclaimer in the documentation and/or other materials provided
+ *     with the distribution.
+ *   - Neither the name tuckey.org nor the names of its contributors
+ *     may be used to endorse or promote products derived from this
+ *     software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ * COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN
+ * ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * ====================================================================
+ */
+package org.tuckey.web.filters.urlrewrite;
+
+import org.tuckey.web.filters.urlrewrite.utils.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Proxy cache store for large bodies that writes each body to a file in a directory and memory maps it, so the body
+ * is kept off the heap and served from the page cache.  The index is kept on the heap and the least recently used
+ * entries are discarded (and their files deleted) once the total size goes over a limit.  Each body gets a new
+ * uniquely named file, so files are never reused (after a restart or by another store using the same directory).
+ */
+public class MappedFileProxyCacheStore implements ProxyCacheStore {
+
+    private static Log log = Log.getLog(MappedFileProxyCacheStore.class);
+
+    private final File dir;
+    private final long maxBytes;
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long bytes;
+
+    private static final class Entry {
+        private final CachedProxyResponse response;
+        private final File file;
+
+        private Entry(CachedProxyResponse response, File file) {
+            this.response = response;
+            this.file = file;
+        }
+    }
+
+    public MappedFileProxyCacheStore(File dir, long maxBytes) throws IOException {
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("unable to create proxy cache directory " + dir);
+        }
+        this.dir = dir;
+        this.maxBytes = maxBytes;
+    }
+
+    public synchronized CachedProxyResponse get(String key) {
+        Entry entry = entries.get(key);
+        return entry == null ? null : entry.response;
+    }
+
+    public CachedProxyResponse put(String key, CachedProxyResponse response) {
+        BufferedProxyResponse buffered = response.getResponse();
+        if (buffered.getBodyLength() > maxBytes) {
+            remove(key);
+            return response;
+        }
+        File file = null;
+        CachedProxyResponse mapped;
+        try {
+            file = File.createTempFile("entry-", ".cache", dir);
+            mapped = response.withResponse(new BufferedProxyResponse(buffered.getStatusCode(),
+                    buffered.getHeaders(), writeAndMap(file, buffered.getBody())));
+        } catch (IOException e) {
+            log.error("unable to write proxy cache file " + file + ", not caching response", e);
+            deleteFile(file);
+            return response;
+        }
+        synchronized (this) {
+            Entry previous = entries.put(key, new Entry(mapped, file));
+            if (previous != null) discard(previous);
+            bytes += buffered.getBodyLength();
+            Iterator<Map.Entry<String, Entry>> it = entries.entrySet().iterator();
+            while (bytes > maxBytes && it.hasNext()) {
+                Map.Entry<String, Entry> eldest = it.next();
+                if (eldest.getKey().equals(key)) continue;
+                discard(eldest.getValue());
+                it.remove();
+            }
+        }
+        return mapped;
+    }
+
+    private static MappedByteBuffer writeAndMap(File file, ByteBuffer body) throws IOException {
+        long length = body.remaining();
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE, StandardOpenOption.READ,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            while (body.hasRemaining()) {
+                channel.write(body);
+            }
+            // the mapping stays valid after the channel is closed
+            return channel.map(FileChannel.MapMode.READ_ONLY, 0, length);
+        }
+    }
+
+    /**
+     * Responses already handed out keep the mapping, on unix they can still read it after the file is deleted.
+     */
+    private void discard(Entry entry) {
+        bytes -= entry.response.getResponse().getBodyLength();
+        deleteFile(entry.file);
+    }
+
+    private static void deleteFile(File file) {
+        if (file != null && file.exists() && !file.delete()) {
+            file.deleteOnExit();
+        }
+    }
+
+    public synchronized void remove(String key) {
+        Entry previous = entries.remove(key);
+        if (previous != null) discard(previous);
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    public synchronized long getBytes() {
+        return bytes;
+    }
+
+    public File getDir() {
+        return dir;
+    }
+
+    public synchronized void close() {
+        for (Entry entry : entries.values()) {
+            deleteFile(entry.file);
+        }
+        entries.clear();
+        bytes = 0;
+    }
+}
@@ -71,6 +71,9 @@ public class NormalRewrittenUrl implements RewrittenUrl {
     private boolean dropCookies = true;
     private boolean followRedirects = true;
     private boolean useSystemProperties = false;
+    private ProxyConnectionManager proxyConnectionManager = null;
+    private boolean proxyAsync = false;
+    private ProxyOptions proxyOptions = null;
     private RewriteMatch rewriteMatch;
     private ServletContext targetContext = null;
 
@@ -88,6 +91,9 @@ public class NormalRewrittenUrl implements RewrittenUrl {
         this.dropCookies = ruleExecutionOutput.isDropCookies();
         this.followRedirects = ruleExecutionOutput.isFollowRedirects();
         this.useSystemProperties = ruleExecutionOutput.isUseSystemProperties();
+        this.proxyConnectionManager = ruleExecutionOutput.getProxyConnectionManager();
+        this.proxyAsync = ruleExecutionOutput.isProxyAsync();
+        this.proxyOptions = ruleExecutionOutput.getProxyOptions();
     }
 
     /**
@@ -180,6 +186,14 @@ public class NormalRewrittenUrl implements RewrittenUrl {
         this.proxy = proxy;
     }
 
+    public ProxyConnectionManager getProxyConnectionManager() {
+        return proxyConnectionManager;
+    }
+
+    public boolean isProxyAsync() {
+        return proxyAsync;
+    }
+
     /**
      * The method that actually handles the outcome and rewrites.
      */
@@ -292,8 +306,15 @@ public class NormalRewrittenUrl implements RewrittenUrl {
         } else if (isProxy()) {
             if (hsResponse.isCommitted()) {
                 log.error("response is committed. cannot proxy " + target + ". Check that you haven't written to the response before.");
+            } else if (proxyAsync && RequestProxy.executeAsync(target, hsRequest, hsResponse, dropCookies, followRedirects,
+                    useSystemProperties, proxyConnectionManager, proxyOptions)) {
+                // the response will be written and completed by a proxy thread
+                if (log.isTraceEnabled()) {
+                    log.trace("Handed off proxy request to " + target);
+                }
             } else {
-                RequestProxy.execute(target, hsRequest, hsResponse, dropCookies, followRedirects, useSystemProperties);
+                RequestProxy.execute(target, hsRequest, hsResponse, dropCookies, followRedirects, useSystemProperties,
+                        proxyConnectionManager, proxyOptions);
                 if (log.isTraceEnabled()) {
                     log.trace("Proxied request to " + target);
                 }
@@ -73,6 +73,10 @@ public class NormalRule extends RuleBase implements Rule {
     private ServletContext toServletContext = null;
     private boolean followRedirects = false;
     private boolean useSystemProperties = false;
+    private int proxyMaxConnections = 0;
+    private boolean proxyAsync = false;
+    private final ProxyOptions proxyOptions = new ProxyOptions();
+    private ProxyConnectionManager proxyConnectionManager = null;
 
     /**
      * Will run the rule against the uri and perform action required will return false is not matched
@@ -87,6 +91,13 @@ public class NormalRule extends RuleBase implements Rule {
             // no match, or run/set only match
             return null;
         }
+        return getRewrittenUrl(ruleExecutionOutput, hsRequest);
+    }
+
+    /**
+     * Apply the settings of this rule (to type, qsappend etc) to the output of a match.
+     */
+    RewrittenUrl getRewrittenUrl(RuleExecutionOutput ruleExecutionOutput, final HttpServletRequest hsRequest) {
         ruleExecutionOutput.setDropCookies(dropCookies);
         if ( queryStringAppend && hsRequest.getQueryString() != null && hsRequest.getQueryString().length() > 0) {
             String target = ruleExecutionOutput.getReplacedUrl();
@@ -99,6 +110,9 @@ public class NormalRule extends RuleBase implements Rule {
         if ( toServletContext != null ) ruleExecutionOutput.setReplacedUrlContext(toServletContext);
         ruleExecutionOutput.setFollowRedirects(followRedirects);
         ruleExecutionOutput.setUseSystemProperties(useSystemProperties);
+        ruleExecutionOutput.setProxyConnectionManager(proxyConnectionManager);
+        ruleExecutionOutput.setProxyAsync(proxyAsync);
+        ruleExecutionOutput.setProxyOptions(proxyOptions);
         return RuleExecutionOutput.getRewritenUrl(toType, encodeToUrl, ruleExecutionOutput);
     }
 
@@ -231,6 +245,21 @@ public class NormalRule extends RuleBase implements Rule {
         queryStringAppend = "true".equalsIgnoreCase(value);
     }
 
+    public boolean isQueryStringAppend() {
+        return queryStringAppend;
+    }
+
+    /**
+     * True if the result of this rule depends only on the url and query string of the request, ie, it has no
+     * conditions, sets or runs, isn't a filter and "to" does not contain variables read from the request.  Rules that are
+     * invalid or disabled never match so they are also url pure.
+     */
+    public boolean isUrlPure() {
+        if (!initialised || !valid || !isEnabled()) return true;
+        return getConditions().isEmpty() && getSetAttributes().isEmpty() && getRuns().isEmpty() && !isFilter()
+                && (getToTemplate() == null || !getToTemplate().isRequestDependent());
+    }
+
     public void setDropCookies(final boolean dropCookies) {
         this.dropCookies = dropCookies;
     }
@@ -242,4 +271,42 @@ public class NormalRule extends RuleBase implements Rule {
     public void setUseSystemProperties(boolean useSystemProperties) {
         this.useSystemProperties = useSystemProperties;
     }
+
+    public int getProxyMaxConnections() {
+        return proxyMaxConnections;
+    }
+
+    /**
+     * The maximum number of pooled connections to the host this proxy rule sends requests to, 0 for the pool default.
+     */
+    public void setProxyMaxConnections(int proxyMaxConnections) {
+        this.proxyMaxConnections = proxyMaxConnections;
+    }
+
+    public boolean isProxyAsync() {
+        return proxyAsync;
+    }
+
+    /**
+     * If true the proxied request will be made on one of the proxy threads of the connection manager, the container
+     * thread is released as soon as the request has been handed over (needs the filter to be async-supported).
+     */
+    public void setProxyAsync(boolean proxyAsync) {
+        this.proxyAsync = proxyAsync;
+    }
+
+    /**
+     * The settings used when proxying the request, only used if the to type is proxy.
+     */
+    public ProxyOptions getProxyOptions() {
+        return proxyOptions;
+    }
+
+    public ProxyConnectionManager getProxyConnectionManager() {
+        return proxyConnectionManager;
+    }
+
+    public void setProxyConnectionManager(ProxyConnectionManager proxyConnectionManager) {
+        this.proxyConnectionManager = proxyConnectionManager;
+    }
 }
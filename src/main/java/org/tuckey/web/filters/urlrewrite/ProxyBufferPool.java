@@ -0,0 +1,110 @@
+/**
+ * Copyright (c) 2005-2007, Paul Tuckey
+ * All rights reserved.
+ * ====================================================================
+ * Licensed under the BSD License. Text as follows.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *   - Redistributions of source code must retain the above copyright
+ *     notice, this list of conditions and the following disclaimer.
+ *   - Redistributions in binary form must reproduce the above
+ *     copyright notice, this list of conditions and the following
+ *     disclaimer in the documentation and/or other materials provided
+ *     with the distribution.
+ *   - Neither the name tuckey.org nor the names of its contributors
+ *     may be used to endorse or promote products derived from this
+ *     software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ * COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN
+ * ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * ====================================================================
+ */
+package org.tuckey.web.filters.urlrewrite;
+
+import java.util.Deque;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A bounded pool of the buffers proxied bodies are copied through, so a request doesn't allocate (and leave for the
+ * garbage collector) a new buffer.  When the pool is empty a new buffer is made, when it is full a returned buffer is
+ * dropped, so at most maxBuffers are kept between requests.
+ */
+public class ProxyBufferPool {
+
+    public static final int DEFAULT_BUFFER_SIZE = 65536;
+    public static final int DEFAULT_MAX_BUFFERS = 64;
+
+    private final int bufferSize;
+    private final int maxBuffers;
+    // last in first out, the most recently used buffers are the most likely to still be in a cpu cache
+    private final Deque<byte[]> buffers = new ConcurrentLinkedDeque<>();
+    private final AtomicInteger pooledCount = new AtomicInteger();
+    private final AtomicLong allocatedCount = new AtomicLong();
+
+    public ProxyBufferPool(int maxBuffers, int bufferSize) {
+        this.maxBuffers = maxBuffers;
+        this.bufferSize = bufferSize;
+    }
+
+    /**
+     * Take a buffer from the pool, or make one if it is empty.  Give it back with release when done.
+     */
+    public byte[] acquire() {
+        byte[] buffer = buffers.pollFirst();
+        if (buffer != null) {
+            pooledCount.decrementAndGet();
+            return buffer;
+        }
+        allocatedCount.incrementAndGet();
+        return new byte[bufferSize];
+    }
+
+    /**
+     * Give a buffer back to the pool.  The buffer must not be used after this.
+     */
+    public void release(byte[] buffer) {
+        if (buffer == null || buffer.length != bufferSize) return;
+        if (pooledCount.incrementAndGet() > maxBuffers) {
+            pooledCount.decrementAndGet();
+            return;
+        }
+        buffers.offerFirst(buffer);
+    }
+
+    public int getBufferSize() {
+        return bufferSize;
+    }
+
+    public int getMaxBuffers() {
+        return maxBuffers;
+    }
+
+    /**
+     * @return the number of buffers waiting in the pool
+     */
+    public int getPooledCount() {
+        return pooledCount.get();
+    }
+
+    /**
+     * @return the number of buffers made because the pool was empty
+     */
+    public long getAllocatedCount() {
+        return allocatedCount.get();
+    }
+}
@@ -0,0 +1,162 @@
+/**
+ * Copyright (c) 2005-2007, Paul Tuckey
+ * All rights reserved.
+ * ====================================================================
+ * Licensed under the BSD License. Text as follows.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *   - Redistributions of source code must retain the above copyright
+ *     notice, this list of conditions and the following disclaimer.
+ *   - Redistributions in binary form must reproduce the above
+ *     copyright notice, this list of conditions and the following
+ *     disclaimer in the documentation and/or other materials provided
+ *     with the distribution.
+ *   - Neither the name tuckey.org nor the names of its contributors
+ *     may be used to endorse or promote products derived from this
+ *     software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ * COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN
+ * ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * ====================================================================
+ */
+package org.tuckey.web.filters.urlrewrite;
+
+import org.tuckey.web.filters.urlrewrite.utils.Log;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Circuit breaker for a proxy target.  Closed it lets requests through, after a number of consecutive failures it
+ * opens and rejects requests straight away, then once the open time is up it is half open and lets a single probe
+ * request through: if that succeeds it closes again, if it fails it opens again.  Only the result of the probe can
+ * change a half open breaker, requests let through before it opened don't count.
+ */
+public class ProxyCircuitBreaker {
+
+    private static Log log = Log.getLog(ProxyCircuitBreaker.class);
+
+    public static final int STATE_CLOSED = 0;
+    public static final int STATE_OPEN = 1;
+    public static final int STATE_HALF_OPEN = 2;
+
+    public static final int REQUEST_REJECTED = 0;
+    public static final int REQUEST_ALLOWED = 1;
+    public static final int REQUEST_PROBE = 2;
+
+    private final String name;
+    private final int failureThreshold;
+    private final long openMillis;
+    private final AtomicLong rejectedCount = new AtomicLong();
+    private final AtomicLong openedCount = new AtomicLong();
+
+    private int state = STATE_CLOSED;
+    private int consecutiveFailures = 0;
+    private long openedAt;
+    private boolean probeInFlight = false;
+
+    /**
+     * @param failureThreshold consecutive failures after which the breaker opens
+     * @param openMillis       how long the breaker stays open before letting a probe through
+     */
+    public ProxyCircuitBreaker(String name, int failureThreshold, long openMillis) {
+        this.name = name;
+        this.failureThreshold = failureThreshold;
+        this.openMillis = openMillis;
+    }
+
+    /**
+     * @return REQUEST_REJECTED, REQUEST_ALLOWED or REQUEST_PROBE if the request is the half open probe.  If the request
+     * may go ahead the caller must then call onSuccess or onFailure, passing whether it was the probe.
+     */
+    public synchronized int allowRequest(long now) {
+        if (state == STATE_CLOSED) return REQUEST_ALLOWED;
+        if (state == STATE_OPEN) {
+            if (now - openedAt < openMillis) {
+                rejectedCount.incrementAndGet();
+                return REQUEST_REJECTED;
+            }
+            state = STATE_HALF_OPEN;
+            probeInFlight = false;
+        }
+        if (probeInFlight) {
+            rejectedCount.incrementAndGet();
+            return REQUEST_REJECTED;
+        }
+        probeInFlight = true;
+        return REQUEST_PROBE;
+    }
+
+    public synchronized void onSuccess(boolean probe) {
+        if (probe) {
+            if (state == STATE_HALF_OPEN) {
+                log.info("circuit breaker for " + name + " closed, probe request succeeded");
+                state = STATE_CLOSED;
+                consecutiveFailures = 0;
+                probeInFlight = false;
+            }
+        } else if (state == STATE_CLOSED) {
+            consecutiveFailures = 0;
+        }
+    }
+
+    public synchronized void onFailure(long now, boolean probe) {
+        if (probe ? state == STATE_HALF_OPEN : state == STATE_CLOSED && ++consecutiveFailures >= failureThreshold) {
+            log.warn("circuit breaker for " + name + " opened for " + openMillis + "ms");
+            state = STATE_OPEN;
+            openedAt = now;
+            consecutiveFailures = 0;
+            probeInFlight = false;
+            openedCount.incrementAndGet();
+        }
+    }
+
+    public synchronized int getState() {
+        return state;
+    }
+
+    public String getStateName() {
+        switch (getState()) {
+            case STATE_OPEN:
+                return "open";
+            case STATE_HALF_OPEN:
+                return "half-open";
+            default:
+                return "closed";
+        }
+    }
+
+    /**
+     * @return number of requests rejected while open or half open
+     */
+    public long getRejectedCount() {
+        return rejectedCount.get();
+    }
+
+    /**
+     * @return number of times the breaker has opened
+     */
+    public long getOpenedCount() {
+        return openedCount.get();
+    }
+
+    public int getFailureThreshold() {
+        return failureThreshold;
+    }
+
+    public long getOpenMillis() {
+        return openMillis;
+    }
+}
@@ -0,0 +1,567 @@
+/**
+ * Copyright (c) 2005-2007, Paul Tuckey
+ * All rights reserved.
+ * ====================================================================
+ * Licensed under the BSD License. Text as follows.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *   - Redistributions of source code must retain the above copyright
+ *     notice, this list of conditions and the following disclaimer.
+ *   - Redistributions in binary form must reproduce the above
+ *     copyright notice, this list of conditions and the following
+ *     disclaimer in the documentation and/or other materials provided
+ *     with the distribution.
+ *   - Neither the name tuckey.org nor the names of its contributors
+ *     may be used to endorse or promote products derived from this
+ *     software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ * COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN
+ * ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * ====================================================================
+ */
+package org.tuckey.web.filters.urlrewrite;
+
+import org.apache.http.HttpHost;
+import org.apache.http.conn.ConnectionKeepAliveStrategy;
+import org.apache.http.conn.routing.HttpRoute;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.DefaultConnectionKeepAliveStrategy;
+import org.apache.http.impl.client.HttpClientBuilder;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.client.IdleConnectionEvictor;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.pool.PoolStats;
+import org.tuckey.web.filters.urlrewrite.utils.Log;
+
+import java.io.IOException;
+import java.net.URL;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Pool of keep-alive connections shared by all the proxy rules of a filter, so that proxied requests to the same
+ * host reuse open (and for https already negotiated) connections rather than opening a new one per request.
+ * <p/>
+ * Created by UrlRewriteFilter on init and shutdown on destroy, it is kept across conf reloads.  The pool and the
+ * idle connection evictor thread are only started when the first proxied request is made.
+ * <p/>
+ * Also holds the threads used by async proxy rules, these make the blocking request to the target and copy the
+ * response so that the container thread can be released.
+ */
+public class ProxyConnectionManager {
+
+    private static Log log = Log.getLog(ProxyConnectionManager.class);
+
+    public static final int DEFAULT_MAX_CONNECTIONS = 200;
+    public static final int DEFAULT_MAX_CONNECTIONS_PER_ROUTE = 20;
+    public static final int DEFAULT_IDLE_TIMEOUT = 30;
+    private static final long ASYNC_THREAD_KEEP_ALIVE = 60;
+
+    /**
+     * Built against java.net.http so only loaded when a rule uses HTTP/2, and only there when built with Java 11.
+     */
+    private static final String HTTP2_CLIENT_CLASS = "org.tuckey.web.filters.urlrewrite.JdkProxyHttp2Client";
+
+    /**
+     * Scheme, host and port at the start of a "to", if they don't contain any back references, variables or functions.
+     */
+    private static final Pattern TARGET_HOST_PATTERN = Pattern.compile("^(https?)://([^/:?#$%{}]+)(?::([0-9]+))?(?:[/?#].*)?$",
+            Pattern.CASE_INSENSITIVE);
+
+    private final int maxConnections;
+    private final int maxConnectionsPerRoute;
+    private final int idleTimeout;
+    private final int asyncThreads;
+    private final ProxyRequestCoalescer requestCoalescer = new ProxyRequestCoalescer();
+    private final Map<HttpRoute, Integer> routeMaxConnections = new HashMap<>();
+
+    private PoolingHttpClientConnectionManager connectionManager;
+    private IdleConnectionEvictor idleConnectionEvictor;
+    private volatile CloseableHttpClient httpClient;
+    private volatile CloseableHttpClient systemPropertiesHttpClient;
+    private volatile ThreadPoolExecutor asyncExecutor;
+    private volatile boolean shutdown = false;
+    private volatile ProxyResponseCache responseCache;
+    private volatile ScheduledThreadPoolExecutor timeoutExecutor;
+    private final ConcurrentMap<String, ProxyTargetGuard> targetGuards = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, ProxyLatencyTracker> latencyTrackers = new ConcurrentHashMap<>();
+    private volatile ThreadPoolExecutor hedgeExecutor;
+    private volatile ProxyHttp2Client http2Client;
+    private boolean http2Unavailable = false;
+
+    public ProxyConnectionManager() {
+        this(DEFAULT_MAX_CONNECTIONS, DEFAULT_MAX_CONNECTIONS_PER_ROUTE, DEFAULT_IDLE_TIMEOUT);
+    }
+
+    /**
+     * @param maxConnections         the maximum number of connections in the pool
+     * @param maxConnectionsPerRoute the maximum number of connections to any one host, unless set for the host
+     * @param idleTimeout            seconds after which an idle connection will be closed, also the longest a
+     *                               connection will be kept alive if the server doesn't say how long it may be
+     */
+    public ProxyConnectionManager(int maxConnections, int maxConnectionsPerRoute, int idleTimeout) {
+        this(maxConnections, maxConnectionsPerRoute, idleTimeout, 0);
+    }
+
+    /**
+     * @param asyncThreads the maximum number of threads for async proxy rules, defaults to max connections as a thread
+     *                     can't use more than one connection at a time
+     */
+    public ProxyConnectionManager(int maxConnections, int maxConnectionsPerRoute, int idleTimeout, int asyncThreads) {
+        this.maxConnections = maxConnections > 0 ? maxConnections : DEFAULT_MAX_CONNECTIONS;
+        this.maxConnectionsPerRoute = maxConnectionsPerRoute > 0 ? maxConnectionsPerRoute : DEFAULT_MAX_CONNECTIONS_PER_ROUTE;
+        this.idleTimeout = idleTimeout > 0 ? idleTimeout : DEFAULT_IDLE_TIMEOUT;
+        this.asyncThreads = asyncThreads > 0 ? asyncThreads : this.maxConnections;
+    }
+
+    /**
+     * Gets the shared client, starting the pool if need be.  The client must not be closed by the caller, responses
+     * must be consumed or closed so that their connection goes back to the pool.
+     *
+     * @param useSystemProperties if the client should be configured using the system properties (ie, http.proxyHost)
+     * @return the client or null if this manager has been shutdown
+     */
+    public CloseableHttpClient getHttpClient(boolean useSystemProperties) {
+        CloseableHttpClient client = useSystemProperties ? systemPropertiesHttpClient : httpClient;
+        if (client != null && !shutdown) {
+            return client;
+        }
+        return getHttpClientSync(useSystemProperties);
+    }
+
+    private synchronized CloseableHttpClient getHttpClientSync(boolean useSystemProperties) {
+        if (shutdown) {
+            return null;
+        }
+        if (connectionManager == null) {
+            start();
+        }
+        if (useSystemProperties) {
+            if (systemPropertiesHttpClient == null) systemPropertiesHttpClient = buildHttpClient(true);
+            return systemPropertiesHttpClient;
+        }
+        if (httpClient == null) httpClient = buildHttpClient(false);
+        return httpClient;
+    }
+
+    private void start() {
+        log.info("starting proxy connection pool, max connections " + maxConnections + ", max connections per route " +
+                maxConnectionsPerRoute + ", idle timeout " + idleTimeout + "s");
+        connectionManager = new PoolingHttpClientConnectionManager();
+        connectionManager.setMaxTotal(maxConnections);
+        connectionManager.setDefaultMaxPerRoute(maxConnectionsPerRoute);
+        for (Map.Entry<HttpRoute, Integer> routeMax : routeMaxConnections.entrySet()) {
+            connectionManager.setMaxPerRoute(routeMax.getKey(), routeMax.getValue());
+        }
+        idleConnectionEvictor = new IdleConnectionEvictor(connectionManager, idleTimeout, TimeUnit.SECONDS);
+        idleConnectionEvictor.start();
+    }
+
+    private CloseableHttpClient buildHttpClient(boolean useSystemProperties) {
+        final long maxKeepAlive = TimeUnit.SECONDS.toMillis(idleTimeout);
+        final ConnectionKeepAliveStrategy keepAliveStrategy = (response, context) -> {
+            long keepAlive = DefaultConnectionKeepAliveStrategy.INSTANCE.getKeepAliveDuration(response, context);
+            return keepAlive > 0 && keepAlive < maxKeepAlive ? keepAlive : maxKeepAlive;
+        };
+        final HttpClientBuilder builder = HttpClients.custom()
+                .setConnectionManager(connectionManager)
+                .setConnectionManagerShared(true)
+                .setKeepAliveStrategy(keepAliveStrategy)
+                // connections are not tied to a user (ie, by ntlm or client certs) so any request can reuse them
+                .disableConnectionState()
+                // the client is shared by all users, cookies from the target are passed back in the response only
+                .disableCookieManagement();
+        if (useSystemProperties) {
+            builder.useSystemProperties();
+        }
+        return builder.build();
+    }
+
+    /**
+     * Hands a task to one of the async proxy threads.  If all of the threads are busy the task will be queued (up
+     * to one task per thread), if the queue is full it will not be run.
+     *
+     * @return true if the task was accepted, false if it was not (the threads are busy or the manager is shutdown)
+     */
+    public boolean executeAsync(java.lang.Runnable task) {
+        ThreadPoolExecutor executor = asyncExecutor;
+        if (executor == null) {
+            executor = getAsyncExecutorSync();
+            if (executor == null) return false;
+        }
+        try {
+            executor.execute(task);
+            return true;
+        } catch (RejectedExecutionException e) {
+            log.debug("async proxy threads busy, task rejected");
+            return false;
+        }
+    }
+
+    private synchronized ThreadPoolExecutor getAsyncExecutorSync() {
+        if (shutdown) {
+            return null;
+        }
+        if (asyncExecutor == null) {
+            final AtomicInteger threadCount = new AtomicInteger();
+            ThreadPoolExecutor executor = new ThreadPoolExecutor(asyncThreads, asyncThreads,
+                    ASYNC_THREAD_KEEP_ALIVE, TimeUnit.SECONDS, new ArrayBlockingQueue<>(asyncThreads), runnable -> {
+                Thread thread = new Thread(runnable, "urlrewrite-proxy-" + threadCount.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            });
+            executor.allowCoreThreadTimeOut(true);
+            asyncExecutor = executor;
+        }
+        return asyncExecutor;
+    }
+
+    /**
+     * Sets the maximum number of connections to the host the "to" of a proxy rule points at.  Ignored if the host is
+     * not fixed (ie, it contains a back reference).
+     *
+     * @return true if the "to" had a fixed host
+     */
+    public synchronized boolean setMaxConnections(String to, int max) {
+        HttpRoute route = getRoute(to);
+        if (route == null || max <= 0) {
+            return false;
+        }
+        if (log.isDebugEnabled()) {
+            log.debug("max connections for " + route + " set to " + max);
+        }
+        routeMaxConnections.put(route, max);
+        if (connectionManager != null) {
+            connectionManager.setMaxPerRoute(route, max);
+        }
+        return true;
+    }
+
+    /**
+     * The route the pool will use for a direct (ie, not via a proxy server) request to the host in "to".
+     */
+    static HttpRoute getRoute(String to) {
+        if (to == null) return null;
+        Matcher matcher = TARGET_HOST_PATTERN.matcher(to.trim());
+        if (!matcher.matches()) return null;
+        String scheme = matcher.group(1).toLowerCase();
+        boolean secure = "https".equals(scheme);
+        int port = matcher.group(3) == null ? (secure ? 443 : 80) : Integer.parseInt(matcher.group(3));
+        return new HttpRoute(new HttpHost(matcher.group(2), port, scheme), null, secure);
+    }
+
+    /**
+     * Closes all of the pooled connections.  Clients got from getHttpClient can no longer be used.
+     */
+    public synchronized void shutdown() {
+        if (shutdown) return;
+        shutdown = true;
+        if (asyncExecutor != null) {
+            asyncExecutor.shutdown();
+        }
+        if (responseCache != null) {
+            responseCache.close();
+        }
+        if (timeoutExecutor != null) {
+            timeoutExecutor.shutdownNow();
+        }
+        if (hedgeExecutor != null) {
+            hedgeExecutor.shutdown();
+        }
+        if (http2Client != null) {
+            http2Client.close();
+        }
+        if (connectionManager == null) return;
+        log.info("shutting down proxy connection pool");
+        idleConnectionEvictor.shutdown();
+        closeQuietly(httpClient);
+        closeQuietly(systemPropertiesHttpClient);
+        connectionManager.shutdown();
+    }
+
+    private static void closeQuietly(CloseableHttpClient client) {
+        if (client == null) return;
+        try {
+            client.close();
+        } catch (IOException e) {
+            log.debug(e);
+        }
+    }
+
+    public synchronized boolean isStarted() {
+        return connectionManager != null && !shutdown;
+    }
+
+    public synchronized boolean isShutdown() {
+        return shutdown;
+    }
+
+    /**
+     * @return stats for the whole pool or null if it is not started
+     */
+    public synchronized PoolStats getTotalStats() {
+        if (!isStarted()) return null;
+        return connectionManager.getTotalStats();
+    }
+
+    /**
+     * @return stats for each route (ie, host) the pool has connected to, keyed by the route
+     */
+    public synchronized Map<String, PoolStats> getRouteStats() {
+        Map<String, PoolStats> routeStats = new TreeMap<>();
+        if (!isStarted()) return routeStats;
+        for (HttpRoute route : connectionManager.getRoutes()) {
+            routeStats.put(route.toString(), connectionManager.getStats(route));
+        }
+        return routeStats;
+    }
+
+    /**
+     * The total stats formatted for the status page, so that Status doesn't need the httpclient classes.
+     *
+     * @return the stats as html or null if the pool has not been started
+     */
+    public String getTotalStatsHtml() {
+        PoolStats totalStats = getTotalStats();
+        return totalStats == null ? null : formatPoolStats(totalStats);
+    }
+
+    /**
+     * @return the stats for each route formatted for the status page, keyed by the route
+     */
+    public Map<String, String> getRouteStatsHtml() {
+        Map<String, String> routeStatsHtml = new TreeMap<>();
+        for (Map.Entry<String, PoolStats> entry : getRouteStats().entrySet()) {
+            routeStatsHtml.put(entry.getKey(), formatPoolStats(entry.getValue()));
+        }
+        return routeStatsHtml;
+    }
+
+    private static String formatPoolStats(PoolStats stats) {
+        return "<em>" + stats.getLeased() + "</em> leased and <em>" + stats.getAvailable() + "</em> idle of <em>" +
+                stats.getMax() + "</em> max connections, <em>" + stats.getPending() + "</em> requests waiting";
+    }
+
+    /**
+     * @return the number of async proxy requests being run or waiting for a thread
+     */
+    public int getAsyncActiveCount() {
+        ThreadPoolExecutor executor = asyncExecutor;
+        return executor == null ? 0 : executor.getActiveCount() + executor.getQueue().size();
+    }
+
+    /**
+     * Run a task (ie, aborting a request that has taken too long) after a delay.
+     *
+     * @return the scheduled task, to be cancelled if it is no longer needed, or null if this manager has been shutdown
+     */
+    public ScheduledFuture<?> schedule(java.lang.Runnable task, long delayMillis) {
+        ScheduledThreadPoolExecutor executor = timeoutExecutor;
+        if (executor == null) {
+            executor = getTimeoutExecutorSync();
+            if (executor == null) return null;
+        }
+        try {
+            return executor.schedule(task, delayMillis, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            return null;
+        }
+    }
+
+    private synchronized ScheduledThreadPoolExecutor getTimeoutExecutorSync() {
+        if (shutdown) {
+            return null;
+        }
+        if (timeoutExecutor == null) {
+            ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1, runnable -> {
+                Thread thread = new Thread(runnable, "urlrewrite-proxy-timeout");
+                thread.setDaemon(true);
+                return thread;
+            });
+            executor.setRemoveOnCancelPolicy(true);
+            timeoutExecutor = executor;
+        }
+        return timeoutExecutor;
+    }
+
+    /**
+     * The bulkhead and circuit breaker for the host of a target url, created with the settings of the rule the first
+     * time it is needed.
+     *
+     * @return null if the options have no bulkhead or circuit breaker
+     */
+    public ProxyTargetGuard getTargetGuard(URL url, ProxyOptions options) {
+        if (options == null || (options.getMaxConcurrent() <= 0 && options.getBreakerFailures() <= 0)) {
+            return null;
+        }
+        String target = getTargetKey(url);
+        ProxyTargetGuard guard = targetGuards.get(target);
+        if (guard == null) {
+            ProxyTargetGuard created = new ProxyTargetGuard(target, options.getMaxConcurrent(),
+                    options.getBreakerFailures(), options.getBreakerOpenTime() * 1000L);
+            guard = targetGuards.putIfAbsent(target, created);
+            if (guard == null) guard = created;
+        }
+        return guard;
+    }
+
+    private static String getTargetKey(URL url) {
+        int port = url.getPort() == -1 ? url.getDefaultPort() : url.getPort();
+        return url.getProtocol() + "://" + url.getHost() + ":" + port;
+    }
+
+    /**
+     * The response times of the host of a target url.
+     */
+    public ProxyLatencyTracker getLatencyTracker(URL url) {
+        String target = getTargetKey(url);
+        ProxyLatencyTracker tracker = latencyTrackers.get(target);
+        if (tracker == null) {
+            ProxyLatencyTracker created = new ProxyLatencyTracker(target);
+            tracker = latencyTrackers.putIfAbsent(target, created);
+            if (tracker == null) tracker = created;
+        }
+        return tracker;
+    }
+
+    /**
+     * @return the response times of the targets proxied to, keyed by target
+     */
+    public Map<String, ProxyLatencyTracker> getLatencyTrackers() {
+        return new TreeMap<>(latencyTrackers);
+    }
+
+    /**
+     * Run a hedge request on one of the hedge threads, there are at most as many as the max number of connections.
+     *
+     * @return true if the task was accepted, false if all of the threads are busy
+     */
+    public boolean executeHedge(java.lang.Runnable task) {
+        ThreadPoolExecutor executor = hedgeExecutor;
+        if (executor == null) {
+            executor = getHedgeExecutorSync();
+            if (executor == null) return false;
+        }
+        try {
+            executor.execute(task);
+            return true;
+        } catch (RejectedExecutionException e) {
+            log.debug("hedge threads busy, not hedging");
+            return false;
+        }
+    }
+
+    private synchronized ThreadPoolExecutor getHedgeExecutorSync() {
+        if (shutdown) {
+            return null;
+        }
+        if (hedgeExecutor == null) {
+            final AtomicInteger threadCount = new AtomicInteger();
+            hedgeExecutor = new ThreadPoolExecutor(0, maxConnections, ASYNC_THREAD_KEEP_ALIVE, TimeUnit.SECONDS,
+                    new SynchronousQueue<>(), runnable -> {
+                Thread thread = new Thread(runnable, "urlrewrite-proxy-hedge-" + threadCount.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        return hedgeExecutor;
+    }
+
+    /**
+     * @return the client for the rules that proxy over HTTP/2, or null if this manager has been shutdown or HTTP/2
+     * isn't available (it needs Java 11)
+     */
+    public ProxyHttp2Client getHttp2Client() {
+        ProxyHttp2Client client = http2Client;
+        if (client != null && !shutdown) {
+            return client;
+        }
+        return getHttp2ClientSync();
+    }
+
+    private synchronized ProxyHttp2Client getHttp2ClientSync() {
+        if (shutdown || http2Unavailable) {
+            return null;
+        }
+        if (http2Client == null) {
+            try {
+                http2Client = (ProxyHttp2Client) Class.forName(HTTP2_CLIENT_CLASS).getConstructor().newInstance();
+            } catch (ReflectiveOperationException | LinkageError e) {
+                log.warn("proxying over HTTP/2 needs Java 11 or later, using HTTP/1.1 instead: " + e);
+                http2Unavailable = true;
+                return null;
+            }
+        }
+        return http2Client;
+    }
+
+    /**
+     * @return the bulkheads and circuit breakers in use, keyed by target
+     */
+    public Map<String, ProxyTargetGuard> getTargetGuards() {
+        return new TreeMap<>(targetGuards);
+    }
+
+    /**
+     * @return the coalescer shared by the proxy rules that coalesce requests
+     */
+    public ProxyRequestCoalescer getRequestCoalescer() {
+        return requestCoalescer;
+    }
+
+    /**
+     * @return the cache used by the proxy rules that cache responses, null if caching is disabled
+     */
+    public ProxyResponseCache getResponseCache() {
+        return responseCache;
+    }
+
+    /**
+     * Set the response cache, it will be closed when this manager is shutdown.
+     */
+    public void setResponseCache(ProxyResponseCache responseCache) {
+        this.responseCache = responseCache;
+    }
+
+    public int getAsyncThreads() {
+        return asyncThreads;
+    }
+
+    public int getMaxConnections() {
+        return maxConnections;
+    }
+
+    public int getMaxConnectionsPerRoute() {
+        return maxConnectionsPerRoute;
+    }
+
+    public int getIdleTimeout() {
+        return idleTimeout;
+    }
+}
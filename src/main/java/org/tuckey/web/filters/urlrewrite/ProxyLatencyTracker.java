@@ -0,0 +1,123 @@
+/**
+ * Copyright (c) 2005-2007, Paul Tuckey
+ * All rights reserved.
+ * ====================================================================
+ * Licensed under the BSD License. Text as follows.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *   - Redistributions of source code must retain the above copyright
+ *     notice, this list of conditions and the following disclaimer.
+ *   - Redistributions in binary form must reproduce the above
+ *     copyright notice, this list of conditions and the following
+ *     disclaimer in the documentation and/or other materials provided
+ *     with the distribution.
+ *   - Neither the name tuckey.org nor the names of its contributors
+ *     may be used to endorse or promote products derived from this
+ *     software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ * COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN
+ * ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * ====================================================================
+ */
+package org.tuckey.web.filters.urlrewrite;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Tracks how long a proxy target takes to respond (time until the response headers arrive) over its most recent
+ * requests, and how often requests to it have been hedged.  Used to set the hedge delay and shown on the status page.
+ */
+public class ProxyLatencyTracker {
+
+    /**
+     * Number of recent requests percentiles are worked out from.
+     */
+    public static final int WINDOW_SIZE = 1024;
+
+    /**
+     * Requests needed before the percentiles are used, until then the configured hedge delay is.
+     */
+    public static final int MIN_SAMPLES = 20;
+
+    /**
+     * The sorted copy of the window is only rebuilt after this many new samples.
+     */
+    private static final int RESORT_INTERVAL = 64;
+
+    private final String target;
+    private final long[] window = new long[WINDOW_SIZE];
+    private long sampleCount = 0;
+    private long[] sorted = new long[0];
+    private long sortedAt = -1;
+    private final AtomicLong hedgeCount = new AtomicLong();
+    private final AtomicLong hedgeWonCount = new AtomicLong();
+
+    public ProxyLatencyTracker(String target) {
+        this.target = target;
+    }
+
+    public synchronized void record(long millis) {
+        window[(int) (sampleCount % WINDOW_SIZE)] = millis;
+        sampleCount++;
+    }
+
+    /**
+     * @param percentile ie, 99
+     * @return the latency in milliseconds or -1 if there have not been enough requests yet
+     */
+    public synchronized long getPercentile(double percentile) {
+        if (sampleCount < MIN_SAMPLES) return -1;
+        if (sortedAt == -1 || sampleCount - sortedAt >= RESORT_INTERVAL) {
+            int size = (int) Math.min(sampleCount, WINDOW_SIZE);
+            sorted = Arrays.copyOf(window, size);
+            Arrays.sort(sorted);
+            sortedAt = sampleCount;
+        }
+        int idx = (int) Math.ceil(percentile / 100d * sorted.length) - 1;
+        return sorted[Math.max(0, Math.min(sorted.length - 1, idx))];
+    }
+
+    public synchronized long getSampleCount() {
+        return sampleCount;
+    }
+
+    void hedged() {
+        hedgeCount.incrementAndGet();
+    }
+
+    void hedgeWon() {
+        hedgeWonCount.incrementAndGet();
+    }
+
+    public String getTarget() {
+        return target;
+    }
+
+    /**
+     * @return number of hedge requests sent
+     */
+    public long getHedgeCount() {
+        return hedgeCount.get();
+    }
+
+    /**
+     * @return number of hedge requests that responded before the original request
+     */
+    public long getHedgeWonCount() {
+        return hedgeWonCount.get();
+    }
+}
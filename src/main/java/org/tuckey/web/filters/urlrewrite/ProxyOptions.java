@@ -0,0 +1,288 @@
+/**
+ * Copyright (c) 2005-2007, Paul Tuckey
+ * All rights reserved.
+ * ====================================================================
+ * Licensed under the BSD License. Text as follows.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *   - Redistributions of source code must retain the above copyright
+ *     notice, this list of conditions and the following disclaimer.
+ *   - Redistributions in binary form must reproduce the above
+ *     copyright notice, this list of conditions and the following
+ *     disclaimer in the documentation and/or other materials provided
+ *     with the distribution.
+ *   - Neither the name tuckey.org nor the names of its contributors
+ *     may be used to endorse or promote products derived from this
+ *     software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ * COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN
+ * ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * ====================================================================
+ */
+package org.tuckey.web.filters.urlrewrite;
+
+import org.tuckey.web.filters.urlrewrite.utils.StringUtils;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Settings of a proxy rule (ie, the attributes of a "to" with type proxy) that affect how the request to the target
+ * is made.
+ */
+public class ProxyOptions {
+
+    public static final String DEFAULT_COALESCE_VARY = "accept, accept-language";
+    public static final int DEFAULT_COALESCE_MAX_WAITERS = 100;
+    public static final int DEFAULT_COALESCE_TIMEOUT = 10;
+    public static final int DEFAULT_BREAKER_OPEN_TIME = 30;
+    public static final int DEFAULT_HEDGE_PERCENTILE = 95;
+    public static final int DEFAULT_HEDGE_DELAY = 100;
+
+    private boolean coalesce = false;
+    private String[] coalesceVary = splitHeaderNames(DEFAULT_COALESCE_VARY);
+    private int coalesceMaxWaiters = DEFAULT_COALESCE_MAX_WAITERS;
+    private int coalesceTimeout = DEFAULT_COALESCE_TIMEOUT;
+    private boolean cache = false;
+    private String poolName = null;
+    private ProxyPool pool = null;
+    private int connectTimeout = 0;
+    private int readTimeout = 0;
+    private int timeout = 0;
+    private int maxConcurrent = 0;
+    private int breakerFailures = 0;
+    private int breakerOpenTime = DEFAULT_BREAKER_OPEN_TIME;
+    private boolean hedge = false;
+    private int hedgePercentile = DEFAULT_HEDGE_PERCENTILE;
+    private int hedgeDelay = DEFAULT_HEDGE_DELAY;
+    private boolean compressedPassthrough = false;
+    private boolean http2 = false;
+
+    public boolean isCoalesce() {
+        return coalesce;
+    }
+
+    /**
+     * If true concurrent identical GET and HEAD requests to the same target will share one request to the target.
+     */
+    public void setCoalesce(boolean coalesce) {
+        this.coalesce = coalesce;
+    }
+
+    public String[] getCoalesceVary() {
+        if (compressedPassthrough && !Arrays.asList(coalesceVary).contains("accept-encoding")) {
+            // an encoded response can only be shared with requests that accept the encoding
+            String[] vary = Arrays.copyOf(coalesceVary, coalesceVary.length + 1);
+            vary[coalesceVary.length] = "accept-encoding";
+            return vary;
+        }
+        return coalesceVary;
+    }
+
+    /**
+     * The request headers (lower case) that must be the same for requests to be coalesced.
+     */
+    public void setCoalesceVary(String coalesceVary) {
+        this.coalesceVary = splitHeaderNames(coalesceVary == null ? DEFAULT_COALESCE_VARY : coalesceVary);
+    }
+
+    public int getCoalesceMaxWaiters() {
+        return coalesceMaxWaiters;
+    }
+
+    /**
+     * The most requests that will wait for a request in flight, any more will make their own request to the target.
+     */
+    public void setCoalesceMaxWaiters(int coalesceMaxWaiters) {
+        this.coalesceMaxWaiters = coalesceMaxWaiters;
+    }
+
+    public int getCoalesceTimeout() {
+        return coalesceTimeout;
+    }
+
+    /**
+     * Seconds a request will wait for a request in flight before giving up and making its own request.
+     */
+    public void setCoalesceTimeout(int coalesceTimeout) {
+        this.coalesceTimeout = coalesceTimeout;
+    }
+
+    public boolean isCache() {
+        return cache;
+    }
+
+    /**
+     * If true GET and HEAD responses will be served from the proxy response cache when the target allows it.
+     */
+    public void setCache(boolean cache) {
+        this.cache = cache;
+    }
+
+    public String getPoolName() {
+        return poolName;
+    }
+
+    /**
+     * The name of the proxy-pool to send the request to, the "to" is then a path on the chosen upstream.
+     */
+    public void setPoolName(String poolName) {
+        this.poolName = poolName;
+    }
+
+    public ProxyPool getPool() {
+        return pool;
+    }
+
+    /**
+     * Set by Conf when it is initialised, from the pool name.
+     */
+    public void setPool(ProxyPool pool) {
+        this.pool = pool;
+    }
+
+    public int getConnectTimeout() {
+        return connectTimeout;
+    }
+
+    /**
+     * Milliseconds to wait for a connection to the target (and for one from the connection pool), 0 for no limit.
+     */
+    public void setConnectTimeout(int connectTimeout) {
+        this.connectTimeout = connectTimeout;
+    }
+
+    public int getReadTimeout() {
+        return readTimeout;
+    }
+
+    /**
+     * Milliseconds to wait for data from the target, 0 for no limit.
+     */
+    public void setReadTimeout(int readTimeout) {
+        this.readTimeout = readTimeout;
+    }
+
+    public int getTimeout() {
+        return timeout;
+    }
+
+    /**
+     * Milliseconds the whole request to the target may take before it is aborted, 0 for no limit.
+     */
+    public void setTimeout(int timeout) {
+        this.timeout = timeout;
+    }
+
+    public int getMaxConcurrent() {
+        return maxConcurrent;
+    }
+
+    /**
+     * The most requests to the target host that may be in progress at once, others get a 503, 0 for no limit.
+     */
+    public void setMaxConcurrent(int maxConcurrent) {
+        this.maxConcurrent = maxConcurrent;
+    }
+
+    public int getBreakerFailures() {
+        return breakerFailures;
+    }
+
+    /**
+     * Consecutive failures after which the circuit breaker for the target host opens, 0 for no circuit breaker.
+     */
+    public void setBreakerFailures(int breakerFailures) {
+        this.breakerFailures = breakerFailures;
+    }
+
+    public int getBreakerOpenTime() {
+        return breakerOpenTime;
+    }
+
+    /**
+     * Seconds the circuit breaker stays open before a probe request is let through.
+     */
+    public void setBreakerOpenTime(int breakerOpenTime) {
+        this.breakerOpenTime = breakerOpenTime;
+    }
+
+    public boolean isHedge() {
+        return hedge;
+    }
+
+    /**
+     * If true GET and HEAD requests that the target hasn't responded to within the hedge delay are sent again (to
+     * another upstream if the rule uses a pool) and the first response is used.
+     */
+    public void setHedge(boolean hedge) {
+        this.hedge = hedge;
+    }
+
+    public int getHedgePercentile() {
+        return hedgePercentile;
+    }
+
+    /**
+     * The percentile of the target's recent response times used as the hedge delay.
+     */
+    public void setHedgePercentile(int hedgePercentile) {
+        this.hedgePercentile = hedgePercentile;
+    }
+
+    public int getHedgeDelay() {
+        return hedgeDelay;
+    }
+
+    /**
+     * Milliseconds, the least the hedge delay can be and the delay used until there are enough response times.
+     */
+    public void setHedgeDelay(int hedgeDelay) {
+        this.hedgeDelay = hedgeDelay;
+    }
+
+    public boolean isCompressedPassthrough() {
+        return compressedPassthrough;
+    }
+
+    /**
+     * If true the accepted encodings of the request are sent to the target and the response body is copied to the
+     * client as the target encoded it, instead of being decoded.
+     */
+    public void setCompressedPassthrough(boolean compressedPassthrough) {
+        this.compressedPassthrough = compressedPassthrough;
+    }
+
+    public boolean isHttp2() {
+        return http2;
+    }
+
+    /**
+     * If true requests are proxied over HTTP/2 (h2c for http targets) when running on Java 11 or later.
+     */
+    public void setHttp2(boolean http2) {
+        this.http2 = http2;
+    }
+
+    private static String[] splitHeaderNames(String headerNames) {
+        List<String> names = new ArrayList<>();
+        for (String name : headerNames.split(",")) {
+            if (!StringUtils.isBlank(name)) names.add(name.trim().toLowerCase());
+        }
+        return names.toArray(new String[0]);
+    }
+}
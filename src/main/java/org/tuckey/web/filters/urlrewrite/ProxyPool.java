@@ -0,0 +1,275 @@
+/**
+ * Copyright (c) 2005-2007, Paul Tuckey
+ * All rights reserved.
+ * ====================================================================
+ * Licensed under the BSD License. Text as follows.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *   - Redistributions of source code must retain the above copyright
+ *     notice, this list of conditions and the following disclaimer.
+ *   - Redistributions in binary form must reproduce the above
+ *     copyright notice, this list of conditions and the following
+ *     disclaimer in the documentation and/or other materials provided
+ *     with the distribution.
+ *   - Neither the name tuckey.org nor the names of its contributors
+ *     may be used to endorse or promote products derived from this
+ *     software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ * COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN
+ * ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * ====================================================================
+ */
+package org.tuckey.web.filters.urlrewrite;
+
+import org.tuckey.web.filters.urlrewrite.utils.Log;
+
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32;
+
+/**
+ * A set of upstreams that proxy rules can send requests to (proxy-pool element), with the strategy used to choose
+ * one for each request.  Upstreams that keep failing are passed over until their cooldown is up, if all of them
+ * have been ejected they are all used again rather than failing every request.
+ */
+public class ProxyPool {
+
+    private static Log log = Log.getLog(ProxyPool.class);
+
+    public static final String STRATEGY_ROUND_ROBIN = "round-robin";
+    public static final String STRATEGY_LEAST_IN_FLIGHT = "least-in-flight";
+    public static final String STRATEGY_CONSISTENT_HASH = "consistent-hash";
+
+    public static final int DEFAULT_MAX_FAILURES = 3;
+    public static final int DEFAULT_COOLDOWN = 30;
+
+    /**
+     * Points on the hash ring per upstream, more points spread the paths more evenly.
+     */
+    private static final int HASH_POINTS_PER_UPSTREAM = 100;
+
+    private String name;
+    private String strategy = STRATEGY_ROUND_ROBIN;
+    private int maxFailures = DEFAULT_MAX_FAILURES;
+    private int cooldown = DEFAULT_COOLDOWN;
+    private int maxConnections = 0;
+    private final List<ProxyUpstream> upstreams = new ArrayList<>();
+    private final AtomicInteger next = new AtomicInteger();
+    private ProxyUpstream[] upstreamArray = new ProxyUpstream[0];
+    private int[] ringHashes;
+    private ProxyUpstream[] ringUpstreams;
+
+    private String error = null;
+    private boolean valid = false;
+
+    /**
+     * @return true on success
+     */
+    public boolean initialise() {
+        if (name == null || name.isEmpty()) {
+            setError("proxy-pool must have a name");
+            return false;
+        }
+        if (upstreams.isEmpty()) {
+            setError("proxy-pool " + name + " has no upstreams");
+            return false;
+        }
+        if (!STRATEGY_ROUND_ROBIN.equals(strategy) && !STRATEGY_LEAST_IN_FLIGHT.equals(strategy) &&
+                !STRATEGY_CONSISTENT_HASH.equals(strategy)) {
+            setError("proxy-pool " + name + " has unknown strategy " + strategy);
+            return false;
+        }
+        for (ProxyUpstream upstream : upstreams) {
+            try {
+                new URL(upstream.getUrl());
+            } catch (MalformedURLException e) {
+                setError("proxy-pool " + name + " upstream " + upstream.getUrl() + " is not a valid url");
+                return false;
+            }
+        }
+        upstreamArray = upstreams.toArray(new ProxyUpstream[0]);
+        if (STRATEGY_CONSISTENT_HASH.equals(strategy)) {
+            buildRing();
+        }
+        valid = true;
+        return true;
+    }
+
+    private void buildRing() {
+        long[] points = new long[upstreamArray.length * HASH_POINTS_PER_UPSTREAM];
+        int p = 0;
+        for (int i = 0; i < upstreamArray.length; i++) {
+            for (int j = 0; j < HASH_POINTS_PER_UPSTREAM; j++) {
+                // hash in the high bits, upstream index in the low bits so the sort keeps them together
+                points[p++] = ((long) hash(upstreamArray[i].getUrl() + '#' + j) << 32) | i;
+            }
+        }
+        Arrays.sort(points);
+        ringHashes = new int[points.length];
+        ringUpstreams = new ProxyUpstream[points.length];
+        for (int i = 0; i < points.length; i++) {
+            ringHashes[i] = (int) (points[i] >> 32);
+            ringUpstreams[i] = upstreamArray[(int) points[i]];
+        }
+    }
+
+    private static int hash(String s) {
+        CRC32 crc = new CRC32();
+        crc.update(s.getBytes(StandardCharsets.UTF_8));
+        return (int) crc.getValue();
+    }
+
+    /**
+     * Choose the upstream for a request.
+     *
+     * @param path the "to" of the rule, the consistent hash strategy uses it (without the query string) as the key
+     */
+    public ProxyUpstream select(String path) {
+        long now = System.currentTimeMillis();
+        ProxyUpstream upstream = select(path, now, false, null);
+        if (upstream == null) {
+            log.warn("all upstreams of proxy-pool " + name + " have been ejected, using them anyway");
+            upstream = select(path, now, true, null);
+        }
+        return upstream;
+    }
+
+    /**
+     * Choose the upstream for a second attempt at a request (ie, a hedge), one other than the first if there is an
+     * available one.
+     *
+     * @param first the upstream of the first attempt
+     */
+    public ProxyUpstream selectAlternate(ProxyUpstream first, String path) {
+        ProxyUpstream upstream = select(path, System.currentTimeMillis(), false, first);
+        return upstream == null ? first : upstream;
+    }
+
+    /**
+     * @return the upstream the url is on or null if it is not on one of them
+     */
+    public ProxyUpstream findUpstream(String url) {
+        for (ProxyUpstream upstream : upstreamArray) {
+            if (url.startsWith(upstream.getUrl())) return upstream;
+        }
+        return null;
+    }
+
+    private ProxyUpstream select(String path, long now, boolean ignoreHealth, ProxyUpstream exclude) {
+        if (STRATEGY_CONSISTENT_HASH.equals(strategy)) {
+            return selectConsistentHash(path, now, ignoreHealth, exclude);
+        }
+        int start = next.getAndIncrement() & Integer.MAX_VALUE;
+        ProxyUpstream chosen = null;
+        for (int i = 0; i < upstreamArray.length; i++) {
+            ProxyUpstream upstream = upstreamArray[(start + i) % upstreamArray.length];
+            if (upstream == exclude) continue;
+            if (!ignoreHealth && !upstream.isAvailable(now)) continue;
+            if (STRATEGY_ROUND_ROBIN.equals(strategy)) return upstream;
+            if (chosen == null || upstream.getInFlight() < chosen.getInFlight()) chosen = upstream;
+        }
+        return chosen;
+    }
+
+    private ProxyUpstream selectConsistentHash(String path, long now, boolean ignoreHealth, ProxyUpstream exclude) {
+        String key = path == null ? "" : path;
+        int queryIdx = key.indexOf('?');
+        if (queryIdx != -1) key = key.substring(0, queryIdx);
+        int idx = Arrays.binarySearch(ringHashes, hash(key));
+        if (idx < 0) idx = -idx - 1;
+        // walk round the ring until we find an available upstream
+        for (int i = 0; i < ringHashes.length; i++) {
+            ProxyUpstream upstream = ringUpstreams[(idx + i) % ringHashes.length];
+            if (upstream != exclude && (ignoreHealth || upstream.isAvailable(now))) return upstream;
+        }
+        return null;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public void setName(String name) {
+        this.name = name;
+    }
+
+    public String getStrategy() {
+        return strategy;
+    }
+
+    public void setStrategy(String strategy) {
+        this.strategy = strategy == null || strategy.isEmpty() ? STRATEGY_ROUND_ROBIN : strategy.trim().toLowerCase();
+    }
+
+    public int getMaxFailures() {
+        return maxFailures;
+    }
+
+    /**
+     * Consecutive failures (connection errors or 5xx responses) after which an upstream is ejected.
+     */
+    public void setMaxFailures(int maxFailures) {
+        this.maxFailures = maxFailures;
+    }
+
+    public int getCooldown() {
+        return cooldown;
+    }
+
+    /**
+     * Seconds an ejected upstream is passed over for.
+     */
+    public void setCooldown(int cooldown) {
+        this.cooldown = cooldown;
+    }
+
+    public int getMaxConnections() {
+        return maxConnections;
+    }
+
+    /**
+     * The maximum number of pooled connections to each upstream, 0 for the connection pool default.
+     */
+    public void setMaxConnections(int maxConnections) {
+        this.maxConnections = maxConnections;
+    }
+
+    public void addUpstream(ProxyUpstream upstream) {
+        upstreams.add(upstream);
+    }
+
+    public List<ProxyUpstream> getUpstreams() {
+        return upstreams;
+    }
+
+    public boolean isValid() {
+        return valid;
+    }
+
+    public String getError() {
+        return error;
+    }
+
+    public void setError(String error) {
+        this.error = error;
+        log.error(error);
+    }
+}
@@ -0,0 +1,207 @@
+/**
+ * Copyright (c) 2005-2007, Paul Tuckey
+ * All rights reserved.
+ * ====================================================================
+ * Licensed under the BSD License. Text as follows.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *   - Redistributions of source code must retain the above copyright
+ *     notice, this list of conditions and the following disclaimer.
+ *   - Redistributions in binary form must reproduce the above
+ *     copyright notice, this list of conditions and the following
+ *     disclaimer in the documentation and/or other materials provided
+ *     with the distribution.
+ *   - Neither the name tuckey.org nor the names of its contributors
+ *     may be used to endorse or promote products derived from this
+ *     software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ * COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN
+ * ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * ====================================================================
+ */
+package org.tuckey.web.filters.urlrewrite;
+
+import org.tuckey.web.filters.urlrewrite.utils.Log;
+
+import javax.servlet.http.HttpServletRequest;
+import java.util.Enumeration;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Lets concurrent identical proxy requests share one request to the target (single flight).  The first request for a
+ * key becomes the leader and makes the request, requests for the same key that arrive while it is in flight wait for
+ * the leader to hand over its response.
+ * <p/>
+ * If the leader's response can't be shared (ie, it is too big or sets cookies), the leader fails, or a waiter times
+ * out, the waiters make their own requests as if they had not been coalesced.
+ */
+public class ProxyRequestCoalescer {
+
+    private static Log log = Log.getLog(ProxyRequestCoalescer.class);
+
+    /**
+     * Largest response body that will be buffered to be shared.
+     */
+    public static final int MAX_SHARED_RESPONSE_SIZE = 1024 * 1024;
+
+    private static final String[] NOT_COALESCED_HEADERS = {"range", "if-range", "if-none-match", "if-modified-since",
+            "if-match", "if-unmodified-since"};
+
+    private final ConcurrentMap<String, InFlightRequest> inFlightRequests = new ConcurrentHashMap<>();
+    private final AtomicLong leaderCount = new AtomicLong();
+    private final AtomicLong sharedCount = new AtomicLong();
+    private final AtomicLong notSharedCount = new AtomicLong();
+
+    /**
+     * The key requests must share to be coalesced, null if the request can't be coalesced.  Requests that carry
+     * credentials (authorization or, if they are forwarded, cookies) are only coalesced if those headers are in the
+     * vary list.  Range and conditional requests are never coalesced, their 206 or 304 is only right for them.
+     */
+    public static String getKey(String target, HttpServletRequest hsRequest, boolean dropCookies, String[] varyHeaders) {
+        String method = hsRequest.getMethod();
+        if (!"GET".equalsIgnoreCase(method) && !"HEAD".equalsIgnoreCase(method)) return null;
+        if (hsRequest.getContentLength() > 0) return null;
+        if (hsRequest.getHeader("authorization") != null && !contains(varyHeaders, "authorization")) return null;
+        if (!dropCookies && hsRequest.getHeader("cookie") != null && !contains(varyHeaders, "cookie")) return null;
+        for (String headerName : NOT_COALESCED_HEADERS) {
+            if (hsRequest.getHeader(headerName) != null) return null;
+        }
+
+        StringBuilder key = new StringBuilder(target.length() + 64);
+        key.append(method.toUpperCase()).append(' ').append(target).append(' ').append(dropCookies);
+        for (String headerName : varyHeaders) {
+            key.append('\n').append(headerName).append(':');
+            Enumeration<String> values = hsRequest.getHeaders(headerName);
+            while (values != null && values.hasMoreElements()) {
+                key.append(values.nextElement()).append(',');
+            }
+        }
+        return key.toString();
+    }
+
+    private static boolean contains(String[] names, String name) {
+        for (String s : names) {
+            if (s.equals(name)) return true;
+        }
+        return false;
+    }
+
+    /**
+     * Join the request in flight for the key, or start one.
+     *
+     * @return null if there are already maxWaiters waiting for the request in flight
+     */
+    public Call join(String key, int maxWaiters) {
+        InFlightRequest created = new InFlightRequest();
+        InFlightRequest inFlight = inFlightRequests.putIfAbsent(key, created);
+        if (inFlight == null) {
+            leaderCount.incrementAndGet();
+            return new Call(key, created, true);
+        }
+        if (inFlight.waiters.incrementAndGet() > maxWaiters) {
+            inFlight.waiters.decrementAndGet();
+            notSharedCount.incrementAndGet();
+            return null;
+        }
+        return new Call(key, inFlight, false);
+    }
+
+    /**
+     * A request taking part in a coalesced request, either as the leader or as a waiter.
+     */
+    public final class Call {
+        private final String key;
+        private final InFlightRequest inFlight;
+        private final boolean leader;
+
+        private Call(String key, InFlightRequest inFlight, boolean leader) {
+            this.key = key;
+            this.inFlight = inFlight;
+            this.leader = leader;
+        }
+
+        public boolean isLeader() {
+            return leader;
+        }
+
+        /**
+         * Called by the leader once it has the response (or has failed), waiters are released.  Safe to call more
+         * than once, only the first call counts.
+         *
+         * @param response the response to share, null if it can't be shared
+         */
+        public void complete(BufferedProxyResponse response) {
+            if (!leader || inFlight.done.getCount() == 0) return;
+            inFlight.response = response;
+            inFlightRequests.remove(key, inFlight);
+            inFlight.done.countDown();
+        }
+
+        /**
+         * Called by a waiter to get the leader's response.
+         *
+         * @return the response or null if it is not shared, the leader failed or the timeout was reached
+         */
+        public BufferedProxyResponse await(int timeoutSeconds) {
+            try {
+                if (!inFlight.done.await(timeoutSeconds, TimeUnit.SECONDS)) {
+                    log.debug("timed out waiting for coalesced request " + key);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            BufferedProxyResponse response = inFlight.response;
+            (response == null ? notSharedCount : sharedCount).incrementAndGet();
+            return response;
+        }
+    }
+
+    private static final class InFlightRequest {
+        private final CountDownLatch done = new CountDownLatch(1);
+        private final AtomicInteger waiters = new AtomicInteger();
+        private volatile BufferedProxyResponse response;
+    }
+
+    public int getInFlightCount() {
+        return inFlightRequests.size();
+    }
+
+    /**
+     * @return the number of requests that have been made to targets by leaders
+     */
+    public long getLeaderCount() {
+        return leaderCount.get();
+    }
+
+    /**
+     * @return the number of requests that were given a leader's response rather than making their own request
+     */
+    public long getSharedCount() {
+        return sharedCount.get();
+    }
+
+    /**
+     * @return the number of requests that tried to join a request in flight but had to make their own request
+     */
+    public long getNotSharedCount() {
+        return notSharedCount.get();
+    }
+}
@@ -0,0 +1,221 @@
+/**
+ * Copyright (c) 2005-2007, Paul Tuckey
+ * All rights reserved.
+ * ====================================================================
+ * Licensed under the BSD License. Text as follows.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *   - Redistributions of source code must retain the above copyright
+ *     notice, this list of conditions and the following disclaimer.
+ *   - Redistributions in binary form must reproduce the above
+ *     copyright notice, this list of conditions and the following
+ *     disclaimer in the documentation and/or other materials provided
+ *     with the distribution.
+ *   - Neither the name tuckey.org nor the names of its contributors
+ *     may be used to endorse or promote products derived from this
+ *     software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ * COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN
+ * ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * ====================================================================
+ */
+package org.tuckey.web.filters.urlrewrite;
+
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpHead;
+import org.apache.http.client.methods.HttpRequestBase;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.tuckey.web.filters.urlrewrite.utils.Log;
+
+import java.io.IOException;
+import java.net.URI;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Hedges GET and HEAD proxy requests: if the target hasn't sent the response headers within the hedge delay (a
+ * percentile of its recent response times) the request is sent again, to another upstream if the rule uses a pool,
+ * and whichever responds first is used.  The other is aborted.
+ * <p/>
+ * The first request is made on the calling thread, the hedge on one of the connection manager's hedge threads, so
+ * requests that respond in time cost no more than a scheduled task.
+ * <p/>
+ * If the first request fails while the hedge is running the hedge is waited for, until aborting the first request,
+ * as the total timeout does, aborts the hedge too.
+ */
+public final class ProxyRequestHedger {
+
+    private static final Log log = Log.getLog(ProxyRequestHedger.class);
+
+    private static final int PENDING = 0;
+    private static final int RUNNING = 1;
+    private static final int FIRST_WON = 2;
+    private static final int HEDGE_WON = 3;
+    private static final int ABANDONED = 4;
+
+    private final CloseableHttpClient client;
+    private final HttpRequestBase request;
+    private final ProxyLatencyTracker tracker;
+    private final ProxyPool pool;
+    private final AtomicInteger state = new AtomicInteger(PENDING);
+    private final CountDownLatch hedgeDone = new CountDownLatch(1);
+    private volatile HttpRequestBase hedgeRequest;
+    private volatile CloseableHttpResponse hedgeResponse;
+
+    private ProxyRequestHedger(CloseableHttpClient client, HttpRequestBase request, ProxyLatencyTracker tracker, ProxyPool pool) {
+        this.client = client;
+        this.request = request;
+        this.tracker = tracker;
+        this.pool = pool;
+    }
+
+    /**
+     * @return the delay before a request to the target is hedged, in milliseconds
+     */
+    public static long getDelay(ProxyLatencyTracker tracker, ProxyOptions options) {
+        return Math.max(options.getHedgeDelay(), tracker.getPercentile(options.getHedgePercentile()));
+    }
+
+    /**
+     * Execute a GET or HEAD request, hedging it if it is slow.
+     */
+    public static CloseableHttpResponse execute(final CloseableHttpClient client, final HttpRequestBase request,
+                                                final ProxyConnectionManager connectionManager, final ProxyLatencyTracker tracker,
+                                                final ProxyOptions options) throws IOException {
+        final ProxyRequestHedger hedger = new ProxyRequestHedger(client, request, tracker, options.getPool());
+        ScheduledFuture<?> hedgeTask = connectionManager.schedule(() -> {
+            if (!connectionManager.executeHedge(hedger::runHedge)) {
+                hedger.hedgeDone.countDown();
+            }
+        }, getDelay(tracker, options));
+
+        long start = System.currentTimeMillis();
+        CloseableHttpResponse response;
+        try {
+            response = client.execute(request);
+        } catch (IOException e) {
+            if (hedgeTask != null) hedgeTask.cancel(false);
+            CloseableHttpResponse hedged = hedger.awaitHedge();
+            if (hedged != null) return hedged;
+            throw e;
+        }
+        tracker.record(System.currentTimeMillis() - start);
+        if (hedgeTask != null) hedgeTask.cancel(false);
+        while (true) {
+            int s = hedger.state.get();
+            if (s == HEDGE_WON) {
+                // responded just after the hedge
+                closeQuietly(response);
+                return hedger.hedgeResponse;
+            }
+            if (hedger.state.compareAndSet(s, FIRST_WON)) {
+                if (s == RUNNING) {
+                    HttpRequestBase hedgeRequest = hedger.hedgeRequest;
+                    if (hedgeRequest != null) hedgeRequest.abort();
+                }
+                return response;
+            }
+        }
+    }
+
+    /**
+     * Called when the first request has failed.  Waits for the hedge, unless or until the first request is aborted.
+     *
+     * @return the response of the hedge if it has succeeded or null
+     */
+    private CloseableHttpResponse awaitHedge() {
+        if (state.compareAndSet(PENDING, ABANDONED)) {
+            return null;
+        }
+        // the first request is done with, so aborting it (ie, the total timeout) can abort the hedge instead
+        request.setCancellable(() -> {
+            abandonHedge();
+            return true;
+        });
+        if (request.isAborted()) abandonHedge();
+        try {
+            hedgeDone.await();
+        } catch (InterruptedException e) {
+            abandonHedge();
+            Thread.currentThread().interrupt();
+        }
+        return state.get() == HEDGE_WON ? hedgeResponse : null;
+    }
+
+    private void abandonHedge() {
+        if (state.compareAndSet(RUNNING, ABANDONED)) {
+            log.debug("abandoning hedge of request to " + request.getURI());
+            HttpRequestBase hedge = hedgeRequest;
+            if (hedge != null) hedge.abort();
+        }
+    }
+
+    private void runHedge() {
+        try {
+            if (!state.compareAndSet(PENDING, RUNNING)) return;
+            String uri = request.getURI().toString();
+            ProxyUpstream upstream = null;
+            ProxyUpstream first = pool == null ? null : pool.findUpstream(uri);
+            if (first != null) {
+                String path = uri.substring(first.getUrl().length());
+                upstream = pool.selectAlternate(first, path);
+                uri = upstream.resolve(path);
+            }
+            HttpRequestBase hedge = request instanceof HttpHead ? new HttpHead() : new HttpGet();
+            hedge.setURI(URI.create(uri));
+            hedge.setHeaders(request.getAllHeaders());
+            hedge.setConfig(request.getConfig());
+            hedgeRequest = hedge;
+            if (state.get() != RUNNING) return;
+
+            if (log.isDebugEnabled()) log.debug("hedging request to " + request.getURI() + " with " + uri);
+            tracker.hedged();
+            if (upstream != null) upstream.requestStarted();
+            boolean failed = true;
+            long start = System.currentTimeMillis();
+            try {
+                CloseableHttpResponse response = client.execute(hedge);
+                failed = false;
+                tracker.record(System.currentTimeMillis() - start);
+                hedgeResponse = response;
+                if (state.compareAndSet(RUNNING, HEDGE_WON)) {
+                    tracker.hedgeWon();
+                    request.abort();
+                } else {
+                    closeQuietly(response);
+                }
+            } catch (IOException e) {
+                // aborted if the first request won or the hedge was abandoned
+                failed = state.get() == RUNNING;
+                log.debug("hedge request failed: " + e);
+            } finally {
+                if (upstream != null) upstream.requestFinished(failed, pool.getMaxFailures(), pool.getCooldown() * 1000L);
+            }
+        } finally {
+            hedgeDone.countDown();
+        }
+    }
+
+    private static void closeQuietly(CloseableHttpResponse response) {
+        try {
+            response.close();
+        } catch (IOException e) {
+            log.debug(e);
+        }
+    }
+}
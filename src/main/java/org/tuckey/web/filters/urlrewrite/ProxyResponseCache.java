@@ -0,0 +1,275 @@
+/**
+ * Copyright (c) 2005-2007, Paul Tuckey
+ * All rights reserved.
+ * ====================================================================
+ * Licensed under the BSD License. Text as follows.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *   - Redistributions of source code must retain the above copyright
+ *     notice, this list of conditions and the following disclaimer.
+ *   - Redistributions in binary form must reproduce the above
+ *     copyright notice, this list of conditions and the following
+ *     disclaimer in the documentation and/or other materials provided
+ *     with the distribution.
+ *   - Neither the name tuckey.org nor the names of its contributors
+ *     may be used to endorse or promote products derived from this
+ *     software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ * COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN
+ * ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * ====================================================================
+ */
+package org.tuckey.web.filters.urlrewrite;
+
+import org.apache.http.Header;
+import org.apache.http.HttpRequest;
+import org.tuckey.web.filters.urlrewrite.utils.Log;
+
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Shared cache of the responses to proxy rules that have cache="true" (RFC 7234).  Stale responses are revalidated
+ * with a conditional request, served while being revalidated in the background if the target allows it with
+ * stale-while-revalidate, and served if the target fails if it allows it with stale-if-error.
+ * <p/>
+ * Bodies up to the large entry threshold are kept on the heap, bigger bodies go in the large entry store (ie, memory
+ * mapped files) if there is one.
+ */
+public class ProxyResponseCache {
+
+    private static Log log = Log.getLog(ProxyResponseCache.class);
+
+    public static final long DEFAULT_MAX_BYTES = 64L * 1024 * 1024;
+    public static final int DEFAULT_MAX_ENTRY_SIZE = 1024 * 1024;
+    public static final int DEFAULT_LARGE_ENTRY_THRESHOLD = 64 * 1024;
+    private static final int REVALIDATION_THREADS = 2;
+    private static final int REVALIDATION_QUEUE_SIZE = 100;
+
+    private final ProxyCacheStore store;
+    private final ProxyCacheStore largeEntryStore;
+    private final int maxEntrySize;
+    private final int largeEntryThreshold;
+    private final Set<String> revalidating = ConcurrentHashMap.newKeySet();
+    private final ThreadPoolExecutor revalidationExecutor;
+    private final AtomicLong hitCount = new AtomicLong();
+    private final AtomicLong missCount = new AtomicLong();
+    private final AtomicLong revalidatedCount = new AtomicLong();
+    private final AtomicLong staleCount = new AtomicLong();
+
+    public ProxyResponseCache() {
+        this(new HeapProxyCacheStore(DEFAULT_MAX_BYTES), null, DEFAULT_MAX_ENTRY_SIZE, DEFAULT_LARGE_ENTRY_THRESHOLD);
+    }
+
+    /**
+     * @param store               where entries are kept
+     * @param largeEntryStore     where entries with a body bigger than largeEntryThreshold are kept, may be null
+     * @param maxEntrySize        largest body that will be cached
+     * @param largeEntryThreshold size above which bodies go to the large entry store
+     */
+    public ProxyResponseCache(ProxyCacheStore store, ProxyCacheStore largeEntryStore, int maxEntrySize, int largeEntryThreshold) {
+        this.store = store;
+        this.largeEntryStore = largeEntryStore;
+        this.maxEntrySize = maxEntrySize;
+        this.largeEntryThreshold = largeEntryThreshold;
+        final AtomicInteger threadCount = new AtomicInteger();
+        revalidationExecutor = new ThreadPoolExecutor(REVALIDATION_THREADS, REVALIDATION_THREADS, 60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(REVALIDATION_QUEUE_SIZE), runnable -> {
+            Thread thread = new Thread(runnable, "urlrewrite-proxy-cache-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        revalidationExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * The key of the cache entry for a request, null if the response to the request must not come from or go in a
+     * shared cache (ie, the request has credentials, a range or no-store).  HEAD requests share the entries of GET
+     * requests.
+     *
+     * @param targetRequest the request to the target, with the headers that will be forwarded
+     */
+    public static String getKey(String target, String method, HttpRequest targetRequest) {
+        if (!"GET".equalsIgnoreCase(method) && !"HEAD".equalsIgnoreCase(method)) return null;
+        if (targetRequest.containsHeader("authorization")) return null;
+        if (targetRequest.containsHeader("cookie")) return null;
+        if (targetRequest.containsHeader("range")) return null;
+        for (Header header : targetRequest.getHeaders("cache-control")) {
+            if (header.getValue().toLowerCase().contains("no-store")) return null;
+        }
+        return target;
+    }
+
+    /**
+     * Has the client asked for the response to be revalidated with the target even if the cached one is fresh.
+     */
+    public static boolean isRevalidationRequested(HttpRequest targetRequest) {
+        for (Header header : targetRequest.getHeaders("cache-control")) {
+            String value = header.getValue().toLowerCase().replace(" ", "");
+            if (value.contains("no-cache") || value.contains("max-age=0")) return true;
+        }
+        for (Header header : targetRequest.getHeaders("pragma")) {
+            if (header.getValue().toLowerCase().contains("no-cache")) return true;
+        }
+        return false;
+    }
+
+    /**
+     * @return the entry for the key if there is one that is for a request with the same values of the headers it
+     * varies on
+     */
+    public CachedProxyResponse get(String key, HttpRequest targetRequest) {
+        CachedProxyResponse entry = store.get(key);
+        if (entry == null && largeEntryStore != null) entry = largeEntryStore.get(key);
+        if (entry == null || !entry.matchesVary(targetRequest)) {
+            return null;
+        }
+        return entry;
+    }
+
+    /**
+     * Store an entry, in the large entry store if its body is big.
+     *
+     * @return the entry to use from now on, it may be backed by a different store
+     */
+    public CachedProxyResponse put(String key, CachedProxyResponse entry) {
+        int size = entry.getResponse().getBodyLength();
+        if (size > maxEntrySize) {
+            remove(key);
+            return entry;
+        }
+        if (largeEntryStore != null && size > largeEntryThreshold) {
+            store.remove(key);
+            return largeEntryStore.put(key, entry);
+        }
+        if (largeEntryStore != null) largeEntryStore.remove(key);
+        return store.put(key, entry);
+    }
+
+    public void remove(String key) {
+        store.remove(key);
+        if (largeEntryStore != null) largeEntryStore.remove(key);
+    }
+
+    /**
+     * Run a revalidation in the background, unless the entry is already being revalidated or there are too many
+     * revalidations waiting.
+     *
+     * @return true if the revalidation will be run
+     */
+    public boolean revalidateInBackground(final String key, final java.lang.Runnable revalidation) {
+        if (!revalidating.add(key)) return false;
+        try {
+            revalidationExecutor.execute(() -> {
+                try {
+                    revalidation.run();
+                } catch (RuntimeException e) {
+                    log.error("background revalidation of " + key + " failed", e);
+                } finally {
+                    revalidating.remove(key);
+                }
+            });
+            return true;
+        } catch (RejectedExecutionException e) {
+            log.debug("too many background revalidations, not revalidating " + key);
+            revalidating.remove(key);
+            return false;
+        }
+    }
+
+    /**
+     * Stop the background revalidations and discard all entries.
+     */
+    public void close() {
+        revalidationExecutor.shutdownNow();
+        store.close();
+        if (largeEntryStore != null) largeEntryStore.close();
+    }
+
+    void hit() {
+        hitCount.incrementAndGet();
+    }
+
+    void miss() {
+        missCount.incrementAndGet();
+    }
+
+    void revalidated() {
+        revalidatedCount.incrementAndGet();
+    }
+
+    void servedStale() {
+        staleCount.incrementAndGet();
+    }
+
+    public int getMaxEntrySize() {
+        return maxEntrySize;
+    }
+
+    public ProxyCacheStore getStore() {
+        return store;
+    }
+
+    public ProxyCacheStore getLargeEntryStore() {
+        return largeEntryStore;
+    }
+
+    public int size() {
+        return store.size() + (largeEntryStore == null ? 0 : largeEntryStore.size());
+    }
+
+    public long getBytes() {
+        return store.getBytes() + (largeEntryStore == null ? 0 : largeEntryStore.getBytes());
+    }
+
+    /**
+     * @return number of requests answered from the cache without a request to the target
+     */
+    public long getHitCount() {
+        return hitCount.get();
+    }
+
+    /**
+     * @return number of requests that had no usable entry
+     */
+    public long getMissCount() {
+        return missCount.get();
+    }
+
+    /**
+     * @return number of entries the target confirmed were still valid (304)
+     */
+    public long getRevalidatedCount() {
+        return revalidatedCount.get();
+    }
+
+    /**
+     * @return number of stale responses served, while revalidating or because the target failed
+     */
+    public long getStaleCount() {
+        return staleCount.get();
+    }
+
+    public int getRevalidatingCount() {
+        return revalidating.size();
+    }
+}
@@ -0,0 +1,122 @@
+/**
+ * Copyright (c) 2005-2007, Paul Tuckey
+ * All rights reserved.
+ * ====================================================================
+ * Licensed under the BSD License. Text as follows.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *   - Redistributions of source code must retain the above copyright
+ *     notice, this list of conditions and the following disclaimer.
+ *   - Redistributions in binary form must reproduce the above
+ *     copyright notice, this list of conditions and the following
+ *     disclaimer in the documentation and/or other materials provided
+ *     with the distribution.
+ *   - Neither the name tuckey.org nor the names of its contributors
+ *     may be used to endorse or promote products derived from this
+ *     software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ * COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN
+ * ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * ====================================================================
+ */
+package org.tuckey.web.filters.urlrewrite;
+
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Protects a proxy target (scheme, host and port) with a bulkhead, limiting the number of requests to it in progress
+ * at once, and a circuit breaker, so that a slow or dead target can't tie up every container thread.  Either may be
+ * disabled.  Shared by all of the proxy rules that send requests to the target, the settings of the first one to be
+ * used apply.
+ */
+public class ProxyTargetGuard {
+
+    private final String target;
+    private final int maxConcurrent;
+    private final Semaphore bulkhead;
+    private final ProxyCircuitBreaker circuitBreaker;
+    private final AtomicLong bulkheadRejectedCount = new AtomicLong();
+
+    /**
+     * @param maxConcurrent    max requests in progress, 0 for no limit
+     * @param breakerFailures  consecutive failures that open the circuit breaker, 0 for no circuit breaker
+     * @param breakerOpenMillis how long the circuit breaker stays open
+     */
+    public ProxyTargetGuard(String target, int maxConcurrent, int breakerFailures, long breakerOpenMillis) {
+        this.target = target;
+        this.maxConcurrent = maxConcurrent;
+        this.bulkhead = maxConcurrent > 0 ? new Semaphore(maxConcurrent) : null;
+        this.circuitBreaker = breakerFailures > 0 ? new ProxyCircuitBreaker(target, breakerFailures, breakerOpenMillis) : null;
+    }
+
+    /**
+     * @return ProxyCircuitBreaker.REQUEST_REJECTED if the bulkhead is full or the circuit breaker is open, otherwise
+     * REQUEST_ALLOWED or REQUEST_PROBE and the caller must then call release with it.
+     */
+    public int tryAcquire() {
+        if (bulkhead != null && !bulkhead.tryAcquire()) {
+            bulkheadRejectedCount.incrementAndGet();
+            return ProxyCircuitBreaker.REQUEST_REJECTED;
+        }
+        int permit = circuitBreaker == null ? ProxyCircuitBreaker.REQUEST_ALLOWED
+                : circuitBreaker.allowRequest(System.currentTimeMillis());
+        if (permit == ProxyCircuitBreaker.REQUEST_REJECTED && bulkhead != null) bulkhead.release();
+        return permit;
+    }
+
+    /**
+     * @param permit what tryAcquire returned
+     * @param failed true if the request failed (ie, an IO error, timeout or 5xx response)
+     */
+    public void release(int permit, boolean failed) {
+        if (circuitBreaker != null) {
+            boolean probe = permit == ProxyCircuitBreaker.REQUEST_PROBE;
+            if (failed) {
+                circuitBreaker.onFailure(System.currentTimeMillis(), probe);
+            } else {
+                circuitBreaker.onSuccess(probe);
+            }
+        }
+        if (bulkhead != null) bulkhead.release();
+    }
+
+    public String getTarget() {
+        return target;
+    }
+
+    public int getMaxConcurrent() {
+        return maxConcurrent;
+    }
+
+    /**
+     * @return requests in progress, only counted if there is a bulkhead
+     */
+    public int getInFlight() {
+        return bulkhead == null ? 0 : maxConcurrent - bulkhead.availablePermits();
+    }
+
+    public long getBulkheadRejectedCount() {
+        return bulkheadRejectedCount.get();
+    }
+
+    /**
+     * @return the circuit breaker or null if there isn't one
+     */
+    public ProxyCircuitBreaker getCircuitBreaker() {
+        return circuitBreaker;
+    }
+}
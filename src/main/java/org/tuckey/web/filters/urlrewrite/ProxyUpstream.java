@@ -0,0 +1,128 @@
+/**
+ * Copyright (c) 2005-2007, Paul Tuckey
+ * All rights reserved.
+ * ====================================================================
+ * Licensed under the BSD License. Text as follows.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *   - Redistributions of source code must retain the above copyright
+ *     notice, this list of conditions and the following disclaimer.
+ *   - Redistributions in binary form must reproduce the above
+ *     copyright notice, this list of conditions and the following
+ *     disclaimer in the documentation and/or other materials provided
+ *     with the distribution.
+ *   - Neither the name tuckey.org nor the names of its contributors
+ *     may be used to endorse or promote products derived from this
+ *     software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ * COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN
+ * ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * ====================================================================
+ */
+package org.tuckey.web.filters.urlrewrite;
+
+import org.tuckey.web.filters.urlrewrite.utils.Log;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * One of the upstreams of a proxy pool, with its in flight count and passive health.  An upstream is ejected (not
+ * chosen) for a cooldown period after a number of consecutive failures, then re-admitted.
+ */
+public class ProxyUpstream {
+
+    private static Log log = Log.getLog(ProxyUpstream.class);
+
+    private final String url;
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final AtomicInteger consecutiveFailures = new AtomicInteger();
+    private final AtomicLong requestCount = new AtomicLong();
+    private final AtomicLong failureCount = new AtomicLong();
+    private final AtomicLong ejectionCount = new AtomicLong();
+    private volatile long ejectedUntil = 0;
+
+    /**
+     * @param url base url of the upstream, ie, http://backend1:8080/app
+     */
+    public ProxyUpstream(String url) {
+        this.url = url.endsWith("/") ? url.substring(0, url.length() - 1) : url;
+    }
+
+    /**
+     * @param path the "to" of a proxy rule using the pool
+     * @return the url to proxy to on this upstream
+     */
+    public String resolve(String path) {
+        if (path == null || path.isEmpty()) return url;
+        if (path.charAt(0) == '/' || path.charAt(0) == '?') return url + path;
+        return url + '/' + path;
+    }
+
+    public boolean isAvailable(long now) {
+        return ejectedUntil <= now;
+    }
+
+    public void requestStarted() {
+        inFlight.incrementAndGet();
+        requestCount.incrementAndGet();
+    }
+
+    /**
+     * @param failed         true if the request failed (ie, could not connect or got a 5xx)
+     * @param maxFailures    consecutive failures after which the upstream is ejected
+     * @param cooldownMillis how long the upstream is ejected for
+     */
+    public void requestFinished(boolean failed, int maxFailures, long cooldownMillis) {
+        inFlight.decrementAndGet();
+        if (!failed) {
+            consecutiveFailures.set(0);
+            return;
+        }
+        failureCount.incrementAndGet();
+        if (consecutiveFailures.incrementAndGet() >= maxFailures) {
+            consecutiveFailures.set(0);
+            ejectedUntil = System.currentTimeMillis() + cooldownMillis;
+            ejectionCount.incrementAndGet();
+            log.warn("proxy upstream " + url + " failed " + maxFailures + " times in a row, ejected for " +
+                    cooldownMillis + "ms");
+        }
+    }
+
+    public String getUrl() {
+        return url;
+    }
+
+    public int getInFlight() {
+        return inFlight.get();
+    }
+
+    public long getRequestCount() {
+        return requestCount.get();
+    }
+
+    public long getFailureCount() {
+        return failureCount.get();
+    }
+
+    public long getEjectionCount() {
+        return ejectionCount.get();
+    }
+
+    public long getEjectedUntil() {
+        return ejectedUntil;
+    }
+}
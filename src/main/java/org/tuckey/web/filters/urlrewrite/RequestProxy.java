@@ -49,15 +49,20 @@ import org.apache.http.util.EntityUtils;
 import org.tuckey.web.filters.urlrewrite.utils.Log;
 import org.tuckey.web.filters.urlrewrite.utils.StringUtils;
 
+import javax.servlet.AsyncContext;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.MalformedURLException;
 import java.net.URISyntaxException;
 import java.net.URL;
+import java.util.ArrayList;
 import java.util.Enumeration;
+import java.util.List;
+import java.util.concurrent.ScheduledFuture;
 import java.util.regex.Pattern;
 
 /**
@@ -74,6 +79,10 @@ import java.util.regex.Pattern;
 public final class RequestProxy {
     private static final Log log = Log.getLog(RequestProxy.class);
     private static final Pattern NUMBER_PATTERN = Pattern.compile("[0-9]+");
+    private static final ProxyBufferPool BUFFER_POOL = new ProxyBufferPool(ProxyBufferPool.DEFAULT_MAX_BUFFERS,
+            ProxyBufferPool.DEFAULT_BUFFER_SIZE);
+    private static final String[] CONDITIONAL_HEADERS = {"If-None-Match", "If-Modified-Since", "If-Match",
+            "If-Unmodified-Since", "If-Range"};
 
 
     /**
@@ -100,6 +109,91 @@ public final class RequestProxy {
      * @throws java.io.IOException Passed on from the connection logic.
      */
     public static void execute(final String target, final HttpServletRequest hsRequest, final HttpServletResponse hsResponse, boolean dropCookies, boolean followRedirects, boolean useSystemProperties) throws IOException {
+        execute(target, hsRequest, hsResponse, dropCookies, followRedirects, useSystemProperties, null);
+    }
+
+    /**
+     * This method performs the proxying of the request to the target address.
+     *
+     * @param target            The target address. Has to be a fully qualified address. The request is send as-is to this address.
+     * @param hsRequest         The request data which should be send to the
+     * @param hsResponse        The response data which will contain the data returned by the proxied request to target.
+     * @param dropCookies       Determinate whether cookies should be dropped (when {@code true}) or forwarded to client.
+     * @param connectionManager The pool to get the connection to target from, if null a new connection will be opened
+     *                          and closed once the request is done.
+     * @throws java.io.IOException Passed on from the connection logic.
+     */
+    public static void execute(final String target, final HttpServletRequest hsRequest, final HttpServletResponse hsResponse, boolean dropCookies, boolean followRedirects, boolean useSystemProperties,
+                               ProxyConnectionManager connectionManager) throws IOException {
+        execute(target, hsRequest, hsResponse, dropCookies, followRedirects, useSystemProperties, connectionManager, null);
+    }
+
+    /**
+     * This method performs the proxying of the request to the target address.
+     *
+     * @param target            The target address. Has to be a fully qualified address. The request is send as-is to this address.
+     * @param hsRequest         The request data which should be send to the
+     * @param hsResponse        The response data which will contain the data returned by the proxied request to target.
+     * @param dropCookies       Determinate whether cookies should be dropped (when {@code true}) or forwarded to client.
+     * @param connectionManager The pool to get the connection to target from, if null a new connection will be opened
+     *                          and closed once the request is done.
+     * @param options           The settings of the proxy rule, may be null.
+     * @throws java.io.IOException Passed on from the connection logic.
+     */
+    public static void execute(final String target, final HttpServletRequest hsRequest, final HttpServletResponse hsResponse, boolean dropCookies, boolean followRedirects, boolean useSystemProperties,
+                               ProxyConnectionManager connectionManager, ProxyOptions options) throws IOException {
+        if (options == null || options.getPool() == null) {
+            executeGuarded(target, hsRequest, hsResponse, dropCookies, followRedirects, useSystemProperties, connectionManager, options);
+            return;
+        }
+        ProxyPool pool = options.getPool();
+        ProxyUpstream upstream = pool.select(target);
+        String upstreamTarget = upstream.resolve(target);
+        boolean failed = true;
+        upstream.requestStarted();
+        try {
+            executeGuarded(upstreamTarget, hsRequest, hsResponse, dropCookies, followRedirects, useSystemProperties, connectionManager, options);
+            failed = hsResponse.getStatus() >= HttpServletResponse.SC_INTERNAL_SERVER_ERROR;
+        } finally {
+            upstream.requestFinished(failed, pool.getMaxFailures(), pool.getCooldown() * 1000L);
+        }
+    }
+
+    /**
+     * Proxy the request through the bulkhead and circuit breaker of the target host, if the rule has them.  If the
+     * bulkhead is full or the circuit breaker is open the response is a 503 straight away.
+     */
+    private static void executeGuarded(final String target, final HttpServletRequest hsRequest, final HttpServletResponse hsResponse, boolean dropCookies, boolean followRedirects, boolean useSystemProperties,
+                                       ProxyConnectionManager connectionManager, ProxyOptions options) throws IOException {
+        ProxyTargetGuard guard = null;
+        if (connectionManager != null && options != null && !StringUtils.isBlank(target)) {
+            try {
+                guard = connectionManager.getTargetGuard(new URL(target), options);
+            } catch (MalformedURLException e) {
+                // reported by executeTarget
+            }
+        }
+        if (guard == null) {
+            executeTarget(target, hsRequest, hsResponse, dropCookies, followRedirects, useSystemProperties, connectionManager, options);
+            return;
+        }
+        int permit = guard.tryAcquire();
+        if (permit == ProxyCircuitBreaker.REQUEST_REJECTED) {
+            log.info("not proxying to " + target + ", too many requests in progress or circuit breaker open");
+            hsResponse.setStatus(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+            return;
+        }
+        boolean failed = true;
+        try {
+            executeTarget(target, hsRequest, hsResponse, dropCookies, followRedirects, useSystemProperties, connectionManager, options);
+            failed = hsResponse.getStatus() >= HttpServletResponse.SC_INTERNAL_SERVER_ERROR;
+        } finally {
+            guard.release(permit, failed);
+        }
+    }
+
+    private static void executeTarget(final String target, final HttpServletRequest hsRequest, final HttpServletResponse hsResponse, boolean dropCookies, boolean followRedirects, boolean useSystemProperties,
+                                      ProxyConnectionManager connectionManager, ProxyOptions options) throws IOException {
         if (log.isInfoEnabled()) {
             log.info("execute, target is " + target);
             log.info("response commit state: " + hsResponse.isCommitted());
@@ -119,58 +213,498 @@ public final class RequestProxy {
             return;
         }
 
+        // over HTTP/2 the request is streamed as is, none of the caching, coalescing or hedging of the pooled client
+        if (options != null && options.isHttp2() && connectionManager != null && hsRequest.getAttribute("use-proxy") == null) {
+            ProxyHttp2Client http2Client = connectionManager.getHttp2Client();
+            if (http2Client != null) {
+                http2Client.execute(url, hsRequest, hsResponse, dropCookies, followRedirects, useSystemProperties, options);
+                return;
+            }
+        }
+
         log.info("setting up the host configuration");
 
         RequestConfig.Builder configBuilder = RequestConfig.custom();
 
         HttpHost proxyHost = getUseProxyServer((String) hsRequest.getAttribute("use-proxy"));
         if (proxyHost != null) configBuilder.setProxy(proxyHost);
+        if (options != null) {
+            if (options.getConnectTimeout() > 0) {
+                configBuilder.setConnectTimeout(options.getConnectTimeout())
+                        .setConnectionRequestTimeout(options.getConnectTimeout());
+            }
+            if (options.getReadTimeout() > 0) configBuilder.setSocketTimeout(options.getReadTimeout());
+            // leave the body as the target encoded it, it is copied to the client as is
+            if (options.isCompressedPassthrough()) configBuilder.setContentCompressionEnabled(false);
+        }
         RequestConfig config = configBuilder.setRedirectsEnabled(followRedirects).build();
 
         if (log.isInfoEnabled()) {
             log.info("config is " + config.toString());
         }
 
-        final HttpRequestBase targetRequest = setupProxyRequest(hsRequest, url, dropCookies);
+        final HttpRequestBase targetRequest = setupProxyRequest(hsRequest, url, dropCookies,
+                options != null && options.isCompressedPassthrough());
         if (targetRequest == null) {
             log.error("Unsupported request method found: " + hsRequest.getMethod());
             return;
         }
+        targetRequest.setConfig(config);
+
+        // abort the request if it takes longer than the total timeout
+        ScheduledFuture<?> timeoutTask = null;
+        if (options != null && options.getTimeout() > 0 && connectionManager != null) {
+            timeoutTask = connectionManager.schedule(() -> {
+                log.info("proxy request to " + target + " took longer than " + options.getTimeout() + "ms, aborting");
+                targetRequest.abort();
+            }, options.getTimeout());
+        }
+        try {
+            executeTarget(target, targetRequest, config, hsRequest, hsResponse, dropCookies, useSystemProperties,
+                    connectionManager, options);
+        } finally {
+            if (timeoutTask != null) timeoutTask.cancel(false);
+        }
+    }
+
+    private static void executeTarget(final String target, final HttpRequestBase targetRequest, final RequestConfig config,
+                                      final HttpServletRequest hsRequest, final HttpServletResponse hsResponse, boolean dropCookies,
+                                      boolean useSystemProperties, ProxyConnectionManager connectionManager,
+                                      ProxyOptions options) throws IOException {
+        CloseableHttpClient pooledClient = connectionManager == null ? null : connectionManager.getHttpClient(useSystemProperties);
+        if (pooledClient != null) {
+            if (options != null && options.isCache() && connectionManager.getResponseCache() != null &&
+                    executeCached(pooledClient, target, targetRequest, hsRequest, hsResponse, dropCookies,
+                            connectionManager, options)) {
+                return;
+            }
+            ProxyRequestCoalescer.Call coalescedCall = null;
+            if (options != null && options.isCoalesce()) {
+                String key = ProxyRequestCoalescer.getKey(target, hsRequest, dropCookies, options.getCoalesceVary());
+                coalescedCall = key == null ? null :
+                        connectionManager.getRequestCoalescer().join(key, options.getCoalesceMaxWaiters());
+                if (coalescedCall != null && !coalescedCall.isLeader()) {
+                    BufferedProxyResponse sharedResponse = coalescedCall.await(options.getCoalesceTimeout());
+                    if (sharedResponse != null) {
+                        log.debug("using response of coalesced request");
+                        sharedResponse.writeTo(hsResponse);
+                        return;
+                    }
+                    // could not be shared, make the request ourselves
+                    coalescedCall = null;
+                }
+            }
+            execute(pooledClient, targetRequest, hsRequest, hsResponse, dropCookies, coalescedCall, connectionManager, options);
+        } else {
+            try (CloseableHttpClient client = getHttpClient(config, useSystemProperties)) {
+                execute(client, targetRequest, hsRequest, hsResponse, dropCookies, null, null, null);
+            }
+        }
+    }
+
+    /**
+     * Starts async processing of the request and hands the proxying of it to one of the async threads of the
+     * connection manager, which will complete the request when done.  The container thread is free as soon as this
+     * returns.
+     *
+     * If all of the async threads are busy the response is a 503 straight away, the request is not proxied on the
+     * calling thread as that would tie up the container thread the async threads are there to free.
+     *
+     * @return true if the request has been proxied or handed off, false if the request doesn't support async and
+     * should be proxied with execute instead.
+     */
+    public static boolean executeAsync(final String target, final HttpServletRequest hsRequest, final HttpServletResponse hsResponse,
+                                       final boolean dropCookies, final boolean followRedirects, final boolean useSystemProperties,
+                                       final ProxyConnectionManager connectionManager, final ProxyOptions options) {
+        if (connectionManager == null || !hsRequest.isAsyncSupported()) {
+            log.debug("async not supported by request or no connection manager, proxying synchronously");
+            return false;
+        }
+        final AsyncContext asyncContext = hsRequest.startAsync(hsRequest, hsResponse);
+        // the proxy request has its own timeouts, don't let the container complete the response under us
+        asyncContext.setTimeout(0);
+        final java.lang.Runnable proxyTask = () -> {
+            try {
+                execute(target, hsRequest, hsResponse, dropCookies, followRedirects, useSystemProperties, connectionManager,
+                        options);
+            } catch (IOException | RuntimeException e) {
+                log.error("async proxy of " + target + " failed", e);
+                if (!hsResponse.isCommitted()) {
+                    hsResponse.setStatus(HttpServletResponse.SC_BAD_GATEWAY);
+                }
+            } finally {
+                asyncContext.complete();
+            }
+        };
+        if (!connectionManager.executeAsync(proxyTask)) {
+            log.info("not proxying to " + target + ", async proxy threads busy");
+            hsResponse.setStatus(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+            asyncContext.complete();
+        }
+        return true;
+    }
 
+    private static void execute(final CloseableHttpClient client, final HttpRequestBase targetRequest, final HttpServletRequest hsRequest,
+                                final HttpServletResponse hsResponse, boolean dropCookies,
+                                ProxyRequestCoalescer.Call coalescedCall, ProxyConnectionManager connectionManager,
+                                ProxyOptions options) throws IOException {
         //perform the request to the target server
-        try (CloseableHttpClient client = getHttpClient(config, useSystemProperties)) {
-            if (log.isInfoEnabled()) {
-                log.info("executeMethod / fetching data ...");
+        if (log.isInfoEnabled()) {
+            log.info("executeMethod / fetching data ...");
+        }
+
+        // holder variable, mainly to allow use of try-with-resources below
+        HttpUriRequest requestParam = targetRequest;
+
+        if (targetRequest instanceof HttpEntityEnclosingRequestBase) {
+            final InputStreamEntity entity = new InputStreamEntity(
+                    hsRequest.getInputStream(), hsRequest.getContentLength(), ContentType.create(hsRequest.getContentType()));
+            final HttpEntityEnclosingRequestBase entityEnclosingMethod = (HttpEntityEnclosingRequestBase) targetRequest;
+            entityEnclosingMethod.setEntity(entity);
+            requestParam = entityEnclosingMethod;
+        }
+
+        try (CloseableHttpResponse response = executeRequest(client, requestParam, connectionManager, options)) {
+            if (coalescedCall != null) {
+                executeCoalescedLeader(response, hsResponse, dropCookies, coalescedCall);
+                return;
+            }
+
+            //copy the target response headers to our response
+            setupResponseHeaders(response, hsResponse, dropCookies);
+
+            //the body might be null, i.e. for responses with cache-headers which leave out the body, like 304 response
+            if (response.getEntity() != null) {
+                final InputStream originalResponseStream = response.getEntity().getContent();
+                if (originalResponseStream != null) {
+                    final OutputStream responseStream = hsResponse.getOutputStream();
+                    copyStream(originalResponseStream, responseStream, isStreaming(response.getEntity()));
+                }
+            }
+            EntityUtils.consume(response.getEntity());
+
+            log.info("set up response, result code was " + response.getStatusLine().getStatusCode());
+        } finally {
+            if (coalescedCall != null) {
+                // if the request failed the waiters will have to make their own
+                coalescedCall.complete(null);
             }
+        }
+    }
 
-            // holder variable, mainly to allow use of try-with-resources below
-            HttpUriRequest requestParam = targetRequest;
+    /**
+     * Execute the request to the target, recording how long the target takes to respond and hedging the request if
+     * the rule has hedging on.
+     *
+     * @param connectionManager the connection manager the client is from, null if the client is not pooled
+     */
+    private static CloseableHttpResponse executeRequest(final CloseableHttpClient client, final HttpUriRequest request,
+                                                        final ProxyConnectionManager connectionManager,
+                                                        final ProxyOptions options) throws IOException {
+        if (connectionManager == null) {
+            return client.execute(request);
+        }
+        ProxyLatencyTracker tracker = connectionManager.getLatencyTracker(request.getURI().toURL());
+        if (options != null && options.isHedge() && (request instanceof HttpGet || request instanceof HttpHead)) {
+            return ProxyRequestHedger.execute(client, (HttpRequestBase) request, connectionManager, tracker, options);
+        }
+        long start = System.currentTimeMillis();
+        CloseableHttpResponse response = client.execute(request);
+        tracker.record(System.currentTimeMillis() - start);
+        return response;
+    }
 
-            if (targetRequest instanceof HttpEntityEnclosingRequestBase) {
-                final InputStreamEntity entity = new InputStreamEntity(
-                        hsRequest.getInputStream(), hsRequest.getContentLength(), ContentType.create(hsRequest.getContentType()));
-                final HttpEntityEnclosingRequestBase entityEnclosingMethod = (HttpEntityEnclosingRequestBase) targetRequest;
-                entityEnclosingMethod.setEntity(entity);
-                requestParam = entityEnclosingMethod;
+    /**
+     * Read the response of a coalesced request and hand it to the requests waiting for it, if it can be shared, then
+     * copy it to our response.
+     */
+    private static void executeCoalescedLeader(CloseableHttpResponse response, HttpServletResponse hsResponse, boolean dropCookies,
+                                               ProxyRequestCoalescer.Call coalescedCall) throws IOException {
+        List<String[]> headers = getCopiedResponseHeaders(response, dropCookies);
+        // a cookie is for this client only
+        boolean shareable = !hasSetCookie(headers);
+
+        final HttpEntity entity = response.getEntity();
+        final InputStream originalResponseStream = entity == null ? null : entity.getContent();
+        final ByteArrayOutputStream bodyBuffer = new ByteArrayOutputStream();
+        if (shareable && originalResponseStream != null) {
+            shareable = readUpTo(originalResponseStream, bodyBuffer, ProxyRequestCoalescer.MAX_SHARED_RESPONSE_SIZE);
+        }
+
+        if (shareable) {
+            BufferedProxyResponse bufferedResponse = new BufferedProxyResponse(response.getStatusLine().getStatusCode(),
+                    headers, bodyBuffer.toByteArray());
+            coalescedCall.complete(bufferedResponse);
+            bufferedResponse.writeTo(hsResponse);
+        } else {
+            coalescedCall.complete(null);
+            writeUnbuffered(response, originalResponseStream, bodyBuffer, hsResponse, dropCookies);
+        }
+        EntityUtils.consume(entity);
+    }
+
+    /**
+     * Serve the request from the response cache, revalidating the cached response or fetching and caching a new one
+     * as needed.
+     *
+     * @return false if the request can't use the cache and must be proxied as normal
+     */
+    private static boolean executeCached(final CloseableHttpClient client, final String target, final HttpRequestBase targetRequest,
+                                         final HttpServletRequest hsRequest, final HttpServletResponse hsResponse, final boolean dropCookies,
+                                         final ProxyConnectionManager connectionManager, final ProxyOptions options) throws IOException {
+        final ProxyResponseCache cache = connectionManager.getResponseCache();
+        final String key = ProxyResponseCache.getKey(target, hsRequest.getMethod(), targetRequest);
+        if (key == null) {
+            return false;
+        }
+        final boolean isHead = "HEAD".equalsIgnoreCase(hsRequest.getMethod());
+        final CachedProxyResponse cached = cache.get(key, targetRequest);
+        long now = System.currentTimeMillis();
+        if (cached != null && !ProxyResponseCache.isRevalidationRequested(targetRequest)) {
+            if (cached.isFresh(now)) {
+                log.debug("using fresh cached response");
+                cache.hit();
+                writeCached(cached, hsRequest, hsResponse, !isHead, now);
+                return true;
+            }
+            if (cached.hasValidator() && cached.isUsableWhileRevalidating(now)) {
+                log.debug("using stale cached response while it is revalidated");
+                cache.servedStale();
+                revalidateInBackground(client, targetRequest, key, cached, cache, dropCookies);
+                writeCached(cached, hsRequest, hsResponse, !isHead, now);
+                return true;
+            }
+        }
+        if (isHead) {
+            // only GET responses are cached
+            return false;
+        }
+
+        // the cache makes its own conditional request, the client's conditions are checked against the cached response
+        for (String conditionalHeader : CONDITIONAL_HEADERS) {
+            targetRequest.removeHeaders(conditionalHeader);
+        }
+        ProxyRequestCoalescer.Call coalescedCall = null;
+        if (cached == null) {
+            cache.miss();
+            if (options.isCoalesce()) {
+                String coalesceKey = ProxyRequestCoalescer.getKey(target, hsRequest, dropCookies, options.getCoalesceVary());
+                coalescedCall = coalesceKey == null ? null :
+                        connectionManager.getRequestCoalescer().join(coalesceKey, options.getCoalesceMaxWaiters());
+                if (coalescedCall != null && !coalescedCall.isLeader()) {
+                    BufferedProxyResponse sharedResponse = coalescedCall.await(options.getCoalesceTimeout());
+                    if (sharedResponse != null) {
+                        log.debug("using response of coalesced request");
+                        sharedResponse.writeTo(hsResponse);
+                        return true;
+                    }
+                    coalescedCall = null;
+                }
             }
+        } else {
+            addConditionalHeaders(targetRequest, cached);
+        }
 
-            try (CloseableHttpResponse response = client.execute(requestParam)) {
+        final long requestTime = System.currentTimeMillis();
+        final CloseableHttpResponse response;
+        try {
+            response = executeRequest(client, targetRequest, connectionManager, options);
+        } catch (IOException e) {
+            if (coalescedCall != null) coalescedCall.complete(null);
+            if (cached != null && cached.isUsableIfError(requestTime)) {
+                log.info("request to " + target + " failed, using stale cached response: " + e);
+                cache.servedStale();
+                writeCached(cached, hsRequest, hsResponse, true, System.currentTimeMillis());
+                return true;
+            }
+            throw e;
+        }
+        try {
+            final long responseTime = System.currentTimeMillis();
+            final int statusCode = response.getStatusLine().getStatusCode();
+            if (cached != null && statusCode == HttpServletResponse.SC_NOT_MODIFIED) {
+                log.debug("cached response revalidated");
+                cache.revalidated();
+                CachedProxyResponse updated = cache.put(key, cached.revalidated(
+                        getCopiedResponseHeaders(response, dropCookies), requestTime, responseTime));
+                writeCached(updated, hsRequest, hsResponse, true, responseTime);
+                return true;
+            }
+            if (cached != null && statusCode >= 500 && cached.isUsableIfError(responseTime)) {
+                log.info("request to " + target + " failed with " + statusCode + ", using stale cached response");
+                cache.servedStale();
+                writeCached(cached, hsRequest, hsResponse, true, responseTime);
+                return true;
+            }
 
-                //copy the target response headers to our response
-                setupResponseHeaders(response, hsResponse, dropCookies);
+            final InputStream originalResponseStream = response.getEntity() == null ? null : response.getEntity().getContent();
+            final ByteArrayOutputStream bodyBuffer = new ByteArrayOutputStream();
+            if (originalResponseStream != null && !readUpTo(originalResponseStream, bodyBuffer, cache.getMaxEntrySize())) {
+                // too big to cache
+                cache.remove(key);
+                if (coalescedCall != null) coalescedCall.complete(null);
+                writeUnbuffered(response, originalResponseStream, bodyBuffer, hsResponse, dropCookies);
+                return true;
+            }
+            final BufferedProxyResponse bufferedResponse = new BufferedProxyResponse(statusCode,
+                    getCopiedResponseHeaders(response, dropCookies), bodyBuffer.toByteArray());
+            if (coalescedCall != null) {
+                coalescedCall.complete(hasSetCookie(bufferedResponse.getHeaders()) ? null : bufferedResponse);
+            }
+            CachedProxyResponse entry = CachedProxyResponse.create(bufferedResponse, targetRequest, requestTime, responseTime);
+            if (entry == null) {
+                cache.remove(key);
+                bufferedResponse.writeTo(hsResponse);
+            } else {
+                writeCached(cache.put(key, entry), hsRequest, hsResponse, true, responseTime);
+            }
+            return true;
+        } finally {
+            if (coalescedCall != null) coalescedCall.complete(null);
+            response.close();
+        }
+    }
 
-                //the body might be null, i.e. for responses with cache-headers which leave out the body, like 304 response
-                if (response.getEntity() != null) {
-                    final InputStream originalResponseStream = response.getEntity().getContent();
-                    if (originalResponseStream != null) {
-                        final OutputStream responseStream = hsResponse.getOutputStream();
-                        copyStream(originalResponseStream, responseStream);
+    /**
+     * Revalidate a stale cached response on one of the cache's background threads.  The stale response is kept if
+     * the target fails.
+     */
+    private static void revalidateInBackground(final CloseableHttpClient client, final HttpRequestBase targetRequest, final String key,
+                                               final CachedProxyResponse cached, final ProxyResponseCache cache, final boolean dropCookies) {
+        final HttpGet revalidation = new HttpGet(targetRequest.getURI());
+        revalidation.setConfig(targetRequest.getConfig());
+        for (Header header : targetRequest.getAllHeaders()) {
+            if (!isConditionalHeader(header.getName())) revalidation.addHeader(header);
+        }
+        addConditionalHeaders(revalidation, cached);
+        cache.revalidateInBackground(key, () -> {
+            long requestTime = System.currentTimeMillis();
+            try (CloseableHttpResponse response = client.execute(revalidation)) {
+                long responseTime = System.currentTimeMillis();
+                int statusCode = response.getStatusLine().getStatusCode();
+                if (statusCode == HttpServletResponse.SC_NOT_MODIFIED) {
+                    cache.revalidated();
+                    cache.put(key, cached.revalidated(getCopiedResponseHeaders(response, dropCookies), requestTime, responseTime));
+                } else if (statusCode >= 500) {
+                    log.info("background revalidation of " + key + " failed with " + statusCode + ", keeping stale response");
+                } else {
+                    InputStream in = response.getEntity() == null ? null : response.getEntity().getContent();
+                    ByteArrayOutputStream bodyBuffer = new ByteArrayOutputStream();
+                    CachedProxyResponse entry = null;
+                    if (in == null || readUpTo(in, bodyBuffer, cache.getMaxEntrySize())) {
+                        entry = CachedProxyResponse.create(new BufferedProxyResponse(statusCode,
+                                getCopiedResponseHeaders(response, dropCookies), bodyBuffer.toByteArray()),
+                                revalidation, requestTime, responseTime);
+                    }
+                    if (entry == null) {
+                        cache.remove(key);
+                    } else {
+                        cache.put(key, entry);
                     }
                 }
                 EntityUtils.consume(response.getEntity());
+            } catch (IOException e) {
+                log.info("background revalidation of " + key + " failed, keeping stale response: " + e);
+            }
+        });
+    }
+
+    private static void addConditionalHeaders(HttpRequestBase request, CachedProxyResponse cached) {
+        if (cached.getEtag() != null) request.setHeader("If-None-Match", cached.getEtag());
+        if (cached.getLastModified() != null) request.setHeader("If-Modified-Since", cached.getLastModified());
+    }
+
+    private static boolean isConditionalHeader(String headerName) {
+        for (String conditionalHeader : CONDITIONAL_HEADERS) {
+            if (conditionalHeader.equalsIgnoreCase(headerName)) return true;
+        }
+        return false;
+    }
+
+    /**
+     * Write a cached response to the client, or a 304 if the client already has it.
+     */
+    private static void writeCached(CachedProxyResponse cached, HttpServletRequest hsRequest, HttpServletResponse hsResponse,
+                                    boolean withBody, long now) throws IOException {
+        if (cached.isNotModified(hsRequest)) {
+            cached.writeNotModifiedTo(hsResponse, now);
+        } else {
+            cached.writeTo(hsResponse, withBody, now);
+        }
+    }
+
+    /**
+     * Copy a response that was partly read into a buffer to our response.
+     */
+    private static void writeUnbuffered(CloseableHttpResponse response, InputStream originalResponseStream, ByteArrayOutputStream bodyBuffer,
+                                        HttpServletResponse hsResponse, boolean dropCookies) throws IOException {
+        setupResponseHeaders(response, hsResponse, dropCookies);
+        if (originalResponseStream != null) {
+            final OutputStream responseStream = hsResponse.getOutputStream();
+            bodyBuffer.writeTo(responseStream);
+            copyStream(originalResponseStream, responseStream, isStreaming(response.getEntity()));
+        }
+    }
+
+    private static List<String[]> getCopiedResponseHeaders(CloseableHttpResponse response, boolean dropCookies) {
+        List<String[]> headers = new ArrayList<>();
+        for (Header responseHeader : response.getAllHeaders()) {
+            if (isCopiedResponseHeader(responseHeader.getName(), dropCookies)) {
+                headers.add(new String[]{responseHeader.getName(), responseHeader.getValue()});
+            }
+        }
+        // the http client removes the content encoding of a body it decoded, if it is still there the body is passed
+        // through encoded and caches between us and the client must know it depends on the accepted encodings
+        if (response.containsHeader("Content-Encoding") && !isVaryingOn(response, "accept-encoding")) {
+            headers.add(new String[]{"Vary", "Accept-Encoding"});
+        }
+        return headers;
+    }
+
+    private static boolean isVaryingOn(CloseableHttpResponse response, String headerName) {
+        List<String> varyValues = new ArrayList<>();
+        for (Header vary : response.getHeaders("Vary")) {
+            varyValues.add(vary.getValue());
+        }
+        return isVaryingOn(varyValues, headerName);
+    }
+
+    /**
+     * @param varyValues the values of the Vary headers of a response
+     */
+    static boolean isVaryingOn(List<String> varyValues, String headerName) {
+        for (String vary : varyValues) {
+            for (String name : vary.split(",")) {
+                String trimmed = name.trim();
+                if (trimmed.equals("*") || trimmed.equalsIgnoreCase(headerName)) return true;
+            }
+        }
+        return false;
+    }
 
-                log.info("set up response, result code was " + response.getStatusLine().getStatusCode());
+    private static boolean hasSetCookie(List<String[]> headers) {
+        for (String[] header : headers) {
+            if (header[0].toLowerCase().startsWith("set-cookie")) return true;
+        }
+        return false;
+    }
+
+    /**
+     * Read the stream into the buffer, unless there is more than max bytes.
+     *
+     * @return true if the whole stream was read, false if it was longer than max (the first part will be in the buffer)
+     */
+    private static boolean readUpTo(InputStream in, ByteArrayOutputStream buffer, int max) throws IOException {
+        byte[] buf = BUFFER_POOL.acquire();
+        try {
+            int count;
+            while ((count = in.read(buf)) != -1) {
+                buffer.write(buf, 0, count);
+                if (buffer.size() > max) return false;
             }
+            return true;
+        } finally {
+            BUFFER_POOL.release(buf);
         }
     }
 
@@ -185,13 +719,57 @@ public final class RequestProxy {
     }
 
     public static void copyStream(InputStream in, OutputStream out) throws IOException {
-        byte[] buf = new byte[65536];
-        int count;
-        while ((count = in.read(buf)) != -1) {
-            out.write(buf, 0, count);
+        copyStream(in, out, false);
+    }
+
+    /**
+     * Copy the stream through a buffer from the buffer pool.
+     *
+     * @param flushEarly if true what has been copied is flushed to the client whenever reading more would block, for
+     *                   responses the target sends a bit at a time (ie, server sent events)
+     */
+    public static void copyStream(InputStream in, OutputStream out, boolean flushEarly) throws IOException {
+        byte[] buf = BUFFER_POOL.acquire();
+        try {
+            // the headers haven't been sent yet
+            boolean unflushed = true;
+            int count;
+            while (true) {
+                if (flushEarly && unflushed && in.available() == 0) {
+                    out.flush();
+                    unflushed = false;
+                }
+                if ((count = in.read(buf)) == -1) break;
+                out.write(buf, 0, count);
+                unflushed = true;
+            }
+        } finally {
+            BUFFER_POOL.release(buf);
         }
     }
 
+    /**
+     * A response that has no length or is an event stream is likely to be sent by the target as it is made, so it
+     * should get to the client the same way.
+     */
+    private static boolean isStreaming(HttpEntity entity) {
+        if (entity == null) return false;
+        Header contentType = entity.getContentType();
+        return isStreaming(entity.isChunked() ? -1 : entity.getContentLength(),
+                contentType == null ? null : contentType.getValue());
+    }
+
+    /**
+     * @param contentLength -1 if the response has no length
+     */
+    static boolean isStreaming(long contentLength, String contentType) {
+        return contentLength < 0 || (contentType != null && contentType.toLowerCase().startsWith("text/event-stream"));
+    }
+
+    static ProxyBufferPool getBufferPool() {
+        return BUFFER_POOL;
+    }
+
 
     public static HttpHost getUseProxyServer(String useProxyServer) {
         HttpHost proxyHost = null;
@@ -214,7 +792,8 @@ public final class RequestProxy {
         return proxyHost;
     }
 
-    private static HttpRequestBase setupProxyRequest(final HttpServletRequest hsRequest, final URL targetUrl, boolean dropCookies) throws IOException {
+    private static HttpRequestBase setupProxyRequest(final HttpServletRequest hsRequest, final URL targetUrl, boolean dropCookies,
+                                                     boolean compressedPassthrough) throws IOException {
         final String methodName = hsRequest.getMethod();
         final HttpRequestBase method;
         if ("POST".equalsIgnoreCase(methodName)) {
@@ -231,6 +810,8 @@ public final class RequestProxy {
             method = putMethod;
         } else if ("DELETE".equalsIgnoreCase(methodName)) {
             method = new HttpDelete();
+        } else if ("HEAD".equalsIgnoreCase(methodName)) {
+            method = new HttpHead();
         } else {
             log.warn("Unsupported HTTP method requested: " + hsRequest.getMethod());
             return null;
@@ -251,19 +832,7 @@ public final class RequestProxy {
         if (e != null) {
             while (e.hasMoreElements()) {
                 String headerName = e.nextElement();
-                if ("host".equalsIgnoreCase(headerName)) {
-                    //the host value is set by the http client
-                    continue;
-                } else if ("content-length".equalsIgnoreCase(headerName)) {
-                    //the content-length is managed by the http client
-                    continue;
-                } else if ("accept-encoding".equalsIgnoreCase(headerName)) {
-                    //the accepted encoding should only be those accepted by the http client.
-                    //The response stream should (afaik) be deflated. If our http client does not support
-                    //gzip then the response can not be unzipped and is delivered wrong.
-                    continue;
-                } else if (dropCookies && headerName.toLowerCase().startsWith("cookie")) {
-                    //fixme : don't set any cookies in the proxied request, this needs a cleaner solution
+                if (!isCopiedRequestHeader(headerName, dropCookies, compressedPassthrough)) {
                     continue;
                 }
 
@@ -276,10 +845,34 @@ public final class RequestProxy {
             }
         }
 
+        if (method instanceof HttpHead && !compressedPassthrough) {
+            // there is no body for the http client to decode, so ask for the length a GET would get after decoding
+            method.setHeader("Accept-Encoding", "identity");
+        }
+
         if (log.isInfoEnabled()) log.info("proxy query string " + method.getRequestLine());
         return method;
     }
 
+    static boolean isCopiedRequestHeader(String headerName, boolean dropCookies, boolean compressedPassthrough) {
+        if ("host".equalsIgnoreCase(headerName)) {
+            //the host value is set by the http client
+            return false;
+        } else if ("content-length".equalsIgnoreCase(headerName)) {
+            //the content-length is managed by the http client
+            return false;
+        } else if ("accept-encoding".equalsIgnoreCase(headerName) && !compressedPassthrough) {
+            //the accepted encoding should only be those accepted by the http client.
+            //The response stream should (afaik) be deflated. If our http client does not support
+            //gzip then the response can not be unzipped and is delivered wrong.
+            return false;
+        } else if (dropCookies && headerName.toLowerCase().startsWith("cookie")) {
+            //fixme : don't set any cookies in the proxied request, this needs a cleaner solution
+            return false;
+        }
+        return true;
+    }
+
     private static void setupResponseHeaders(CloseableHttpResponse httpResponse, HttpServletResponse hsResponse, boolean dropCookies) {
         if (log.isInfoEnabled()) {
             log.info("setupResponseHeaders");
@@ -288,33 +881,51 @@ public final class RequestProxy {
         }
 
         //filter the headers, which are copied from the proxy response. The http lib handles those itself.
-        //Filtered out: the content encoding, the content length and cookies
-        for (Header responseHeader : httpResponse.getAllHeaders()) {
-            if ("content-encoding".equalsIgnoreCase(responseHeader.getName())) {
-                continue;
-            } else if ("content-length".equalsIgnoreCase(responseHeader.getName())) {
-                continue;
-            } else if ("transfer-encoding".equalsIgnoreCase(responseHeader.getName())) {
-                continue;
-            } else if (dropCookies) {
-                if (responseHeader.getName().toLowerCase().startsWith("cookie")) {
-                    //retrieving a cookie which sets the session id will change the calling session: bad! So we skip this header.
-                    continue;
-                } else if (responseHeader.getName().toLowerCase().startsWith("set-cookie")) {
-                    //retrieving a cookie which sets the session id will change the calling session: bad! So we skip this header.
-                    continue;
-                }
-            }
-
-            hsResponse.addHeader(responseHeader.getName(), responseHeader.getValue());
+        //Filtered out: the content length and cookies
+        for (String[] responseHeader : getCopiedResponseHeaders(httpResponse, dropCookies)) {
+            hsResponse.addHeader(responseHeader[0], responseHeader[1]);
             if (log.isInfoEnabled()) {
-                log.info("setting response parameter:" + responseHeader.getName() + ", value: " + responseHeader.getValue());
+                log.info("setting response parameter:" + responseHeader[0] + ", value: " + responseHeader[1]);
             }
         }
         //fixme what about the response footers? (httpMethod.getResponseFooters())
 
-        if (httpResponse.getStatusLine().getStatusCode() != 200) {
-            hsResponse.setStatus(httpResponse.getStatusLine().getStatusCode());
+        int statusCode = httpResponse.getStatusLine().getStatusCode();
+        // the http client removes the length of a body it decodes, if it is still there it is the length of what is
+        // copied (or for a HEAD request, of what a GET would get) so a client can tell how far a download has got
+        Header contentLength = httpResponse.getFirstHeader("Content-Length");
+        if (contentLength != null && hasBody(statusCode)) {
+            hsResponse.setHeader("Content-Length", contentLength.getValue());
+        }
+
+        if (statusCode != 200) {
+            hsResponse.setStatus(statusCode);
+        }
+    }
+
+    /**
+     * @return false for the responses that never have a body, even if they have a Content-Length (ie, a 304's is the
+     * length of the body the client already has)
+     */
+    static boolean hasBody(int statusCode) {
+        return statusCode != HttpServletResponse.SC_NO_CONTENT && statusCode != HttpServletResponse.SC_NOT_MODIFIED &&
+                statusCode >= HttpServletResponse.SC_OK;
+    }
+
+    static boolean isCopiedResponseHeader(String headerName, boolean dropCookies) {
+        if ("content-length".equalsIgnoreCase(headerName)) {
+            return false;
+        } else if ("transfer-encoding".equalsIgnoreCase(headerName)) {
+            return false;
+        } else if (dropCookies) {
+            if (headerName.toLowerCase().startsWith("cookie")) {
+                //retrieving a cookie which sets the session id will change the calling session: bad! So we skip this header.
+                return false;
+            } else if (headerName.toLowerCase().startsWith("set-cookie")) {
+                //retrieving a cookie which sets the session id will change the calling session: bad! So we skip this header.
+                return false;
+            }
         }
+        return true;
     }
 }
@@ -80,6 +80,8 @@ public class RuleBase implements Runnable {
     private int runIdCounter;
 
     private StringMatchingPattern pattern;
+    private String fromLiteralPrefix = "";
+    private boolean fromLiteralPrefixCaseSensitive;
     protected final List<String> errors = new ArrayList<>(5);
     private final List<Condition> conditions = new ArrayList<>(5);
     private final List<Run> runs = new ArrayList<>(2);
@@ -90,6 +92,8 @@ public class RuleBase implements Runnable {
     private boolean toContainsVariable = false;
     private boolean toContainsBackReference = false;
     private boolean toContainsFunction = false;
+    private SubstitutionTemplate toTemplate;
+    private ConditionExpression conditionExpression;
 
     public static final String MATCH_TYPE_WILDCARD = "wildcard";
     public static final String DEFAULT_MATCH_TYPE = "regex";
@@ -155,7 +159,14 @@ public class RuleBase implements Runnable {
 
         int conditionsSize = conditions.size();
         ConditionMatch lastConditionMatch = null;
-        if (conditionsSize > 0) {
+        if (conditionExpression != null && conditionExpression.getConditionCount() == conditionsSize) {
+            if (!conditionExpression.matches(hsRequest)) {
+                log.debug("conditions do not match");
+                return null;
+            } else {
+                log.debug("conditions match");
+            }
+        } else if (conditionsSize > 0) {
             boolean processNextOr = false;
             boolean currentResult = true;
             for (Object condition1 : conditions) {
@@ -207,8 +218,12 @@ public class RuleBase implements Runnable {
         String replacedTo = null;
         if (performToReplacement && to != null) {
             SubstitutionContext substitutionContext = new SubstitutionContext(hsRequest, matcher, lastConditionMatch, to);
-            SubstitutionFilterChain substitutionFilter = ChainedSubstitutionFilters.getDefaultSubstitutionChain(true, toContainsFunction, toContainsVariable, toContainsBackReference, servletContext);
-            replacedTo = substitutionFilter.substitute(url, substitutionContext);
+            if (toTemplate != null && to.equals(toTemplate.getTemplate())) {
+                replacedTo = toTemplate.substituteMatches(url, substitutionContext);
+            } else {
+                SubstitutionFilterChain substitutionFilter = ChainedSubstitutionFilters.getDefaultSubstitutionChain(true, toContainsFunction, toContainsVariable, toContainsBackReference, servletContext);
+                replacedTo = substitutionFilter.substitute(url, substitutionContext);
+            }
         }
 
         RuleExecutionOutput ruleExecutionOutput = new RuleExecutionOutput(replacedTo, true, lastRunMatch);
@@ -285,11 +300,17 @@ public class RuleBase implements Runnable {
         try {
             if (isMatchTypeWildcard()) {
                 log.debug("rule match type is wildcard");
-                pattern = new WildcardPattern(from);
+                WildcardPattern wildcardPattern = new WildcardPattern(from);
+                fromLiteralPrefix = wildcardPattern.getLiteralPrefix();
+                fromLiteralPrefixCaseSensitive = true;
+                pattern = wildcardPattern;
 
             } else {
                 // default is regexp
-                pattern = new RegexPattern(from, fromCaseSensitive);
+                RegexPattern regexPattern = new RegexPattern(from, fromCaseSensitive);
+                fromLiteralPrefix = regexPattern.getLiteralPrefix();
+                fromLiteralPrefixCaseSensitive = fromCaseSensitive;
+                pattern = regexPattern;
             }
 
         } catch (StringMatchingPatternSyntaxException e) {
@@ -320,6 +341,20 @@ public class RuleBase implements Runnable {
             }
         }
 
+        // parse the to once rather than scanning it for each match
+        toTemplate = null;
+        if (to != null) {
+            toTemplate = new SubstitutionTemplate(to, toContainsFunction, toContainsVariable, toContainsBackReference,
+                    servletContext);
+        }
+
+        // when the last condition match isn't needed conditions can be checked cheapest first, stopping once the
+        // result is known
+        conditionExpression = null;
+        if (conditions.size() > 0 && !isConditionMatchUsed()) {
+            conditionExpression = new ConditionExpression(conditions);
+        }
+
         if (ok) {
             log.debug("loaded rule ", getFullDisplayName());
         } else {
@@ -332,10 +367,46 @@ public class RuleBase implements Runnable {
         return ok;
     }
 
+    /**
+     * True if the last condition to match may be used, ie, there are runs, or "to" or a "set" contains a condition
+     * back reference (%N).
+     */
+    private boolean isConditionMatchUsed() {
+        if (runs.size() > 0 || toContainsBackReference) return true;
+        for (final SetAttribute setAttribute : setAttributes) {
+            if (setAttribute.getValue() != null && BackReferenceReplacer.containsBackRef(setAttribute.getValue())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Get the compiled conditions.
+     *
+     * @return the expression or null if conditions are checked one by one (or there are none)
+     */
+    public ConditionExpression getConditionExpression() {
+        return conditionExpression;
+    }
+
     public boolean isMatchTypeWildcard() {
         return MATCH_TYPE_WILDCARD.equalsIgnoreCase(matchType);
     }
 
+    /**
+     * The literal text any url matched by "from" must start with, available after initialise.
+     *
+     * @return the prefix or an empty string if from has no literal prefix
+     */
+    public String getFromLiteralPrefix() {
+        return fromLiteralPrefix;
+    }
+
+    public boolean isFromLiteralPrefixCaseSensitive() {
+        return fromLiteralPrefixCaseSensitive;
+    }
+
     public boolean isToContainsBackReference() {
         return toContainsBackReference;
     }
@@ -344,6 +415,13 @@ public class RuleBase implements Runnable {
         return toContainsVariable;
     }
 
+    /**
+     * The parsed "to", null until the rule is initialised.
+     */
+    public SubstitutionTemplate getToTemplate() {
+        return toTemplate;
+    }
+
     public boolean isToContainsFunction() {
         return toContainsFunction;
     }
@@ -555,6 +633,27 @@ public class RuleBase implements Runnable {
         return filter;
     }
 
+    /**
+     * True if "to" is blank, ie, the rule only sets or runs.
+     */
+    boolean isToEmpty() {
+        return toEmpty;
+    }
+
+    /**
+     * True if "to" is null, ie, the filter chain is stopped on a match.
+     */
+    boolean isStopFilterChainOnMatch() {
+        return stopFilterChainOnMatch;
+    }
+
+    /**
+     * The compiled "from", null until the rule is initialised.
+     */
+    StringMatchingPattern getPattern() {
+        return pattern;
+    }
+
     public boolean isNoSubstitution() {
         return noSubstitution;
     }
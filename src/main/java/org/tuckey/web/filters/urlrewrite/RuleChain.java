@@ -35,6 +35,7 @@
 package org.tuckey.web.filters.urlrewrite;
 
 import org.tuckey.web.filters.urlrewrite.utils.Log;
+import org.tuckey.web.filters.urlrewrite.utils.RegexSetPattern;
 
 import javax.servlet.FilterChain;
 import javax.servlet.ServletException;
@@ -44,6 +45,7 @@ import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import java.io.IOException;
 import java.lang.reflect.InvocationTargetException;
+import java.util.BitSet;
 import java.util.List;
 import java.util.HashMap;
 import java.util.Map;
@@ -62,7 +64,15 @@ public class RuleChain implements FilterChain {
     private int ruleIdxToRun = 0;
     private RewrittenUrl finalRewrittenRequest = null;
     private String finalToUrl;
+    private final String originalUrl;
     private List<Rule> rules;
+    private RuleSnapshot ruleSnapshot;
+    private RulePrefixIndex rulePrefixIndex;
+    private RegexSetPattern ruleRegexSet;
+    private BitSet candidateRules;
+    private String candidateRulesUrl;
+    private boolean urlPure = true;
+    private Object rewriteCacheKey;
     private boolean requestRewritten;
     private boolean rewriteHandled = false;
     private boolean responseHandled;
@@ -71,9 +81,42 @@ public class RuleChain implements FilterChain {
 
     public RuleChain(UrlRewriter urlRewriter, String originalUrl, FilterChain parentChain) {
         this.finalToUrl = originalUrl;
+        this.originalUrl = originalUrl;
         this.urlRewriter = urlRewriter;
-        this.rules = urlRewriter.getConf().getRules();
         this.parentChain = parentChain;
+        Conf conf = urlRewriter.getConf();
+        RuleSnapshot snapshot = conf.getRuleSnapshot();
+        if (snapshot != null && snapshot.getPrefixIndex().isUsableFor(conf.getRules())) {
+            this.ruleSnapshot = snapshot;
+            this.rules = snapshot.getRules();
+            this.rulePrefixIndex = snapshot.getPrefixIndex();
+            this.ruleRegexSet = snapshot.getRegexSet();
+        } else {
+            // not initialised or rules added since, just run them all
+            this.rules = conf.getRules();
+        }
+    }
+
+    private BitSet getCandidateRules(String url) {
+        BitSet candidates = rulePrefixIndex.getCandidateRules(url);
+        if (ruleRegexSet != null && !candidates.isEmpty()) {
+            candidates.and(ruleRegexSet.getMatchingPatterns(url));
+        }
+        return candidates;
+    }
+
+    /**
+     * Move on to the next rule that could match the current url (according to the prefix index and regex set).
+     */
+    private void skipToNextCandidateRule() {
+        if (rulePrefixIndex == null || ruleIdxToRun >= rules.size()) return;
+        // the url changes when a rule that isn't last matches, look up the candidates again
+        if (candidateRules == null || candidateRulesUrl != finalToUrl) {
+            candidateRules = getCandidateRules(finalToUrl);
+            candidateRulesUrl = finalToUrl;
+        }
+        int nextIdx = candidateRules.nextSetBit(ruleIdxToRun);
+        ruleIdxToRun = nextIdx == -1 ? rules.size() : nextIdx;
     }
 
     private void doRuleProcessing(HttpServletRequest hsRequest, HttpServletResponse hsResponse)
@@ -81,6 +124,14 @@ public class RuleChain implements FilterChain {
         // return to next level up and contniue to process rules
         int currentIdx = ruleIdxToRun++;
         final Rule rule = rules.get(currentIdx);
+        if (urlPure && (ruleSnapshot == null || !ruleSnapshot.isUrlPure(currentIdx))) {
+            urlPure = false;
+        }
+        final CompiledRule compiledRule = ruleSnapshot == null ? null : ruleSnapshot.getCompiledRule(currentIdx);
+        if (compiledRule != null) {
+            doCompiledRuleProcessing(compiledRule, currentIdx, hsRequest, hsResponse);
+            return;
+        }
         final RewrittenUrl rewrittenUrl = rule.matches(finalToUrl, hsRequest, hsResponse, this);
 
         // if this is a filter don't process any more rules, only process them via doFilter
@@ -89,6 +140,7 @@ public class RuleChain implements FilterChain {
         }
         if (rewrittenUrl != null) {
             log.trace("got a rewritten url");
+            if (ruleSnapshot != null) ruleSnapshot.recordMatch(currentIdx);
             // if doFilter was used and final rewritten url is null
             finalRewrittenRequest = rewrittenUrl;
             finalToUrl = rewrittenUrl.getTarget();
@@ -102,10 +154,60 @@ public class RuleChain implements FilterChain {
         // if doFilter wasn't called then either execute the returning object or assume run has handled it
     }
 
+    /**
+     * As doRuleProcessing, but with the rule compiled.
+     */
+    private void doCompiledRuleProcessing(CompiledRule compiledRule, int currentIdx, HttpServletRequest hsRequest,
+                                          HttpServletResponse hsResponse)
+            throws IOException, ServletException, InvocationTargetException {
+        final RewrittenUrl rewrittenUrl = compiledRule.matches(finalToUrl, hsRequest, hsResponse, this);
+        if (compiledRule.isFilter()) {
+            dontProcessAnyMoreRules();
+        }
+        if (rewrittenUrl != null) {
+            ruleSnapshot.recordMatch(currentIdx);
+            finalRewrittenRequest = rewrittenUrl;
+            finalToUrl = rewrittenUrl.getTarget();
+            if (compiledRule.isLast()) {
+                dontProcessAnyMoreRules();
+            }
+        }
+    }
+
     private void dontProcessAnyMoreRules() {
         ruleIdxToRun = rules.size();
     }
 
+    /**
+     * Use a result cached from an earlier request instead of running the rules.
+     */
+    void useCachedRewrite(RewrittenUrl rewrittenUrl) {
+        finalRewrittenRequest = rewrittenUrl;
+        finalToUrl = rewrittenUrl.getTarget();
+        // no rules were run, there is nothing new to cache
+        urlPure = false;
+        dontProcessAnyMoreRules();
+    }
+
+    public String getOriginalUrl() {
+        return originalUrl;
+    }
+
+    Object getRewriteCacheKey() {
+        return rewriteCacheKey;
+    }
+
+    void setRewriteCacheKey(Object rewriteCacheKey) {
+        this.rewriteCacheKey = rewriteCacheKey;
+    }
+
+    /**
+     * True if only rules whose result depends on the url alone have been run.
+     */
+    public boolean isUrlPure() {
+        return urlPure;
+    }
+
     public RewrittenUrl getFinalRewrittenRequest() {
         return finalRewrittenRequest;
     }
@@ -134,8 +236,10 @@ public class RuleChain implements FilterChain {
 
     public void process(ServletRequest request, ServletResponse response)
             throws IOException, ServletException, InvocationTargetException {
+        skipToNextCandidateRule();
         while (ruleIdxToRun < rules.size()) {
             doRuleProcessing((HttpServletRequest) request, (HttpServletResponse) response);
+            skipToNextCandidateRule();
         }
     }
 
@@ -173,6 +277,11 @@ public class RuleChain implements FilterChain {
         }
         if (! requestRewritten) {
             responseHandled = true;
+            if (request.isAsyncStarted()) {
+                // a run has handed the request off to another thread, which will take care of the response
+                log.debug("async started, not continuing filter chain");
+                return;
+            }
             parentChain.doFilter(request, response);
         }
     }
@@ -53,6 +53,9 @@ public class RuleExecutionOutput {
     private boolean dropCookies = true;
     private boolean followRedirects = false;
     private boolean useSystemProperties = false;
+    private ProxyConnectionManager proxyConnectionManager = null;
+    private boolean proxyAsync = false;
+    private ProxyOptions proxyOptions = null;
 
     /**
      * Will perform the action defined by the rule ie, redirect or passthrough.
@@ -196,5 +199,29 @@ public class RuleExecutionOutput {
     public boolean isUseSystemProperties() {
         return useSystemProperties;
     }
+
+    public ProxyConnectionManager getProxyConnectionManager() {
+        return proxyConnectionManager;
+    }
+
+    public void setProxyConnectionManager(ProxyConnectionManager proxyConnectionManager) {
+        this.proxyConnectionManager = proxyConnectionManager;
+    }
+
+    public boolean isProxyAsync() {
+        return proxyAsync;
+    }
+
+    public void setProxyAsync(boolean proxyAsync) {
+        this.proxyAsync = proxyAsync;
+    }
+
+    public ProxyOptions getProxyOptions() {
+        return proxyOptions;
+    }
+
+    public void setProxyOptions(ProxyOptions proxyOptions) {
+        this.proxyOptions = proxyOptions;
+    }
 }
 
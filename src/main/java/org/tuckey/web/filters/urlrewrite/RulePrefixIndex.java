@@ -0,0 +1,191 @@
+/**
+ * Copyright (c) 2005-2007, Paul Tuckey
+ * All rights reserved.
+ * ====================================================================
+ * Licensed under the BSD License. Text as follows.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *   - Redistributions of source code must retain the above copyright
+ *     notice, this list of conditions and the following disclaimer.
+ *   - Redistributions in binary form must reproduce the above
+ *     copyright notice, this list of conditions and the following
+ *     disclaimer in the documentation and/or other materials provided
+ *     with the distribution.
+ *   - Neither the name tuckey.org nor the names of its contributors
+ *     may be used to endorse or promote products derived from this
+ *     software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ * COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN
+ * ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * ====================================================================
+ */
+package org.tuckey.web.filters.urlrewrite;
+
+import org.tuckey.web.filters.urlrewrite.utils.Log;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+
+/**
+ * Index of the inbound rules of a conf by the literal prefix of their "from" pattern (ie, "/foo/" for "^/foo/(.*)$").
+ * Given a url the index works out which rules could possibly match it with a single walk down a trie, so that
+ * RuleChain can skip over rules that cannot match without running their patterns.
+ * <p/>
+ * Rules without a literal prefix, class rules and filter rules are always candidates.  Disabled and invalid rules
+ * never match so are never candidates.  Candidates are returned as a set of rule indexes so that rule order (and
+ * "last") is preserved exactly.
+ *
+ * @see RuleChain
+ */
+public class RulePrefixIndex {
+
+    private static Log log = Log.getLog(RulePrefixIndex.class);
+
+    private final int rulesSize;
+    private final BitSet alwaysCandidates;
+    private final Node root = new Node();
+    private int indexedCount = 0;
+
+    public RulePrefixIndex(List<Rule> rules) {
+        rulesSize = rules.size();
+        alwaysCandidates = new BitSet(rulesSize);
+        for (int i = 0; i < rulesSize; i++) {
+            Rule rule = rules.get(i);
+            if (!(rule instanceof RuleBase) || rule.isFilter()) {
+                // filter rules must always be run as they stop processing even when they don't match
+                alwaysCandidates.set(i);
+                continue;
+            }
+            RuleBase ruleBase = (RuleBase) rule;
+            if (!ruleBase.isValid() || !ruleBase.isEnabled()) {
+                continue;
+            }
+            String prefix = ruleBase.getFromLiteralPrefix();
+            if (prefix == null || prefix.length() == 0) {
+                alwaysCandidates.set(i);
+            } else {
+                add(prefix, ruleBase.isFromLiteralPrefixCaseSensitive(), i);
+            }
+        }
+        if (log.isDebugEnabled()) {
+            log.debug("indexed " + indexedCount + " of " + rulesSize + " rules by prefix");
+        }
+    }
+
+    private void add(String prefix, boolean caseSensitive, int ruleIdx) {
+        Node node = root;
+        for (int i = 0; i < prefix.length(); i++) {
+            node = node.getOrAddChild(toLowerCase(prefix.charAt(i)));
+        }
+        node.addRule(ruleIdx, caseSensitive ? prefix : null);
+        indexedCount++;
+    }
+
+    /**
+     * Get the indexes of the rules that could match the url.
+     *
+     * @param url the url to look up, may be null
+     * @return a new set of rule indexes, the caller is free to modify it
+     */
+    public BitSet getCandidateRules(String url) {
+        BitSet candidates = (BitSet) alwaysCandidates.clone();
+        if (url == null) {
+            return candidates;
+        }
+        Node node = root;
+        final int length = url.length();
+        for (int i = 0; i < length; i++) {
+            node = node.getChild(toLowerCase(url.charAt(i)));
+            if (node == null) break;
+            node.addRulesTo(candidates, url);
+        }
+        return candidates;
+    }
+
+    /**
+     * Check the index was built from a rule list of this size (ie, no rules have been added since).
+     */
+    public boolean isUsableFor(List<Rule> rules) {
+        return rules.size() == rulesSize;
+    }
+
+    public int getIndexedCount() {
+        return indexedCount;
+    }
+
+    /**
+     * Case insensitive regexp's only fold US-ASCII characters, do the same here.
+     */
+    private static char toLowerCase(char c) {
+        if (c >= 'A' && c <= 'Z') {
+            return (char) (c + ('a' - 'A'));
+        }
+        return c;
+    }
+
+    private static class Node {
+
+        private char[] keys = new char[0];
+        private Node[] children = new Node[0];
+        private int[] ruleIdxs = new int[0];
+        // the exact prefix for case sensitive rules, null for case insensitive ones
+        private String[] caseSensitivePrefixes = new String[0];
+
+        Node getChild(char c) {
+            int pos = Arrays.binarySearch(keys, c);
+            return pos < 0 ? null : children[pos];
+        }
+
+        Node getOrAddChild(char c) {
+            int pos = Arrays.binarySearch(keys, c);
+            if (pos >= 0) {
+                return children[pos];
+            }
+            int insertAt = -pos - 1;
+            char[] newKeys = new char[keys.length + 1];
+            Node[] newChildren = new Node[children.length + 1];
+            System.arraycopy(keys, 0, newKeys, 0, insertAt);
+            System.arraycopy(children, 0, newChildren, 0, insertAt);
+            System.arraycopy(keys, insertAt, newKeys, insertAt + 1, keys.length - insertAt);
+            System.arraycopy(children, insertAt, newChildren, insertAt + 1, children.length - insertAt);
+            Node child = new Node();
+            newKeys[insertAt] = c;
+            newChildren[insertAt] = child;
+            keys = newKeys;
+            children = newChildren;
+            return child;
+        }
+
+        void addRule(int ruleIdx, String caseSensitivePrefix) {
+            int size = ruleIdxs.length;
+            ruleIdxs = Arrays.copyOf(ruleIdxs, size + 1);
+            caseSensitivePrefixes = Arrays.copyOf(caseSensitivePrefixes, size + 1);
+            ruleIdxs[size] = ruleIdx;
+            caseSensitivePrefixes[size] = caseSensitivePrefix;
+        }
+
+        void addRulesTo(BitSet candidates, String url) {
+            for (int i = 0; i < ruleIdxs.length; i++) {
+                String caseSensitivePrefix = caseSensitivePrefixes[i];
+                if (caseSensitivePrefix == null || url.startsWith(caseSensitivePrefix)) {
+                    candidates.set(ruleIdxs[i]);
+                }
+            }
+        }
+    }
+
+}
@@ -0,0 +1,222 @@
+/**
+ * Copyright (c) 2005-2007, Paul Tuckey
+ * All rights reserved.
+ * ====================================================================
+ * Licensed under the BSD License. Text as follows.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *   - Redistributions of source code must retain the above copyright
+ *     notice, this list of conditions and the following disclaimer.
+ *   - Redistributions in binary form must reproduce the above
+ *     copyright notice, this list of conditions and the following
+ *     disclaimer in the documentation and/or other materials provided
+ *     with the distribution.
+ *   - Neither the name tuckey.org nor the names of its contributors
+ *     may be used to endorse or promote products derived from this
+ *     software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ * COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN
+ * ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * ====================================================================
+ */
+package org.tuckey.web.filters.urlrewrite;
+
+import org.tuckey.web.filters.urlrewrite.utils.Log;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Reorders groups of independent inbound rules so that the rules that match most often are run first.
+ * <p/>
+ * Rules are independent when they are all "last", are not filters, have no sets or runs and their "from" patterns
+ * cannot both match the same url (ie, neither literal prefix is a prefix of the other).  For any url at most one
+ * rule in such a group can match and whatever it does no other rule in the group is run, so the order of the rules
+ * within the group makes no difference to the result.  Only consecutive rules are grouped.
+ * <p/>
+ * Like the conf reload check, a request thread notices when a reorder is due (only one thread will claim it), the
+ * new RuleSnapshot is then built by Conf on a background thread so the request is not held up recompiling the rules.
+ */
+public class RuleReorderer {
+
+    private static Log log = Log.getLog(RuleReorderer.class);
+
+    private final List<Rule> confRules;
+    private final int[][] groups;
+    private final LongAdder[] matchCounts;
+    private final long intervalMillis;
+    private final AtomicLong nextReorderTime;
+
+    /**
+     * @param confRules      the rules of the conf (must be initialised)
+     * @param intervalMillis how often to reorder
+     */
+    public RuleReorderer(List<Rule> confRules, long intervalMillis) {
+        this.confRules = confRules;
+        this.intervalMillis = intervalMillis;
+        this.nextReorderTime = new AtomicLong(System.currentTimeMillis() + intervalMillis);
+        this.matchCounts = new LongAdder[confRules.size()];
+        for (int i = 0; i < matchCounts.length; i++) {
+            matchCounts[i] = new LongAdder();
+        }
+        this.groups = findGroups(confRules);
+        if (log.isDebugEnabled()) {
+            log.debug("found " + groups.length + " groups of rules that can be reordered");
+        }
+    }
+
+    private static int[][] findGroups(List<Rule> rules) {
+        List<int[]> groups = new ArrayList<>();
+        int groupStart = 0;
+        for (int i = 0; i <= rules.size(); i++) {
+            boolean fitsGroup = i < rules.size() && isIndependent(rules.get(i));
+            for (int j = groupStart; fitsGroup && j < i; j++) {
+                fitsGroup = isDisjoint((NormalRule) rules.get(j), (NormalRule) rules.get(i));
+            }
+            if (fitsGroup) continue;
+            if (i - groupStart > 1) {
+                int[] group = new int[i - groupStart];
+                for (int j = 0; j < group.length; j++) {
+                    group[j] = groupStart + j;
+                }
+                groups.add(group);
+            }
+            // an independent rule that overlaps the group starts a new one
+            groupStart = i < rules.size() && isIndependent(rules.get(i)) ? i : i + 1;
+        }
+        return groups.toArray(new int[groups.size()][]);
+    }
+
+    private static boolean neverMatches(NormalRule rule) {
+        return !rule.isValid() || !rule.isEnabled();
+    }
+
+    /**
+     * Can the rule be run in any order with other independent rules.
+     */
+    static boolean isIndependent(Rule rule) {
+        if (!(rule instanceof NormalRule)) return false;
+        NormalRule normalRule = (NormalRule) rule;
+        if (neverMatches(normalRule)) return true;
+        return normalRule.isLast() && !normalRule.isFilter() && normalRule.getSetAttributes().isEmpty()
+                && normalRule.getRuns().isEmpty();
+    }
+
+    /**
+     * True if the "from" of the rules cannot both match the same url.
+     */
+    static boolean isDisjoint(NormalRule rule1, NormalRule rule2) {
+        if (neverMatches(rule1) || neverMatches(rule2)) return true;
+        String prefix1 = rule1.getFromLiteralPrefix();
+        String prefix2 = rule2.getFromLiteralPrefix();
+        if (prefix1 == null || prefix2 == null || prefix1.length() == 0 || prefix2.length() == 0) return false;
+        if (!rule1.isFromLiteralPrefixCaseSensitive() || !rule2.isFromLiteralPrefixCaseSensitive()) {
+            prefix1 = toLowerCase(prefix1);
+            prefix2 = toLowerCase(prefix2);
+        }
+        return !prefix1.startsWith(prefix2) && !prefix2.startsWith(prefix1);
+    }
+
+    /**
+     * Case insensitive regexp's only fold US-ASCII characters, do the same here.
+     */
+    private static String toLowerCase(String str) {
+        char[] chars = str.toCharArray();
+        for (int i = 0; i < chars.length; i++) {
+            if (chars[i] >= 'A' && chars[i] <= 'Z') chars[i] += 'a' - 'A';
+        }
+        return new String(chars);
+    }
+
+    public boolean hasGroups() {
+        return groups.length > 0;
+    }
+
+    public int getGroupCount() {
+        return groups.length;
+    }
+
+    public long getIntervalMillis() {
+        return intervalMillis;
+    }
+
+    /**
+     * The counters to record matches on, by index in the conf's rules.
+     */
+    LongAdder[] getMatchCounts() {
+        return matchCounts;
+    }
+
+    /**
+     * If a reorder is due and this thread is the one to do it, work out the order based on the matches so far.
+     *
+     * @return a new snapshot or null if the order has not changed (or a reorder is not due)
+     */
+    public RuleSnapshot reorderIfDue(RuleSnapshot current) {
+        return claimReorder() ? reorder(current) : null;
+    }
+
+    /**
+     * Check if a reorder is due, if it is only the first thread to ask will get true.
+     */
+    public boolean claimReorder() {
+        long now = System.currentTimeMillis();
+        long due = nextReorderTime.get();
+        return now >= due && nextReorderTime.compareAndSet(due, now + intervalMillis);
+    }
+
+    /**
+     * Work out the order based on the matches so far.
+     *
+     * @return a new snapshot or null if the order has not changed
+     */
+    public RuleSnapshot reorder(RuleSnapshot current) {
+        int[] order = getOrder();
+        if (current.hasOrder(order)) {
+            return null;
+        }
+        log.debug("rule order changed, publishing new rules");
+        return new RuleSnapshot(confRules, order, matchCounts, current.getCompiledRules());
+    }
+
+    /**
+     * Conf order, with the rules in each group sorted by matches (most first).
+     */
+    int[] getOrder() {
+        int[] order = new int[confRules.size()];
+        for (int i = 0; i < order.length; i++) {
+            order[i] = i;
+        }
+        for (int[] group : groups) {
+            final long[] counts = new long[group.length];
+            Integer[] sorted = new Integer[group.length];
+            for (int i = 0; i < group.length; i++) {
+                counts[i] = matchCounts[group[i]].sum();
+                sorted[i] = i;
+            }
+            // stable, so rules with the same count stay in conf order
+            Arrays.sort(sorted, (a, b) -> Long.compare(counts[b], counts[a]));
+            for (int i = 0; i < group.length; i++) {
+                order[group[0] + i] = group[sorted[i]];
+            }
+        }
+        return order;
+    }
+
+}
@@ -0,0 +1,191 @@
+/**
+ * Copyright (c) 2005-2007, Paul Tuckey
+ * All rights reserved.
+ * ====================================================================
+ * Licensed under the BSD License. Text as follows.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *   - Redistributions of source code must retain the above copyright
+ *     notice, this list of conditions and the following disclaimer.
+ *   - Redistributions in binary form must reproduce the above
+ *     copyright notice, this list of conditions and the following
+ *     disclaimer in the documentation and/or other materials provided
+ *     with the distribution.
+ *   - Neither the name tuckey.org nor the names of its contributors
+ *     may be used to endorse or promote products derived from this
+ *     software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ * COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN
+ * ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * ====================================================================
+ */
+package org.tuckey.web.filters.urlrewrite;
+
+import org.tuckey.web.filters.urlrewrite.utils.RegexSetPattern;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The inbound rules of a conf in the order they are run, along with the structures built to look them up (prefix
+ * index, regex set and which rules are url pure).  Immutable, so RuleChain can use it without locking.  When the
+ * rules are reordered Conf publishes a new snapshot.
+ *
+ * @see Conf#getRuleSnapshot()
+ * @see RuleReorderer
+ */
+public final class RuleSnapshot {
+
+    private final List<Rule> rules;
+    private final int[] confRuleIdxs;
+    private final RulePrefixIndex prefixIndex;
+    private final RegexSetPattern regexSet;
+    private final BitSet urlPureRules;
+    private final LongAdder[] matchCounts;
+    private final CompiledRule[] compiledRules;
+
+    /**
+     * @param confRules   the rules of the conf
+     * @param order       the index in confRules of the rule to run at each position, null for conf order
+     * @param matchCounts counters by index in confRules to record matches on, null to not record
+     * @param compiledRules the compiled rules by index in confRules, null if rules are not compiled
+     */
+    RuleSnapshot(List<Rule> confRules, int[] order, LongAdder[] matchCounts, CompiledRule[] compiledRules) {
+        if (order == null) {
+            order = new int[confRules.size()];
+            for (int i = 0; i < order.length; i++) {
+                order[i] = i;
+            }
+        }
+        List<Rule> orderedRules = new ArrayList<>(order.length);
+        for (int confRuleIdx : order) {
+            orderedRules.add(confRules.get(confRuleIdx));
+        }
+        this.rules = Collections.unmodifiableList(orderedRules);
+        this.confRuleIdxs = order;
+        this.matchCounts = matchCounts;
+        this.compiledRules = compiledRules;
+        this.prefixIndex = new RulePrefixIndex(orderedRules);
+        this.regexSet = buildRegexSet(orderedRules);
+        this.urlPureRules = new BitSet(orderedRules.size());
+        for (int i = 0; i < orderedRules.size(); i++) {
+            Rule rule = orderedRules.get(i);
+            if (rule instanceof NormalRule && ((NormalRule) rule).isUrlPure()) urlPureRules.set(i);
+        }
+    }
+
+    /**
+     * Compile the "from" of all the regex rules into one automaton.  Other rules (and filter rules which must always
+     * be run) are left out, meaning they are always candidates.
+     */
+    private static RegexSetPattern buildRegexSet(List<Rule> rules) {
+        String[] patternStrs = new String[rules.size()];
+        boolean[] caseSensitives = new boolean[rules.size()];
+        for (int i = 0; i < rules.size(); i++) {
+            Rule rule = rules.get(i);
+            if (!(rule instanceof RuleBase) || rule.isFilter() || !rule.isValid()) continue;
+            RuleBase ruleBase = (RuleBase) rule;
+            if (ruleBase.isMatchTypeWildcard()) continue;
+            patternStrs[i] = ruleBase.getFrom();
+            caseSensitives[i] = ruleBase.isFromCaseSensitive();
+        }
+        return new RegexSetPattern(patternStrs, caseSensitives);
+    }
+
+    /**
+     * The rules in the order they should be run.
+     *
+     * @return an unmodifiable list
+     */
+    public List<Rule> getRules() {
+        return rules;
+    }
+
+    /**
+     * Get the index in the conf's rule list of the rule at ruleIdx.
+     */
+    public int getConfRuleIdx(int ruleIdx) {
+        return confRuleIdxs[ruleIdx];
+    }
+
+    /**
+     * Index of the rules by "from" prefix, rule indexes are positions in getRules().
+     */
+    public RulePrefixIndex getPrefixIndex() {
+        return prefixIndex;
+    }
+
+    /**
+     * Automaton of all the rule "from" patterns, pattern indexes are positions in getRules().
+     */
+    public RegexSetPattern getRegexSet() {
+        return regexSet;
+    }
+
+    /**
+     * @see NormalRule#isUrlPure()
+     */
+    public boolean isUrlPure(int ruleIdx) {
+        return urlPureRules.get(ruleIdx);
+    }
+
+    /**
+     * Count a match of the rule at ruleIdx (if match counts are being recorded).
+     */
+    public void recordMatch(int ruleIdx) {
+        if (matchCounts != null) matchCounts[confRuleIdxs[ruleIdx]].increment();
+    }
+
+    /**
+     * The compiled rule at ruleIdx, or null if rules are not compiled.
+     */
+    CompiledRule getCompiledRule(int ruleIdx) {
+        return compiledRules == null ? null : compiledRules[confRuleIdxs[ruleIdx]];
+    }
+
+    /**
+     * The number of rules that were specialised when compiled.
+     */
+    int getSpecialisedRuleCount() {
+        int count = 0;
+        if (compiledRules != null) {
+            for (CompiledRule compiledRule : compiledRules) {
+                if (compiledRule.isSpecialised()) count++;
+            }
+        }
+        return count;
+    }
+
+    CompiledRule[] getCompiledRules() {
+        return compiledRules;
+    }
+
+    LongAdder[] getMatchCounts() {
+        return matchCounts;
+    }
+
+    /**
+     * Check this snapshot runs the rules of the conf in the given order.
+     */
+    boolean hasOrder(int[] order) {
+        return Arrays.equals(confRuleIdxs, order);
+    }
+
+}
@@ -51,9 +51,14 @@ import javax.servlet.ServletResponse;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import java.io.IOException;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.invoke.WrongMethodTypeException;
 import java.lang.reflect.Constructor;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
 import java.util.Hashtable;
 import java.util.Map;
 
@@ -108,6 +113,27 @@ public class Run {
     private boolean runMethodUseDefaultParams = true;
     private Method destroyMethod;
 
+    /**
+     * The methods above as method handles, these are what is called for each request.  The run handle is
+     * (Object instance, Object[] params)Object.
+     */
+    private MethodHandle runConstructorHandle;
+    private MethodHandle initHandle;
+    private MethodHandle filterInitHandle;
+    private MethodHandle runHandle;
+    private MethodHandle destroyHandle;
+
+    /**
+     * Where each run method parameter comes from, worked out once in prepareRunObject.
+     */
+    private static final int PARAM_FROM_REQUEST_PARAMETER = 0;
+    private static final int PARAM_FROM_REQUEST = 1;
+    private static final int PARAM_FROM_RESPONSE = 2;
+    private static final int PARAM_FROM_CHAIN = 3;
+    private static final int PARAM_FROM_MATCH = 4;
+    private int[] runMethodParamSources;
+    private int[] runMethodParamMatchIdxs;
+
     /**
      * The config that we pass to the objectwe are trying to run.
      */
@@ -328,6 +354,10 @@ public class Run {
                 break;
             }
         }
+        if (!prepareHandles()) {
+            return;
+        }
+        prepareParamSources();
         if (!newEachTime) {
             runClassInstance = fetchNewInstance();
         }
@@ -335,15 +365,92 @@ public class Run {
 
     }
 
+    /**
+     * Turn the constructor and methods found into method handles so that they don't need to be invoked
+     * reflectively.
+     */
+    private boolean prepareHandles() {
+        MethodHandles.Lookup lookup = MethodHandles.lookup();
+        try {
+            runConstructorHandle = lookup.unreflectConstructor(runConstructor).asType(MethodType.methodType(Object.class));
+            if (initMethod != null) {
+                initHandle = unreflect(lookup, initMethod)
+                        .asType(MethodType.methodType(void.class, Object.class, ServletConfig.class));
+            }
+            if (filterInitMethod != null) {
+                filterInitHandle = unreflect(lookup, filterInitMethod)
+                        .asType(MethodType.methodType(void.class, Object.class, FilterConfig.class));
+            }
+            if (destroyMethod != null) {
+                destroyHandle = unreflect(lookup, destroyMethod).asType(MethodType.methodType(void.class, Object.class));
+            }
+            if (runMethod != null) {
+                // a method with specific params that isn't found is not an error, the run just does nothing
+                int paramCount = runMethod.getParameterTypes().length;
+                runHandle = unreflect(lookup, runMethod)
+                        .asSpreader(Object[].class, paramCount)
+                        .asType(MethodType.methodType(Object.class, Object.class, Object[].class));
+            }
+        } catch (IllegalAccessException | WrongMethodTypeException e) {
+            setError("could not access " + classStr + " got a " + e.toString(), e);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Get a handle for the method that takes the instance as its first argument, for static methods the instance is
+     * ignored.
+     */
+    private static MethodHandle unreflect(MethodHandles.Lookup lookup, Method method) throws IllegalAccessException {
+        MethodHandle handle = lookup.unreflect(method);
+        if (Modifier.isStatic(method.getModifiers())) {
+            handle = MethodHandles.dropArguments(handle, 0, Object.class);
+        }
+        return handle;
+    }
+
+    /**
+     * Work out where each parameter of the run method comes from, so that it doesn't need to be worked out for
+     * each request.
+     */
+    private void prepareParamSources() {
+        runMethodParamSources = null;
+        runMethodParamMatchIdxs = null;
+        if (runMethodParams == null || runMethodParams.length == 0) return;
+        runMethodParamSources = new int[runMethodParams.length];
+        runMethodParamMatchIdxs = new int[runMethodParams.length];
+        int paramMatchCounter = 0;
+        for (int i = 0; i < runMethodParams.length; i++) {
+            Class<?> runMethodParam = runMethodParams[i];
+            String runMethodParamName = null;
+            if (runMethodParamNames != null && runMethodParamNames.length > i) {
+                runMethodParamName = runMethodParamNames[i];
+            }
+            if (runMethodParamName != null) {
+                runMethodParamSources[i] = PARAM_FROM_REQUEST_PARAMETER;
+            } else if (runMethodParam.isAssignableFrom(HttpServletRequest.class)) {
+                runMethodParamSources[i] = PARAM_FROM_REQUEST;
+            } else if (runMethodParam.isAssignableFrom(HttpServletResponse.class)) {
+                runMethodParamSources[i] = PARAM_FROM_RESPONSE;
+            } else if (runMethodParam.isAssignableFrom(FilterChain.class)) {
+                runMethodParamSources[i] = PARAM_FROM_CHAIN;
+            } else {
+                runMethodParamSources[i] = PARAM_FROM_MATCH;
+                runMethodParamMatchIdxs[i] = paramMatchCounter++;
+            }
+        }
+    }
+
     private void invokeDestroy(Object runClassInstanceToDestroy) {
-        if (runClassInstanceToDestroy != null && destroyMethod != null) {
+        if (runClassInstanceToDestroy != null && destroyHandle != null) {
             if (log.isDebugEnabled()) {
                 log.debug("running " + classStr + ".destroy()");
             }
             try {
-                destroyMethod.invoke(runClassInstanceToDestroy, (Object[]) null);
-            } catch (IllegalAccessException | InvocationTargetException e) {
-                logInvokeException("destroy()", e);
+                destroyHandle.invokeExact(runClassInstanceToDestroy);
+            } catch (Throwable e) {
+                logInvokeException("destroy()", new InvocationTargetException(e));
             }
         }
     }
@@ -362,64 +469,55 @@ public class Run {
         if (log.isDebugEnabled()) {
             log.debug("running " + classStr + '.' + getMethodSignature() + ' ');
         }
-        if (classInstanceToRun == null || runMethod == null) return null;
+        if (classInstanceToRun == null || runHandle == null) return null;
         Object[] params = null;
 
-        if (runMethodParams != null && runMethodParams.length > 0) {
-            params = new Object[runMethodParams.length];
-            int paramMatchCounter = 0;
-            for (int i = 0; i < runMethodParams.length; i++) {
-                Class<?> runMethodParam = runMethodParams[i];
-                String runMethodParamName = null;
-                if (runMethodParamNames != null && runMethodParamNames.length > i) {
-                    runMethodParamName = runMethodParamNames[i];
-                }
+        if (runMethodParamSources != null) {
+            params = new Object[runMethodParamSources.length];
+            for (int i = 0; i < runMethodParamSources.length; i++) {
                 Object param;
-
-                if (runMethodParamName != null) {
-                    log.debug("need parameter from request called " + runMethodParamName);
-                    Object matchObj = httpServletRequest.getParameter(runMethodParamName);
-                    param = TypeUtils.getConvertedParam(runMethodParam, matchObj);
-
-                } else if (runMethodParam.isAssignableFrom(HttpServletRequest.class)) {
-                    param = httpServletRequest;
-
-                } else if (runMethodParam.isAssignableFrom(HttpServletResponse.class)) {
-                    param = httpServletResponse;
-
-                } else if (runMethodParam.isAssignableFrom(FilterChain.class)) {
-                    param = chain;
-
-                } else {
-                    Object matchObj = null;
-                    if (matchObjs != null && matchObjs.length > paramMatchCounter) {
-                        matchObj = matchObjs[paramMatchCounter];
-                    }
-                    param = TypeUtils.getConvertedParam(runMethodParam, matchObj);
-                    paramMatchCounter++;
+                switch (runMethodParamSources[i]) {
+                    case PARAM_FROM_REQUEST_PARAMETER:
+                        param = TypeUtils.getConvertedParam(runMethodParams[i],
+                                httpServletRequest.getParameter(runMethodParamNames[i]));
+                        break;
+                    case PARAM_FROM_REQUEST:
+                        param = httpServletRequest;
+                        break;
+                    case PARAM_FROM_RESPONSE:
+                        param = httpServletResponse;
+                        break;
+                    case PARAM_FROM_CHAIN:
+                        param = chain;
+                        break;
+                    default:
+                        int matchIdx = runMethodParamMatchIdxs[i];
+                        Object matchObj = null;
+                        if (matchObjs != null && matchObjs.length > matchIdx) {
+                            matchObj = matchObjs[matchIdx];
+                        }
+                        param = TypeUtils.getConvertedParam(runMethodParams[i], matchObj);
                 }
-
                 params[i] = param;
                 if (log.isDebugEnabled()) {
-                    log.debug("argument " + i + " (" + runMethodParam.getName() + "): " + param);
+                    log.debug("argument " + i + " (" + runMethodParams[i].getName() + "): " + param);
                 }
             }
         }
 
         RewriteMatch returned = null;
+        Object objReturned;
         try {
-            Object objReturned = runMethod.invoke(classInstanceToRun, (Object[]) params);
-            if ( jsonHandler ) {
-                returned = new JsonRewriteMatch(objReturned);
-            }   else if (objReturned != null && objReturned instanceof RewriteMatch) {
-                // if we get a rewriteMatch object then return it for execution later
-                returned = (RewriteMatch) objReturned;
-            }
-
-        } catch (IllegalAccessException e) {
-            if (log.isDebugEnabled()) log.debug(e);
-            throw new ServletException(e);
-
+            objReturned = runHandle.invokeExact(classInstanceToRun, params);
+        } catch (Throwable e) {
+            // as Method.invoke would
+            throw new InvocationTargetException(e);
+        }
+        if ( jsonHandler ) {
+            returned = new JsonRewriteMatch(objReturned);
+        }   else if (objReturned != null && objReturned instanceof RewriteMatch) {
+            // if we get a rewriteMatch object then return it for execution later
+            returned = (RewriteMatch) objReturned;
         }
         return returned;
     }
@@ -437,6 +535,11 @@ public class Run {
         // be paranoid and clean up all hooks to users classStr
         destroyMethod = null;
         runMethod = null;
+        destroyHandle = null;
+        runHandle = null;
+        initHandle = null;
+        filterInitHandle = null;
+        runConstructorHandle = null;
         initMethod = null;
         filterInitMethod = null;
         runServletConfig = null;
@@ -555,30 +658,26 @@ public class Run {
         log.debug("getting new instance of " + classStr);
         Object obj;
         try {
-            obj = runConstructor.newInstance((Object[]) null);
-        } catch (InstantiationException | IllegalAccessException | InvocationTargetException e) {
-            logInvokeException("constructor", e);
+            obj = runConstructorHandle.invokeExact();
+        } catch (Throwable e) {
+            logInvokeException("constructor", new InvocationTargetException(e));
             return null;
         }
-        if (initMethod != null) {
+        if (initHandle != null) {
             log.debug("about to run init(ServletConfig) on " + classStr);
-            Object[] args = new Object[1];
-            args[0] = runServletConfig;
             try {
-                initMethod.invoke(obj, args);
-            } catch (IllegalAccessException | InvocationTargetException e) {
-                logInvokeException("init(ServletConfig)", e);
+                initHandle.invokeExact(obj, (ServletConfig) runServletConfig);
+            } catch (Throwable e) {
+                logInvokeException("init(ServletConfig)", new InvocationTargetException(e));
                 return null;
             }
         }
-        if (filterInitMethod != null) {
+        if (filterInitHandle != null) {
             log.debug("about to run init(FilterConfig) on " + classStr);
-            Object[] args = new Object[1];
-            args[0] = runServletConfig;
             try {
-                filterInitMethod.invoke(obj, args);
-            } catch (IllegalAccessException | InvocationTargetException e) {
-                logInvokeException("init(FilterConfig)", e);
+                filterInitHandle.invokeExact(obj, (FilterConfig) runServletConfig);
+            } catch (Throwable e) {
+                logInvokeException("init(FilterConfig)", new InvocationTargetException(e));
                 return null;
             }
         }
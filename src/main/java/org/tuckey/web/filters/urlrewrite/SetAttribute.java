@@ -39,6 +39,7 @@ import org.tuckey.web.filters.urlrewrite.substitution.ChainedSubstitutionFilters
 import org.tuckey.web.filters.urlrewrite.substitution.FunctionReplacer;
 import org.tuckey.web.filters.urlrewrite.substitution.SubstitutionContext;
 import org.tuckey.web.filters.urlrewrite.substitution.SubstitutionFilterChain;
+import org.tuckey.web.filters.urlrewrite.substitution.SubstitutionTemplate;
 import org.tuckey.web.filters.urlrewrite.substitution.VariableReplacer;
 import org.tuckey.web.filters.urlrewrite.utils.Log;
 import org.tuckey.web.filters.urlrewrite.utils.NumberUtils;
@@ -92,6 +93,7 @@ public class SetAttribute {
     private boolean valueContainsVariable = false;
     private boolean valueContainsBackRef = false;
     private boolean valueContainsFunction = false;
+    private SubstitutionTemplate valueTemplate;
 
     public String getType() {
         if (type == SET_TYPE_RESPONSE_HEADER) return "response-header";
@@ -182,8 +184,12 @@ public class SetAttribute {
         String value = this.value;
         
         SubstitutionContext substitutionContext = new SubstitutionContext(hsRequest, toMatcher, lastConditionMatch, null);
-        SubstitutionFilterChain substitutionFilter = ChainedSubstitutionFilters.getDefaultSubstitutionChain(false, valueContainsFunction, valueContainsVariable, valueContainsBackRef);
-        value = substitutionFilter.substitute(value, substitutionContext);
+        if (valueTemplate != null && value.equals(valueTemplate.getTemplate())) {
+            value = valueTemplate.substitute(substitutionContext);
+        } else {
+            SubstitutionFilterChain substitutionFilter = ChainedSubstitutionFilters.getDefaultSubstitutionChain(false, valueContainsFunction, valueContainsVariable, valueContainsBackRef);
+            value = substitutionFilter.substitute(value, substitutionContext);
+        }
 
         if (type == SET_TYPE_REQUEST) {
             log.debug("setting request attrib");
@@ -265,6 +271,9 @@ public class SetAttribute {
                 valueContainsFunction = true;
             }
         }
+        // parse the value once rather than scanning it each time the set is executed
+        valueTemplate = value == null ? null :
+                new SubstitutionTemplate(value, valueContainsFunction, valueContainsVariable, valueContainsBackRef, null);
 
         if (type == SET_TYPE_STAUS) {
             initNumericValue();
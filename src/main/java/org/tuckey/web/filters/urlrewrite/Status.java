@@ -35,6 +35,7 @@
 package org.tuckey.web.filters.urlrewrite;
 
 import org.tuckey.web.filters.urlrewrite.utils.Log;
+import org.tuckey.web.filters.urlrewrite.utils.LruCache;
 import org.tuckey.web.filters.urlrewrite.utils.StringUtils;
 
 import javax.servlet.http.Cookie;
@@ -47,6 +48,7 @@ import java.util.Calendar;
 import java.util.Date;
 import java.util.Enumeration;
 import java.util.List;
+import java.util.Map;
 
 /**
  * Outputs information about urlrewritefilter.
@@ -404,6 +406,135 @@ public class Status {
                 println("Conf file reload check <em>disabled</em>");
             }
             println("<p>Status path <code>" + urlRewriteFilter.getStatusPath() + "</code>.</p>");
+            showRewriteCacheInfo(urlRewriteFilter.getLoadedUrlRewriter());
+            showProxyConnectionInfo(urlRewriteFilter.getProxyConnectionManager());
+        }
+        if (conf != null) {
+            showProxyPoolInfo(conf.getProxyPools());
+        }
+        if (conf != null && conf.getRuleReorderer() != null) {
+            println("<p>Rule reordering <em>enabled</em>, <em>" + conf.getRuleReorderer().getGroupCount() +
+                    "</em> groups of rules will be reordered by matches every <em>" +
+                    conf.getRuleReorderInterval() + "s</em>.</p>");
+        }
+        RuleSnapshot ruleSnapshot = conf == null ? null : conf.getRuleSnapshot();
+        if (ruleSnapshot != null && conf.isCompiledRules()) {
+            println("<p>Compiled rules <em>enabled</em>, <em>" + ruleSnapshot.getSpecialisedRuleCount() + "</em> of <em>" +
+                    ruleSnapshot.getRules().size() + "</em> rules specialised.</p>");
+        }
+    }
+
+    private void showRewriteCacheInfo(UrlRewriter urlRewriter) {
+        if (urlRewriter == null) {
+            return;
+        }
+        showCacheInfo("Rewrite cache", urlRewriter.getRewriteCache());
+        showCacheInfo("No match cache", urlRewriter.getNoMatchCache());
+    }
+
+    private void showCacheInfo(String name, LruCache<?, ?> cache) {
+        if (cache == null) {
+            println("<p>" + name + " <em>disabled</em>.</p>");
+            return;
+        }
+        println("<p>" + name + " <em>enabled</em>, <em>" + cache.size() + "</em> of <em>" +
+                cache.getMaxSize() + "</em> entries used, <em>" + cache.getHitCount() +
+                "</em> hits and <em>" + cache.getMissCount() + "</em> misses since conf loaded.</p>");
+    }
+
+    private void showProxyConnectionInfo(ProxyConnectionManager proxyConnectionManager) {
+        if (proxyConnectionManager == null) {
+            println("<p>Proxy connection pool <em>disabled</em>.</p>");
+            return;
+        }
+        String totalStats = proxyConnectionManager.getTotalStatsHtml();
+        if (totalStats == null) {
+            println("<p>Proxy connection pool <em>not started</em>, no requests have been proxied.</p>");
+            return;
+        }
+        println("<p>Proxy connection pool <em>enabled</em>, " + totalStats + ", idle connections closed after <em>" +
+                proxyConnectionManager.getIdleTimeout() + "s</em>.</p>");
+        Map<String, String> routeStats = proxyConnectionManager.getRouteStatsHtml();
+        if (!routeStats.isEmpty()) {
+            println("<ul>");
+            for (Map.Entry<String, String> entry : routeStats.entrySet()) {
+                println("<li><code>" + entry.getKey() + "</code> " + entry.getValue() + "</li>");
+            }
+            println("</ul>");
+        }
+        println("<p>Async proxy requests <em>" + proxyConnectionManager.getAsyncActiveCount() + "</em> running or waiting, max <em>" +
+                proxyConnectionManager.getAsyncThreads() + "</em> threads.</p>");
+        ProxyRequestCoalescer requestCoalescer = proxyConnectionManager.getRequestCoalescer();
+        println("<p>Coalesced proxy requests <em>" + requestCoalescer.getInFlightCount() + "</em> in flight, <em>" +
+                requestCoalescer.getLeaderCount() + "</em> made to targets, <em>" + requestCoalescer.getSharedCount() +
+                "</em> shared responses and <em>" + requestCoalescer.getNotSharedCount() + "</em> that could not share.</p>");
+        Map<String, ProxyTargetGuard> targetGuards = proxyConnectionManager.getTargetGuards();
+        if (!targetGuards.isEmpty()) {
+            println("<p>Proxy target bulkheads and circuit breakers:</p>");
+            println("<ul>");
+            for (ProxyTargetGuard guard : targetGuards.values()) {
+                StringBuilder line = new StringBuilder("<li><code>" + guard.getTarget() + "</code>");
+                if (guard.getMaxConcurrent() > 0) {
+                    line.append(" <em>").append(guard.getInFlight()).append("</em> of <em>").append(guard.getMaxConcurrent())
+                            .append("</em> concurrent requests, <em>").append(guard.getBulkheadRejectedCount())
+                            .append("</em> rejected as full");
+                }
+                ProxyCircuitBreaker circuitBreaker = guard.getCircuitBreaker();
+                if (circuitBreaker != null) {
+                    if (guard.getMaxConcurrent() > 0) line.append(',');
+                    line.append(" circuit breaker <em>").append(circuitBreaker.getStateName()).append("</em>, opened <em>")
+                            .append(circuitBreaker.getOpenedCount()).append("</em> times, <em>")
+                            .append(circuitBreaker.getRejectedCount()).append("</em> rejected while open");
+                }
+                println(line.append("</li>").toString());
+            }
+            println("</ul>");
+        }
+        Map<String, ProxyLatencyTracker> latencyTrackers = proxyConnectionManager.getLatencyTrackers();
+        if (!latencyTrackers.isEmpty()) {
+            println("<p>Proxy target response times (until headers, over the last " + ProxyLatencyTracker.WINDOW_SIZE +
+                    " requests):</p>");
+            println("<ul>");
+            for (ProxyLatencyTracker tracker : latencyTrackers.values()) {
+                String percentiles = tracker.getPercentile(50) == -1 ? "not enough requests yet" :
+                        "p50 <em>" + tracker.getPercentile(50) + "ms</em>, p95 <em>" + tracker.getPercentile(95) +
+                                "ms</em>, p99 <em>" + tracker.getPercentile(99) + "ms</em>";
+                println("<li><code>" + tracker.getTarget() + "</code> <em>" + tracker.getSampleCount() +
+                        "</em> requests, " + percentiles + ", <em>" + tracker.getHedgeCount() + "</em> hedged, <em>" +
+                        tracker.getHedgeWonCount() + "</em> won by the hedge</li>");
+            }
+            println("</ul>");
+        }
+        ProxyResponseCache responseCache = proxyConnectionManager.getResponseCache();
+        if (responseCache != null) {
+            println("<p>Proxy response cache <em>" + responseCache.size() + "</em> responses using <em>" +
+                    responseCache.getBytes() + "</em> bytes, <em>" + responseCache.getHitCount() + "</em> hits, <em>" +
+                    responseCache.getMissCount() + "</em> misses, <em>" + responseCache.getRevalidatedCount() +
+                    "</em> revalidated, <em>" + responseCache.getStaleCount() + "</em> served stale and <em>" +
+                    responseCache.getRevalidatingCount() + "</em> being revalidated.</p>");
+        }
+        ProxyBufferPool bufferPool = RequestProxy.getBufferPool();
+        println("<p>Proxy copy buffers <em>" + bufferPool.getPooledCount() + "</em> of max <em>" +
+                bufferPool.getMaxBuffers() + "</em> pooled, <em>" + bufferPool.getAllocatedCount() +
+                "</em> allocated in all.</p>");
+    }
+
+    private void showProxyPoolInfo(List<ProxyPool> proxyPools) {
+        long now = System.currentTimeMillis();
+        for (ProxyPool proxyPool : proxyPools) {
+            println("<p>Proxy pool <code>" + proxyPool.getName() + "</code> using <em>" + proxyPool.getStrategy() +
+                    "</em>, upstreams ejected for <em>" + proxyPool.getCooldown() + "s</em> after <em>" +
+                    proxyPool.getMaxFailures() + "</em> failures in a row.</p>");
+            println("<ul>");
+            for (ProxyUpstream upstream : proxyPool.getUpstreams()) {
+                String state = upstream.isAvailable(now) ? "available" : "ejected for another " +
+                        Math.round((upstream.getEjectedUntil() - now) / 1000d) + "s";
+                println("<li><code>" + upstream.getUrl() + "</code> <em>" + state + "</em>, <em>" +
+                        upstream.getInFlight() + "</em> in flight, <em>" + upstream.getRequestCount() +
+                        "</em> requests, <em>" + upstream.getFailureCount() + "</em> failures, ejected <em>" +
+                        upstream.getEjectionCount() + "</em> times</li>");
+            }
+            println("</ul>");
         }
     }
 
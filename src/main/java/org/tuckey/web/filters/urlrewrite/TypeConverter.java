@@ -329,4 +329,45 @@ public class TypeConverter {
     public int getTypeShort() {
         return type;
     }
+
+    /**
+     * Rough relative cost of getting the value for this type from a request, so that cheap conditions can be checked
+     * before expensive ones.
+     *
+     * @return 1 for simple request properties up to 100 for remote host (which may do a reverse DNS lookup)
+     */
+    public int getEvaluationCost() {
+        switch (type) {
+            case TYPE_REMOTE_HOST:
+                return 100;
+            case TYPE_PARAMETER:
+                // may cause the request body to be parsed
+                return 50;
+            case TYPE_REQUEST_FILENAME:
+            case TYPE_PATH_TRANSLATED:
+                // file system lookups
+                return 20;
+            case TYPE_USER_IN_ROLE:
+            case TYPE_SESSION_ATTRIBUTE:
+            case TYPE_SESSION_IS_NEW:
+                return 5;
+            case TYPE_TIME:
+            case TYPE_TIME_YEAR:
+            case TYPE_TIME_MONTH:
+            case TYPE_TIME_DAY_OF_MONTH:
+            case TYPE_TIME_DAY_OF_WEEK:
+            case TYPE_TIME_AMPM:
+            case TYPE_TIME_HOUR_OF_DAY:
+            case TYPE_TIME_MINUTE:
+            case TYPE_TIME_SECOND:
+            case TYPE_TIME_MILLISECOND:
+            case TYPE_COOKIE:
+            case TYPE_REQUEST_URL:
+                return 3;
+            case TYPE_HEADER:
+                return 2;
+            default:
+                return 1;
+        }
+    }
 }
@@ -88,9 +88,10 @@ public class UrlRewriteFilter implements Filter {
     public static final String DEFAULT_WEB_CONF_PATH = "/WEB-INF/urlrewrite.xml";
 
     /**
-     * The conf for this filter.
+     * The conf for this filter.  Volatile so that a reloaded conf (along with the caches of the rewriter) replaces
+     * the old one in one step.
      */
-    private UrlRewriter urlRewriter = null;
+    private volatile UrlRewriter urlRewriter = null;
 
     /**
      * A user defined setting that can enable conf reloading.
@@ -134,6 +135,17 @@ public class UrlRewriteFilter implements Filter {
     private ServerNameMatcher statusServerNameMatcher;
     private static final String DEFAULT_STATUS_ENABLED_ON_HOSTS = "localhost, local, 127.0.0.1";
 
+    /**
+     * Pool of connections used by proxy rules, kept across conf reloads.  Null if pooling has been disabled or no conf
+     * with a proxy rule has been loaded yet.
+     */
+    private ProxyConnectionManager proxyConnectionManager = null;
+
+    /**
+     * The config to create the pool from when a conf with a proxy rule is loaded, null if pooling has been disabled.
+     */
+    private FilterConfig proxyFilterConfig = null;
+
 
     /**
      *
@@ -233,6 +245,13 @@ public class UrlRewriteFilter implements Filter {
         }
         statusServerNameMatcher = new ServerNameMatcher(statusEnabledOnHosts);
 
+        // proxy connection pool (default enabled), created when a conf with a proxy rule is loaded
+        if (!"false".equalsIgnoreCase(StringUtils.trim(filterConfig.getInitParameter("proxyConnectionPooling")))) {
+            proxyFilterConfig = filterConfig;
+        } else {
+            log.info("proxy connection pooling disabled");
+        }
+
         // now load conf from snippet in web.xml if modRewriteStyleConf is set
         String modRewriteConfText = filterConfig.getInitParameter("modRewriteConfText");
         if (!StringUtils.isBlank(modRewriteConfText)) {
@@ -306,6 +325,10 @@ public class UrlRewriteFilter implements Filter {
             log.debug("conf is " + (conf.isOk() ? "ok" : "NOT ok"));
         }
         confLastLoaded = conf;
+        if (proxyConnectionManager == null && proxyFilterConfig != null && conf.hasProxyRules()) {
+            proxyConnectionManager = createProxyConnectionManager(proxyFilterConfig);
+        }
+        conf.setProxyConnectionManager(proxyConnectionManager);
         if (conf.isOk() && conf.isEngineEnabled()) {
             urlRewriter = new UrlRewriter(conf);
             log.info("loaded (conf ok)");
@@ -324,6 +347,66 @@ public class UrlRewriteFilter implements Filter {
         }
     }
 
+    /**
+     * Create the proxy connection pool from the proxy* init-params.  httpclient is an optional dependency, so the pool
+     * is only created once it is needed and if httpclient is on the classpath.
+     *
+     * @return the pool or null if httpclient is not available
+     */
+    private ProxyConnectionManager createProxyConnectionManager(FilterConfig filterConfig) {
+        try {
+            Class.forName("org.apache.http.impl.conn.PoolingHttpClientConnectionManager", false,
+                    UrlRewriteFilter.class.getClassLoader());
+        } catch (ClassNotFoundException | LinkageError e) {
+            log.error("proxy rules need httpclient on the classpath, proxy connection pooling disabled");
+            return null;
+        }
+        ProxyConnectionManager manager = new ProxyConnectionManager(
+                NumberUtils.stringToInt(filterConfig.getInitParameter("proxyMaxConnections")),
+                NumberUtils.stringToInt(filterConfig.getInitParameter("proxyMaxConnectionsPerRoute")),
+                NumberUtils.stringToInt(filterConfig.getInitParameter("proxyIdleTimeout")),
+                NumberUtils.stringToInt(filterConfig.getInitParameter("proxyAsyncThreads")));
+        try {
+            manager.setResponseCache(createProxyResponseCache(filterConfig));
+        } catch (ServletException e) {
+            log.error(e.getMessage() + ", proxy response cache disabled", e.getCause());
+        }
+        return manager;
+    }
+
+    /**
+     * Create the cache used by proxy rules with cache="true" from the proxyCache* init-params.
+     */
+    private ProxyResponseCache createProxyResponseCache(FilterConfig filterConfig) throws ServletException {
+        long cacheSize = NumberUtils.stringToLong(filterConfig.getInitParameter("proxyCacheSize"),
+                ProxyResponseCache.DEFAULT_MAX_BYTES);
+        int maxEntrySize = NumberUtils.stringToInt(filterConfig.getInitParameter("proxyCacheMaxEntrySize"),
+                ProxyResponseCache.DEFAULT_MAX_ENTRY_SIZE);
+        String storeClassStr = StringUtils.trim(filterConfig.getInitParameter("proxyCacheStore"));
+        ProxyCacheStore store;
+        if (StringUtils.isBlank(storeClassStr)) {
+            store = new HeapProxyCacheStore(cacheSize);
+        } else {
+            try {
+                store = (ProxyCacheStore) Class.forName(storeClassStr).getConstructor(long.class).newInstance(cacheSize);
+            } catch (Exception e) {
+                throw new ServletException("unable to create proxy cache store " + storeClassStr, e);
+            }
+        }
+        ProxyCacheStore largeEntryStore = null;
+        String cacheDir = StringUtils.trim(filterConfig.getInitParameter("proxyCacheDir"));
+        if (!StringUtils.isBlank(cacheDir)) {
+            try {
+                largeEntryStore = new MappedFileProxyCacheStore(new File(cacheDir), NumberUtils.stringToLong(
+                        filterConfig.getInitParameter("proxyCacheDirSize"), ProxyResponseCache.DEFAULT_MAX_BYTES));
+            } catch (IOException e) {
+                throw new ServletException("unable to use proxy cache dir " + cacheDir, e);
+            }
+            log.info("proxy cache bodies over " + ProxyResponseCache.DEFAULT_LARGE_ENTRY_THRESHOLD + " bytes stored in " + cacheDir);
+        }
+        return new ProxyResponseCache(store, largeEntryStore, maxEntrySize, ProxyResponseCache.DEFAULT_LARGE_ENTRY_THRESHOLD);
+    }
+
     /**
      * Destroy is called by the application server when it unloads this filter.
      */
@@ -335,6 +418,11 @@ public class UrlRewriteFilter implements Filter {
 
     public void destroyActual() {
         destroyUrlRewriter();
+        if (proxyConnectionManager != null) {
+            proxyConnectionManager.shutdown();
+            proxyConnectionManager = null;
+        }
+        proxyFilterConfig = null;
         context = null;
         confLastLoad = 0;
         confPath = DEFAULT_WEB_CONF_PATH;
@@ -527,6 +615,24 @@ public class UrlRewriteFilter implements Filter {
         return urlRewriter != null;
     }
 
+    /**
+     * The rewriter for the currently loaded conf.
+     *
+     * @return the rewriter or null if no conf is loaded
+     */
+    public UrlRewriter getLoadedUrlRewriter() {
+        return urlRewriter;
+    }
+
+    /**
+     * The pool of connections used by proxy rules.
+     *
+     * @return the pool or null if pooling is disabled, no proxy rules have been loaded or the filter is not inited
+     */
+    public ProxyConnectionManager getProxyConnectionManager() {
+        return proxyConnectionManager;
+    }
+
     public static String getFullVersionString() {
         Properties props = new Properties();
         String buildNumberStr = "";
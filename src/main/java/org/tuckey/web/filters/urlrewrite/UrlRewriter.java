@@ -35,6 +35,7 @@
 package org.tuckey.web.filters.urlrewrite;
 
 import org.tuckey.web.filters.urlrewrite.utils.Log;
+import org.tuckey.web.filters.urlrewrite.utils.LruCache;
 import org.tuckey.web.filters.urlrewrite.utils.StringUtils;
 import org.tuckey.web.filters.urlrewrite.utils.URLDecoder;
 
@@ -62,8 +63,30 @@ public class UrlRewriter {
      */
     private Conf conf;
 
+    /**
+     * Rewritten urls for requests where only url pure rules were run, keyed by the url (and the query string when
+     * rules append it).  Null if disabled.
+     */
+    private final LruCache<Object, RewrittenUrl> rewriteCache;
+    private final boolean rewriteCacheKeyedByQueryString;
+
+    /**
+     * Urls that did not match any rule when only url pure rules were run.  Null if disabled.
+     */
+    private final LruCache<String, Boolean> noMatchCache;
+
     public UrlRewriter(Conf conf) {
         this.conf = conf;
+        this.rewriteCache = conf.getRewriteCacheSize() > 0 ? new LruCache<Object, RewrittenUrl>(conf.getRewriteCacheSize()) : null;
+        boolean queryStringAppend = false;
+        for (Rule rule : conf.getRules()) {
+            if (rule instanceof NormalRule && ((NormalRule) rule).isQueryStringAppend()) {
+                queryStringAppend = true;
+                break;
+            }
+        }
+        this.rewriteCacheKeyedByQueryString = queryStringAppend;
+        this.noMatchCache = conf.getNoMatchCacheSize() > 0 ? new LruCache<String, Boolean>(conf.getNoMatchCacheSize()) : null;
     }
 
     /**
@@ -74,6 +97,7 @@ public class UrlRewriter {
         RuleChain chain = getNewChain(hsRequest, null);
         if (chain == null) return null;
         chain.process(hsRequest, hsResponse);
+        cacheResult(chain);
         return chain.getFinalRewrittenRequest();
     }
 
@@ -89,6 +113,7 @@ public class UrlRewriter {
         RuleChain chain = getNewChain(hsRequest, parentChain);
         if (chain == null) return false;
         chain.doRules(hsRequest, hsResponse);
+        cacheResult(chain);
         return chain.isResponseHandled();
     }
 
@@ -207,7 +232,65 @@ public class UrlRewriter {
             return null;
         }
 
-        return new RuleChain(this, originalUrl, parentChain);
+        conf.reorderRulesIfDue();
+
+        if (noMatchCache != null && noMatchCache.get(originalUrl) != null) {
+            log.debug("url did not match any rule last time.  not rewriting request.");
+            return null;
+        }
+
+        RuleChain chain = new RuleChain(this, originalUrl, parentChain);
+        if (rewriteCache != null) {
+            Object cacheKey = getRewriteCacheKey(originalUrl, hsRequest);
+            RewrittenUrl cachedRewrite = rewriteCache.get(cacheKey);
+            if (cachedRewrite != null) {
+                log.debug("using cached rewrite");
+                // a rule matched when this was cached, make sure the request looks the same as it did then
+                hsRequest.setAttribute("org.tuckey.web.filters.urlrewrite.RuleMatched", Boolean.TRUE);
+                chain.useCachedRewrite(cachedRewrite);
+            } else {
+                chain.setRewriteCacheKey(cacheKey);
+            }
+        }
+        return chain;
+    }
+
+    private Object getRewriteCacheKey(String url, HttpServletRequest hsRequest) {
+        if (!rewriteCacheKeyedByQueryString) return url;
+        String queryString = hsRequest.getQueryString();
+        if (queryString == null || queryString.length() == 0) return url;
+        return new RewriteCacheKey(url, queryString);
+    }
+
+    /**
+     * Remember the result of the chain if it can be reused for other requests with the same url.
+     */
+    private void cacheResult(RuleChain chain) {
+        if (!chain.isUrlPure()) return;
+        RewrittenUrl rewrittenUrl = chain.getFinalRewrittenRequest();
+        if (rewrittenUrl == null) {
+            if (noMatchCache != null) noMatchCache.put(chain.getOriginalUrl(), Boolean.TRUE);
+        } else if (chain.getRewriteCacheKey() != null) {
+            rewriteCache.put(chain.getRewriteCacheKey(), rewrittenUrl);
+        }
+    }
+
+    /**
+     * Get the cache of rewritten urls.
+     *
+     * @return the cache or null if it is disabled
+     */
+    public LruCache<Object, RewrittenUrl> getRewriteCache() {
+        return rewriteCache;
+    }
+
+    /**
+     * Get the cache of urls that did not match any rule.
+     *
+     * @return the cache or null if it is disabled
+     */
+    public LruCache<String, Boolean> getNoMatchCache() {
+        return noMatchCache;
     }
 
 
@@ -349,9 +432,38 @@ public class UrlRewriter {
      * Destroy the rewriter gracefully.
      */
     public void destroy() {
+        if (rewriteCache != null) rewriteCache.clear();
+        if (noMatchCache != null) noMatchCache.clear();
         conf.destroy();
     }
 
+    /**
+     * Cache key for when the query string has to be taken into account (ie, it may be appended to the rewritten url).
+     */
+    private static final class RewriteCacheKey {
+
+        private final String url;
+        private final String queryString;
+
+        RewriteCacheKey(String url, String queryString) {
+            this.url = url;
+            this.queryString = queryString;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof RewriteCacheKey)) return false;
+            RewriteCacheKey other = (RewriteCacheKey) o;
+            return url.equals(other.url) && queryString.equals(other.queryString);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * url.hashCode() + queryString.hashCode();
+        }
+    }
+
 }
 
 
@@ -0,0 +1,94 @@
+/**
+ * Copyright (c) 2005-2007, Paul Tuckey
+ * All rights reserved.
+ * ====================================================================
+ * Licensed under the BSD License. Text as follows.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *   - Redistributions of source code must retain the above copyright
+ *     notice, this list of conditions and the following disclaimer.
+ *   - Redistributions in binary form must reproduce the above
+ *     copyright notice, this list of conditions and the following
+ *     disclaimer in the documentation and/or other materials provided
+ *     with the distribution.
+ *   - Neither the name tuckey.org nor the names of its contributors
+ *     may be used to endorse or promote products derived from this
+ *     software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ * COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN
+ * ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * ====================================================================
+ */
+package org.tuckey.web.filters.urlrewrite.functions;
+
+import org.tuckey.web.filters.urlrewrite.utils.Log;
+
+import java.util.Locale;
+import java.util.Map;
+import java.util.ServiceConfigurationError;
+import java.util.ServiceLoader;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Functions that can be used as ${name:arguments}, by name.  Has the built in functions (see StringFunctions) and
+ * any found with ServiceLoader.
+ *
+ * @see UrlRewriteFunction
+ */
+public final class FunctionRegistry {
+
+    private static Log log = Log.getLog(FunctionRegistry.class);
+
+    private static final Map<String, UrlRewriteFunction> functions = new ConcurrentHashMap<>();
+
+    static {
+        for (UrlRewriteFunction function : StringFunctions.getFunctions()) {
+            register(function);
+        }
+        try {
+            for (UrlRewriteFunction function : ServiceLoader.load(UrlRewriteFunction.class)) {
+                register(function);
+            }
+        } catch (ServiceConfigurationError e) {
+            log.error("unable to load functions " + e.getMessage(), e);
+        }
+    }
+
+    private FunctionRegistry() {
+    }
+
+    /**
+     * Make a function available under its names, replacing any function already registered with the same name.
+     */
+    public static void register(UrlRewriteFunction function) {
+        for (String name : function.getNames()) {
+            UrlRewriteFunction previous = functions.put(name.toLowerCase(Locale.ENGLISH), function);
+            if (previous != null && previous != function) {
+                log.info("function " + name + " (" + previous.getClass().getName() + ") replaced by " +
+                        function.getClass().getName());
+            }
+        }
+    }
+
+    /**
+     * Get the function called name (ignoring case), or null if there is none.
+     */
+    public static UrlRewriteFunction getFunction(String name) {
+        if (name == null) return null;
+        return functions.get(name.toLowerCase(Locale.ENGLISH));
+    }
+
+}
@@ -9,7 +9,10 @@ import java.net.URISyntaxException;
 import java.net.URLDecoder;
 import java.net.URLEncoder;
 import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.List;
 import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
 
 
 public class StringFunctions {
@@ -18,26 +21,71 @@ public class StringFunctions {
     private static final Pattern FIND_COLON_PATTERN = Pattern.compile("(?<!\\\\):");
     private static final Pattern FIND_ENCODING_PATTERN = Pattern.compile("^[0-9a-zA-Z-]+:");
 
+    private static final UrlRewriteFunction REPLACE_ALL = new ReplaceFunction(true, "replace", "replaceAll");
+    private static final UrlRewriteFunction REPLACE_FIRST = new ReplaceFunction(false, "replaceFirst");
+    private static final UrlRewriteFunction ESCAPE = new EncodingFunction("escape") {
+        String apply(String subject, String encoding) throws UnsupportedEncodingException {
+            return URLEncoder.encode(subject, encoding);
+        }
+    };
+    private static final UrlRewriteFunction ESCAPE_PATH = new EncodingFunction("escapePath") {
+        String apply(String subject, String encoding) throws UnsupportedEncodingException {
+            return org.tuckey.web.filters.urlrewrite.utils.URLEncoder.encodePathSegment(subject, encoding);
+        }
+    };
+    private static final UrlRewriteFunction UNESCAPE = new EncodingFunction("unescape") {
+        String apply(String subject, String encoding) throws UnsupportedEncodingException {
+            return URLDecoder.decode(subject, encoding);
+        }
+    };
+    private static final UrlRewriteFunction UNESCAPE_PATH = new EncodingFunction("unescapePath") {
+        String apply(String subject, String encoding) throws URISyntaxException {
+            return org.tuckey.web.filters.urlrewrite.utils.URLDecoder.decodePath(subject, encoding);
+        }
+    };
+    private static final UrlRewriteFunction TO_LOWER = new SimpleFunction("lower", "toLower") {
+        public String apply(String s) {
+            return s == null ? null : s.toLowerCase();
+        }
+    };
+    private static final UrlRewriteFunction TO_UPPER = new SimpleFunction("upper", "toUpper") {
+        public String apply(String s) {
+            return s == null ? null : s.toUpperCase();
+        }
+    };
+    private static final UrlRewriteFunction TRIM = new SimpleFunction("trim") {
+        public String apply(String s) {
+            return s == null ? null : s.trim();
+        }
+    };
+    private static final UrlRewriteFunction LENGTH = new SimpleFunction("length") {
+        public String apply(String s) {
+            return s == null ? "0" : String.valueOf(s.length());
+        }
+    };
+
+    /**
+     * The built in functions.
+     */
+    static List<UrlRewriteFunction> getFunctions() {
+        return Arrays.asList(REPLACE_ALL, REPLACE_FIRST, ESCAPE, ESCAPE_PATH, UNESCAPE, UNESCAPE_PATH, TO_LOWER,
+                TO_UPPER, TRIM, LENGTH);
+    }
+
     public static String toLower(final String s, SubstitutionFilterChain nextFilter, SubstitutionContext ctx) {
-        return s == null ? null : nextFilter.substitute(s, ctx).toLowerCase();
+        return call(TO_LOWER, s, nextFilter, ctx);
     }
 
     public static String toUpper(final String s, SubstitutionFilterChain nextFilter, SubstitutionContext ctx) {
-        return s == null ? null : nextFilter.substitute(s, ctx).toUpperCase();
+        return call(TO_UPPER, s, nextFilter, ctx);
     }
 
     public static String trim(final String str, SubstitutionFilterChain nextFilter, SubstitutionContext ctx) {
-        if (str == null) {
-            return null;
-        }
-        return nextFilter.substitute(str, ctx).trim();
+        return call(TRIM, str, nextFilter, ctx);
     }
 
     public static String length(final String str, SubstitutionFilterChain nextFilter, SubstitutionContext ctx) {
-        if (str == null) {
-            return "0";
-        }
-        return String.valueOf(nextFilter.substitute(str, ctx).length());
+        return call(LENGTH, str, nextFilter, ctx);
     }
 
     /**
@@ -48,19 +96,7 @@ public class StringFunctions {
      * @param nextFilter
      */
     public static String escape(String subject, SubstitutionFilterChain nextFilter, SubstitutionContext ctx) {
-        String encoding = "UTF-8";
-        if (FIND_ENCODING_PATTERN.matcher(subject).find()) {
-            encoding = subject.substring(0, subject.indexOf(':'));
-            subject = subject.substring(subject.indexOf(':') + 1);
-            if (!Charset.isSupported(encoding)) encoding = "UTF-8";
-        }
-        subject = nextFilter.substitute(subject, ctx);
-        try {
-            return URLEncoder.encode(subject, encoding);
-        } catch (UnsupportedEncodingException e) {
-            log.error(e, e);
-        }
-        return "";
+        return call(ESCAPE, subject, nextFilter, ctx);
     }
 
     /**
@@ -71,19 +107,7 @@ public class StringFunctions {
      * @param ctx
      */
     public static String escapePath(String subject, SubstitutionFilterChain nextFilter, SubstitutionContext ctx) {
-        String encoding = "UTF-8";
-        if (FIND_ENCODING_PATTERN.matcher(subject).find()) {
-            encoding = subject.substring(0, subject.indexOf(':'));
-            subject = subject.substring(subject.indexOf(':') + 1);
-            if (!Charset.isSupported(encoding)) encoding = "UTF-8";
-        }
-        subject = nextFilter.substitute(subject, ctx);
-        try {
-            return org.tuckey.web.filters.urlrewrite.utils.URLEncoder.encodePathSegment(subject, encoding);
-        } catch (UnsupportedEncodingException e) {
-            log.error(e, e);
-        }
-        return "";
+        return call(ESCAPE_PATH, subject, nextFilter, ctx);
     }
 
     /**
@@ -92,19 +116,7 @@ public class StringFunctions {
      *
      */
     public static String unescape(String subject, SubstitutionFilterChain nextFilter, SubstitutionContext ctx) {
-        String encoding = "UTF-8";
-        if (FIND_ENCODING_PATTERN.matcher(subject).find()) {
-            encoding = subject.substring(0, subject.indexOf(':'));
-            subject = subject.substring(subject.indexOf(':') + 1);
-            if (!Charset.isSupported(encoding)) encoding = "UTF-8";
-        }
-        subject = nextFilter.substitute(subject, ctx);
-        try {
-            return URLDecoder.decode(subject, encoding);
-        } catch (UnsupportedEncodingException e) {
-            log.error(e, e);
-        }
-        return "";
+        return call(UNESCAPE, subject, nextFilter, ctx);
     }
 
     /**
@@ -115,50 +127,166 @@ public class StringFunctions {
      * @param ctx
      */
     public static String unescapePath(String subject, SubstitutionFilterChain nextFilter, SubstitutionContext ctx) {
-        String encoding = "UTF-8";
-        if (FIND_ENCODING_PATTERN.matcher(subject).find()) {
-            encoding = subject.substring(0, subject.indexOf(':'));
-            subject = subject.substring(subject.indexOf(':') + 1);
-            if (!Charset.isSupported(encoding)) encoding = "UTF-8";
-        }
-        subject = nextFilter.substitute(subject, ctx);
-        try {
-            return org.tuckey.web.filters.urlrewrite.utils.URLDecoder.decodePath(subject, encoding);
-        } catch (URISyntaxException e) {
-            log.error(e, e);
-        }
-        return "";
+        return call(UNESCAPE_PATH, subject, nextFilter, ctx);
     }
 
 
     public static String replaceAll(String subject, SubstitutionFilterChain nextFilter, SubstitutionContext ctx) {
-        String replace = "";
-        String with = "";
-        if (FIND_COLON_PATTERN.matcher(subject).find()) {
-            replace = subject.substring(subject.indexOf(':') + 1);
-            subject = subject.substring(0, subject.indexOf(':'));
-            if (FIND_COLON_PATTERN.matcher(replace).find()) {
-                with = replace.substring(replace.indexOf(':') + 1);
-                replace = replace.substring(0, replace.indexOf(':'));
+        return call(REPLACE_ALL, subject, nextFilter, ctx);
+    }
+
+    public static String replaceFirst(String subject, SubstitutionFilterChain nextFilter, SubstitutionContext ctx) {
+        return call(REPLACE_FIRST, subject, nextFilter, ctx);
+    }
+
+    /**
+     * Parse the arguments and call the function, substituting the subject with the filter.
+     */
+    public static String call(UrlRewriteFunction function, String arguments, SubstitutionFilterChain nextFilter,
+                              SubstitutionContext ctx) {
+        FunctionCall call = function.parse(arguments);
+        String subject = call.getSubject();
+        return call.apply(subject == null ? null : nextFilter.substitute(subject, ctx));
+    }
+
+    /**
+     * A function whose arguments are all substituted and passed to apply.
+     */
+    private abstract static class SimpleFunction implements UrlRewriteFunction {
+        private final String[] names;
+
+        SimpleFunction(String... names) {
+            this.names = names;
+        }
+
+        public boolean isRequestDependent() {
+            return false;
+        }
+
+        public String[] getNames() {
+            return names;
+        }
+
+        public FunctionCall parse(String arguments) {
+            return new FunctionCall(arguments) {
+                public String apply(String substitutedSubject) {
+                    return SimpleFunction.this.apply(substitutedSubject);
+                }
+            };
+        }
+
+        abstract String apply(String s);
+    }
+
+    /**
+     * A function that takes an optional encoding before the subject, eg, "UTF-16:a b".
+     */
+    private abstract static class EncodingFunction implements UrlRewriteFunction {
+        private final String name;
+
+        EncodingFunction(String name) {
+            this.name = name;
+        }
+
+        public boolean isRequestDependent() {
+            return false;
+        }
+
+        public String[] getNames() {
+            return new String[]{name};
+        }
+
+        public FunctionCall parse(String arguments) {
+            if (arguments == null) {
+                log.error("function " + name + " needs an argument");
+                return new FunctionCall(null) {
+                    public String apply(String substitutedSubject) {
+                        return "";
+                    }
+                };
+            }
+            String subject = arguments;
+            String encoding = "UTF-8";
+            if (FIND_ENCODING_PATTERN.matcher(subject).find()) {
+                encoding = subject.substring(0, subject.indexOf(':'));
+                subject = subject.substring(subject.indexOf(':') + 1);
+                if (!Charset.isSupported(encoding)) encoding = "UTF-8";
             }
+            final String finalEncoding = encoding;
+            return new FunctionCall(subject) {
+                public String apply(String substitutedSubject) {
+                    try {
+                        return EncodingFunction.this.apply(substitutedSubject, finalEncoding);
+                    } catch (UnsupportedEncodingException | URISyntaxException e) {
+                        log.error(e, e);
+                    }
+                    return "";
+                }
+            };
         }
-        subject = nextFilter.substitute(subject, ctx);
-        return subject.replaceAll(replace, with);
+
+        abstract String apply(String subject, String encoding) throws UnsupportedEncodingException, URISyntaxException;
     }
 
-    public static String replaceFirst(String subject, SubstitutionFilterChain nextFilter, SubstitutionContext ctx) {
-        String replace = "";
-        String with = "";
-        if (FIND_COLON_PATTERN.matcher(subject).find()) {
-            replace = subject.substring(subject.indexOf(':') + 1);
-            subject = subject.substring(0, subject.indexOf(':'));
-            if (FIND_COLON_PATTERN.matcher(replace).find()) {
-                with = replace.substring(replace.indexOf(':') + 1);
-                replace = replace.substring(0, replace.indexOf(':'));
+    /**
+     * subject:replace:with, the regular expression is compiled once.
+     */
+    private static class ReplaceFunction implements UrlRewriteFunction {
+        private final boolean all;
+        private final String[] names;
+
+        ReplaceFunction(boolean all, String... names) {
+            this.all = all;
+            this.names = names;
+        }
+
+        public boolean isRequestDependent() {
+            return false;
+        }
+
+        public String[] getNames() {
+            return names;
+        }
+
+        public FunctionCall parse(String arguments) {
+            if (arguments == null) {
+                log.error("function " + names[0] + " needs an argument");
+                return new FunctionCall(null) {
+                    public String apply(String substitutedSubject) {
+                        return "";
+                    }
+                };
+            }
+            String subject = arguments;
+            String replace = "";
+            String with = "";
+            if (FIND_COLON_PATTERN.matcher(subject).find()) {
+                replace = subject.substring(subject.indexOf(':') + 1);
+                subject = subject.substring(0, subject.indexOf(':'));
+                if (FIND_COLON_PATTERN.matcher(replace).find()) {
+                    with = replace.substring(replace.indexOf(':') + 1);
+                    replace = replace.substring(0, replace.indexOf(':'));
+                }
+            }
+            Pattern pattern;
+            try {
+                pattern = Pattern.compile(replace);
+            } catch (PatternSyntaxException e) {
+                log.error("function " + names[0] + " has an invalid expression " + replace + " " + e.getMessage());
+                return new FunctionCall(subject) {
+                    public String apply(String substitutedSubject) {
+                        return "";
+                    }
+                };
             }
+            final String finalWith = with;
+            return new FunctionCall(subject) {
+                public String apply(String substitutedSubject) {
+                    return all ? pattern.matcher(substitutedSubject).replaceAll(finalWith) :
+                            pattern.matcher(substitutedSubject).replaceFirst(finalWith);
+                }
+            };
         }
-        subject = nextFilter.substitute(subject, ctx);
-        return subject.replaceFirst(replace, with);
     }
 
 }
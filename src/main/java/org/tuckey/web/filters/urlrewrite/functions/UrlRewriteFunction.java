@@ -0,0 +1,72 @@
+/**
+ * Copyright (c) 2005-2007, Paul Tuckey
+ * All rights reserved.
+ * ====================================================================
+ * Licensed under the BSD License. Text as follows.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *   - Redistributions of source code must retain the above copyright
+ *     notice, this list of conditions and the following disclaimer.
+ *   - Redistributions in binary form must reproduce the above
+ *     copyright notice, this list of conditions and the following
+ *     disclaimer in the documentation and/or other materials provided
+ *     with the distribution.
+ *   - Neither the name tuckey.org nor the names of its contributors
+ *     may be used to endorse or promote products derived from this
+ *     software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ * COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN
+ * ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * ====================================================================
+ */
+package org.tuckey.web.filters.urlrewrite.functions;
+
+/**
+ * A function that can be used in "to" and "set" values as ${name:arguments}.
+ * <p/>
+ * Functions other than the built in ones can be added by listing the implementing class in
+ * META-INF/services/org.tuckey.web.filters.urlrewrite.functions.UrlRewriteFunction on the classpath or by calling
+ * {@link FunctionRegistry#register(UrlRewriteFunction)} before the conf is loaded.
+ *
+ * @see FunctionRegistry
+ */
+public interface UrlRewriteFunction {
+
+    /**
+     * The names this function can be called by, these are matched ignoring case.
+     */
+    String[] getNames();
+
+    /**
+     * Called once, when the conf is loaded, for each use of the function.  Anything that does not change between
+     * requests (eg, regular expressions) should be worked out here.
+     *
+     * @param arguments the text after the colon following the name, null if there is none
+     * @return the call to make for each substitution
+     */
+    FunctionCall parse(String arguments);
+
+    /**
+     * True if the result can differ between calls with the same argument, ie, it reads the clock, configuration or
+     * anything held by the thread.  Rules whose "to" only uses functions that return false here (and no request
+     * dependent variables) have their results cached by url, so return false only if the result depends on nothing
+     * but the argument.
+     */
+    default boolean isRequestDependent() {
+        return true;
+    }
+
+}
@@ -61,5 +61,12 @@ public class FilterServletOutputStream extends ServletOutputStream {
     public void write(final byte[] b, final int off, final int len) throws IOException {
         stream.write(b, off, len);
     }
+
+    /**
+     * Flushes the stream.
+     */
+    public void flush() throws IOException {
+        stream.flush();
+    }
 }
 
@@ -21,6 +21,9 @@ package org.tuckey.web.filters.urlrewrite.gzip;
 
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
 import java.util.Enumeration;
 import java.util.zip.GZIPOutputStream;
 
@@ -45,12 +48,20 @@ public class GzipFilter implements javax.servlet.Filter  {
 
     private static final Log LOG = Log.getLog(GzipFilter.class);
 
+    private static final int STREAMING_BUFFER_SIZE = 8192;
+
+    private boolean streaming = false;
+
     /**
-     * Performs initialisation.
+     * Performs initialisation.  With the init-param streaming set to true responses are compressed straight into the
+     * response as they are written and sent chunked, rather than buffered whole to set their length.
      *
      * @param filterConfig
      */
     public void init(FilterConfig filterConfig) throws ServletException {
+        if (filterConfig != null) {
+            streaming = "true".equalsIgnoreCase(filterConfig.getInitParameter("streaming"));
+        }
     }
 
     /**
@@ -69,7 +80,12 @@ public class GzipFilter implements javax.servlet.Filter  {
         HttpServletRequest request = (HttpServletRequest) sRequest;
         HttpServletResponse response = (HttpServletResponse) sResponse;
 
-        if (!isIncluded(request) && headerContainsAcceptEncodingGzip(request) && !response.isCommitted()) {
+        if (streaming && !isIncluded(request) && headerContainsAcceptEncodingGzip(request) && !response.isCommitted()
+                && !"HTTP/1.0".equals(request.getProtocol())) {
+            // HTTP/1.0 has no chunked encoding, so those responses need their length and are buffered below
+            doFilterStreaming(request, response, chain);
+
+        } else if (!isIncluded(request) && headerContainsAcceptEncodingGzip(request) && !response.isCommitted()) {
             // Client accepts zipped content
             if (LOG.isDebugEnabled()) {
                 LOG.debug(request.getRequestURL() + ". Writing with gzip compression");
@@ -77,7 +93,7 @@ public class GzipFilter implements javax.servlet.Filter  {
 
             // Create a gzip stream
             final ByteArrayOutputStream compressed = new ByteArrayOutputStream();
-            final GZIPOutputStream gzout = new GZIPOutputStream(compressed);
+            final EncodingOutputStream gzout = new EncodingOutputStream(response, compressed);
 
             // Handle the request
             final GenericResponseWrapper wrapper = new GenericResponseWrapper(response, gzout);
@@ -106,7 +122,8 @@ public class GzipFilter implements javax.servlet.Filter  {
 
             // Saneness checks
             byte[] compressedBytes = compressed.toByteArray();
-            boolean shouldGzippedBodyBeZero = ResponseUtil.shouldGzippedBodyBeZero(compressedBytes, request);
+            boolean shouldGzippedBodyBeZero = gzout.isAlreadyEncoded() ? compressedBytes.length == 0 :
+                    ResponseUtil.shouldGzippedBodyBeZero(compressedBytes, request);
             boolean shouldBodyBeZero = ResponseUtil.shouldBodyBeZero(request, wrapper.getStatus());
             if (shouldGzippedBodyBeZero || shouldBodyBeZero) {
                 // No reason to add GZIP headers or write body if no content was written or status code specifies no
@@ -116,7 +133,13 @@ public class GzipFilter implements javax.servlet.Filter  {
             }
 
             // Write the zipped body
-            ResponseUtil.addGzipHeader(response);
+            if (gzout.isAlreadyEncoded()) {
+                if (LOG.isDebugEnabled()) {
+                    LOG.debug(request.getRequestURL() + " was already encoded, written as is.");
+                }
+            } else {
+                ResponseUtil.addGzipHeader(response);
+            }
 
             response.setContentLength(compressedBytes.length);
 
@@ -131,6 +154,30 @@ public class GzipFilter implements javax.servlet.Filter  {
         }
     }
 
+    /**
+     * Compresses the body straight into the response as it is written.  The gzip header is set just before the first
+     * byte goes out, so the status and headers set by then are what the client gets.
+     */
+    private void doFilterStreaming(final HttpServletRequest request, final HttpServletResponse response, final FilterChain chain)
+            throws IOException, ServletException {
+        if (LOG.isDebugEnabled()) {
+            LOG.debug(request.getRequestURL() + ". Writing with streaming gzip compression");
+        }
+
+        final EncodingOutputStream gzout = new EncodingOutputStream(response, null);
+        final StreamingResponseWrapper wrapper = new StreamingResponseWrapper(response, gzout);
+        chain.doFilter(request, wrapper);
+        wrapper.flush();
+        gzout.close();
+
+        if (!gzout.isWritten() && !response.isCommitted() &&
+                !ResponseUtil.shouldBodyBeZero(request, wrapper.getStatus()) &&
+                wrapper.getStatus() != HttpServletResponse.SC_RESET_CONTENT) {
+            // nothing was written, the same as the buffered response gives
+            response.setContentLength(0);
+        }
+    }
+
     /**
      * Checks if the request uri is an include. These cannot be gzipped.
      */
@@ -167,8 +214,136 @@ public class GzipFilter implements javax.servlet.Filter  {
         return false;
     }
 
+    /**
+     * Gzips what is written to it, unless the response already has a content encoding when the body is first written
+     * to (ie, the body was encoded before it got here, like a proxied response passed through compressed).  Writes to
+     * the buffer, or if there is none straight to the response.
+     */
+    private static class EncodingOutputStream extends OutputStream {
+
+        private final HttpServletResponse response;
+        private final OutputStream buffer;
+        private OutputStream out;
+        private boolean alreadyEncoded;
+
+        EncodingOutputStream(HttpServletResponse response, OutputStream buffer) {
+            this.response = response;
+            this.buffer = buffer;
+        }
+
+        private OutputStream getOut() throws IOException {
+            if (out == null) {
+                alreadyEncoded = response.containsHeader("Content-Encoding");
+                if (buffer != null) {
+                    out = alreadyEncoded ? buffer : new GZIPOutputStream(buffer);
+                } else if (alreadyEncoded) {
+                    out = response.getOutputStream();
+                } else {
+                    ResponseUtil.addGzipHeader(response);
+                    // sync flush, so when the page flushes the client gets all it has written so far
+                    out = new GZIPOutputStream(response.getOutputStream(), STREAMING_BUFFER_SIZE, true);
+                }
+            }
+            return out;
+        }
+
+        boolean isAlreadyEncoded() {
+            return alreadyEncoded;
+        }
+
+        boolean isWritten() {
+            return out != null;
+        }
+
+        public void write(int b) throws IOException {
+            getOut().write(b);
+        }
+
+        public void write(byte[] b, int off, int len) throws IOException {
+            getOut().write(b, off, len);
+        }
+
+        public void flush() throws IOException {
+            if (out != null) out.flush();
+        }
+
+        public void close() throws IOException {
+            if (buffer != null) {
+                getOut().close();
+            } else if (out instanceof GZIPOutputStream) {
+                // the response stream is the container's to close
+                ((GZIPOutputStream) out).finish();
+            }
+        }
+    }
+
+    /**
+     * Keeps the length set by the page off the response, as it is the length before compression.  Its writer doesn't
+     * flush on every println, as each flush of a streamed response costs some compression.  Once compression has
+     * started the response can't be reset, the gzip stream can't be taken back.
+     */
+    @SuppressWarnings("serial")
+    private static class StreamingResponseWrapper extends GenericResponseWrapper {
+
+        private final EncodingOutputStream gzout;
+        private PrintWriter writer;
 
+        StreamingResponseWrapper(HttpServletResponse response, EncodingOutputStream gzout) {
+            super(response, gzout);
+            this.gzout = gzout;
+        }
+
+        private void checkNotCompressing() {
+            if (gzout.isWritten() && !gzout.isAlreadyEncoded()) {
+                throw new IllegalStateException("cannot reset response, gzip compressed output has been written");
+            }
+        }
 
+        public void reset() {
+            checkNotCompressing();
+            super.reset();
+            writer = null;
+        }
+
+        public void resetBuffer() {
+            checkNotCompressing();
+            super.resetBuffer();
+            writer = null;
+        }
 
+        public void setContentLength(int len) {
+            // the compressed length isn't known until the end
+        }
+
+        public void setHeader(String name, String value) {
+            if (!"Content-Length".equalsIgnoreCase(name)) super.setHeader(name, value);
+        }
+
+        public void addHeader(String name, String value) {
+            if (!"Content-Length".equalsIgnoreCase(name)) super.addHeader(name, value);
+        }
+
+        public void setIntHeader(String name, int value) {
+            if (!"Content-Length".equalsIgnoreCase(name)) super.setIntHeader(name, value);
+        }
+
+        public void addIntHeader(String name, int value) {
+            if (!"Content-Length".equalsIgnoreCase(name)) super.addIntHeader(name, value);
+        }
+
+        public PrintWriter getWriter() throws IOException {
+            if (writer == null) {
+                writer = new PrintWriter(new OutputStreamWriter(getOutputStream(), getCharacterEncoding()));
+            }
+            return writer;
+        }
+
+        public void flush() throws IOException {
+            if (writer != null) {
+                writer.flush();
+            }
+            super.flush();
+        }
+    }
 
 }
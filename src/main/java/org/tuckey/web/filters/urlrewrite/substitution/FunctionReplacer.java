@@ -34,7 +34,9 @@
  */
 package org.tuckey.web.filters.urlrewrite.substitution;
 
+import org.tuckey.web.filters.urlrewrite.functions.FunctionRegistry;
 import org.tuckey.web.filters.urlrewrite.functions.StringFunctions;
+import org.tuckey.web.filters.urlrewrite.functions.UrlRewriteFunction;
 import org.tuckey.web.filters.urlrewrite.utils.Log;
 
 import java.util.Collections;
@@ -51,7 +53,7 @@ public class FunctionReplacer implements SubstitutionFilter {
 
     private static Log log = Log.getLog(VariableReplacer.class);
 
-    private static Pattern functionPattern = Pattern.compile("(?<!\\\\)\\$\\{(.*)\\}");
+    static Pattern functionPattern = Pattern.compile("(?<!\\\\)\\$\\{(.*)\\}");
 
     public static boolean containsFunction(String to) {
         Matcher functionMatcher = functionPattern.matcher(to);
@@ -122,27 +124,9 @@ public class FunctionReplacer implements SubstitutionFilter {
         }
         String functionResult = "";
         SubstitutionFilterChain redoFunctionFilter = (string, ctx1) -> FunctionReplacer.this.substitute(string, ctx1, nextFilter);
-        // check for some built in functions
-        if ("replace".equalsIgnoreCase(varType) || "replaceAll".equalsIgnoreCase(varType)) {
-            functionResult = StringFunctions.replaceAll(varSubName, redoFunctionFilter, ctx);
-        } else if ("replaceFirst".equalsIgnoreCase(varType)) {
-            functionResult = StringFunctions.replaceFirst(varSubName, redoFunctionFilter, ctx);
-        } else if ("escape".equalsIgnoreCase(varType)) {
-            functionResult = StringFunctions.escape(varSubName, redoFunctionFilter, ctx);
-        } else if ("escapePath".equalsIgnoreCase(varType)) {
-            functionResult = StringFunctions.escapePath(varSubName, redoFunctionFilter, ctx);
-        } else if ("unescape".equalsIgnoreCase(varType)) {
-            functionResult = StringFunctions.unescape(varSubName, redoFunctionFilter, ctx);
-        } else if ("unescapePath".equalsIgnoreCase(varType)) {
-            functionResult = StringFunctions.unescapePath(varSubName, redoFunctionFilter, ctx);
-        } else if ("lower".equalsIgnoreCase(varType) || "toLower".equalsIgnoreCase(varType)) {
-            functionResult = StringFunctions.toLower(varSubName, redoFunctionFilter, ctx);
-        } else if ("upper".equalsIgnoreCase(varType) || "toUpper".equalsIgnoreCase(varType)) {
-            functionResult = StringFunctions.toUpper(varSubName, redoFunctionFilter, ctx);
-        } else if ("trim".equalsIgnoreCase(varType)) {
-            functionResult = StringFunctions.trim(varSubName, redoFunctionFilter, ctx);
-        } else if ("length".equalsIgnoreCase(varType)) {
-            functionResult = StringFunctions.length(varSubName, redoFunctionFilter, ctx);
+        UrlRewriteFunction function = FunctionRegistry.getFunction(varType);
+        if (function != null) {
+            functionResult = StringFunctions.call(function, varSubName, redoFunctionFilter, ctx);
         } else {
             log.error("function ${" + originalVarStr + "} type '" + varType + "' not a valid type");
         }
@@ -0,0 +1,420 @@
+/**
+ * Copyright (c) 2005-2007, Paul Tuckey
+ * All rights reserved.
+ * ====================================================================
+ * Licensed under the BSD License. Text as follows.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *   - Redistributions of source code must retain the above copyright
+ *     notice, this list of conditions and the following disclaimer.
+ *   - Redistributions in binary form must reproduce the above
+ *     copyright notice, this list of conditions and the following
+ *     disclaimer in the documentation and/or other materials provided
+ *     with the distribution.
+ *   - Neither the name tuckey.org nor the names of its contributors
+ *     may be used to endorse or promote products derived from this
+ *     software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ * COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN
+ * ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * ====================================================================
+ */
+package org.tuckey.web.filters.urlrewrite.substitution;
+
+import org.tuckey.web.filters.urlrewrite.ConditionMatch;
+import org.tuckey.web.filters.urlrewrite.functions.FunctionCall;
+import org.tuckey.web.filters.urlrewrite.functions.FunctionRegistry;
+import org.tuckey.web.filters.urlrewrite.functions.UrlRewriteFunction;
+import org.tuckey.web.filters.urlrewrite.utils.Log;
+import org.tuckey.web.filters.urlrewrite.utils.StringMatchingMatcher;
+
+import javax.servlet.ServletContext;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Matcher;
+
+/**
+ * A "to" or "set" value parsed once into segments (literal text, $N, %N, %{var} and ${function:...}) so that
+ * substituting it is a single pass over the segments with no regular expression work.
+ * <p/>
+ * Gives exactly the same result as the default substitution chain (FunctionReplacer, VariableReplacer,
+ * BackReferenceReplacer, MatcherReplacer then UnescapeReplacer), the template is parsed by running the same
+ * expressions over it, in the same order, as the chain would for each request.
+ *
+ * @see ChainedSubstitutionFilters#getDefaultSubstitutionChain
+ */
+public class SubstitutionTemplate {
+
+    private static Log log = Log.getLog(SubstitutionTemplate.class);
+
+
+    private static final int LEVEL_FUNCTION = 0;
+    private static final int LEVEL_VARIABLE = 1;
+    private static final int LEVEL_BACK_REFERENCE = 2;
+    private static final int LEVEL_MATCHER = 3;
+    private static final int LEVEL_UNESCAPE = 4;
+    private static final int LEVEL_LITERAL = 5;
+
+    private final String template;
+    private final boolean[] levels = new boolean[LEVEL_LITERAL + 1];
+    private final Segment[] segments;
+    private boolean requestDependent = false;
+
+    /**
+     * Parse the template.
+     *
+     * @param template          the "to" or "set" value
+     * @param withFunction      if ${function:...} should be replaced
+     * @param withVariable      if %{var} should be replaced
+     * @param withBackReference if condition back references (%N) should be replaced
+     * @param servletContext    used for %{context:name} (may be null)
+     */
+    public SubstitutionTemplate(String template, boolean withFunction, boolean withVariable,
+                                boolean withBackReference, ServletContext servletContext) {
+        this.template = template;
+        levels[LEVEL_FUNCTION] = withFunction;
+        levels[LEVEL_VARIABLE] = withVariable;
+        levels[LEVEL_BACK_REFERENCE] = withBackReference;
+        levels[LEVEL_MATCHER] = true;
+        levels[LEVEL_UNESCAPE] = true;
+        levels[LEVEL_LITERAL] = true;
+        if (withVariable && servletContext != null) {
+            // as the chain would when it is created
+            new VariableReplacer(servletContext);
+        }
+        List<Segment> parsed = new ArrayList<>();
+        parse(template, withFunction ? LEVEL_FUNCTION : nextLevel(LEVEL_FUNCTION), parsed);
+        this.segments = parsed.toArray(new Segment[parsed.size()]);
+    }
+
+    public String getTemplate() {
+        return template;
+    }
+
+    /**
+     * True if the template contains a variable or function whose value can differ from one request to the next.
+     *
+     * @see VariableResolver#isRequestDependent()
+     * @see UrlRewriteFunction#isRequestDependent()
+     */
+    public boolean isRequestDependent() {
+        return requestDependent;
+    }
+
+    /**
+     * Substitute the template, ie, as the chain without PatternReplacer would.
+     */
+    public String substitute(SubstitutionContext ctx) {
+        if (segments.length == 0) {
+            return "";
+        }
+        if (segments.length == 1 && segments[0] instanceof Literal) {
+            return ((Literal) segments[0]).text;
+        }
+        StringBuilder sb = new StringBuilder();
+        appendSegments(segments, sb, ctx);
+        return sb.toString();
+    }
+
+    /**
+     * Replace each match of the "from" in the url with the substituted template, as PatternReplacer followed by the
+     * rest of the chain would.
+     */
+    public String substituteMatches(String from, SubstitutionContext ctx) {
+        StringMatchingMatcher conditionMatcher = ctx.getMatcher();
+        conditionMatcher.reset();
+        StringBuilder sb = new StringBuilder();
+        int lastMatchEnd = 0;
+        while (conditionMatcher.find()) {
+            // we do not substitute on the non-matched string since it is straight from the URL
+            int matchStart = conditionMatcher.start();
+            sb.append(from, lastMatchEnd, matchStart);
+            // we will replace the matched string with the appropriately expanded pattern
+            appendSegments(segments, sb, ctx);
+            boolean notMatchedEmpty = matchStart == lastMatchEnd;
+            lastMatchEnd = conditionMatcher.end();
+            // get out of there for wildcard patterns
+            if (!conditionMatcher.isMultipleMatchingSupported() || notMatchedEmpty) {
+                break;
+            }
+        }
+        // put the remaining ending non-matched string
+        if (lastMatchEnd < from.length()) {
+            sb.append(from, lastMatchEnd, from.length());
+        }
+        return sb.toString();
+    }
+
+    private static void appendSegments(Segment[] segments, StringBuilder sb, SubstitutionContext ctx) {
+        for (Segment segment : segments) {
+            segment.append(sb, ctx);
+        }
+    }
+
+    private int nextLevel(int level) {
+        int next = level + 1;
+        while (!levels[next]) {
+            next++;
+        }
+        return next;
+    }
+
+    /**
+     * Parse str as the filter at level would, adding the segments to out.
+     */
+    private void parse(String str, int level, List<Segment> out) {
+        switch (level) {
+            case LEVEL_FUNCTION:
+                parseFunctions(str, out);
+                break;
+            case LEVEL_VARIABLE:
+                parseVariables(str, out);
+                break;
+            case LEVEL_BACK_REFERENCE:
+                parseBackReferences(str, out);
+                break;
+            case LEVEL_MATCHER:
+                parseMatcherReferences(str, out);
+                break;
+            case LEVEL_UNESCAPE:
+                String unescaped = UnescapeReplacer.UNESCAPE_PATTERN.matcher(str).replaceAll("");
+                parse(unescaped, nextLevel(level), out);
+                break;
+            default:
+                addLiteral(str, out);
+        }
+    }
+
+    private Segment[] parse(String str, int level) {
+        List<Segment> parsed = new ArrayList<>();
+        parse(str, level, parsed);
+        return parsed.toArray(new Segment[parsed.size()]);
+    }
+
+    private static void addLiteral(String text, List<Segment> out) {
+        if (text.isEmpty()) return;
+        if (!out.isEmpty() && out.get(out.size() - 1) instanceof Literal) {
+            Literal last = (Literal) out.remove(out.size() - 1);
+            text = last.text + text;
+        }
+        out.add(new Literal(text));
+    }
+
+    private static void addSegment(Segment segment, List<Segment> out) {
+        if (segment instanceof Literal) {
+            addLiteral(((Literal) segment).text, out);
+        } else {
+            out.add(segment);
+        }
+    }
+
+    private void parseFunctions(String str, List<Segment> out) {
+        Matcher functionMatcher = FunctionReplacer.functionPattern.matcher(str);
+        int lastAppendPosition = 0;
+        while (functionMatcher.find()) {
+            parse(str.substring(lastAppendPosition, functionMatcher.start()), nextLevel(LEVEL_FUNCTION), out);
+            addSegment(parseFunction(functionMatcher.group(1)), out);
+            lastAppendPosition = functionMatcher.end();
+        }
+        parse(str.substring(lastAppendPosition), nextLevel(LEVEL_FUNCTION), out);
+    }
+
+    /**
+     * As FunctionReplacer.functionReplace, but parsing the arguments now.
+     */
+    private Segment parseFunction(String functionStr) {
+        String arguments = null;
+        String type;
+        int colonIdx = functionStr.indexOf(':');
+        if (colonIdx != -1 && colonIdx + 1 < functionStr.length()) {
+            arguments = functionStr.substring(colonIdx + 1);
+            type = functionStr.substring(0, colonIdx);
+        } else {
+            type = functionStr;
+        }
+        UrlRewriteFunction function = FunctionRegistry.getFunction(type);
+        if (function == null) {
+            log.error("function ${" + functionStr + "} type '" + type + "' not a valid type");
+            return new Literal("");
+        }
+        if (function.isRequestDependent()) {
+            requestDependent = true;
+        }
+        FunctionCall call = function.parse(arguments);
+        String subject = call.getSubject();
+        return new Function(call, subject == null ? null : parse(subject, LEVEL_FUNCTION));
+    }
+
+    private void parseVariables(String str, List<Segment> out) {
+        Matcher varMatcher = VariableReplacer.toVariablePattern.matcher(str);
+        int lastAppendPosition = 0;
+        while (varMatcher.find()) {
+            parse(str.substring(lastAppendPosition, varMatcher.start()), nextLevel(LEVEL_VARIABLE), out);
+            VariableResolver resolver = VariableReplacer.getResolver(varMatcher.group(1));
+            if (resolver.isRequestDependent()) {
+                requestDependent = true;
+            }
+            out.add(new Variable(resolver));
+            lastAppendPosition = varMatcher.end();
+        }
+        parse(str.substring(lastAppendPosition), nextLevel(LEVEL_VARIABLE), out);
+    }
+
+    private void parseBackReferences(String str, List<Segment> out) {
+        Matcher backRefMatcher = BackReferenceReplacer.backRefPattern.matcher(str);
+        List<Segment> replaced = new ArrayList<>();
+        boolean anyMatches = false;
+        int lastAppendPosition = 0;
+        while (backRefMatcher.find()) {
+            anyMatches = true;
+            parse(str.substring(lastAppendPosition, backRefMatcher.start()), nextLevel(LEVEL_BACK_REFERENCE), replaced);
+            replaced.add(new ConditionBackReference(Integer.parseInt(backRefMatcher.group(1))));
+            lastAppendPosition = backRefMatcher.end();
+        }
+        if (!anyMatches) {
+            parse(str, nextLevel(LEVEL_BACK_REFERENCE), out);
+            return;
+        }
+        parse(str.substring(lastAppendPosition), nextLevel(LEVEL_BACK_REFERENCE), replaced);
+        // when there is no condition match the string is passed along untouched
+        out.add(new ConditionBackReferences(replaced.toArray(new Segment[replaced.size()]),
+                parse(str, nextLevel(LEVEL_BACK_REFERENCE))));
+    }
+
+    private void parseMatcherReferences(String str, List<Segment> out) {
+        Matcher backRefMatcher = MatcherReplacer.backRefPattern.matcher(str);
+        int lastAppendPosition = 0;
+        while (backRefMatcher.find()) {
+            parse(str.substring(lastAppendPosition, backRefMatcher.start()), nextLevel(LEVEL_MATCHER), out);
+            out.add(new MatcherBackReference(Integer.parseInt(backRefMatcher.group(1))));
+            lastAppendPosition = backRefMatcher.end();
+        }
+        parse(str.substring(lastAppendPosition), nextLevel(LEVEL_MATCHER), out);
+    }
+
+    private abstract static class Segment {
+        abstract void append(StringBuilder sb, SubstitutionContext ctx);
+    }
+
+    private static final class Literal extends Segment {
+        private final String text;
+
+        Literal(String text) {
+            this.text = text;
+        }
+
+        void append(StringBuilder sb, SubstitutionContext ctx) {
+            sb.append(text);
+        }
+    }
+
+    private static final class Variable extends Segment {
+        private final VariableResolver resolver;
+
+        Variable(VariableResolver resolver) {
+            this.resolver = resolver;
+        }
+
+        void append(StringBuilder sb, SubstitutionContext ctx) {
+            sb.append(resolver.resolve(ctx.getHsRequest()));
+        }
+    }
+
+    /**
+     * $N, a group from the "from" match.
+     */
+    private static final class MatcherBackReference extends Segment {
+        private final int group;
+
+        MatcherBackReference(int group) {
+            this.group = group;
+        }
+
+        void append(StringBuilder sb, SubstitutionContext ctx) {
+            StringMatchingMatcher matcher = ctx.getMatcher();
+            if (group > matcher.groupCount()) {
+                log.error("backref $" + group + " not found in from");
+                return;
+            }
+            String value = matcher.group(group);
+            if (value != null) sb.append(value);
+        }
+    }
+
+    /**
+     * %N, a group from the last condition to match.
+     */
+    private static final class ConditionBackReference extends Segment {
+        private final int group;
+
+        ConditionBackReference(int group) {
+            this.group = group;
+        }
+
+        void append(StringBuilder sb, SubstitutionContext ctx) {
+            StringMatchingMatcher matcher = ctx.getLastConditionMatch().getMatcher();
+            if (group > matcher.groupCount()) {
+                log.error("backref %" + group + " not found in conditon ");
+                return;
+            }
+            sb.append(matcher.group(group));
+        }
+    }
+
+    /**
+     * A string with %N's, which are only replaced if the last condition match has groups.
+     */
+    private static final class ConditionBackReferences extends Segment {
+        private final Segment[] replaced;
+        private final Segment[] untouched;
+
+        ConditionBackReferences(Segment[] replaced, Segment[] untouched) {
+            this.replaced = replaced;
+            this.untouched = untouched;
+        }
+
+        void append(StringBuilder sb, SubstitutionContext ctx) {
+            ConditionMatch lastConditionMatch = ctx.getLastConditionMatch();
+            if (lastConditionMatch != null && lastConditionMatch.getMatcher() != null &&
+                    lastConditionMatch.getMatcher().groupCount() > 0) {
+                appendSegments(replaced, sb, ctx);
+            } else {
+                appendSegments(untouched, sb, ctx);
+            }
+        }
+    }
+
+    private static final class Function extends Segment {
+        private final FunctionCall call;
+        private final Segment[] subject;
+
+        Function(FunctionCall call, Segment[] subject) {
+            this.call = call;
+            this.subject = subject;
+        }
+
+        void append(StringBuilder sb, SubstitutionContext ctx) {
+            String value = null;
+            if (subject != null) {
+                StringBuilder subjectSb = new StringBuilder();
+                appendSegments(subject, subjectSb, ctx);
+                value = subjectSb.toString();
+            }
+            sb.append(call.apply(value));
+        }
+    }
+
+}
@@ -44,7 +44,7 @@ import java.util.regex.Pattern;
  */
 public class UnescapeReplacer implements SubstitutionFilter {
 
-    private static final Pattern UNESCAPE_PATTERN = Pattern.compile("(?<!\\\\)\\\\");
+    static final Pattern UNESCAPE_PATTERN = Pattern.compile("(?<!\\\\)\\\\");
 
     public String substitute(String from, SubstitutionContext ctx,
                              SubstitutionFilterChain nextFilter) {
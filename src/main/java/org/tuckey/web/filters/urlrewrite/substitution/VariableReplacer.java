@@ -57,7 +57,7 @@ public class VariableReplacer implements SubstitutionFilter {
 
     private static Log log = Log.getLog(VariableReplacer.class);
 
-    private static Pattern toVariablePattern = Pattern.compile("(?<!\\\\)%\\{([-a-zA-Z0-9_.:]*)}");
+    static Pattern toVariablePattern = Pattern.compile("(?<!\\\\)%\\{([-a-zA-Z0-9_.:]*)}");
     //private static Pattern toVariablePattern = Pattern.compile("(?<!\\\\)%\\{(.*?)}");
 
     private static ServletContext servletContext;
@@ -128,137 +128,164 @@ public class VariableReplacer implements SubstitutionFilter {
     /**
      * Handles the fetching of the variable value from the request.
      */
-    private static String varReplace(String originalVarStr, HttpServletRequest hsRequest) {
+    static String varReplace(String originalVarStr, HttpServletRequest hsRequest) {
+        return getResolver(originalVarStr).resolve(hsRequest);
+    }
+
+    /**
+     * Work out how to get the value of a variable, ie, the type and name are only looked at once.
+     *
+     * @param originalVarStr the variable without the %{ and }, eg, header:user-agent
+     */
+    public static VariableResolver getResolver(final String originalVarStr) {
         // get the sub name if any ie for headers etc header:user-agent
-        String varSubName = null;
+        String subName = null;
         String varType;
         int colonIdx = originalVarStr.indexOf(':');
         if (colonIdx != -1 && colonIdx + 1 < originalVarStr.length()) {
-            varSubName = originalVarStr.substring(colonIdx + 1);
+            subName = originalVarStr.substring(colonIdx + 1);
             varType = originalVarStr.substring(0, colonIdx);
             if (log.isDebugEnabled()) log.debug("variable %{" + originalVarStr + "} type: " + varType +
-                    ", name: '" + varSubName + '\'');
+                    ", name: '" + subName + '\'');
         } else {
             varType = originalVarStr;
             if (log.isDebugEnabled()) log.debug("variable %{" + originalVarStr + "} type: " + varType);
         }
+        final String varSubName = subName;
 
         TypeConverter type = new TypeConverter();
         type.setType(varType);
 
         switch (type.getTypeShort()) {
             case TypeConverter.TYPE_TIME:
-                return String.valueOf(System.currentTimeMillis());
+                return hsRequest -> String.valueOf(System.currentTimeMillis());
             case TypeConverter.TYPE_TIME_YEAR:
-                return calendarVariable(Calendar.YEAR);
+                return hsRequest -> calendarVariable(Calendar.YEAR);
             case TypeConverter.TYPE_TIME_MONTH:
-                return calendarVariable(Calendar.MONTH);
+                return hsRequest -> calendarVariable(Calendar.MONTH);
             case TypeConverter.TYPE_TIME_DAY_OF_MONTH:
-                return calendarVariable(Calendar.DAY_OF_MONTH);
+                return hsRequest -> calendarVariable(Calendar.DAY_OF_MONTH);
             case TypeConverter.TYPE_TIME_DAY_OF_WEEK:
-                return calendarVariable(Calendar.DAY_OF_WEEK);
+                return hsRequest -> calendarVariable(Calendar.DAY_OF_WEEK);
             case TypeConverter.TYPE_TIME_AMPM:
-                return calendarVariable(Calendar.AM_PM);
+                return hsRequest -> calendarVariable(Calendar.AM_PM);
             case TypeConverter.TYPE_TIME_HOUR_OF_DAY:
-                return calendarVariable(Calendar.HOUR_OF_DAY);
+                return hsRequest -> calendarVariable(Calendar.HOUR_OF_DAY);
             case TypeConverter.TYPE_TIME_MINUTE:
-                return calendarVariable(Calendar.MINUTE);
+                return hsRequest -> calendarVariable(Calendar.MINUTE);
             case TypeConverter.TYPE_TIME_SECOND:
-                return calendarVariable(Calendar.SECOND);
+                return hsRequest -> calendarVariable(Calendar.SECOND);
             case TypeConverter.TYPE_TIME_MILLISECOND:
-                return calendarVariable(Calendar.MILLISECOND);
+                return hsRequest -> calendarVariable(Calendar.MILLISECOND);
 
             case TypeConverter.TYPE_ATTRIBUTE:
-                return attributeVariable(varSubName == null ? null : hsRequest.getAttribute(varSubName), varSubName);
+                return hsRequest -> attributeVariable(varSubName == null ? null : hsRequest.getAttribute(varSubName), varSubName);
             case TypeConverter.TYPE_AUTH_TYPE:
-                return StringUtils.notNull(hsRequest.getAuthType());
+                return hsRequest -> StringUtils.notNull(hsRequest.getAuthType());
             case TypeConverter.TYPE_CHARACTER_ENCODING:
-                return StringUtils.notNull(hsRequest.getCharacterEncoding());
+                return hsRequest -> StringUtils.notNull(hsRequest.getCharacterEncoding());
             case TypeConverter.TYPE_CONTENT_LENGTH:
-                return String.valueOf(hsRequest.getContentLength());
+                return hsRequest -> String.valueOf(hsRequest.getContentLength());
             case TypeConverter.TYPE_CONTENT_TYPE:
-                return StringUtils.notNull(hsRequest.getContentType());
+                return hsRequest -> StringUtils.notNull(hsRequest.getContentType());
             case TypeConverter.TYPE_CONTEXT_PATH:
-                return StringUtils.notNull(hsRequest.getContextPath());
+                return hsRequest -> StringUtils.notNull(hsRequest.getContextPath());
             case TypeConverter.TYPE_COOKIE:
-                return cookieVariable(hsRequest.getCookies(), varSubName);
+                return hsRequest -> cookieVariable(hsRequest.getCookies(), varSubName);
             case TypeConverter.TYPE_LOCAL_PORT:
-                return String.valueOf(hsRequest.getLocalPort());
+                return hsRequest -> String.valueOf(hsRequest.getLocalPort());
             case TypeConverter.TYPE_METHOD:
-                return StringUtils.notNull(hsRequest.getMethod());
+                return hsRequest -> StringUtils.notNull(hsRequest.getMethod());
             case TypeConverter.TYPE_PARAMETER:
-                return StringUtils.notNull(varSubName == null ? null : hsRequest.getParameter(varSubName));
+                return hsRequest -> StringUtils.notNull(varSubName == null ? null : hsRequest.getParameter(varSubName));
             case TypeConverter.TYPE_PATH_INFO:
-                return StringUtils.notNull(hsRequest.getPathInfo());
+                return hsRequest -> StringUtils.notNull(hsRequest.getPathInfo());
             case TypeConverter.TYPE_PATH_TRANSLATED:
-                return StringUtils.notNull(hsRequest.getPathTranslated());
+                return hsRequest -> StringUtils.notNull(hsRequest.getPathTranslated());
             case TypeConverter.TYPE_PROTOCOL:
-                return StringUtils.notNull(hsRequest.getProtocol());
+                return hsRequest -> StringUtils.notNull(hsRequest.getProtocol());
             case TypeConverter.TYPE_QUERY_STRING:
-                return StringUtils.notNull(hsRequest.getQueryString());
+                return hsRequest -> StringUtils.notNull(hsRequest.getQueryString());
             case TypeConverter.TYPE_REMOTE_ADDR:
-                return StringUtils.notNull(hsRequest.getRemoteAddr());
+                return hsRequest -> StringUtils.notNull(hsRequest.getRemoteAddr());
             case TypeConverter.TYPE_REMOTE_HOST:
-                return StringUtils.notNull(hsRequest.getRemoteHost());
+                return hsRequest -> StringUtils.notNull(hsRequest.getRemoteHost());
             case TypeConverter.TYPE_REMOTE_USER:
-                return StringUtils.notNull(hsRequest.getRemoteUser());
+                return hsRequest -> StringUtils.notNull(hsRequest.getRemoteUser());
             case TypeConverter.TYPE_REQUESTED_SESSION_ID:
-                return StringUtils.notNull(hsRequest.getRequestedSessionId());
+                return hsRequest -> StringUtils.notNull(hsRequest.getRequestedSessionId());
             case TypeConverter.TYPE_REQUEST_URI:
-                return StringUtils.notNull(hsRequest.getRequestURI());
+                return hsRequest -> StringUtils.notNull(hsRequest.getRequestURI());
             case TypeConverter.TYPE_REQUEST_URL:
-                StringBuffer requestUrlBuff = hsRequest.getRequestURL();
-                String requestUrlStr = null;
-                if (requestUrlBuff != null) {
-                    requestUrlStr = requestUrlBuff.toString();
-                }
-                return StringUtils.notNull(requestUrlStr);
+                return hsRequest -> {
+                    StringBuffer requestUrlBuff = hsRequest.getRequestURL();
+                    String requestUrlStr = null;
+                    if (requestUrlBuff != null) {
+                        requestUrlStr = requestUrlBuff.toString();
+                    }
+                    return StringUtils.notNull(requestUrlStr);
+                };
             case TypeConverter.TYPE_SESSION_ATTRIBUTE:
-                Object sessionAttributeValue = null;
-                HttpSession session = hsRequest.getSession(false);
-                if (session != null && varSubName != null) {
-                    sessionAttributeValue = session.getAttribute(varSubName);
-                }
-                return attributeVariable(sessionAttributeValue, varSubName);
+                return hsRequest -> {
+                    Object sessionAttributeValue = null;
+                    HttpSession session = hsRequest.getSession(false);
+                    if (session != null && varSubName != null) {
+                        sessionAttributeValue = session.getAttribute(varSubName);
+                    }
+                    return attributeVariable(sessionAttributeValue, varSubName);
+                };
 
             case TypeConverter.TYPE_SESSION_IS_NEW:
-                boolean sessionNew = false;
-                HttpSession sessionIsNew = hsRequest.getSession(false);
-                if (sessionIsNew != null) {
-                    sessionNew = sessionIsNew.isNew();
-                }
-                return String.valueOf(sessionNew);
+                return hsRequest -> {
+                    boolean sessionNew = false;
+                    HttpSession sessionIsNew = hsRequest.getSession(false);
+                    if (sessionIsNew != null) {
+                        sessionNew = sessionIsNew.isNew();
+                    }
+                    return String.valueOf(sessionNew);
+                };
             case TypeConverter.TYPE_SERVER_PORT:
-                return String.valueOf(hsRequest.getServerPort());
+                return hsRequest -> String.valueOf(hsRequest.getServerPort());
             case TypeConverter.TYPE_SERVER_NAME:
-                return StringUtils.notNull(hsRequest.getServerName());
+                return hsRequest -> StringUtils.notNull(hsRequest.getServerName());
             case TypeConverter.TYPE_SCHEME:
-                return StringUtils.notNull(hsRequest.getScheme());
+                return hsRequest -> StringUtils.notNull(hsRequest.getScheme());
             case TypeConverter.TYPE_USER_IN_ROLE:
-                return String.valueOf(hsRequest.isUserInRole(varSubName));
+                return hsRequest -> String.valueOf(hsRequest.isUserInRole(varSubName));
 
             case TypeConverter.TYPE_EXCEPTION:
-                Exception e = (Exception) hsRequest.getAttribute("javax.servlet.error.exception");
-                if (e == null) return "";
-                return e.getClass().getName();
+                return hsRequest -> {
+                    Exception e = (Exception) hsRequest.getAttribute("javax.servlet.error.exception");
+                    if (e == null) return "";
+                    return e.getClass().getName();
+                };
 
             case TypeConverter.TYPE_HEADER:
-                return StringUtils.notNull(hsRequest.getHeader(varSubName));
+                return hsRequest -> StringUtils.notNull(hsRequest.getHeader(varSubName));
 
             case TypeConverter.TYPE_SERVLET_CONTEXT:
-            	//ServletContext servletContext = (hsRequest.getSession(true).getServletContext());   
-			Object attr = servletContext.getAttribute(varSubName);
-			if (attr == null) {
-				log.debug("No context attribute " + varSubName
-						+ ", must be an init-param");
-				return servletContext.getInitParameter(varSubName);
-			} else {
-				return StringUtils.notNull(attr.toString());
-			}
-                
+                return hsRequest -> {
+                    Object attr = servletContext.getAttribute(varSubName);
+                    if (attr == null) {
+                        log.debug("No context attribute " + varSubName + ", must be an init-param");
+                        return servletContext.getInitParameter(varSubName);
+                    } else {
+                        return StringUtils.notNull(attr.toString());
+                    }
+                };
+
             default:
-                log.error("variable %{" + originalVarStr + "} type '" + varType + "' not a valid type");
-                return "";
+                final String invalidType = varType;
+                return new VariableResolver() {
+                    public String resolve(HttpServletRequest hsRequest) {
+                        log.error("variable %{" + originalVarStr + "} type '" + invalidType + "' not a valid type");
+                        return "";
+                    }
+
+                    public boolean isRequestDependent() {
+                        return false;
+                    }
+                };
 
         }
     }
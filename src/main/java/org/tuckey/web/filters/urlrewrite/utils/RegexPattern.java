@@ -44,10 +44,19 @@ import java.util.regex.PatternSyntaxException;
  */
 public class RegexPattern implements StringMatchingPattern {
 
+    /**
+     * Characters that end the literal prefix of a pattern when not escaped.
+     */
+    private static final String META_CHARS = ".[]{}()*+?|^$";
+
     private Pattern pattern;
+    private String patternStr;
+    private boolean caseSensitive;
 
     public RegexPattern(String patternStr, boolean caseSensitive)
             throws StringMatchingPatternSyntaxException {
+        this.patternStr = patternStr;
+        this.caseSensitive = caseSensitive;
         try {
             if (caseSensitive) {
                 pattern = Pattern.compile(patternStr);
@@ -63,4 +72,94 @@ public class RegexPattern implements StringMatchingPattern {
         return new RegexMatcher(pattern.matcher(regex));
     }
 
+    public boolean isCaseSensitive() {
+        return caseSensitive;
+    }
+
+    /**
+     * Get the literal text that every string matched by this pattern must start with.  Only patterns anchored with
+     * a leading <code>^</code> have a prefix, extraction stops at the first character that is not a plain (or escaped)
+     * ASCII literal.
+     *
+     * @return the prefix, or an empty string if the pattern has none (or one could not be safely determined)
+     */
+    public String getLiteralPrefix() {
+        return getLiteralPrefix(patternStr);
+    }
+
+    static String getLiteralPrefix(String regex) {
+        if (regex == null || !regex.startsWith("^") || hasTopLevelAlternation(regex)) {
+            return "";
+        }
+        final int length = regex.length();
+        final StringBuilder prefix = new StringBuilder();
+        int i = 1;
+        while (i < length) {
+            char c = regex.charAt(i);
+            int next = i + 1;
+            if (c == '\\') {
+                if (next >= length) break;
+                c = regex.charAt(next);
+                // \d, \w, \Q etc are not literals
+                if (Character.isLetterOrDigit(c)) break;
+                next++;
+            } else if (META_CHARS.indexOf(c) != -1) {
+                break;
+            }
+            if (c > '\u007f') break;
+            if (next < length) {
+                char quantifier = regex.charAt(next);
+                // the char may not be there at all
+                if (quantifier == '?' || quantifier == '*' || quantifier == '{') break;
+                if (quantifier == '+') {
+                    prefix.append(c);
+                    break;
+                }
+            }
+            prefix.append(c);
+            i = next;
+        }
+        return prefix.toString();
+    }
+
+    /**
+     * Check for a <code>|</code> outside of any group or character class, ie, "^/a|/b", as in that case the leading
+     * anchor does not apply to the whole pattern.
+     */
+    private static boolean hasTopLevelAlternation(String regex) {
+        final int length = regex.length();
+        int groupDepth = 0;
+        int classDepth = 0;
+        for (int i = 0; i < length; i++) {
+            char c = regex.charAt(i);
+            if (c == '\\') {
+                if (i + 1 < length && regex.charAt(i + 1) == 'Q') {
+                    int quoteEnd = regex.indexOf("\\E", i + 2);
+                    if (quoteEnd == -1) return false;
+                    i = quoteEnd + 1;
+                } else {
+                    i++;
+                }
+            } else if (classDepth > 0) {
+                if (c == '[') {
+                    classDepth++;
+                } else if (c == ']') {
+                    classDepth--;
+                }
+            } else if (c == '[') {
+                classDepth = 1;
+                // a ']' straight after the opening '[' (or '[^') is a literal
+                if (i + 1 < length && regex.charAt(i + 1) == '^') i++;
+                if (i + 1 < length && regex.charAt(i + 1) == ']') i++;
+            } else if (c == '(') {
+                groupDepth++;
+            } else if (c == ')') {
+                groupDepth--;
+            } else if (c == '|' && groupDepth <= 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
 }
@@ -0,0 +1,103 @@
+/**
+ * Copyright (c) 2005-2007, Paul Tuckey
+ * All rights reserved.
+ * ====================================================================
+ * Licensed under the BSD License. Text as follows.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *   - Redistributions of source code must retain the above copyright
+ *     notice, this list of conditions and the following disclaimer.
+ *   - Redistributions in binary form must reproduce the above
+ *     copyright notice, this list of conditions and the following
+ *     disclaimer in the documentation and/or other materials provided
+ *     with the distribution.
+ *   - Neither the name tuckey.org nor the names of its contributors
+ *     may be used to endorse or promote products derived from this
+ *     software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ * COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN
+ * ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * ====================================================================
+ */
+package org.tuckey.web.filters.urlrewrite.utils;
+
+import java.util.BitSet;
+
+/**
+ * Matcher for a RegexSetPattern, finding tells if any of the patterns in the set (possibly) match, capture groups
+ * are not available (only group 0, the whole string).
+ *
+ * @see RegexSetPattern
+ */
+public class RegexSetMatcher implements StringMatchingMatcher {
+
+    private RegexSetPattern pattern;
+    private String matchStr;
+    private BitSet matchingPatterns;
+    private boolean found = false;
+
+    public RegexSetMatcher(RegexSetPattern pattern, String matchStr) {
+        this.pattern = pattern;
+        this.matchStr = matchStr;
+    }
+
+    public boolean find() {
+        found = !getMatchingPatterns().isEmpty();
+        return found;
+    }
+
+    /**
+     * @return the indexes of the patterns that may match
+     */
+    public BitSet getMatchingPatterns() {
+        if (matchingPatterns == null) {
+            matchingPatterns = pattern.getMatchingPatterns(matchStr);
+        }
+        return matchingPatterns;
+    }
+
+    public boolean isFound() {
+        return found;
+    }
+
+    public void reset() {
+        found = false;
+    }
+
+    public int groupCount() {
+        return 0;
+    }
+
+    public String group(int groupId) {
+        if (found && groupId == 0) {
+            return matchStr;
+        }
+        return null;
+    }
+
+    public int start() {
+        return found ? 0 : -1;
+    }
+
+    public int end() {
+        return found ? matchStr.length() : -1;
+    }
+
+    public boolean isMultipleMatchingSupported() {
+        return false;
+    }
+
+}
@@ -0,0 +1,1074 @@
+/**
+ * Copyright (c) 2005-2007, Paul Tuckey
+ * All rights reserved.
+ * ====================================================================
+ * Licensed under the BSD License. Text as follows.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *   - Redistributions of source code must retain the above copyright
+ *     notice, this list of conditions and the following disclaimer.
+ *   - Redistributions in binary form must reproduce the above
+ *     copyright notice, this list of conditions and the following
+ *     disclaimer in the documentation and/or other materials provided
+ *     with the distribution.
+ *   - Neither the name tuckey.org nor the names of its contributors
+ *     may be used to endorse or promote products derived from this
+ *     software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ * COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN
+ * ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * ====================================================================
+ */
+package org.tuckey.web.filters.urlrewrite.utils;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A set of regular expressions compiled into one combined automaton so that a single pass over a string tells which
+ * of the expressions can match it (using <code>find()</code> semantics, ie, anywhere in the string).
+ * <p/>
+ * The automaton is only used to rule patterns out, it never needs to be exact the other way around: anything it
+ * cannot model exactly is over approximated (possessive quantifiers, word boundaries, large repetitions, exotic
+ * character classes) so that the set returned is always a superset of the patterns <code>java.util.regex</code>
+ * would match.  The individual patterns still need to be run to get capture groups.  Patterns using features
+ * that cannot be approximated (backreferences, lookarounds, some flags) are flagged as unsupported and are always
+ * returned as possible matches.
+ * <p/>
+ * The NFA is turned into a DFA lazily as strings are matched, the DFA states are cached (up to a limit) and shared
+ * between threads.  Once the cache is full transitions are computed on the fly.
+ */
+public class RegexSetPattern implements StringMatchingPattern {
+
+    private static Log log = Log.getLog(RegexSetPattern.class);
+
+    private static final int MAX_EXPANDED_REPEAT = 16;
+    private static final int MAX_STATES_PER_PATTERN = 5000;
+    private static final int MAX_CACHED_DFA_STATES = 10000;
+    private static final int MAX_CACHED_DFA_INTS = 2000000;
+    private static final int ASCII_SIZE = 128;
+
+    // nfa state kinds
+    private static final int KIND_EPSILON = 0;
+    private static final int KIND_CHAR = 1;
+    private static final int KIND_BEGIN = 2;
+    private static final int KIND_END = 3;
+    private static final int KIND_MATCH = 4;
+
+    private final int patternCount;
+    private final BitSet unsupported = new BitSet();
+
+    // the nfa, indexed by state id
+    private int[] kinds;
+    private CharSet[] charSets;
+    private boolean[] caseInsensitive;
+    private int[] nexts;
+    private int[][] epsilons;
+    private int[] matchPatterns;
+
+    private int[] startStates;
+    private boolean[] inUnanchoredStart;
+    private int[] unanchoredStart;
+    private int[] unanchoredStartMatched;
+    private DfaState initialState;
+
+    private final ConcurrentMap<StateKey, DfaState> dfaStates = new ConcurrentHashMap<>();
+    private final AtomicInteger cachedInts = new AtomicInteger();
+
+    /**
+     * Compile the patterns, a null entry is allowed and is treated as unsupported (ie, always a possible match).
+     *
+     * @param patternStrs    regular expressions as accepted by <code>java.util.regex.Pattern</code>
+     * @param caseSensitives for each pattern whether it is case sensitive
+     */
+    public RegexSetPattern(String[] patternStrs, boolean[] caseSensitives) {
+        patternCount = patternStrs.length;
+        NfaBuilder builder = new NfaBuilder();
+        List<Integer> starts = new ArrayList<>();
+        for (int i = 0; i < patternCount; i++) {
+            String patternStr = patternStrs[i];
+            if (patternStr == null) {
+                unsupported.set(i);
+                continue;
+            }
+            int mark = builder.size();
+            try {
+                Node node = new Parser(patternStr, !caseSensitives[i]).parse();
+                builder.limit = mark + MAX_STATES_PER_PATTERN;
+                Frag frag = builder.compile(node);
+                int match = builder.add(KIND_MATCH, null, false);
+                builder.matchPatterns.set(match, i);
+                builder.addEpsilon(frag.end, match);
+                starts.add(frag.start);
+
+            } catch (UnsupportedPatternException e) {
+                if (log.isDebugEnabled()) {
+                    log.debug("pattern " + patternStr + " cannot be added to regex set, " + e.getMessage());
+                }
+                builder.truncate(mark);
+                unsupported.set(i);
+            }
+        }
+        builder.build(this);
+        startStates = toIntArray(starts);
+
+        inUnanchoredStart = new boolean[kinds.length];
+        unanchoredStart = closure(startStates, false);
+        for (int state : unanchoredStart) {
+            inUnanchoredStart[state] = true;
+        }
+        unanchoredStartMatched = matchedPatterns(unanchoredStart);
+        initialState = newState(closure(startStates, true), true, true);
+        if (log.isDebugEnabled()) {
+            log.debug("regex set compiled " + patternCount + " patterns (" + unsupported.cardinality() +
+                    " unsupported) into " + kinds.length + " states");
+        }
+    }
+
+    public StringMatchingMatcher matcher(String matchStr) {
+        return new RegexSetMatcher(this, matchStr);
+    }
+
+    public int getPatternCount() {
+        return patternCount;
+    }
+
+    /**
+     * @return true if the pattern could not be compiled into the automaton, it will always be a possible match
+     */
+    public boolean isUnsupported(int patternIdx) {
+        return unsupported.get(patternIdx);
+    }
+
+    /**
+     * Get the patterns that may match somewhere in the string.
+     *
+     * @return a new set of pattern indexes, includes all the unsupported patterns
+     */
+    public BitSet getMatchingPatterns(String str) {
+        BitSet result = (BitSet) unsupported.clone();
+        if (str == null) {
+            return result;
+        }
+        final int length = str.length();
+        for (int i = 0; i < length; i++) {
+            char c = str.charAt(i);
+            if (isLineTerminator(c) || Character.isSurrogate(c)) {
+                // java regex treats these specially, ("$" can match before a final line terminator and "." matches
+                // a whole code point) so don't even try
+                result.set(0, patternCount);
+                return result;
+            }
+        }
+        addAll(result, unanchoredStartMatched);
+        DfaState state = initialState;
+        addAll(result, state.matchedPatterns);
+        for (int i = 0; i < length; i++) {
+            state = next(state, str.charAt(i));
+            addAll(result, state.matchedPatterns);
+        }
+        addAll(result, getEndMatchedPatterns(state));
+        return result;
+    }
+
+    private static boolean isLineTerminator(char c) {
+        return c == '\n' || c == '\r' || c == '\u0085' || c == '\u2028' || c == '\u2029';
+    }
+
+    private static void addAll(BitSet result, int[] patternIdxs) {
+        for (int patternIdx : patternIdxs) {
+            result.set(patternIdx);
+        }
+    }
+
+    private DfaState next(DfaState state, char c) {
+        DfaState next;
+        if (c < ASCII_SIZE) {
+            next = state.asciiNexts.get(c);
+            if (next == null) {
+                next = computeNext(state, c);
+                // only link to cached states so that uncached ones can be collected
+                if (next.cached) state.asciiNexts.set(c, next);
+            }
+        } else {
+            ConcurrentMap<Character, DfaState> otherNexts = state.getOtherNexts();
+            next = otherNexts.get(c);
+            if (next == null) {
+                next = computeNext(state, c);
+                if (next.cached) otherNexts.put(c, next);
+            }
+        }
+        return next;
+    }
+
+    private DfaState computeNext(DfaState state, char c) {
+        List<Integer> seeds = new ArrayList<>();
+        addCharTargets(state.states, c, seeds);
+        addCharTargets(unanchoredStart, c, seeds);
+        int[] next = closure(toIntArray(seeds), false);
+        StateKey key = new StateKey(next);
+        DfaState cached = dfaStates.get(key);
+        if (cached != null) {
+            return cached;
+        }
+        if (dfaStates.size() < MAX_CACHED_DFA_STATES && cachedInts.get() < MAX_CACHED_DFA_INTS) {
+            DfaState created = newState(next, false, true);
+            DfaState existing = dfaStates.putIfAbsent(key, created);
+            if (existing != null) {
+                return existing;
+            }
+            cachedInts.addAndGet(next.length);
+            return created;
+        }
+        return newState(next, false, false);
+    }
+
+    private void addCharTargets(int[] states, char c, List<Integer> seeds) {
+        for (int state : states) {
+            if (kinds[state] == KIND_CHAR && matchesChar(state, c)) {
+                seeds.add(nexts[state]);
+            }
+        }
+    }
+
+    private boolean matchesChar(int state, char c) {
+        CharSet charSet = charSets[state];
+        if (charSet.contains(c)) {
+            return true;
+        }
+        // case insensitive matching only folds US-ASCII, as with java.util.regex.Pattern.CASE_INSENSITIVE
+        if (caseInsensitive[state]) {
+            if (c >= 'a' && c <= 'z') return charSet.contains((char) (c - ('a' - 'A')));
+            if (c >= 'A' && c <= 'Z') return charSet.contains((char) (c + ('a' - 'A')));
+        }
+        return false;
+    }
+
+    private int[] getEndMatchedPatterns(DfaState state) {
+        int[] endMatched = state.endMatchedPatterns;
+        if (endMatched == null) {
+            List<Integer> seeds = new ArrayList<>();
+            addEndTargets(state.states, seeds);
+            addEndTargets(unanchoredStart, seeds);
+            endMatched = matchedPatterns(closure(toIntArray(seeds), state.atBegin, true));
+            state.endMatchedPatterns = endMatched;
+        }
+        return endMatched;
+    }
+
+    private void addEndTargets(int[] states, List<Integer> seeds) {
+        for (int state : states) {
+            if (kinds[state] == KIND_END) {
+                seeds.add(nexts[state]);
+            }
+        }
+    }
+
+    private DfaState newState(int[] states, boolean atBegin, boolean cached) {
+        return new DfaState(states, atBegin, matchedPatterns(states), cached);
+    }
+
+    private int[] matchedPatterns(int[] states) {
+        List<Integer> matched = new ArrayList<>();
+        for (int state : states) {
+            if (kinds[state] == KIND_MATCH) {
+                matched.add(matchPatterns[state]);
+            }
+        }
+        return toIntArray(matched);
+    }
+
+    private int[] closure(int[] seeds, boolean atBegin) {
+        return closure(seeds, atBegin, false);
+    }
+
+    /**
+     * Follow the epsilon moves from the seeds, keeping the states that consume input or are pending an end of input
+     * check (and matches), leaving out the states that are always there from the unanchored start.
+     */
+    private int[] closure(int[] seeds, boolean atBegin, boolean atEnd) {
+        boolean[] seen = new boolean[kinds.length];
+        int[] stack = new int[kinds.length];
+        int stackSize = 0;
+        List<Integer> result = new ArrayList<>();
+        for (int seed : seeds) {
+            if (!seen[seed]) {
+                seen[seed] = true;
+                stack[stackSize++] = seed;
+            }
+        }
+        while (stackSize > 0) {
+            int state = stack[--stackSize];
+            switch (kinds[state]) {
+                case KIND_EPSILON:
+                    for (int target : epsilons[state]) {
+                        if (!seen[target]) {
+                            seen[target] = true;
+                            stack[stackSize++] = target;
+                        }
+                    }
+                    break;
+                case KIND_BEGIN:
+                case KIND_END:
+                    boolean passes = kinds[state] == KIND_BEGIN ? atBegin : atEnd;
+                    if (passes) {
+                        int target = nexts[state];
+                        if (!seen[target]) {
+                            seen[target] = true;
+                            stack[stackSize++] = target;
+                        }
+                    } else if (kinds[state] == KIND_END && (inUnanchoredStart == null || !inUnanchoredStart[state])) {
+                        result.add(state);
+                    }
+                    break;
+                default:
+                    if (inUnanchoredStart == null || !inUnanchoredStart[state]) {
+                        result.add(state);
+                    }
+            }
+        }
+        int[] states = toIntArray(result);
+        Arrays.sort(states);
+        return states;
+    }
+
+    private static int[] toIntArray(List<Integer> list) {
+        int[] array = new int[list.size()];
+        for (int i = 0; i < array.length; i++) {
+            array[i] = list.get(i);
+        }
+        return array;
+    }
+
+    private static final class DfaState {
+        // nfa states, not including those of the unanchored start (which are implied)
+        final int[] states;
+        final boolean atBegin;
+        final int[] matchedPatterns;
+        final boolean cached;
+        final AtomicReferenceArray<DfaState> asciiNexts = new AtomicReferenceArray<>(ASCII_SIZE);
+        private volatile ConcurrentMap<Character, DfaState> otherNexts;
+        volatile int[] endMatchedPatterns;
+
+        DfaState(int[] states, boolean atBegin, int[] matchedPatterns, boolean cached) {
+            this.states = states;
+            this.atBegin = atBegin;
+            this.matchedPatterns = matchedPatterns;
+            this.cached = cached;
+        }
+
+        ConcurrentMap<Character, DfaState> getOtherNexts() {
+            ConcurrentMap<Character, DfaState> map = otherNexts;
+            if (map == null) {
+                synchronized (this) {
+                    map = otherNexts;
+                    if (map == null) {
+                        map = new ConcurrentHashMap<>();
+                        otherNexts = map;
+                    }
+                }
+            }
+            return map;
+        }
+    }
+
+    private static final class StateKey {
+        private final int[] states;
+        private final int hash;
+
+        StateKey(int[] states) {
+            this.states = states;
+            this.hash = Arrays.hashCode(states);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof StateKey && Arrays.equals(states, ((StateKey) o).states);
+        }
+    }
+
+    /**
+     * Thrown when a pattern uses something the automaton cannot model.
+     */
+    private static final class UnsupportedPatternException extends Exception {
+        private static final long serialVersionUID = 1L;
+
+        UnsupportedPatternException(String message) {
+            super(message);
+        }
+    }
+
+    /**
+     * A set of chars as sorted, non overlapping, inclusive ranges.
+     */
+    private static final class CharSet {
+
+        static final CharSet ANY = new CharSet(new int[]{0, Character.MAX_VALUE});
+        static final CharSet EMPTY = new CharSet(new int[0]);
+        static final CharSet DIGIT = new CharSet(new int[]{'0', '9'});
+        static final CharSet WORD = new CharSet(new int[]{'0', '9', 'A', 'Z', '_', '_', 'a', 'z'});
+        static final CharSet SPACE = new CharSet(new int[]{'\t', '\r', ' ', ' '});
+
+        private final int[] ranges;
+
+        private CharSet(int[] ranges) {
+            this.ranges = ranges;
+        }
+
+        static CharSet range(int lo, int hi) {
+            return new CharSet(new int[]{Math.min(lo, hi), Math.max(lo, hi)});
+        }
+
+        boolean contains(char c) {
+            for (int i = 0; i < ranges.length; i += 2) {
+                if (c < ranges[i]) return false;
+                if (c <= ranges[i + 1]) return true;
+            }
+            return false;
+        }
+
+        CharSet union(CharSet other) {
+            int[] all = new int[ranges.length + other.ranges.length];
+            System.arraycopy(ranges, 0, all, 0, ranges.length);
+            System.arraycopy(other.ranges, 0, all, ranges.length, other.ranges.length);
+            int count = all.length / 2;
+            long[] packed = new long[count];
+            for (int i = 0; i < count; i++) {
+                packed[i] = ((long) all[i * 2] << 32) | all[i * 2 + 1];
+            }
+            Arrays.sort(packed);
+            int[] merged = new int[all.length];
+            int size = 0;
+            for (long range : packed) {
+                int lo = (int) (range >>> 32);
+                int hi = (int) range;
+                if (size > 0 && lo <= merged[size - 1] + 1) {
+                    merged[size - 1] = Math.max(merged[size - 1], hi);
+                } else {
+                    merged[size++] = lo;
+                    merged[size++] = hi;
+                }
+            }
+            return new CharSet(Arrays.copyOf(merged, size));
+        }
+
+        CharSet complement() {
+            int[] result = new int[ranges.length + 2];
+            int size = 0;
+            int next = 0;
+            for (int i = 0; i < ranges.length; i += 2) {
+                if (ranges[i] > next) {
+                    result[size++] = next;
+                    result[size++] = ranges[i] - 1;
+                }
+                next = ranges[i + 1] + 1;
+            }
+            if (next <= Character.MAX_VALUE) {
+                result[size++] = next;
+                result[size++] = Character.MAX_VALUE;
+            }
+            return new CharSet(Arrays.copyOf(result, size));
+        }
+    }
+
+    // the parsed form of a pattern
+
+    private abstract static class Node {
+    }
+
+    private static final class CharNode extends Node {
+        final CharSet charSet;
+        final boolean caseInsensitive;
+
+        CharNode(CharSet charSet, boolean caseInsensitive) {
+            this.charSet = charSet;
+            this.caseInsensitive = caseInsensitive;
+        }
+    }
+
+    private static final class SeqNode extends Node {
+        final List<Node> nodes;
+
+        SeqNode(List<Node> nodes) {
+            this.nodes = nodes;
+        }
+    }
+
+    private static final class AltNode extends Node {
+        final List<Node> nodes;
+
+        AltNode(List<Node> nodes) {
+            this.nodes = nodes;
+        }
+    }
+
+    private static final class RepeatNode extends Node {
+        final Node node;
+        final int min;
+        // -1 for unbounded
+        final int max;
+
+        RepeatNode(Node node, int min, int max) {
+            this.node = node;
+            this.min = min;
+            this.max = max;
+        }
+    }
+
+    private static final class AssertNode extends Node {
+        final int kind;
+
+        AssertNode(int kind) {
+            this.kind = kind;
+        }
+    }
+
+    /**
+     * Parses the java.util.regex syntax, the pattern is assumed to be valid (ie, it has already been compiled).
+     */
+    private static final class Parser {
+
+        private final String p;
+        private final int length;
+        private int pos = 0;
+        private boolean caseInsensitive;
+
+        Parser(String p, boolean caseInsensitive) {
+            p = unquote(p);
+            this.p = p;
+            this.length = p.length();
+            this.caseInsensitive = caseInsensitive;
+        }
+
+        /**
+         * Replace \Q...\E quoting with escaped chars, so that quantifiers after it apply to the last char only.
+         */
+        private static String unquote(String p) {
+            int quoteStart = p.indexOf("\\Q");
+            if (quoteStart == -1) return p;
+            StringBuilder sb = new StringBuilder(p.length() * 2);
+            int i = 0;
+            while (i < p.length()) {
+                char c = p.charAt(i);
+                if (c == '\\' && i + 1 < p.length()) {
+                    if (p.charAt(i + 1) == 'Q') {
+                        int quoteEnd = p.indexOf("\\E", i + 2);
+                        if (quoteEnd == -1) quoteEnd = p.length();
+                        for (int j = i + 2; j < quoteEnd; j++) {
+                            char quoted = p.charAt(j);
+                            if (!Character.isLetterOrDigit(quoted)) sb.append('\\');
+                            sb.append(quoted);
+                        }
+                        i = quoteEnd + 2;
+                        continue;
+                    }
+                    sb.append(c).append(p.charAt(i + 1));
+                    i += 2;
+                    continue;
+                }
+                sb.append(c);
+                i++;
+            }
+            return sb.toString();
+        }
+
+        Node parse() throws UnsupportedPatternException {
+            Node node = parseAlt();
+            if (pos < length) {
+                throw new UnsupportedPatternException("unexpected " + p.charAt(pos) + " at " + pos);
+            }
+            return node;
+        }
+
+        private Node parseAlt() throws UnsupportedPatternException {
+            List<Node> alts = new ArrayList<>();
+            alts.add(parseSeq());
+            while (pos < length && p.charAt(pos) == '|') {
+                pos++;
+                alts.add(parseSeq());
+            }
+            return alts.size() == 1 ? alts.get(0) : new AltNode(alts);
+        }
+
+        private Node parseSeq() throws UnsupportedPatternException {
+            List<Node> nodes = new ArrayList<>();
+            while (pos < length && p.charAt(pos) != '|' && p.charAt(pos) != ')') {
+                nodes.add(parseRepeat());
+            }
+            return nodes.size() == 1 ? nodes.get(0) : new SeqNode(nodes);
+        }
+
+        private Node parseRepeat() throws UnsupportedPatternException {
+            Node node = parseAtom();
+            while (pos < length) {
+                char c = p.charAt(pos);
+                int min;
+                int max;
+                if (c == '*') {
+                    min = 0;
+                    max = -1;
+                    pos++;
+                } else if (c == '+') {
+                    min = 1;
+                    max = -1;
+                    pos++;
+                } else if (c == '?') {
+                    min = 0;
+                    max = 1;
+                    pos++;
+                } else if (c == '{') {
+                    int close = p.indexOf('}', pos);
+                    if (close == -1) throw new UnsupportedPatternException("bad repetition at " + pos);
+                    String counts = p.substring(pos + 1, close);
+                    int comma = counts.indexOf(',');
+                    try {
+                        if (comma == -1) {
+                            min = Integer.parseInt(counts.trim());
+                            max = min;
+                        } else {
+                            min = Integer.parseInt(counts.substring(0, comma).trim());
+                            String maxStr = counts.substring(comma + 1).trim();
+                            max = maxStr.length() == 0 ? -1 : Integer.parseInt(maxStr);
+                        }
+                    } catch (NumberFormatException e) {
+                        throw new UnsupportedPatternException("bad repetition " + counts);
+                    }
+                    pos = close + 1;
+                } else {
+                    break;
+                }
+                // lazy and possessive quantifiers, possessive can only match less so it's ok to ignore
+                if (pos < length && (p.charAt(pos) == '?' || p.charAt(pos) == '+')) {
+                    pos++;
+                }
+                if (min > MAX_EXPANDED_REPEAT || max > MAX_EXPANDED_REPEAT) {
+                    // too big to expand, approximate with x* or x+
+                    min = min > 0 ? 1 : 0;
+                    max = -1;
+                }
+                node = new RepeatNode(node, min, max);
+            }
+            return node;
+        }
+
+        private Node parseAtom() throws UnsupportedPatternException {
+            char c = p.charAt(pos++);
+            switch (c) {
+                case '(':
+                    return parseGroup();
+                case '[':
+                    return new CharNode(parseClass(), caseInsensitive);
+                case '.':
+                    return new CharNode(CharSet.ANY, false);
+                case '^':
+                    return new AssertNode(KIND_BEGIN);
+                case '$':
+                    return new AssertNode(KIND_END);
+                case '\\':
+                    return parseEscape();
+                case '*':
+                case '+':
+                case '?':
+                case '{':
+                    throw new UnsupportedPatternException("dangling " + c + " at " + pos);
+                default:
+                    return literal(c);
+            }
+        }
+
+        private Node literal(char c) {
+            return new CharNode(CharSet.range(c, c), caseInsensitive);
+        }
+
+        private Node parseGroup() throws UnsupportedPatternException {
+            if (pos < length && p.charAt(pos) == '?') {
+                pos++;
+                if (pos >= length) throw new UnsupportedPatternException("bad group");
+                char c = p.charAt(pos);
+                if (c == ':' || c == '>') {
+                    // non capturing or atomic (atomic can only match less so treat as a plain group)
+                    pos++;
+                } else if (c == '=' || c == '!') {
+                    throw new UnsupportedPatternException("lookahead");
+                } else if (c == '<') {
+                    pos++;
+                    if (pos < length && (p.charAt(pos) == '=' || p.charAt(pos) == '!')) {
+                        throw new UnsupportedPatternException("lookbehind");
+                    }
+                    int close = p.indexOf('>', pos);
+                    if (close == -1) throw new UnsupportedPatternException("bad named group");
+                    pos = close + 1;
+                } else {
+                    boolean on = true;
+                    while (pos < length && p.charAt(pos) != ':' && p.charAt(pos) != ')') {
+                        char flag = p.charAt(pos++);
+                        if (flag == '-') {
+                            on = false;
+                        } else if (flag == 'i') {
+                            // turning case insensitivity off is ignored, insensitive matches a superset
+                            if (on) caseInsensitive = true;
+                        } else if (flag != 's' && flag != 'm' && flag != 'd') {
+                            throw new UnsupportedPatternException("flag " + flag);
+                        }
+                    }
+                    if (pos >= length) throw new UnsupportedPatternException("bad flags");
+                    if (p.charAt(pos++) == ')') {
+                        // flags apply to the rest of the pattern
+                        return new SeqNode(new ArrayList<Node>());
+                    }
+                }
+            }
+            Node node = parseAlt();
+            if (pos >= length || p.charAt(pos) != ')') {
+                throw new UnsupportedPatternException("unclosed group");
+            }
+            pos++;
+            return node;
+        }
+
+        private Node parseEscape() throws UnsupportedPatternException {
+            if (pos >= length) throw new UnsupportedPatternException("trailing \\");
+            char c = p.charAt(pos);
+            switch (c) {
+                case 'b':
+                case 'B':
+                case 'G':
+                    // assertions we can't check, assume true
+                    pos++;
+                    return new SeqNode(new ArrayList<Node>());
+                case 'A':
+                    pos++;
+                    return new AssertNode(KIND_BEGIN);
+                case 'z':
+                case 'Z':
+                    pos++;
+                    return new AssertNode(KIND_END);
+                default:
+                    CharSet charSet = parseEscapedChar();
+                    return new CharNode(charSet, caseInsensitive);
+            }
+        }
+
+        /**
+         * Parse an escape that represents a char or a class of chars, pos is on the char after the '\'.
+         */
+        private CharSet parseEscapedChar() throws UnsupportedPatternException {
+            char c = p.charAt(pos++);
+            switch (c) {
+                case 'd':
+                    return CharSet.DIGIT;
+                case 'D':
+                    return CharSet.DIGIT.complement();
+                case 'w':
+                    return CharSet.WORD;
+                case 'W':
+                    return CharSet.WORD.complement();
+                case 's':
+                    return CharSet.SPACE;
+                case 'S':
+                    return CharSet.SPACE.complement();
+                case 'p':
+                case 'P':
+                    // unicode/posix classes, approximate with any char
+                    if (pos < length && p.charAt(pos) == '{') {
+                        int close = p.indexOf('}', pos);
+                        if (close == -1) throw new UnsupportedPatternException("bad property");
+                        pos = close + 1;
+                    } else {
+                        pos++;
+                    }
+                    return CharSet.ANY;
+                case 'h':
+                case 'H':
+                case 'v':
+                case 'V':
+                case 'R':
+                    return CharSet.ANY;
+                case 't':
+                    return CharSet.range('\t', '\t');
+                case 'n':
+                    return CharSet.range('\n', '\n');
+                case 'r':
+                    return CharSet.range('\r', '\r');
+                case 'f':
+                    return CharSet.range('\f', '\f');
+                case 'a':
+                    return CharSet.range('\u0007', '\u0007');
+                case 'e':
+                    return CharSet.range('\u001B', '\u001B');
+                case 'c':
+                    if (pos >= length) throw new UnsupportedPatternException("bad control char");
+                    char control = (char) (p.charAt(pos++) ^ 64);
+                    return CharSet.range(control, control);
+                case '0':
+                    int octal = 0;
+                    int digits = 0;
+                    while (pos < length && digits < 3 && p.charAt(pos) >= '0' && p.charAt(pos) <= '7'
+                            && octal * 8 + (p.charAt(pos) - '0') <= 0377) {
+                        octal = octal * 8 + (p.charAt(pos++) - '0');
+                        digits++;
+                    }
+                    return CharSet.range(octal, octal);
+                case 'x':
+                    String hex;
+                    if (pos < length && p.charAt(pos) == '{') {
+                        int close = p.indexOf('}', pos);
+                        if (close == -1) throw new UnsupportedPatternException("bad hex");
+                        hex = p.substring(pos + 1, close);
+                        pos = close + 1;
+                    } else {
+                        hex = p.substring(pos, Math.min(pos + 2, length));
+                        pos += 2;
+                    }
+                    return hexChar(hex);
+                case 'u':
+                    String unicode = p.substring(pos, Math.min(pos + 4, length));
+                    pos += 4;
+                    return hexChar(unicode);
+                default:
+                    if (Character.isLetterOrDigit(c)) {
+                        // back references and anything else we don't know about
+                        throw new UnsupportedPatternException("escape \\" + c);
+                    }
+                    return CharSet.range(c, c);
+            }
+        }
+
+        private static CharSet hexChar(String hex) throws UnsupportedPatternException {
+            int value;
+            try {
+                value = Integer.parseInt(hex, 16);
+            } catch (NumberFormatException e) {
+                throw new UnsupportedPatternException("bad hex " + hex);
+            }
+            if (value > Character.MAX_VALUE) throw new UnsupportedPatternException("supplementary char " + hex);
+            return CharSet.range(value, value);
+        }
+
+        /**
+         * Parse a character class, pos is on the char after the '['.
+         */
+        private CharSet parseClass() throws UnsupportedPatternException {
+            boolean negate = false;
+            if (pos < length && p.charAt(pos) == '^') {
+                negate = true;
+                pos++;
+            }
+            CharSet result = CharSet.EMPTY;
+            boolean complex = false;
+            boolean first = true;
+            while (true) {
+                if (pos >= length) throw new UnsupportedPatternException("unclosed class");
+                char c = p.charAt(pos);
+                if (c == ']' && !first) {
+                    pos++;
+                    break;
+                }
+                first = false;
+                if (c == '[') {
+                    pos++;
+                    result = result.union(parseClass());
+                    complex = true;
+                    continue;
+                }
+                if (c == '&' && pos + 1 < length && p.charAt(pos + 1) == '&') {
+                    // intersection, the union of both sides is a superset
+                    pos += 2;
+                    complex = true;
+                    continue;
+                }
+                CharSet item = parseClassItem();
+                if (isSingleChar(item) && pos + 1 < length && p.charAt(pos) == '-' && p.charAt(pos + 1) != ']'
+                        && p.charAt(pos + 1) != '[') {
+                    pos++;
+                    CharSet hi = parseClassItem();
+                    if (!isSingleChar(hi)) throw new UnsupportedPatternException("bad range");
+                    item = CharSet.range(item.ranges[0], hi.ranges[0]);
+                }
+                result = result.union(item);
+            }
+            if (negate) {
+                return complex ? CharSet.ANY : result.complement();
+            }
+            return result;
+        }
+
+        private CharSet parseClassItem() throws UnsupportedPatternException {
+            char c = p.charAt(pos++);
+            if (c == '\\') {
+                if (pos >= length) throw new UnsupportedPatternException("trailing \\");
+                return parseEscapedChar();
+            }
+            return CharSet.range(c, c);
+        }
+
+        private static boolean isSingleChar(CharSet charSet) {
+            return charSet.ranges.length == 2 && charSet.ranges[0] == charSet.ranges[1];
+        }
+    }
+
+    private static final class Frag {
+        final int start;
+        // always an epsilon state with nothing going out of it yet
+        final int end;
+
+        Frag(int start, int end) {
+            this.start = start;
+            this.end = end;
+        }
+    }
+
+    /**
+     * Thompson construction of the nfa from the parsed patterns.
+     */
+    private static final class NfaBuilder {
+
+        final List<Integer> kinds = new ArrayList<>();
+        final List<CharSet> charSets = new ArrayList<>();
+        final List<Boolean> caseInsensitives = new ArrayList<>();
+        final List<Integer> nexts = new ArrayList<>();
+        final List<List<Integer>> epsilons = new ArrayList<>();
+        final List<Integer> matchPatterns = new ArrayList<>();
+        int limit = Integer.MAX_VALUE;
+
+        int size() {
+            return kinds.size();
+        }
+
+        void truncate(int size) {
+            while (kinds.size() > size) {
+                int last = kinds.size() - 1;
+                kinds.remove(last);
+                charSets.remove(last);
+                caseInsensitives.remove(last);
+                nexts.remove(last);
+                epsilons.remove(last);
+                matchPatterns.remove(last);
+            }
+        }
+
+        int add(int kind, CharSet charSet, boolean caseInsensitive) throws UnsupportedPatternException {
+            if (kinds.size() >= limit) {
+                throw new UnsupportedPatternException("too many states");
+            }
+            kinds.add(kind);
+            charSets.add(charSet);
+            caseInsensitives.add(caseInsensitive);
+            nexts.add(-1);
+            epsilons.add(new ArrayList<Integer>(2));
+            matchPatterns.add(-1);
+            return kinds.size() - 1;
+        }
+
+        void addEpsilon(int from, int to) {
+            epsilons.get(from).add(to);
+        }
+
+        Frag compile(Node node) throws UnsupportedPatternException {
+            if (node instanceof CharNode) {
+                CharNode charNode = (CharNode) node;
+                int start = add(KIND_CHAR, charNode.charSet, charNode.caseInsensitive);
+                int end = add(KIND_EPSILON, null, false);
+                nexts.set(start, end);
+                return new Frag(start, end);
+
+            } else if (node instanceof AssertNode) {
+                int start = add(((AssertNode) node).kind, null, false);
+                int end = add(KIND_EPSILON, null, false);
+                nexts.set(start, end);
+                return new Frag(start, end);
+
+            } else if (node instanceof SeqNode) {
+                int start = add(KIND_EPSILON, null, false);
+                int end = start;
+                for (Node child : ((SeqNode) node).nodes) {
+                    Frag frag = compile(child);
+                    addEpsilon(end, frag.start);
+                    end = frag.end;
+                }
+                return new Frag(start, end);
+
+            } else if (node instanceof AltNode) {
+                int start = add(KIND_EPSILON, null, false);
+                int end = add(KIND_EPSILON, null, false);
+                for (Node child : ((AltNode) node).nodes) {
+                    Frag frag = compile(child);
+                    addEpsilon(start, frag.start);
+                    addEpsilon(frag.end, end);
+                }
+                return new Frag(start, end);
+
+            } else {
+                RepeatNode repeat = (RepeatNode) node;
+                int start = add(KIND_EPSILON, null, false);
+                int end = start;
+                for (int i = 0; i < repeat.min; i++) {
+                    Frag frag = compile(repeat.node);
+                    addEpsilon(end, frag.start);
+                    end = frag.end;
+                }
+                if (repeat.max == -1) {
+                    Frag frag = compile(repeat.node);
+                    int loopEnd = add(KIND_EPSILON, null, false);
+                    addEpsilon(end, frag.start);
+                    addEpsilon(end, loopEnd);
+                    addEpsilon(frag.end, end);
+                    end = loopEnd;
+                } else {
+                    for (int i = repeat.min; i < repeat.max; i++) {
+                        Frag frag = compile(repeat.node);
+                        int optEnd = add(KIND_EPSILON, null, false);
+                        addEpsilon(end, frag.start);
+                        addEpsilon(end, optEnd);
+                        addEpsilon(frag.end, optEnd);
+                        end = optEnd;
+                    }
+                }
+                return new Frag(start, end);
+            }
+        }
+
+        void build(RegexSetPattern pattern) {
+            int size = kinds.size();
+            pattern.kinds = new int[size];
+            pattern.charSets = new CharSet[size];
+            pattern.caseInsensitive = new boolean[size];
+            pattern.nexts = new int[size];
+            pattern.epsilons = new int[size][];
+            pattern.matchPatterns = new int[size];
+            for (int i = 0; i < size; i++) {
+                pattern.kinds[i] = kinds.get(i);
+                pattern.charSets[i] = charSets.get(i);
+                pattern.caseInsensitive[i] = caseInsensitives.get(i);
+                pattern.nexts[i] = nexts.get(i);
+                pattern.epsilons[i] = toIntArray(epsilons.get(i));
+                pattern.matchPatterns[i] = matchPatterns.get(i);
+            }
+        }
+    }
+
+}
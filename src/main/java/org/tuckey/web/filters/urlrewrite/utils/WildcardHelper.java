@@ -266,6 +266,196 @@ public class WildcardHelper {
         }
     }
 
+    /**
+     * Count the wildcards ('*' and '**') in a compiled pattern, ie, the number of groups a match will have.
+     *
+     * @param expr The compiled wildcard expression
+     * @return the number of wildcards
+     */
+    public int countWildcards(int[] expr) {
+        int count = 0;
+        for (int i = 0; expr[i] != MATCH_THEEND && expr[i] != MATCH_END; i++) {
+            if (expr[i] == MATCH_FILE || expr[i] == MATCH_PATH) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Match a pattern against a string, recording the start and end offsets of the whole string and each wildcard
+     * replacement in <code>groups</code> (group n at <code>groups[n * 2]</code> and <code>groups[n * 2 + 1]</code>).
+     * <br>
+     * Works the same as {@link #match(Map, String, int[])} but does not allocate anything.
+     *
+     * @param groups The array to store the offsets in (at least <code>(countWildcards(expr) + 1) * 2</code> long),
+     *               may be null if the groups are not needed
+     * @param data   The string to match
+     * @param expr   The compiled wildcard expression
+     * @return True if a match
+     * @throws NullPointerException If data or expr are null
+     */
+    public boolean match(int[] groups, String data, int[] expr) {
+        if (data == null) {
+            throw new NullPointerException("No data provided");
+        }
+        if (expr == null) {
+            throw new NullPointerException("No pattern expression provided");
+        }
+        final int length = data.length();
+        int matchingCount = 0;
+        if (groups != null) {
+            groups[0] = 0;
+            groups[1] = length;
+        }
+
+        boolean matchBegin = false;
+        int expressionPosition = 0;
+        int characterPosition = 0;
+        if (expr[characterPosition] == MATCH_BEGIN) {
+            matchBegin = true;
+            expressionPosition = ++characterPosition;
+        }
+        while (expr[characterPosition] >= 0) {
+            characterPosition++;
+        }
+        int expressionCharacter = expr[characterPosition];
+
+        int bufferPosition = 0;
+        while (true) {
+            int offset;
+            if (matchBegin) {
+                if (!matchArray(expr, expressionPosition, characterPosition, data, bufferPosition)) {
+                    return false;
+                }
+                matchBegin = false;
+            } else {
+                offset = indexOfArray(expr, expressionPosition, characterPosition, data, bufferPosition);
+                if (offset < 0) {
+                    return false;
+                }
+            }
+
+            bufferPosition += (characterPosition - expressionPosition);
+
+            if (expressionCharacter == MATCH_END) {
+                return true;
+            } else if (expressionCharacter == MATCH_THEEND) {
+                return bufferPosition == length;
+            }
+
+            expressionPosition = ++characterPosition;
+            while (expr[characterPosition] >= 0) {
+                characterPosition++;
+            }
+            int prevchr = expressionCharacter;
+            expressionCharacter = expr[characterPosition];
+
+            offset = (prevchr == MATCH_FILE)
+                    ? indexOfArray(expr, expressionPosition, characterPosition, data, bufferPosition)
+                    : lastIndexOfArray(expr, expressionPosition, characterPosition, data, bufferPosition);
+            if (offset < 0) {
+                return false;
+            }
+            if (prevchr == MATCH_FILE) {
+                // Matching file, no '/' allowed
+                for (int i = bufferPosition; i < offset; i++) {
+                    if (data.charAt(i) == '/') {
+                        return false;
+                    }
+                }
+            }
+            matchingCount++;
+            if (groups != null) {
+                groups[matchingCount * 2] = bufferPosition;
+                groups[matchingCount * 2 + 1] = offset;
+            }
+            bufferPosition = offset;
+        }
+    }
+
+    /**
+     * String version of {@link #indexOfArray(int[], int, int, char[], int)}.
+     */
+    protected int indexOfArray(int r[], int rpos, int rend, String d, int dpos) {
+        if (rend < rpos) {
+            throw new IllegalArgumentException("rend < rpos");
+        }
+        final int length = d.length();
+        if (rend == rpos) {
+            return length;
+        }
+        if ((rend - rpos) == 1) {
+            for (int x = dpos; x < length; x++) {
+                if (r[rpos] == d.charAt(x)) {
+                    return x;
+                }
+            }
+        }
+        while ((dpos + rend - rpos) <= length) {
+            int y = dpos;
+            for (int x = rpos; x <= rend; x++) {
+                if (x == rend) {
+                    return dpos;
+                }
+                if (r[x] != d.charAt(y++)) {
+                    break;
+                }
+            }
+            dpos++;
+        }
+        return -1;
+    }
+
+    /**
+     * String version of {@link #lastIndexOfArray(int[], int, int, char[], int)}.
+     */
+    protected int lastIndexOfArray(int r[], int rpos, int rend, String d, int dpos) {
+        if (rend < rpos) {
+            throw new IllegalArgumentException("rend < rpos");
+        }
+        final int length = d.length();
+        if (rend == rpos) {
+            return length;
+        }
+        if ((rend - rpos) == 1) {
+            for (int x = length - 1; x > dpos; x--) {
+                if (r[rpos] == d.charAt(x)) {
+                    return x;
+                }
+            }
+        }
+        int l = length - (rend - rpos);
+        while (l >= dpos) {
+            int y = l;
+            for (int x = rpos; x <= rend; x++) {
+                if (x == rend) {
+                    return l;
+                }
+                if (r[x] != d.charAt(y++)) {
+                    break;
+                }
+            }
+            l--;
+        }
+        return -1;
+    }
+
+    /**
+     * String version of {@link #matchArray(int[], int, int, char[], int)}.
+     */
+    protected boolean matchArray(int r[], int rpos, int rend, String d, int dpos) {
+        if (d.length() - dpos < rend - rpos) {
+            return false;
+        }
+        for (int i = rpos; i < rend; i++) {
+            if (r[i] != d.charAt(dpos++)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
     /**
      * Get the offset of a part of an int array within a char array.
      * <br>
@@ -34,8 +34,6 @@
  */
 package org.tuckey.web.filters.urlrewrite.utils;
 
-import java.util.HashMap;
-import java.util.Map;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -50,19 +48,39 @@ public class WildcardMatcher implements StringMatchingMatcher {
 
     private WildcardHelper wh;
     private int[] compiledPattern;
+    private int wildcardCount;
     private String matchStr;
-    private Map<String, String> resultMap = new HashMap<>();
+    // start and end offsets of each group, only allocated once a match is found
+    private int[] groups;
     private boolean found = false;
 
 
     public WildcardMatcher(WildcardHelper wh, String patternStr, String matchStr) {
+        this(wh, wh.compilePattern(patternStr), matchStr);
+    }
+
+    private WildcardMatcher(WildcardHelper wh, int[] compiledPattern, String matchStr) {
+        this(wh, compiledPattern, wh.countWildcards(compiledPattern), matchStr);
+    }
+
+    /**
+     * @param compiledPattern the pattern as compiled by WildcardHelper.compilePattern, it is not modified
+     * @param wildcardCount   the number of wildcards in the pattern
+     */
+    public WildcardMatcher(WildcardHelper wh, int[] compiledPattern, int wildcardCount, String matchStr) {
         this.wh = wh;
-        this.compiledPattern = wh.compilePattern(patternStr);
+        this.compiledPattern = compiledPattern;
+        this.wildcardCount = wildcardCount;
         this.matchStr = matchStr;
     }
 
     public boolean find() {
-        found = wh.match(resultMap, matchStr, compiledPattern);
+        // check for a match without recording the groups first so that nothing is allocated when there is no match
+        found = wh.match(groups, matchStr, compiledPattern);
+        if (found && groups == null) {
+            groups = new int[(wildcardCount + 1) * 2];
+            wh.match(groups, matchStr, compiledPattern);
+        }
         return found;
     }
 
@@ -132,17 +150,17 @@ public class WildcardMatcher implements StringMatchingMatcher {
     }
 
     public int groupCount() {
-        if (resultMap == null) {
+        if (!found) {
             return 0;
         }
-        return resultMap.size() == 0 ? 0 : resultMap.size() - 1;
+        return wildcardCount;
     }
 
     public String group(int groupId) {
-        if (resultMap == null) {
+        if (!found || groupId < 0 || groupId > wildcardCount) {
             return null;
         }
-        return resultMap.get(String.valueOf(groupId));
+        return matchStr.substring(groups[groupId * 2], groups[groupId * 2 + 1]);
     }
 
     public int end() {
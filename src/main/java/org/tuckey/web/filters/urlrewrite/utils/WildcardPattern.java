@@ -42,14 +42,41 @@ public class WildcardPattern implements StringMatchingPattern {
 
     WildcardHelper wh;
     private String patternStr;
+    private int[] compiledPattern;
+    private int groupCount;
 
     public WildcardPattern(String patternStr) {
         this.wh = new WildcardHelper();
         this.patternStr = patternStr;
+        // compile once, the compiled form is shared by all matchers
+        this.compiledPattern = wh.compilePattern(patternStr);
+        this.groupCount = wh.countWildcards(compiledPattern);
     }
 
 
     public StringMatchingMatcher matcher(String matchStr) {
-        return new WildcardMatcher(wh, patternStr, matchStr);
+        return new WildcardMatcher(wh, compiledPattern, groupCount, matchStr);
+    }
+
+    /**
+     * Get the literal text that every string matched by this pattern must start with, ie, everything up to the
+     * first (unescaped) <code>*</code>.  Wildcard patterns are always anchored and case sensitive.
+     *
+     * @return the prefix, or an empty string if the pattern starts with a wildcard
+     */
+    public String getLiteralPrefix() {
+        final int length = patternStr.length();
+        final StringBuilder prefix = new StringBuilder();
+        for (int i = 0; i < length; i++) {
+            char c = patternStr.charAt(i);
+            if (c == '\\') {
+                if (++i >= length) break;
+                c = patternStr.charAt(i);
+            } else if (c == '*') {
+                break;
+            }
+            prefix.append(c);
+        }
+        return prefix.toString();
     }
 }
@@ -0,0 +1,209 @@
+/**
+ * Copyright (c) 2005-2007, Paul Tuckey
+ * All rights reserved.
+ * ====================================================================
+ * Licensed under the BSD License. Text as follows.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *   - Redistributions of source code must retain the above copyright
+ *     notice, this list of conditions and the following disclaimer.
+ *   - Redistributions in binary form must reproduce the above
+ *     copyright notice, this list of conditions and the following
+ *     disclaimer in the documentation and/or other materials provided
+ *     with the distribution.
+ *   - Neither the name tuckey.org nor the names of its contributors
+ *     may be used to endorse or promote products derived from this
+ *     software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ * COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN
+ * ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * ====================================================================
+ */
+package org.tuckey.web.filters.urlrewrite;
+
+import org.tuckey.web.filters.urlrewrite.utils.Log;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.UncheckedIOException;
+import java.net.ProxySelector;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.Enumeration;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Proxies requests with the java.net.http client (Java 11) set to prefer HTTP/2.  The client keeps a few connections
+ * per target and multiplexes concurrent requests over them.  Loaded by {@link ProxyConnectionManager#getHttp2Client()}
+ * so that the rest of the filter still runs on Java 8.
+ */
+public class JdkProxyHttp2Client implements ProxyHttp2Client {
+
+    private static final Log log = Log.getLog(JdkProxyHttp2Client.class);
+
+    /**
+     * Headers the java.net.http client sets itself (and won't let us set) or that are about the connection to the
+     * client rather than the request, which HTTP/2 doesn't allow.
+     */
+    private static final Set<String> NOT_COPIED_REQUEST_HEADERS = new HashSet<>(Arrays.asList("connection", "date",
+            "expect", "from", "http2-settings", "keep-alive", "proxy-connection", "te", "trailer", "transfer-encoding",
+            "upgrade", "via", "warning"));
+
+    private final ExecutorService executor;
+    // the connect timeout, redirects and proxy are set on the client rather than the request
+    private final ConcurrentMap<String, HttpClient> clients = new ConcurrentHashMap<>();
+
+    public JdkProxyHttp2Client() {
+        final AtomicInteger threadCount = new AtomicInteger();
+        executor = Executors.newCachedThreadPool(runnable -> {
+            Thread thread = new Thread(runnable, "urlrewrite-proxy-http2-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    public void execute(URL target, HttpServletRequest hsRequest, HttpServletResponse hsResponse, boolean dropCookies,
+                        boolean followRedirects, boolean useSystemProperties, ProxyOptions options) throws IOException {
+        boolean compressedPassthrough = options != null && options.isCompressedPassthrough();
+        HttpRequest.Builder builder;
+        try {
+            builder = HttpRequest.newBuilder(target.toURI());
+        } catch (URISyntaxException e) {
+            throw new IOException(e);
+        }
+        builder.method(hsRequest.getMethod(), getBodyPublisher(hsRequest));
+        // the client only has a timeout until the response headers arrive
+        if (options != null && options.getTimeout() > 0) {
+            builder.timeout(Duration.ofMillis(options.getTimeout()));
+        } else if (options != null && options.getReadTimeout() > 0) {
+            builder.timeout(Duration.ofMillis(options.getReadTimeout()));
+        }
+
+        Enumeration<String> headerNames = hsRequest.getHeaderNames();
+        while (headerNames != null && headerNames.hasMoreElements()) {
+            String headerName = headerNames.nextElement();
+            if (!RequestProxy.isCopiedRequestHeader(headerName, dropCookies, compressedPassthrough) ||
+                    NOT_COPIED_REQUEST_HEADERS.contains(headerName.toLowerCase())) {
+                continue;
+            }
+            Enumeration<String> values = hsRequest.getHeaders(headerName);
+            while (values.hasMoreElements()) {
+                builder.header(headerName, values.nextElement());
+            }
+        }
+
+        HttpClient client = getClient(options == null ? 0 : options.getConnectTimeout(), followRedirects, useSystemProperties);
+        HttpResponse<InputStream> response;
+        try {
+            response = client.send(builder.build(), HttpResponse.BodyHandlers.ofInputStream());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted waiting for " + target);
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+        if (log.isInfoEnabled()) {
+            log.info("proxied " + hsRequest.getMethod() + " " + target + " over " + response.version() + ", result code was " +
+                    response.statusCode());
+        }
+
+        try (InputStream in = response.body()) {
+            setupResponseHeaders(response, hsResponse, dropCookies);
+            long contentLength = response.headers().firstValueAsLong("content-length").orElse(-1);
+            String contentType = response.headers().firstValue("content-type").orElse(null);
+            RequestProxy.copyStream(in, hsResponse.getOutputStream(), RequestProxy.isStreaming(contentLength, contentType));
+        }
+    }
+
+    private static HttpRequest.BodyPublisher getBodyPublisher(final HttpServletRequest hsRequest) {
+        long contentLength = hsRequest.getContentLength();
+        if (contentLength <= 0 && hsRequest.getHeader("Transfer-Encoding") == null) {
+            return HttpRequest.BodyPublishers.noBody();
+        }
+        HttpRequest.BodyPublisher body = HttpRequest.BodyPublishers.ofInputStream(() -> {
+            try {
+                return hsRequest.getInputStream();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        });
+        return contentLength > 0 ? HttpRequest.BodyPublishers.fromPublisher(body, contentLength) : body;
+    }
+
+    private static void setupResponseHeaders(HttpResponse<InputStream> response, HttpServletResponse hsResponse,
+                                             boolean dropCookies) {
+        Map<String, List<String>> headers = response.headers().map();
+        for (Map.Entry<String, List<String>> header : headers.entrySet()) {
+            String headerName = header.getKey();
+            // the pseudo headers of HTTP/2 (ie, :status)
+            if (headerName.startsWith(":") || !RequestProxy.isCopiedResponseHeader(headerName, dropCookies)) {
+                continue;
+            }
+            for (String value : header.getValue()) {
+                hsResponse.addHeader(headerName, value);
+            }
+        }
+        // the client doesn't decode bodies, an encoded one is passed through as is
+        if (response.headers().firstValue("content-encoding").isPresent() &&
+                !RequestProxy.isVaryingOn(response.headers().allValues("vary"), "accept-encoding")) {
+            hsResponse.addHeader("Vary", "Accept-Encoding");
+        }
+        // the client doesn't decode bodies, so the length is that of what is copied
+        String contentLength = response.headers().firstValue("content-length").orElse(null);
+        if (contentLength != null && RequestProxy.hasBody(response.statusCode())) {
+            hsResponse.setHeader("Content-Length", contentLength);
+        }
+        if (response.statusCode() != HttpServletResponse.SC_OK) {
+            hsResponse.setStatus(response.statusCode());
+        }
+    }
+
+    private HttpClient getClient(int connectTimeout, boolean followRedirects, boolean useSystemProperties) {
+        String key = connectTimeout + "," + followRedirects + "," + useSystemProperties;
+        HttpClient client = clients.get(key);
+        if (client != null) return client;
+        HttpClient.Builder builder = HttpClient.newBuilder()
+                .version(HttpClient.Version.HTTP_2)
+                .followRedirects(followRedirects ? HttpClient.Redirect.NORMAL : HttpClient.Redirect.NEVER)
+                .executor(executor);
+        if (connectTimeout > 0) builder.connectTimeout(Duration.ofMillis(connectTimeout));
+        if (useSystemProperties) builder.proxy(ProxySelector.getDefault());
+        client = builder.build();
+        HttpClient existing = clients.putIfAbsent(key, client);
+        return existing == null ? client : existing;
+    }
+
+    public void close() {
+        clients.clear();
+        executor.shutdownNow();
+    }
+}
@@ -0,0 +1,111 @@
+/**
+ * Copyright (c) 2005-2007, Paul Tuckey
+ * All rights reserved.
+ * ====================================================================
+ * Licensed under the BSD License. Text as follows.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *   - Redistributions of source code must retain the above copyright
+ *     notice, this list of conditions and the following disclaimer.
+ *   - Redistributions in binary form must reproduce the above
+ *     copyright notice, this list of conditions and the following
+ *     disclaimer in the documentation and/or other materials provided
+ *     with the distribution.
+ *   - Neither the name tuckey.org nor the names of its contributors
+ *     may be used to endorse or promote products derived from this
+ *     software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ * COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN
+ * ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * ====================================================================
+ */
+package org.tuckey.web.filters.urlrewrite;
+
+import junit.framework.TestCase;
+import org.tuckey.web.filters.urlrewrite.extend.RewriteMatch;
+import org.tuckey.web.filters.urlrewrite.extend.RewriteRule;
+import org.tuckey.web.testhelper.MockRequest;
+import org.tuckey.web.testhelper.MockResponse;
+import org.tuckey.web.testhelper.MockServletContext;
+
+import javax.servlet.ServletException;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+
+public class ClassRuleTest extends TestCase {
+
+    public static class MatchesRule extends RewriteRule {
+        public RewriteMatch matches(HttpServletRequest request, HttpServletResponse response) {
+            if (request.getRequestURI().startsWith("/fr/")) return new RewriteMatch();
+            return null;
+        }
+    }
+
+    public static class RouteRule extends RewriteRule {
+        public RewriteMatch route(ServletRequest request, ServletResponse response) throws IOException {
+            String uri = ((HttpServletRequest) request).getRequestURI();
+            if (uri.startsWith("/bad/")) throw new IOException("bad " + uri);
+            if (uri.startsWith("/de/")) return new RewriteMatch();
+            return null;
+        }
+    }
+
+    public static class StaticRouteRule extends RewriteRule {
+        public static RewriteMatch route(HttpServletRequest request, HttpServletResponse response) {
+            if (request.getRequestURI().startsWith("/de/")) return new RewriteMatch();
+            return null;
+        }
+    }
+
+    private static ClassRule classRule(String methodStr, Class<?> clazz) {
+        ClassRule classRule = new ClassRule();
+        classRule.setClassStr(clazz.getName());
+        if (methodStr != null) classRule.setMethodStr(methodStr);
+        assertTrue(classRule.initialise(new MockServletContext()));
+        return classRule;
+    }
+
+    public void testDefaultMatchesCalledDirectly() throws IOException, ServletException {
+        ClassRule classRule = classRule(null, MatchesRule.class);
+        assertTrue(classRule.isMatchesDirect());
+        assertNotNull(classRule.matches("/fr/a", new MockRequest("/fr/a"), new MockResponse()));
+        assertNull(classRule.matches("/en/a", new MockRequest("/en/a"), new MockResponse()));
+    }
+
+    public void testOtherMethod() throws IOException, ServletException {
+        ClassRule classRule = classRule("route", RouteRule.class);
+        assertFalse(classRule.isMatchesDirect());
+        assertNotNull(classRule.matches("/de/a", new MockRequest("/de/a"), new MockResponse()));
+        assertNull(classRule.matches("/en/a", new MockRequest("/en/a"), new MockResponse()));
+        try {
+            classRule.matches("/bad/a", new MockRequest("/bad/a"), new MockResponse());
+            fail("expected the exception from the rule");
+        } catch (IOException e) {
+            assertEquals("bad /bad/a", e.getMessage());
+        }
+    }
+
+    public void testStaticMethod() throws IOException, ServletException {
+        ClassRule classRule = classRule("route", StaticRouteRule.class);
+        assertTrue(classRule.isValid());
+        assertNotNull(classRule.matches("/de/a", new MockRequest("/de/a"), new MockResponse()));
+        assertNull(classRule.matches("/en/a", new MockRequest("/en/a"), new MockResponse()));
+    }
+
+}
@@ -0,0 +1,176 @@
+/**
+ * Copyright (c) 2005-2007, Paul Tuckey
+ * All rights reserved.
+ * ====================================================================
+ * Licensed under the BSD License. Text as follows.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *   - Redistributions of source code must retain the above copyright
+ *     notice, this list of conditions and the following disclaimer.
+ *   - Redistributions in binary form must reproduce the above
+ *     copyright notice, this list of conditions and the following
+ *     disclaimer in the documentation and/or other materials provided
+ *     with the distribution.
+ *   - Neither the name tuckey.org nor the names of its contributors
+ *     may be used to endorse or promote products derived from this
+ *     software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ * COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN
+ * ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * ====================================================================
+ */
+package org.tuckey.web.filters.urlrewrite;
+
+import junit.framework.TestCase;
+import org.tuckey.web.testhelper.MockRequest;
+import org.tuckey.web.testhelper.MockResponse;
+
+import javax.servlet.ServletException;
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+
+public class CompiledRuleTest extends TestCase {
+
+    private static final String RULE_MATCHED = "org.tuckey.web.filters.urlrewrite.RuleMatched";
+
+    private static NormalRule rule(String from, String to) {
+        NormalRule rule = new NormalRule();
+        rule.setFrom(from);
+        rule.setTo(to);
+        return rule;
+    }
+
+    private static Condition condition(String type, String name, String value, String next) {
+        Condition condition = new Condition();
+        condition.setType(type);
+        condition.setName(name);
+        condition.setValue(value);
+        if (next != null) condition.setNext(next);
+        return condition;
+    }
+
+    private static Conf buildConf(boolean compiled) {
+        Conf conf = new Conf();
+        conf.setCompiledRules(compiled);
+        conf.setRewriteCacheSize(0);
+
+        NormalRule rule = rule("^/products/([0-9]+)$", "/product.jsp?id=$1");
+        rule.setToLast("true");
+        conf.addRule(rule);
+
+        rule = rule("^/old/(.*)$", "/new/$1");
+        conf.addRule(rule);
+
+        rule = rule("^/new/(.*)$", "/newer/${upper:$1}");
+        rule.setToType("redirect");
+        rule.addCondition(condition("header", "accept", "html", "or"));
+        rule.addCondition(condition("method", null, "POST", null));
+        conf.addRule(rule);
+
+        rule = rule("^/lang/(.*)$", "/%1/$1");
+        rule.addCondition(condition("header", "accept-language", "^([a-z]+)", null));
+        conf.addRule(rule);
+
+        rule = rule("^/qs/(.*)$", "/q.jsp?p=$1");
+        rule.setQueryStringAppend("true");
+        rule.setToType("permanent-redirect");
+        conf.addRule(rule);
+
+        rule = rule("/static/**", "/s/$1");
+        rule.setMatchType("wildcard");
+        conf.addRule(rule);
+
+        rule = rule("^/set/(.*)$", "/setted/$1");
+        SetAttribute setAttribute = new SetAttribute();
+        setAttribute.setName("a");
+        setAttribute.setValue("$1");
+        rule.addSetAttribute(setAttribute);
+        conf.addRule(rule);
+
+        rule = rule("^/dash/.*$", "-");
+        conf.addRule(rule);
+
+        rule = rule("^/disabled/.*$", "/enabled");
+        rule.setEnabled(false);
+        conf.addRule(rule);
+
+        rule = rule("^/CASE/(.*)$", "/case/%{method}/$1");
+        rule.setFromCaseSensitive(false);
+        conf.addRule(rule);
+
+        rule = rule("a", "b");
+        conf.addRule(rule);
+
+        conf.initialise();
+        return conf;
+    }
+
+    private static MockRequest request(String url, String accept, String method, String queryString) {
+        MockRequest request = new MockRequest(url);
+        if (accept != null) request.setHeader("accept", accept);
+        request.setHeader("accept-language", "fr-CA");
+        if (method != null) request.setMethod(method);
+        if (queryString != null) request.setQueryString(queryString);
+        return request;
+    }
+
+    public void testSpecialised() {
+        Conf conf = buildConf(true);
+        assertTrue(conf.isCompiledRules());
+        // the %1 rule, the set rule, the "-" rule and the disabled rule are not specialised
+        assertEquals(7, conf.getRuleSnapshot().getSpecialisedRuleCount());
+        assertEquals(0, buildConf(false).getRuleSnapshot().getSpecialisedRuleCount());
+    }
+
+    public void testSameAsInterpreted() throws IOException, ServletException, InvocationTargetException {
+        UrlRewriter interpreted = new UrlRewriter(buildConf(false));
+        UrlRewriter compiled = new UrlRewriter(buildConf(true));
+        String[] urls = {"/products/12", "/products/x", "/old/abc", "/old/aaa", "/new/x", "/lang/abc", "/qs/a",
+                "/static/a/b", "/set/xyz", "/dash/a", "/disabled/a", "/case/x", "/Case/a", "/other", "/aaa", ""};
+        String[] accepts = {null, "text/html"};
+        String[] methods = {"GET", "POST"};
+        String[] queryStrings = {null, "x=1"};
+        for (String url : urls) {
+            for (String accept : accepts) {
+                for (String method : methods) {
+                    for (String queryString : queryStrings) {
+                        MockRequest interpretedRequest = request(url, accept, method, queryString);
+                        MockRequest compiledRequest = request(url, accept, method, queryString);
+                        NormalRewrittenUrl expected = (NormalRewrittenUrl)
+                                interpreted.processRequest(interpretedRequest, new MockResponse());
+                        NormalRewrittenUrl actual = (NormalRewrittenUrl)
+                                compiled.processRequest(compiledRequest, new MockResponse());
+                        String description = url + " " + accept + " " + method + " " + queryString;
+                        if (expected == null) {
+                            assertNull(description, actual);
+                            continue;
+                        }
+                        assertNotNull(description, actual);
+                        assertEquals(description, expected.getTarget(), actual.getTarget());
+                        assertEquals(description, expected.isForward(), actual.isForward());
+                        assertEquals(description, expected.isRedirect(), actual.isRedirect());
+                        assertEquals(description, expected.isPermanentRedirect(), actual.isPermanentRedirect());
+                        assertEquals(description, expected.isNoSubstitution(), actual.isNoSubstitution());
+                        assertEquals(description, interpretedRequest.getAttribute("a"), compiledRequest.getAttribute("a"));
+                        assertEquals(description, interpretedRequest.getAttribute(RULE_MATCHED),
+                                compiledRequest.getAttribute(RULE_MATCHED));
+                    }
+                }
+            }
+        }
+    }
+
+}
@@ -0,0 +1,151 @@
+/**
+ * Copyright (c) 2005-2007, Paul Tuckey
+ * All rights reserved.
+ * ====================================================================
+ * Licensed under the BSD License. Text as follows.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *   - Redistributions of source code must retain the above copyright
+ *     notice, this list of conditions and the following disclaimer.
+ *   - Redistributions in binary form must reproduce the above
+ *     copyright notice, this list of conditions and the following
+ *     disclaimer in the documentation and/or other materials provided
+ *     with the distribution.
+ *   - Neither the name tuckey.org nor the names of its contributors
+ *     may be used to endorse or promote products derived from this
+ *     software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ * COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN
+ * ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * ====================================================================
+ */
+package org.tuckey.web.filters.urlrewrite;
+
+import junit.framework.TestCase;
+import org.tuckey.web.filters.urlrewrite.utils.Log;
+import org.tuckey.web.testhelper.MockRequest;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+public class ConditionExpressionTest extends TestCase {
+
+    public void setUp() {
+        Log.setLevel("WARN");
+    }
+
+    public void testOrder() {
+        List<Condition> conditions = new ArrayList<>();
+        conditions.add(condition("remote-host", null, "a", "and"));
+        conditions.add(condition("header", "x", "a", "or"));
+        conditions.add(condition("method", null, "GET", "and"));
+        conditions.add(condition("port", null, "80", "and"));
+        // (remote-host and header) or method, then and port, cheapest first
+        assertEquals("(port and (method or (header and remote-host)))",
+                new ConditionExpression(conditions).toString());
+    }
+
+    public void testShortCircuit() {
+        List<Condition> conditions = new ArrayList<>();
+        conditions.add(condition("method", null, "GET", "and"));
+        conditions.add(condition("parameter", "p", "1", "and"));
+        ConditionExpression expression = new ConditionExpression(conditions);
+        MockRequest request = new MockRequest();
+        request.setMethod("POST");
+        request.setParameter("p", "1");
+        assertFalse(expression.matches(request));
+        request.setMethod("GET");
+        assertTrue(expression.matches(request));
+    }
+
+    public void testSameAsSequential() {
+        String[] types = {"method", "port", "header", "remote-host", "parameter", "year"};
+        Random random = new Random(42);
+        for (int round = 0; round < 2000; round++) {
+            MockRequest request = new MockRequest();
+            request.setMethod(random.nextBoolean() ? "GET" : "POST");
+            request.setServerPort(random.nextBoolean() ? 80 : 443);
+            request.setHeader("h", random.nextBoolean() ? "a" : "b");
+            request.setRemoteHost(random.nextBoolean() ? "a" : "b");
+            request.setParameter("p", random.nextBoolean() ? "a" : "b");
+
+            List<Condition> conditions = new ArrayList<>();
+            int count = 1 + random.nextInt(6);
+            for (int i = 0; i < count; i++) {
+                String type = types[random.nextInt(types.length)];
+                String value;
+                if ("method".equals(type)) value = random.nextBoolean() ? "GET" : "POST";
+                else if ("port".equals(type)) value = random.nextBoolean() ? "80" : "443";
+                else if ("year".equals(type)) value = random.nextBoolean() ? "1990" : "2990";
+                else value = random.nextBoolean() ? "a" : "b";
+                String name = "header".equals(type) ? "h" : "parameter".equals(type) ? "p" : null;
+                Condition condition = condition(type, name, value, random.nextBoolean() ? "or" : "and");
+                if (random.nextInt(4) == 0) condition.setOperator("notequal");
+                if ("year".equals(type)) condition.setOperator(random.nextBoolean() ? "greater" : "less");
+                condition.initialise();
+                conditions.add(condition);
+            }
+            ConditionExpression expression = new ConditionExpression(conditions);
+            assertEquals(expression.toString(), sequential(conditions, request), expression.matches(request));
+        }
+    }
+
+    public void testRuleUsesExpression() {
+        NormalRule rule = new NormalRule();
+        rule.setFrom("^/a$");
+        rule.setTo("/b");
+        rule.addCondition(condition("method", null, "GET", "and"));
+        rule.initialise(null);
+        assertNotNull(rule.getConditionExpression());
+
+        rule = new NormalRule();
+        rule.setFrom("^/a$");
+        rule.setTo("/b/%1");
+        rule.addCondition(condition("header", "h", "(.*)", "and"));
+        rule.initialise(null);
+        assertNull("condition back references need every condition checked", rule.getConditionExpression());
+    }
+
+    /**
+     * How conditions were always evaluated.
+     */
+    private static boolean sequential(List<Condition> conditions, MockRequest request) {
+        boolean processNextOr = false;
+        boolean currentResult = true;
+        for (Condition condition : conditions) {
+            boolean conditionMatches = condition.getConditionMatch(request) != null;
+            if (processNextOr) {
+                currentResult |= conditionMatches;
+            } else {
+                currentResult &= conditionMatches;
+            }
+            processNextOr = condition.isProcessNextOr();
+        }
+        return currentResult;
+    }
+
+    private static Condition condition(String type, String name, String value, String next) {
+        Condition condition = new Condition();
+        condition.setType(type);
+        condition.setName(name);
+        condition.setValue(value);
+        condition.setNext(next);
+        condition.initialise();
+        return condition;
+    }
+
+}
@@ -0,0 +1,143 @@
+/**
+ * Copyright (c) 2005-2007, Paul Tuckey
+ * All rights reserved.
+ * ====================================================================
+ * Licensed under the BSD License. Text as follows.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *   - Redistributions of source code must retain the above copyright
+ *     notice, this list of conditions and the following disclaimer.
+ *   - Redistributions in binary form must reproduce the above
+ *     copyright notice, this list of conditions and the following
+ *     disclaimer in the documentation and/or other materials provided
+ *     with the distribution.
+ *   - Neither the name tuckey.org nor the names of its contributors
+ *     may be used to endorse or promote products derived from this
+ *     software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ * COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN
+ * ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * ====================================================================
+ */
+package org.tuckey.web.filters.urlrewrite;
+
+import org.tuckey.web.testhelper.MockResponse;
+import org.tuckey.web.testhelper.ProxyTestCase;
+
+import javax.servlet.ServletOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+public class ProxyBufferPoolTest extends ProxyTestCase {
+
+    public void testReuse() {
+        ProxyBufferPool pool = new ProxyBufferPool(2, 16);
+        byte[] first = pool.acquire();
+        byte[] second = pool.acquire();
+        byte[] third = pool.acquire();
+        assertEquals(3, pool.getAllocatedCount());
+        pool.release(first);
+        pool.release(second);
+        pool.release(third);
+        assertEquals("pool is bounded", 2, pool.getPooledCount());
+        assertSame("last released is reused first", second, pool.acquire());
+        assertSame(first, pool.acquire());
+        assertEquals(0, pool.getPooledCount());
+        pool.acquire();
+        assertEquals(4, pool.getAllocatedCount());
+        pool.release(new byte[8]);
+        assertEquals("buffers of another size are dropped", 0, pool.getPooledCount());
+    }
+
+    public void testCopyStream() throws IOException {
+        byte[] data = new byte[ProxyBufferPool.DEFAULT_BUFFER_SIZE * 3 + 17];
+        for (int i = 0; i < data.length; i++) data[i] = (byte) i;
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        long allocated = RequestProxy.getBufferPool().getAllocatedCount();
+        for (int i = 0; i < 3; i++) {
+            out.reset();
+            RequestProxy.copyStream(new ByteArrayInputStream(data), out);
+        }
+        assertTrue(Arrays.equals(data, out.toByteArray()));
+        assertTrue("buffer should be reused", RequestProxy.getBufferPool().getAllocatedCount() - allocated <= 1);
+    }
+
+    public void testFlushEarly() throws IOException {
+        final int[] flushes = new int[1];
+        OutputStream out = new ByteArrayOutputStream() {
+            public void flush() {
+                flushes[0]++;
+            }
+        };
+        // nothing more available after each byte, like an event stream
+        InputStream in = new ByteArrayInputStream("abc".getBytes(StandardCharsets.UTF_8)) {
+            public synchronized int read(byte[] b, int off, int len) {
+                return super.read(b, off, Math.min(len, 1));
+            }
+
+            public synchronized int available() {
+                return 0;
+            }
+        };
+        RequestProxy.copyStream(in, out, true);
+        assertEquals("headers and each event flushed", 4, flushes[0]);
+        flushes[0] = 0;
+        RequestProxy.copyStream(new ByteArrayInputStream("abc".getBytes(StandardCharsets.UTF_8)), out, false);
+        assertEquals(0, flushes[0]);
+    }
+
+    public void testEventStreamReachesClientBeforeEnd() throws Exception {
+        final CountDownLatch firstEventSeen = new CountDownLatch(1);
+        String target = serverUrl(startServer(exchange -> {
+            exchange.getResponseHeaders().add("Content-Type", "text/event-stream");
+            try (OutputStream os = exchange.getResponseBody()) {
+                exchange.sendResponseHeaders(200, 0);
+                os.write("data: one\n\n".getBytes(StandardCharsets.UTF_8));
+                os.flush();
+                // the second event is only sent once the client has the first
+                firstEventSeen.await(5, TimeUnit.SECONDS);
+                os.write("data: two\n\n".getBytes(StandardCharsets.UTF_8));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        })) + "/events";
+        final ByteArrayOutputStream body = new ByteArrayOutputStream();
+        MockResponse response = new MockResponse() {
+            public ServletOutputStream getOutputStream() {
+                return new ServletOutputStream() {
+                    public void write(int b) {
+                        body.write(b);
+                    }
+
+                    public void flush() {
+                        if (body.toString().contains("one")) firstEventSeen.countDown();
+                    }
+                };
+            }
+        };
+        RequestProxy.execute(target, request("/events", "GET"), response, true, false, false, proxyConnectionManager,
+                new ProxyOptions());
+        assertEquals(0, firstEventSeen.getCount());
+        assertEquals("data: one\n\ndata: two\n\n", body.toString());
+    }
+}
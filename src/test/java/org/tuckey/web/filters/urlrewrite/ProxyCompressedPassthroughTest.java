@@ -0,0 +1,139 @@
+/**
+ * Copyright (c) 2005-2007, Paul Tuckey
+ * All rights reserved.
+ * ====================================================================
+ * Licensed under the BSD License. Text as follows.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *   - Redistributions of source code must retain the above copyright
+ *     notice, this list of conditions and the following disclaimer.
+ *   - Redistributions in binary form must reproduce the above
+ *     copyright notice, this list of conditions and the following
+ *     disclaimer in the documentation and/or other materials provided
+ *     with the distribution.
+ *   - Neither the name tuckey.org nor the names of its contributors
+ *     may be used to endorse or promote products derived from this
+ *     software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ * COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN
+ * ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * ====================================================================
+ */
+package org.tuckey.web.filters.urlrewrite;
+
+import org.tuckey.web.filters.urlrewrite.gzip.GzipFilter;
+import org.tuckey.web.testhelper.MockRequest;
+import org.tuckey.web.testhelper.MockResponse;
+import org.tuckey.web.testhelper.ProxyTestCase;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.zip.GZIPOutputStream;
+
+public class ProxyCompressedPassthroughTest extends ProxyTestCase {
+
+    private static final byte[] BODY = "hello hello hello hello".getBytes(StandardCharsets.UTF_8);
+
+    private String url;
+    private final AtomicReference<String> acceptEncoding = new AtomicReference<>();
+    private byte[] gzipped;
+
+    public void setUp() throws Exception {
+        super.setUp();
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+        try (GZIPOutputStream gzout = new GZIPOutputStream(compressed)) {
+            gzout.write(BODY);
+        }
+        gzipped = compressed.toByteArray();
+
+        url = serverUrl(startServer(exchange -> {
+            String accepted = exchange.getRequestHeaders().getFirst("Accept-Encoding");
+            acceptEncoding.set(accepted);
+            byte[] body = BODY;
+            if (accepted != null && accepted.contains("gzip")) {
+                exchange.getResponseHeaders().add("Content-Encoding", "gzip");
+                body = gzipped;
+            }
+            exchange.getResponseHeaders().add("Content-Type", "text/plain");
+            try (OutputStream os = exchange.getResponseBody()) {
+                exchange.sendResponseHeaders(200, body.length);
+                os.write(body);
+            }
+        })) + "/page";
+    }
+
+    public void testPassthrough() throws Exception {
+        MockResponse response = proxy(passthroughOptions(), "gzip, br");
+        assertEquals("gzip, br", acceptEncoding.get());
+        assertEquals("gzip", response.getHeader("Content-Encoding"));
+        assertEquals("Accept-Encoding", response.getHeader("Vary"));
+        assertTrue("compressed body should be copied as is", Arrays.equals(gzipped, response.getOutputStreamAsBytes()));
+    }
+
+    public void testPassthroughNotAccepted() throws Exception {
+        MockResponse response = proxy(passthroughOptions(), null);
+        assertNull(response.getHeader("Content-Encoding"));
+        assertEquals("hello hello hello hello", response.getOutputStreamAsString());
+    }
+
+    public void testDecompressedByDefault() throws Exception {
+        MockResponse response = proxy(new ProxyOptions(), "gzip");
+        // the http client asks for what it can decode itself
+        assertEquals("gzip,deflate", acceptEncoding.get());
+        assertNull(response.getHeader("Content-Encoding"));
+        assertEquals("hello hello hello hello", response.getOutputStreamAsString());
+    }
+
+    public void testNotCompressedAgainByGzipFilter() throws Exception {
+        final MockRequest request = request("gzip");
+        MockResponse response = new MockResponse();
+        new GzipFilter().doFilter(request, response, (req, res) ->
+                RequestProxy.execute(url, request, (javax.servlet.http.HttpServletResponse) res, true, false, false,
+                        proxyConnectionManager, passthroughOptions()));
+        assertEquals("gzip", response.getHeader("Content-Encoding"));
+        assertTrue("body should be gzipped once", Arrays.equals(gzipped, response.getOutputStreamAsBytes()));
+    }
+
+    public void testCoalesceVary() {
+        ProxyOptions options = new ProxyOptions();
+        assertFalse(Arrays.asList(options.getCoalesceVary()).contains("accept-encoding"));
+        options.setCompressedPassthrough(true);
+        assertTrue(Arrays.asList(options.getCoalesceVary()).contains("accept-encoding"));
+        options.setCoalesceVary("accept-encoding");
+        assertEquals(1, options.getCoalesceVary().length);
+    }
+
+    private static ProxyOptions passthroughOptions() {
+        ProxyOptions options = new ProxyOptions();
+        options.setCompressedPassthrough(true);
+        return options;
+    }
+
+    private static MockRequest request(String acceptEncoding) {
+        MockRequest request = new MockRequest("/page");
+        request.setMethod("GET");
+        if (acceptEncoding != null) request.setHeader("Accept-Encoding", acceptEncoding);
+        return request;
+    }
+
+    private MockResponse proxy(ProxyOptions options, String acceptEncoding) throws IOException {
+        return proxy(url, request(acceptEncoding), options);
+    }
+}
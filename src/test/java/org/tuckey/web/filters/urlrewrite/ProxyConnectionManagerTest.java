@@ -0,0 +1,328 @@
+/**
+ * Copyright (c) 2005-2007, Paul Tuckey
+ * All rights reserved.
+ * ====================================================================
+ * Licensed under the BSD License. Text as follows.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *   - Redistributions of source code must retain the above copyright
+ *     notice, this list of conditions and the following disclaimer.
+ *   - Redistributions in binary form must reproduce the above
+ *     copyright notice, this list of conditions and the following
+ *     disclaimer in the documentation and/or other materials provided
+ *     with the distribution.
+ *   - Neither the name tuckey.org nor the names of its contributors
+ *     may be used to endorse or promote products derived from this
+ *     software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ * COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN
+ * ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * ====================================================================
+ */
+package org.tuckey.web.filters.urlrewrite;
+
+import org.apache.http.conn.routing.HttpRoute;
+import org.apache.http.pool.PoolStats;
+import org.tuckey.web.testhelper.MockFilterChain;
+import org.tuckey.web.testhelper.MockRequest;
+import org.tuckey.web.testhelper.MockResponse;
+import org.tuckey.web.testhelper.ProxyTestCase;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncListener;
+import javax.servlet.ServletContext;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+public class ProxyConnectionManagerTest extends ProxyTestCase {
+
+    private String serverUrl;
+    private final Set<Integer> clientPorts = Collections.synchronizedSet(new HashSet<>());
+    private final List<String> cookieHeaders = Collections.synchronizedList(new ArrayList<>());
+
+    public void setUp() throws Exception {
+        super.setUp();
+        serverUrl = serverUrl(startServer(exchange -> {
+            clientPorts.add(exchange.getRemoteAddress().getPort());
+            cookieHeaders.add(exchange.getRequestHeaders().getFirst("Cookie"));
+            if (exchange.getRequestURI().getPath().startsWith("/login")) {
+                exchange.getResponseHeaders().add("Set-Cookie", "session=user1; Path=/");
+            }
+            byte[] body = ("hello " + exchange.getRequestURI()).getBytes(StandardCharsets.UTF_8);
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream os = exchange.getResponseBody()) {
+                os.write(body);
+            }
+        }));
+    }
+
+    protected ProxyConnectionManager createProxyConnectionManager() {
+        return new ProxyConnectionManager(10, 2, 30);
+    }
+
+    public void testGetRoute() {
+        HttpRoute route = ProxyConnectionManager.getRoute("http://backend/path/$1");
+        assertEquals("backend", route.getTargetHost().getHostName());
+        assertEquals(80, route.getTargetHost().getPort());
+        assertFalse(route.isSecure());
+
+        route = ProxyConnectionManager.getRoute("HTTPS://backend:8443?a=b");
+        assertEquals(8443, route.getTargetHost().getPort());
+        assertEquals("https", route.getTargetHost().getSchemeName());
+        assertTrue(route.isSecure());
+
+        assertNull(ProxyConnectionManager.getRoute("http://$1/path"));
+        assertNull(ProxyConnectionManager.getRoute("http://backend:%{port}/path"));
+        assertNull(ProxyConnectionManager.getRoute("/local/path"));
+        assertNull(ProxyConnectionManager.getRoute(null));
+    }
+
+    public void testLifecycle() {
+        assertFalse(proxyConnectionManager.isStarted());
+        assertNull(proxyConnectionManager.getTotalStats());
+        assertTrue(proxyConnectionManager.setMaxConnections("http://backend:8080/$1", 5));
+        assertFalse(proxyConnectionManager.setMaxConnections("http://$1/", 5));
+
+        assertNotNull(proxyConnectionManager.getHttpClient(false));
+        assertTrue(proxyConnectionManager.isStarted());
+        assertSame(proxyConnectionManager.getHttpClient(false), proxyConnectionManager.getHttpClient(false));
+        assertNotSame(proxyConnectionManager.getHttpClient(false), proxyConnectionManager.getHttpClient(true));
+        assertEquals(10, proxyConnectionManager.getTotalStats().getMax());
+
+        proxyConnectionManager.shutdown();
+        assertTrue(proxyConnectionManager.isShutdown());
+        assertFalse(proxyConnectionManager.isStarted());
+        assertNull(proxyConnectionManager.getHttpClient(false));
+    }
+
+    public void testConnectionsReused() throws Exception {
+        Conf conf = new Conf();
+        NormalRule rule = new NormalRule();
+        rule.setFrom("^/proxy/(.*)$");
+        rule.setTo(serverUrl + "/$1");
+        rule.setToType("proxy");
+        rule.setProxyMaxConnections(4);
+        conf.addRule(rule);
+        conf.initialise();
+        conf.setProxyConnectionManager(proxyConnectionManager);
+        assertSame(proxyConnectionManager, rule.getProxyConnectionManager());
+
+        for (int i = 0; i < 5; i++) {
+            MockRequest request = new MockRequest("/proxy/page" + i);
+            request.setMethod("GET");
+            MockResponse response = new MockResponse();
+            NormalRewrittenUrl rewrittenUrl = (NormalRewrittenUrl) rule.matches(request.getRequestURI(), request, response);
+            assertSame(proxyConnectionManager, rewrittenUrl.getProxyConnectionManager());
+            assertTrue(rewrittenUrl.doRewrite(request, response, null));
+            assertEquals("hello /page" + i, response.getOutputStreamAsString());
+        }
+
+        assertEquals("sequential requests should use one connection", 1, clientPorts.size());
+        PoolStats totalStats = proxyConnectionManager.getTotalStats();
+        assertEquals(0, totalStats.getLeased());
+        assertEquals(1, totalStats.getAvailable());
+        PoolStats routeStats = proxyConnectionManager.getRouteStats().values().iterator().next();
+        assertEquals(4, routeStats.getMax());
+    }
+
+    public void testCookiesNotShared() throws Exception {
+        Conf conf = new Conf();
+        NormalRule rule = new NormalRule();
+        rule.setFrom("^/proxy/(.*)$");
+        rule.setTo(serverUrl + "/$1");
+        rule.setToType("proxy");
+        conf.addRule(rule);
+        conf.initialise();
+        conf.setProxyConnectionManager(proxyConnectionManager);
+
+        for (String page : new String[]{"login", "other"}) {
+            MockRequest request = new MockRequest("/proxy/" + page);
+            request.setMethod("GET");
+            MockResponse response = new MockResponse();
+            NormalRewrittenUrl rewrittenUrl = (NormalRewrittenUrl) rule.matches(request.getRequestURI(), request, response);
+            assertTrue(rewrittenUrl.doRewrite(request, response, null));
+        }
+        assertEquals(2, cookieHeaders.size());
+        assertNull("a cookie set for one user must not be sent with the next request", cookieHeaders.get(1));
+    }
+
+    public void testWithoutPool() throws Exception {
+        for (int i = 0; i < 3; i++) {
+            MockRequest request = new MockRequest("/page" + i);
+            request.setMethod("GET");
+            MockResponse response = new MockResponse();
+            RequestProxy.execute(serverUrl + "/page" + i, request, response, true, false, false, null);
+            assertEquals("hello /page" + i, response.getOutputStreamAsString());
+        }
+        assertEquals("each request should open a connection", 3, clientPorts.size());
+    }
+
+    public void testAsyncProxy() throws Exception {
+        Conf conf = new Conf();
+        NormalRule rule = new NormalRule();
+        rule.setFrom("^/proxy/(.*)$");
+        rule.setTo(serverUrl + "/$1");
+        rule.setToType("proxy");
+        rule.setProxyAsync(true);
+        conf.addRule(rule);
+        conf.initialise();
+        conf.setProxyConnectionManager(proxyConnectionManager);
+        UrlRewriter urlRewriter = new UrlRewriter(conf);
+
+        AsyncMockRequest request = new AsyncMockRequest("/proxy/async");
+        MockResponse response = new MockResponse();
+        MockFilterChain chain = new MockFilterChain();
+        assertTrue(urlRewriter.processRequest(request, response, chain));
+        assertTrue(request.isAsyncStarted());
+        assertTrue(request.asyncContext.completed.await(10, TimeUnit.SECONDS));
+        assertFalse("filter chain should not be continued", chain.isDoFilterRun());
+        assertTrue(request.asyncContext.completedBy.getName().startsWith("urlrewrite-proxy-"));
+        assertEquals("hello /async", response.getOutputStreamAsString());
+    }
+
+    public void testAsyncProxyBusy() throws Exception {
+        ProxyConnectionManager busyConnectionManager = new ProxyConnectionManager(10, 2, 30, 1);
+        final CountDownLatch release = new CountDownLatch(1);
+        try {
+            // one running and one queued fills the async threads
+            for (int i = 0; i < 2; i++) {
+                assertTrue(busyConnectionManager.executeAsync(() -> {
+                    try {
+                        release.await(10, TimeUnit.SECONDS);
+                    } catch (InterruptedException e) {
+                        // done
+                    }
+                }));
+            }
+            AsyncMockRequest request = new AsyncMockRequest("/page");
+            MockResponse response = new MockResponse();
+            assertTrue(RequestProxy.executeAsync(serverUrl + "/page", request, response, true, false, false,
+                    busyConnectionManager, null));
+            assertEquals(0, request.asyncContext.completed.getCount());
+            assertSame(Thread.currentThread(), request.asyncContext.completedBy);
+            assertEquals(503, response.getStatus());
+            assertTrue("target should not have been called", clientPorts.isEmpty());
+        } finally {
+            release.countDown();
+            busyConnectionManager.shutdown();
+        }
+    }
+
+    public void testAsyncProxyNotSupported() throws Exception {
+        MockRequest request = new MockRequest("/page");
+        request.setMethod("GET");
+        assertFalse(RequestProxy.executeAsync(serverUrl + "/page", request, new MockResponse(), true, false, false,
+                proxyConnectionManager, null));
+    }
+
+    /**
+     * Request that supports async, the context only records when it is completed.
+     */
+    private static class AsyncMockRequest extends MockRequest {
+        private MockAsyncContext asyncContext;
+
+        AsyncMockRequest(String requestURI) {
+            super(requestURI);
+            setMethod("GET");
+        }
+
+        public boolean isAsyncSupported() {
+            return true;
+        }
+
+        public boolean isAsyncStarted() {
+            return asyncContext != null;
+        }
+
+        public AsyncContext startAsync(ServletRequest servletRequest, ServletResponse servletResponse) {
+            asyncContext = new MockAsyncContext(servletRequest, servletResponse);
+            return asyncContext;
+        }
+
+        public AsyncContext getAsyncContext() {
+            return asyncContext;
+        }
+    }
+
+    private static class MockAsyncContext implements AsyncContext {
+        private final ServletRequest request;
+        private final ServletResponse response;
+        private final CountDownLatch completed = new CountDownLatch(1);
+        private volatile Thread completedBy;
+
+        MockAsyncContext(ServletRequest request, ServletResponse response) {
+            this.request = request;
+            this.response = response;
+        }
+
+        public ServletRequest getRequest() {
+            return request;
+        }
+
+        public ServletResponse getResponse() {
+            return response;
+        }
+
+        public boolean hasOriginalRequestAndResponse() {
+            return true;
+        }
+
+        public void dispatch() {
+        }
+
+        public void dispatch(String path) {
+        }
+
+        public void dispatch(ServletContext context, String path) {
+        }
+
+        public void complete() {
+            completedBy = Thread.currentThread();
+            completed.countDown();
+        }
+
+        public void start(java.lang.Runnable run) {
+            new Thread(run).start();
+        }
+
+        public void addListener(AsyncListener listener) {
+        }
+
+        public void addListener(AsyncListener listener, ServletRequest servletRequest, ServletResponse servletResponse) {
+        }
+
+        public <T extends AsyncListener> T createListener(Class<T> clazz) {
+            return null;
+        }
+
+        public void setTimeout(long timeout) {
+        }
+
+        public long getTimeout() {
+            return 0;
+        }
+    }
+
+}
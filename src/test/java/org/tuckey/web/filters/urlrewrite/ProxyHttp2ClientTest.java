@@ -0,0 +1,120 @@
+/**
+ * Copyright (c) 2005-2007, Paul Tuckey
+ * All rights reserved.
+ * ====================================================================
+ * Licensed under the BSD License. Text as follows.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *   - Redistributions of source code must retain the above copyright
+ *     notice, this list of conditions and the following disclaimer.
+ *   - Redistributions in binary form must reproduce the above
+ *     copyright notice, this list of conditions and the following
+ *     disclaimer in the documentation and/or other materials provided
+ *     with the distribution.
+ *   - Neither the name tuckey.org nor the names of its contributors
+ *     may be used to endorse or promote products derived from this
+ *     software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ * COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN
+ * ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * ====================================================================
+ */
+package org.tuckey.web.filters.urlrewrite;
+
+import org.tuckey.web.testhelper.MockRequest;
+import org.tuckey.web.testhelper.MockResponse;
+import org.tuckey.web.testhelper.ProxyTestCase;
+
+import javax.servlet.ServletInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicReference;
+
+public class ProxyHttp2ClientTest extends ProxyTestCase {
+
+    private String serverUrl;
+    private final AtomicReference<String> upgrade = new AtomicReference<>();
+    private final AtomicReference<String> requestBody = new AtomicReference<>();
+
+    public void setUp() throws Exception {
+        super.setUp();
+        serverUrl = serverUrl(startServer(exchange -> {
+            if (upgrade.get() == null) upgrade.set(String.valueOf(exchange.getRequestHeaders().getFirst("Upgrade")));
+            ByteArrayOutputStream received = new ByteArrayOutputStream();
+            RequestProxy.copyStream(exchange.getRequestBody(), received);
+            requestBody.set(exchange.getRequestMethod() + " " + received.toString("UTF-8"));
+            boolean missing = exchange.getRequestURI().getPath().equals("/missing");
+            byte[] body = (missing ? "not here" : "hello").getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().add("Content-Type", "text/plain");
+            exchange.getResponseHeaders().add("Set-Cookie", "id=1");
+            try (OutputStream os = exchange.getResponseBody()) {
+                exchange.sendResponseHeaders(missing ? 404 : 200, body.length);
+                os.write(body);
+            }
+        }));
+    }
+
+    public void testGet() throws IOException {
+        if (proxyConnectionManager.getHttp2Client() == null) return; // needs Java 11
+        MockResponse response = proxy("/page", "GET", null);
+        assertEquals("h2c", upgrade.get());
+        assertEquals(200, response.getStatus());
+        assertEquals("text/plain", response.getHeader("Content-Type"));
+        assertNull("cookies dropped", response.getHeader("Set-Cookie"));
+        assertEquals("hello", response.getOutputStreamAsString());
+    }
+
+    public void testStatusCopied() throws IOException {
+        if (proxyConnectionManager.getHttp2Client() == null) return;
+        MockResponse response = proxy("/missing", "GET", null);
+        assertEquals(404, response.getStatus());
+        assertEquals("not here", response.getOutputStreamAsString());
+    }
+
+    public void testPostBody() throws IOException {
+        if (proxyConnectionManager.getHttp2Client() == null) return;
+        MockResponse response = proxy("/form", "POST", "a=1&b=2");
+        assertEquals("POST a=1&b=2", requestBody.get());
+        assertEquals("hello", response.getOutputStreamAsString());
+    }
+
+    private MockResponse proxy(String path, String method, String body) throws IOException {
+        MockRequest request;
+        if (body == null) {
+            request = new MockRequest(path);
+        } else {
+            final InputStream in = new ByteArrayInputStream(body.getBytes(StandardCharsets.UTF_8));
+            request = new MockRequest(path) {
+                public ServletInputStream getInputStream() {
+                    return new ServletInputStream() {
+                        public int read() throws IOException {
+                            return in.read();
+                        }
+                    };
+                }
+            };
+            request.setContentLength(body.length());
+        }
+        request.setMethod(method);
+        ProxyOptions options = new ProxyOptions();
+        options.setHttp2(true);
+        return proxy(serverUrl + path, request, options);
+    }
+}
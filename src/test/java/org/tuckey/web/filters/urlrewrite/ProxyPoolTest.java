@@ -0,0 +1,197 @@
+/**
+ * Copyright (c) 2005-2007, Paul Tuckey
+ * All rights reserved.
+ * ====================================================================
+ * Licensed under the BSD License. Text as follows.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *   - Redistributions of source code must retain the above copyright
+ *     notice, this list of conditions and the following disclaimer.
+ *   - Redistributions in binary form must reproduce the above
+ *     copyright notice, this list of conditions and the following
+ *     disclaimer in the documentation and/or other materials provided
+ *     with the distribution.
+ *   - Neither the name tuckey.org nor the names of its contributors
+ *     may be used to endorse or promote products derived from this
+ *     software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ * COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN
+ * ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * ====================================================================
+ */
+package org.tuckey.web.filters.urlrewrite;
+
+import org.tuckey.web.testhelper.MockRequest;
+import org.tuckey.web.testhelper.MockResponse;
+import org.tuckey.web.testhelper.MockServletContext;
+import org.tuckey.web.testhelper.ProxyTestCase;
+
+import java.io.ByteArrayInputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+public class ProxyPoolTest extends ProxyTestCase {
+
+    public void testRoundRobin() {
+        ProxyPool pool = pool(ProxyPool.STRATEGY_ROUND_ROBIN, "http://a", "http://b", "http://c");
+        Set<String> chosen = new HashSet<>();
+        for (int i = 0; i < 3; i++) {
+            chosen.add(pool.select("/x").getUrl());
+        }
+        assertEquals(3, chosen.size());
+    }
+
+    public void testLeastInFlight() {
+        ProxyPool pool = pool(ProxyPool.STRATEGY_LEAST_IN_FLIGHT, "http://a", "http://b");
+        ProxyUpstream a = pool.getUpstreams().get(0);
+        a.requestStarted();
+        for (int i = 0; i < 4; i++) {
+            assertEquals("http://b", pool.select("/x").getUrl());
+        }
+        a.requestFinished(false, 3, 1000);
+        pool.getUpstreams().get(1).requestStarted();
+        assertEquals("http://a", pool.select("/x").getUrl());
+    }
+
+    public void testConsistentHash() {
+        ProxyPool pool = pool(ProxyPool.STRATEGY_CONSISTENT_HASH, "http://a", "http://b", "http://c");
+        Map<String, Integer> counts = new HashMap<>();
+        for (int i = 0; i < 300; i++) {
+            String url = pool.select("/page" + i).getUrl();
+            assertEquals("same path same upstream", url, pool.select("/page" + i + "?q=" + i).getUrl());
+            Integer count = counts.get(url);
+            counts.put(url, count == null ? 1 : count + 1);
+        }
+        assertEquals(3, counts.size());
+        for (Integer count : counts.values()) {
+            assertTrue("spread " + counts, count > 30);
+        }
+
+        // ejecting an upstream only moves its own paths
+        ProxyUpstream first = pool.select("/page1");
+        first.requestFinished(true, 1, 60000);
+        assertNotSame(first, pool.select("/page1"));
+        for (int i = 0; i < 300; i++) {
+            ProxyUpstream upstream = pool.select("/page" + i);
+            assertNotSame(first, upstream);
+        }
+    }
+
+    public void testEjection() {
+        ProxyPool pool = pool(ProxyPool.STRATEGY_ROUND_ROBIN, "http://a", "http://b");
+        ProxyUpstream a = pool.getUpstreams().get(0);
+        a.requestStarted();
+        a.requestFinished(true, 2, 60000);
+        assertTrue(a.isAvailable(System.currentTimeMillis()));
+        a.requestStarted();
+        a.requestFinished(true, 2, 60000);
+        assertFalse(a.isAvailable(System.currentTimeMillis()));
+        assertTrue("re-admitted after the cooldown", a.isAvailable(System.currentTimeMillis() + 60001));
+        assertEquals(1, a.getEjectionCount());
+        assertEquals(2, a.getFailureCount());
+        for (int i = 0; i < 4; i++) {
+            assertEquals("http://b", pool.select("/x").getUrl());
+        }
+
+        ProxyUpstream b = pool.getUpstreams().get(1);
+        b.requestFinished(true, 1, 60000);
+        assertNotNull("all ejected, used anyway", pool.select("/x"));
+    }
+
+    public void testResolve() {
+        ProxyUpstream upstream = new ProxyUpstream("http://a:8080/app/");
+        assertEquals("http://a:8080/app/x?y=1", upstream.resolve("/x?y=1"));
+        assertEquals("http://a:8080/app/x", upstream.resolve("x"));
+        assertEquals("http://a:8080/app", upstream.resolve(""));
+    }
+
+    public void testInvalid() {
+        assertFalse(pool("random", "http://a").initialise());
+        assertFalse(pool(ProxyPool.STRATEGY_ROUND_ROBIN).initialise());
+        assertFalse(pool(ProxyPool.STRATEGY_ROUND_ROBIN, "not a url").initialise());
+    }
+
+    public void testConf() {
+        Conf conf = conf("<proxy-pool name=\"backend\" strategy=\"least-in-flight\" max-failures=\"5\" cooldown=\"10\">" +
+                "<upstream>http://a:8080</upstream><upstream> http://b:8080 </upstream></proxy-pool>" +
+                "<rule><from>^/app/(.*)$</from><to type=\"proxy\" pool=\"backend\">/app/$1</to></rule>");
+        assertTrue(conf.getErrors().toString(), conf.isOk());
+        ProxyPool pool = conf.getProxyPool("backend");
+        assertEquals(ProxyPool.STRATEGY_LEAST_IN_FLIGHT, pool.getStrategy());
+        assertEquals(5, pool.getMaxFailures());
+        assertEquals(10, pool.getCooldown());
+        assertEquals("http://b:8080", pool.getUpstreams().get(1).getUrl());
+        assertSame(pool, ((NormalRule) conf.getRules().get(0)).getProxyOptions().getPool());
+
+        conf = conf("<rule><from>^/app/(.*)$</from><to type=\"proxy\" pool=\"missing\">/app/$1</to></rule>");
+        assertFalse(conf.isOk());
+    }
+
+    public void testProxy() throws Exception {
+        StringBuilder poolXml = new StringBuilder("<proxy-pool name=\"backend\" max-failures=\"1\">");
+        for (int i = 0; i < 2; i++) {
+            final int status = i == 0 ? 200 : 503;
+            String url = serverUrl(startServer(exchange -> {
+                byte[] body = exchange.getRequestURI().getPath().getBytes(StandardCharsets.UTF_8);
+                exchange.sendResponseHeaders(status, body.length);
+                try (OutputStream os = exchange.getResponseBody()) {
+                    os.write(body);
+                }
+            }));
+            poolXml.append("<upstream>").append(url).append("</upstream>");
+        }
+        poolXml.append("</proxy-pool>");
+        Conf conf = conf(poolXml + "<rule><from>^/app/(.*)$</from><to type=\"proxy\" pool=\"backend\">/$1</to></rule>");
+        conf.setProxyConnectionManager(proxyConnectionManager);
+        NormalRule rule = (NormalRule) conf.getRules().get(0);
+        for (int i = 0; i < 4; i++) {
+            MockRequest request = request("/app/page", "GET");
+            MockResponse response = new MockResponse();
+            NormalRewrittenUrl rewrittenUrl = (NormalRewrittenUrl) rule.matches(request.getRequestURI(), request, response);
+            assertTrue(rewrittenUrl.doRewrite(request, response, null));
+            assertEquals("/page", response.getOutputStreamAsString());
+        }
+        ProxyPool pool = conf.getProxyPool("backend");
+        assertEquals(3, pool.getUpstreams().get(0).getRequestCount());
+        assertEquals("failing upstream ejected after one failure", 1, pool.getUpstreams().get(1).getRequestCount());
+        assertEquals(1, pool.getUpstreams().get(1).getEjectionCount());
+        assertEquals(0, pool.getUpstreams().get(0).getInFlight());
+    }
+
+    private static ProxyPool pool(String strategy, String... urls) {
+        ProxyPool pool = new ProxyPool();
+        pool.setName("test");
+        pool.setStrategy(strategy);
+        for (String url : urls) {
+            pool.addUpstream(new ProxyUpstream(url));
+        }
+        pool.initialise();
+        return pool;
+    }
+
+    private static Conf conf(String elements) {
+        String xml = "<?xml version=\"1.0\" encoding=\"utf-8\"?>\n" +
+                "<!DOCTYPE urlrewrite PUBLIC \"-//tuckey.org//DTD UrlRewrite 4.0//EN\" " +
+                "\"http://www.tuckey.org/res/dtds/urlrewrite4.0.dtd\">\n" +
+                "<urlrewrite>" + elements + "</urlrewrite>";
+        return new Conf(new MockServletContext(), new ByteArrayInputStream(xml.getBytes(StandardCharsets.UTF_8)),
+                "proxy-pool-test.xml", "proxy-pool-test.xml");
+    }
+}
@@ -0,0 +1,142 @@
+/**
+ * Copyright (c) 2005-2007, Paul Tuckey
+ * All rights reserved.
+ * ====================================================================
+ * Licensed under the BSD License. Text as follows.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *   - Redistributions of source code must retain the above copyright
+ *     notice, this list of conditions and the following disclaimer.
+ *   - Redistributions in binary form must reproduce the above
+ *     copyright notice, this list of conditions and the following
+ *     disclaimer in the documentation and/or other materials provided
+ *     with the distribution.
+ *   - Neither the name tuckey.org nor the names of its contributors
+ *     may be used to endorse or promote products derived from this
+ *     software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ * COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN
+ * ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * ====================================================================
+ */
+package org.tuckey.web.filters.urlrewrite;
+
+import com.sun.net.httpserver.Headers;
+import org.tuckey.web.testhelper.MockRequest;
+import org.tuckey.web.testhelper.MockResponse;
+import org.tuckey.web.testhelper.ProxyTestCase;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+public class ProxyRangeRequestTest extends ProxyTestCase {
+
+    private static final Pattern RANGE_PATTERN = Pattern.compile("bytes=([0-9]+)-([0-9]+)");
+
+    private final byte[] asset = new byte[1000];
+    private String url;
+    private final AtomicReference<String> lastMethod = new AtomicReference<>();
+    private final AtomicReference<String> lastAcceptEncoding = new AtomicReference<>();
+    private final AtomicInteger requests = new AtomicInteger();
+
+    public void setUp() throws Exception {
+        super.setUp();
+        for (int i = 0; i < asset.length; i++) asset[i] = (byte) i;
+        url = serverUrl(startServer(exchange -> {
+            requests.incrementAndGet();
+            Headers requestHeaders = exchange.getRequestHeaders();
+            lastMethod.set(exchange.getRequestMethod());
+            lastAcceptEncoding.set(requestHeaders.getFirst("Accept-Encoding"));
+            Headers responseHeaders = exchange.getResponseHeaders();
+            responseHeaders.add("ETag", "\"v1\"");
+            responseHeaders.add("Accept-Ranges", "bytes");
+            responseHeaders.add("Cache-Control", "max-age=60");
+            String range = requestHeaders.getFirst("Range");
+            Matcher matcher = range == null ? null : RANGE_PATTERN.matcher(range);
+            try (OutputStream os = exchange.getResponseBody()) {
+                if ("\"v1\"".equals(requestHeaders.getFirst("If-None-Match"))) {
+                    exchange.sendResponseHeaders(304, -1);
+                } else if ("HEAD".equals(exchange.getRequestMethod())) {
+                    responseHeaders.add("Content-Length", String.valueOf(asset.length));
+                    exchange.sendResponseHeaders(200, -1);
+                } else if (matcher != null && matcher.matches()) {
+                    int from = Integer.parseInt(matcher.group(1));
+                    int to = Integer.parseInt(matcher.group(2));
+                    responseHeaders.add("Content-Range", "bytes " + from + "-" + to + "/" + asset.length);
+                    exchange.sendResponseHeaders(206, to - from + 1);
+                    os.write(asset, from, to - from + 1);
+                } else {
+                    exchange.sendResponseHeaders(200, asset.length);
+                    os.write(asset);
+                }
+            }
+        })) + "/asset";
+    }
+
+    public void testHead() throws IOException {
+        MockResponse response = proxy("HEAD", null, null, new ProxyOptions());
+        assertEquals("HEAD", lastMethod.get());
+        assertEquals("no encoding so the length is that of the decoded body", "identity", lastAcceptEncoding.get());
+        assertEquals(200, response.getStatus());
+        assertEquals("1000", response.getHeader("Content-Length"));
+        assertEquals(0, response.getOutputStreamAsBytes().length);
+    }
+
+    public void testRange() throws IOException {
+        MockResponse response = proxy("GET", "Range", "bytes=100-199", new ProxyOptions());
+        assertEquals(206, response.getStatus());
+        assertEquals("bytes 100-199/1000", response.getHeader("Content-Range"));
+        assertEquals("100", response.getHeader("Content-Length"));
+        assertTrue(Arrays.equals(Arrays.copyOfRange(asset, 100, 200), response.getOutputStreamAsBytes()));
+    }
+
+    public void testNotModified() throws IOException {
+        MockResponse response = proxy("GET", "If-None-Match", "\"v1\"", new ProxyOptions());
+        assertEquals(304, response.getStatus());
+        assertNull(response.getHeader("Content-Length"));
+        assertEquals(0, response.getOutputStreamAsBytes().length);
+    }
+
+    public void testFullLength() throws IOException {
+        MockResponse response = proxy("GET", null, null, new ProxyOptions());
+        assertEquals(200, response.getStatus());
+        assertEquals("1000", response.getHeader("Content-Length"));
+        assertTrue(Arrays.equals(asset, response.getOutputStreamAsBytes()));
+    }
+
+    public void testRangeNotFromCache() throws IOException {
+        ProxyOptions options = new ProxyOptions();
+        options.setCache(true);
+        options.setCoalesce(true);
+        proxyConnectionManager.setResponseCache(new ProxyResponseCache());
+        assertEquals(200, proxy("GET", null, null, options).getStatus());
+        MockResponse response = proxy("GET", "Range", "bytes=0-9", options);
+        assertEquals(206, response.getStatus());
+        assertEquals(10, response.getOutputStreamAsBytes().length);
+        assertEquals("range request goes to the target", 2, requests.get());
+    }
+
+    private MockResponse proxy(String method, String headerName, String headerValue, ProxyOptions options) throws IOException {
+        MockRequest request = request("/asset", method);
+        if (headerName != null) request.setHeader(headerName, headerValue);
+        return proxy(url, request, options);
+    }
+}
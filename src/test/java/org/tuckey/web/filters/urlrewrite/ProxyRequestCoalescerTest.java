@@ -0,0 +1,185 @@
+/**
+ * Copyright (c) 2005-2007, Paul Tuckey
+ * All rights reserved.
+ * ====================================================================
+ * Licensed under the BSD License. Text as follows.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *   - Redistributions of source code must retain the above copyright
+ *     notice, this list of conditions and the following disclaimer.
+ *   - Redistributions in binary form must reproduce the above
+ *     copyright notice, this list of conditions and the following
+ *     disclaimer in the documentation and/or other materials provided
+ *     with the distribution.
+ *   - Neither the name tuckey.org nor the names of its contributors
+ *     may be used to endorse or promote products derived from this
+ *     software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ * COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN
+ * ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * ====================================================================
+ */
+package org.tuckey.web.filters.urlrewrite;
+
+import org.tuckey.web.testhelper.MockRequest;
+import org.tuckey.web.testhelper.MockResponse;
+import org.tuckey.web.testhelper.ProxyTestCase;
+
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class ProxyRequestCoalescerTest extends ProxyTestCase {
+
+    private static final String[] VARY = {"accept"};
+
+    public void testKey() {
+        MockRequest request = request("GET");
+        request.setHeader("accept", "text/html");
+        String key = ProxyRequestCoalescer.getKey("http://backend/a", request, true, VARY);
+        assertNotNull(key);
+        assertEquals(key, ProxyRequestCoalescer.getKey("http://backend/a", request, true, VARY));
+        assertFalse(key.equals(ProxyRequestCoalescer.getKey("http://backend/b", request, true, VARY)));
+        assertFalse(key.equals(ProxyRequestCoalescer.getKey("http://backend/a", request, false, VARY)));
+
+        MockRequest other = request("GET");
+        other.setHeader("accept", "application/json");
+        assertFalse(key.equals(ProxyRequestCoalescer.getKey("http://backend/a", other, true, VARY)));
+
+        assertNotNull(ProxyRequestCoalescer.getKey("http://backend/a", request("HEAD"), true, VARY));
+        assertNull(ProxyRequestCoalescer.getKey("http://backend/a", request("POST"), true, VARY));
+    }
+
+    public void testKeyCredentials() {
+        MockRequest request = request("GET");
+        request.setHeader("authorization", "Basic dXNlcjpwYXNz");
+        assertNull(ProxyRequestCoalescer.getKey("http://backend/a", request, true, VARY));
+        assertNotNull(ProxyRequestCoalescer.getKey("http://backend/a", request, true, new String[]{"authorization"}));
+
+        request = request("GET");
+        request.setHeader("cookie", "JSESSIONID=1");
+        assertNotNull("cookies are not forwarded", ProxyRequestCoalescer.getKey("http://backend/a", request, true, VARY));
+        assertNull(ProxyRequestCoalescer.getKey("http://backend/a", request, false, VARY));
+    }
+
+    public void testKeyRangeAndConditional() {
+        String[][] headers = {{"range", "bytes=0-9"}, {"if-range", "\"v1\""}, {"if-none-match", "\"v1\""},
+                {"if-modified-since", "Thu, 01 Jan 2026 00:00:00 GMT"}, {"if-match", "\"v1\""},
+                {"if-unmodified-since", "Thu, 01 Jan 2026 00:00:00 GMT"}};
+        for (String[] header : headers) {
+            MockRequest request = request("GET");
+            request.setHeader(header[0], header[1]);
+            assertNull(header[0] + " should not be coalesced",
+                    ProxyRequestCoalescer.getKey("http://backend/a", request, true, VARY));
+        }
+    }
+
+    public void testJoin() {
+        ProxyRequestCoalescer coalescer = new ProxyRequestCoalescer();
+        ProxyRequestCoalescer.Call leader = coalescer.join("k", 1);
+        assertTrue(leader.isLeader());
+        ProxyRequestCoalescer.Call waiter = coalescer.join("k", 1);
+        assertFalse(waiter.isLeader());
+        assertNull("too many waiters", coalescer.join("k", 1));
+        assertEquals(1, coalescer.getInFlightCount());
+
+        BufferedProxyResponse response = new BufferedProxyResponse(200, Collections.<String[]>emptyList(), new byte[0]);
+        leader.complete(response);
+        assertSame(response, waiter.await(1));
+        assertEquals(0, coalescer.getInFlightCount());
+        assertTrue("next request leads again", coalescer.join("k", 1).isLeader());
+        assertEquals(2, coalescer.getLeaderCount());
+        assertEquals(1, coalescer.getSharedCount());
+        assertEquals(1, coalescer.getNotSharedCount());
+    }
+
+    public void testNotShared() {
+        ProxyRequestCoalescer coalescer = new ProxyRequestCoalescer();
+        ProxyRequestCoalescer.Call leader = coalescer.join("k", 10);
+        ProxyRequestCoalescer.Call waiter = coalescer.join("k", 10);
+        assertNull("timed out", waiter.await(0));
+        leader.complete(null);
+        leader.complete(new BufferedProxyResponse(200, Collections.<String[]>emptyList(), new byte[0]));
+        assertNull("only the first complete counts", waiter.await(0));
+    }
+
+    public void testCoalescedProxy() throws Exception {
+        final int clients = 5;
+        final AtomicInteger targetRequests = new AtomicInteger();
+        final CountDownLatch release = new CountDownLatch(1);
+        final String target = serverUrl(startServer(exchange -> {
+            targetRequests.incrementAndGet();
+            try {
+                release.await(10, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            byte[] body = "shared body".getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().add("Etag", "\"v1\"");
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream os = exchange.getResponseBody()) {
+                os.write(body);
+            }
+        })) + "/popular";
+        final ProxyOptions options = new ProxyOptions();
+        options.setCoalesce(true);
+
+        final List<MockResponse> responses = Collections.synchronizedList(new ArrayList<>());
+        final List<Throwable> errors = Collections.synchronizedList(new ArrayList<>());
+        List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < clients; i++) {
+            Thread thread = new Thread(() -> {
+                try {
+                    responses.add(proxy(target, options));
+                } catch (Throwable t) {
+                    errors.add(t);
+                }
+            });
+            threads.add(thread);
+            thread.start();
+        }
+        ProxyRequestCoalescer coalescer = proxyConnectionManager.getRequestCoalescer();
+        long deadline = System.currentTimeMillis() + 10000;
+        while (targetRequests.get() < 1 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        // give the other clients time to join the request in flight
+        Thread.sleep(200);
+        release.countDown();
+        for (Thread thread : threads) {
+            thread.join(10000);
+        }
+
+        assertTrue(errors.toString(), errors.isEmpty());
+        assertEquals(clients, responses.size());
+        for (MockResponse response : responses) {
+            assertEquals("shared body", response.getOutputStreamAsString());
+            assertEquals("\"v1\"", response.getHeader("Etag"));
+        }
+        assertEquals(1, targetRequests.get());
+        assertEquals(1, coalescer.getLeaderCount());
+        assertEquals(clients - 1, coalescer.getSharedCount());
+    }
+
+    private static MockRequest request(String method) {
+        return request("/popular", method);
+    }
+}
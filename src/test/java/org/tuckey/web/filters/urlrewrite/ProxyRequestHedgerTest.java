@@ -0,0 +1,168 @@
+/**
+ * Copyright (c) 2005-2007, Paul Tuckey
+ * All rights reserved.
+ * ====================================================================
+ * Licensed under the BSD License. Text as follows.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *   - Redistributions of source code must retain the above copyright
+ *     notice, this list of conditions and the following disclaimer.
+ *   - Redistributions in binary form must reproduce the above
+ *     copyright notice, this list of conditions and the following
+ *     disclaimer in the documentation and/or other materials provided
+ *     with the distribution.
+ *   - Neither the name tuckey.org nor the names of its contributors
+ *     may be used to endorse or promote products derived from this
+ *     software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ * COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN
+ * ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * ====================================================================
+ */
+package org.tuckey.web.filters.urlrewrite;
+
+import org.tuckey.web.testhelper.ProxyTestCase;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class ProxyRequestHedgerTest extends ProxyTestCase {
+
+    public void testLatencyTracker() {
+        ProxyLatencyTracker tracker = new ProxyLatencyTracker("http://a:80");
+        for (int i = 1; i < ProxyLatencyTracker.MIN_SAMPLES; i++) {
+            tracker.record(i);
+        }
+        assertEquals("not enough samples", -1, tracker.getPercentile(50));
+        for (int i = ProxyLatencyTracker.MIN_SAMPLES; i <= 100; i++) {
+            tracker.record(i);
+        }
+        assertEquals(50, tracker.getPercentile(50));
+        assertEquals(99, tracker.getPercentile(99));
+        assertEquals(100, tracker.getPercentile(100));
+
+        ProxyOptions options = new ProxyOptions();
+        options.setHedgeDelay(10);
+        options.setHedgePercentile(95);
+        assertEquals(95, ProxyRequestHedger.getDelay(tracker, options));
+        options.setHedgeDelay(200);
+        assertEquals(200, ProxyRequestHedger.getDelay(tracker, options));
+    }
+
+    public void testHedgeWins() throws Exception {
+        final AtomicInteger fastRequests = new AtomicInteger();
+        String slowUrl = server(() -> 3000);
+        String fastUrl = server(() -> {
+            fastRequests.incrementAndGet();
+            return 0;
+        });
+        ProxyPool pool = new ProxyPool();
+        pool.setName("search");
+        // round robin, so the first request goes to the slow upstream and the hedge to the fast one
+        pool.addUpstream(new ProxyUpstream(slowUrl));
+        pool.addUpstream(new ProxyUpstream(fastUrl));
+        assertTrue(pool.initialise());
+        ProxyOptions options = hedgeOptions();
+        options.setPool(pool);
+        long start = System.currentTimeMillis();
+        assertEquals("ok", proxy("/search", options).getOutputStreamAsString());
+        assertTrue("slow first request should be hedged", System.currentTimeMillis() - start < 2000);
+        assertEquals("only the hedge goes to the fast upstream", 1, fastRequests.get());
+        ProxyLatencyTracker tracker = proxyConnectionManager.getLatencyTracker(new URL(slowUrl));
+        assertEquals(1, tracker.getHedgeCount());
+        assertEquals(1, tracker.getHedgeWonCount());
+    }
+
+    public void testNotHedgedWhenFast() throws Exception {
+        final AtomicInteger requests = new AtomicInteger();
+        String url = server(() -> {
+            requests.incrementAndGet();
+            return 0;
+        });
+        for (int i = 0; i < 5; i++) {
+            assertEquals("ok", proxy(url + "/search", hedgeOptions()).getOutputStreamAsString());
+        }
+        // let any (wrongly) scheduled hedge run
+        Thread.sleep(300);
+        assertEquals(5, requests.get());
+        ProxyLatencyTracker tracker = proxyConnectionManager.getLatencyTracker(new URL(url));
+        assertEquals(5, tracker.getSampleCount());
+        assertEquals(0, tracker.getHedgeCount());
+    }
+
+    public void testHedgeToOtherUpstream() throws Exception {
+        ProxyPool pool = new ProxyPool();
+        pool.setName("search");
+        pool.addUpstream(new ProxyUpstream(server(() -> 3000)));
+        pool.addUpstream(new ProxyUpstream(server(() -> 0)));
+        assertTrue(pool.initialise());
+        ProxyOptions options = hedgeOptions();
+        options.setPool(pool);
+        for (int i = 0; i < 4; i++) {
+            long start = System.currentTimeMillis();
+            assertEquals("ok", proxy("/search", options).getOutputStreamAsString());
+            assertTrue(System.currentTimeMillis() - start < 2000);
+        }
+    }
+
+    public void testTotalTimeoutAbortsHedge() throws Exception {
+        String url = server(() -> 3000);
+        ProxyOptions options = hedgeOptions();
+        options.setTimeout(500);
+        long start = System.currentTimeMillis();
+        try {
+            proxy(url + "/search", options);
+            fail("should be aborted");
+        } catch (IOException e) {
+            // expected
+        }
+        assertTrue("the hedge should be aborted too", System.currentTimeMillis() - start < 2000);
+        ProxyLatencyTracker tracker = proxyConnectionManager.getLatencyTracker(new URL(url));
+        assertEquals(1, tracker.getHedgeCount());
+        assertEquals(0, tracker.getHedgeWonCount());
+    }
+
+    private interface Delay {
+        long next();
+    }
+
+    private String server(final Delay delay) throws IOException {
+        return serverUrl(startServer(exchange -> {
+            try {
+                Thread.sleep(delay.next());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            byte[] body = "ok".getBytes(StandardCharsets.UTF_8);
+            try (OutputStream os = exchange.getResponseBody()) {
+                exchange.sendResponseHeaders(200, body.length);
+                os.write(body);
+            } catch (IOException e) {
+                // the hedge won
+            }
+        }));
+    }
+
+    private static ProxyOptions hedgeOptions() {
+        ProxyOptions options = new ProxyOptions();
+        options.setHedge(true);
+        options.setHedgeDelay(100);
+        return options;
+    }
+}
@@ -0,0 +1,247 @@
+/**
+ * Copyright (c) 2005-2007, Paul Tuckey
+ * All rights reserved.
+ * ====================================================================
+ * Licensed under the BSD License. Text as follows.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *   - Redistributions of source code must retain the above copyright
+ *     notice, this list of conditions and the following disclaimer.
+ *   - Redistributions in binary form must reproduce the above
+ *     copyright notice, this list of conditions and the following
+ *     disclaimer in the documentation and/or other materials provided
+ *     with the distribution.
+ *   - Neither the name tuckey.org nor the names of its contributors
+ *     may be used to endorse or promote products derived from this
+ *     software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ * COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN
+ * ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * ====================================================================
+ */
+package org.tuckey.web.filters.urlrewrite;
+
+import org.apache.http.client.methods.HttpGet;
+import org.tuckey.web.testhelper.MockRequest;
+import org.tuckey.web.testhelper.MockResponse;
+import org.tuckey.web.testhelper.ProxyTestCase;
+
+import java.io.File;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+public class ProxyResponseCacheTest extends ProxyTestCase {
+
+    private String target;
+    private final AtomicInteger targetRequests = new AtomicInteger();
+    private final AtomicInteger notModifiedCount = new AtomicInteger();
+    private final AtomicReference<String> cacheControl = new AtomicReference<>("max-age=60");
+    private final AtomicInteger status = new AtomicInteger(200);
+
+    public void setUp() throws Exception {
+        super.setUp();
+        target = serverUrl(startServer(exchange -> {
+            int count = targetRequests.incrementAndGet();
+            exchange.getResponseHeaders().add("Cache-Control", cacheControl.get());
+            exchange.getResponseHeaders().add("Etag", "\"v1\"");
+            if ("\"v1\"".equals(exchange.getRequestHeaders().getFirst("If-None-Match")) && status.get() == 200) {
+                notModifiedCount.incrementAndGet();
+                exchange.sendResponseHeaders(304, -1);
+                exchange.close();
+                return;
+            }
+            byte[] body = ("body " + count).getBytes(StandardCharsets.UTF_8);
+            exchange.sendResponseHeaders(status.get(), body.length);
+            try (OutputStream os = exchange.getResponseBody()) {
+                os.write(body);
+            }
+        })) + "/cached";
+        proxyConnectionManager.setResponseCache(new ProxyResponseCache());
+    }
+
+    public void testFreshness() {
+        long now = System.currentTimeMillis();
+        CachedProxyResponse cached = cached("max-age=10, stale-while-revalidate=20, stale-if-error=60", now);
+        assertNotNull(cached);
+        assertTrue(cached.isFresh(now + 5000));
+        assertFalse(cached.isFresh(now + 15000));
+        assertTrue(cached.isUsableWhileRevalidating(now + 15000));
+        assertFalse(cached.isUsableWhileRevalidating(now + 35000));
+        assertTrue(cached.isUsableIfError(now + 35000));
+        assertFalse(cached.isUsableIfError(now + 75000));
+
+        cached = cached("max-age=10, s-maxage=100, must-revalidate, stale-if-error=60", now);
+        assertTrue("s-maxage wins", cached.isFresh(now + 50000));
+        assertFalse("must-revalidate", cached.isUsableIfError(now + 150000));
+    }
+
+    public void testNotCacheable() {
+        long now = System.currentTimeMillis();
+        assertNull(cached("no-store", now));
+        assertNull(cached("private, max-age=60", now));
+        List<String[]> headers = new ArrayList<>();
+        headers.add(new String[]{"Cache-Control", "max-age=60"});
+        headers.add(new String[]{"Set-Cookie", "a=b"});
+        assertNull(CachedProxyResponse.create(new BufferedProxyResponse(200, headers, new byte[0]), new HttpGet(), now, now));
+        headers.clear();
+        assertNull("no freshness or validator",
+                CachedProxyResponse.create(new BufferedProxyResponse(200, headers, new byte[0]), new HttpGet(), now, now));
+        headers.add(new String[]{"Cache-Control", "max-age=60"});
+        assertNull("not cacheable by default",
+                CachedProxyResponse.create(new BufferedProxyResponse(500, headers, new byte[0]), new HttpGet(), now, now));
+    }
+
+    public void testVary() {
+        long now = System.currentTimeMillis();
+        List<String[]> headers = new ArrayList<>();
+        headers.add(new String[]{"Cache-Control", "max-age=60"});
+        headers.add(new String[]{"Vary", "Accept"});
+        HttpGet html = new HttpGet();
+        html.addHeader("Accept", "text/html");
+        CachedProxyResponse cached = CachedProxyResponse.create(new BufferedProxyResponse(200, headers, new byte[0]), html, now, now);
+        assertTrue(cached.matchesVary(html));
+        HttpGet json = new HttpGet();
+        json.addHeader("Accept", "application/json");
+        assertFalse(cached.matchesVary(json));
+    }
+
+    public void testHeapStore() {
+        long now = System.currentTimeMillis();
+        HeapProxyCacheStore store = new HeapProxyCacheStore(10);
+        store.put("a", cached("max-age=60", now, 4));
+        store.put("b", cached("max-age=60", now, 4));
+        store.get("a");
+        store.put("c", cached("max-age=60", now, 4));
+        assertNotNull(store.get("a"));
+        assertNull("least recently used evicted", store.get("b"));
+        assertNotNull(store.get("c"));
+        assertEquals(8, store.getBytes());
+        store.put("d", cached("max-age=60", now, 11));
+        assertNull("too big", store.get("d"));
+    }
+
+    public void testMappedFileStore() throws Exception {
+        File dir = Files.createTempDirectory("proxycache").toFile();
+        MappedFileProxyCacheStore store = new MappedFileProxyCacheStore(dir, 1024);
+        try {
+            long now = System.currentTimeMillis();
+            CachedProxyResponse stored = store.put("a", cached("max-age=60", now, 600));
+            assertEquals(600, stored.getResponse().getBodyLength());
+            assertEquals(1, dir.listFiles().length);
+            store.put("b", cached("max-age=60", now, 600));
+            assertNull(store.get("a"));
+            assertEquals(1, dir.listFiles().length);
+            assertEquals(600, store.getBytes());
+            MockResponse response = new MockResponse();
+            store.get("b").writeTo(response, true, now);
+            assertEquals(600, response.getOutputStreamAsString().length());
+        } finally {
+            store.close();
+            dir.delete();
+        }
+    }
+
+    public void testMappedFileStoresShareDir() throws Exception {
+        File dir = Files.createTempDirectory("proxycache").toFile();
+        MappedFileProxyCacheStore store1 = new MappedFileProxyCacheStore(dir, 1024);
+        MappedFileProxyCacheStore store2 = new MappedFileProxyCacheStore(dir, 1024);
+        try {
+            long now = System.currentTimeMillis();
+            store1.put("a", cached("max-age=60", now, 600));
+            CachedProxyResponse stored = store2.put("a", cached("max-age=60", now, 10));
+            assertEquals(10, stored.getResponse().getBodyLength());
+            assertEquals(2, dir.listFiles().length);
+            MockResponse response = new MockResponse();
+            store1.get("a").writeTo(response, true, now);
+            assertEquals(600, response.getOutputStreamAsString().length());
+            response = new MockResponse();
+            store2.get("a").writeTo(response, true, now);
+            assertEquals(10, response.getOutputStreamAsString().length());
+        } finally {
+            store1.close();
+            store2.close();
+            dir.delete();
+        }
+    }
+
+    public void testCachedProxy() throws Exception {
+        assertEquals("body 1", proxy(request()).getOutputStreamAsString());
+        assertEquals("body 1", proxy(request()).getOutputStreamAsString());
+        assertEquals(1, targetRequests.get());
+        assertEquals(1, proxyConnectionManager.getResponseCache().getHitCount());
+
+        MockRequest conditional = request();
+        conditional.setHeader("If-None-Match", "\"v1\"");
+        MockResponse notModified = proxy(conditional);
+        assertEquals(304, notModified.getStatus());
+        assertEquals("", notModified.getOutputStreamAsString());
+        assertEquals(1, targetRequests.get());
+    }
+
+    public void testRevalidate() throws Exception {
+        cacheControl.set("max-age=0");
+        assertEquals("body 1", proxy(request()).getOutputStreamAsString());
+        assertEquals("body 1", proxy(request()).getOutputStreamAsString());
+        assertEquals(2, targetRequests.get());
+        assertEquals(1, notModifiedCount.get());
+        assertEquals(1, proxyConnectionManager.getResponseCache().getRevalidatedCount());
+    }
+
+    public void testStaleIfError() throws Exception {
+        cacheControl.set("max-age=0, stale-if-error=60");
+        assertEquals("body 1", proxy(request()).getOutputStreamAsString());
+        status.set(503);
+        assertEquals("body 1", proxy(request()).getOutputStreamAsString());
+        assertEquals(1, proxyConnectionManager.getResponseCache().getStaleCount());
+    }
+
+    public void testStaleWhileRevalidate() throws Exception {
+        cacheControl.set("max-age=0, stale-while-revalidate=60");
+        assertEquals("body 1", proxy(request()).getOutputStreamAsString());
+        assertEquals("body 1", proxy(request()).getOutputStreamAsString());
+        long deadline = System.currentTimeMillis() + 10000;
+        while (notModifiedCount.get() < 1 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals("revalidated in the background", 1, notModifiedCount.get());
+        assertEquals(1, proxyConnectionManager.getResponseCache().getStaleCount());
+    }
+
+    private MockResponse proxy(MockRequest request) throws Exception {
+        ProxyOptions options = new ProxyOptions();
+        options.setCache(true);
+        return proxy(target, request, options);
+    }
+
+    private static MockRequest request() {
+        return request("/cached", "GET");
+    }
+
+    private static CachedProxyResponse cached(String cacheControl, long now) {
+        return cached(cacheControl, now, 0);
+    }
+
+    private static CachedProxyResponse cached(String cacheControl, long now, int bodyLength) {
+        List<String[]> headers = new ArrayList<>();
+        headers.add(new String[]{"Cache-Control", cacheControl});
+        return CachedProxyResponse.create(new BufferedProxyResponse(200, headers, new byte[bodyLength]), new HttpGet(), now, now);
+    }
+}
@@ -0,0 +1,170 @@
+/**
+ * Copyright (c) 2005-2007, Paul Tuckey
+ * All rights reserved.
+ * ====================================================================
+ * Licensed under the BSD License. Text as follows.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *   - Redistributions of source code must retain the above copyright
+ *     notice, this list of conditions and the following disclaimer.
+ *   - Redistributions in binary form must reproduce the above
+ *     copyright notice, this list of conditions and the following
+ *     disclaimer in the documentation and/or other materials provided
+ *     with the distribution.
+ *   - Neither the name tuckey.org nor the names of its contributors
+ *     may be used to endorse or promote products derived from this
+ *     software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ * COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN
+ * ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * ====================================================================
+ */
+package org.tuckey.web.filters.urlrewrite;
+
+import org.tuckey.web.testhelper.MockResponse;
+import org.tuckey.web.testhelper.ProxyTestCase;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class ProxyTargetGuardTest extends ProxyTestCase {
+
+    private String serverUrl;
+    private final AtomicInteger targetRequests = new AtomicInteger();
+    private final AtomicInteger status = new AtomicInteger(200);
+    private volatile long delay = 0;
+
+    public void setUp() throws Exception {
+        super.setUp();
+        serverUrl = serverUrl(startServer(exchange -> {
+            targetRequests.incrementAndGet();
+            try {
+                Thread.sleep(delay);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            byte[] body = "ok".getBytes(StandardCharsets.UTF_8);
+            exchange.sendResponseHeaders(status.get(), body.length);
+            try (OutputStream os = exchange.getResponseBody()) {
+                os.write(body);
+            } catch (IOException e) {
+                // client gave up
+            }
+        }));
+    }
+
+    public void testCircuitBreaker() {
+        ProxyCircuitBreaker breaker = new ProxyCircuitBreaker("test", 2, 1000);
+        long now = 10000;
+        assertEquals(ProxyCircuitBreaker.REQUEST_ALLOWED, breaker.allowRequest(now));
+        breaker.onFailure(now, false);
+        assertEquals(ProxyCircuitBreaker.REQUEST_ALLOWED, breaker.allowRequest(now));
+        breaker.onFailure(now, false);
+        assertEquals(ProxyCircuitBreaker.STATE_OPEN, breaker.getState());
+        assertEquals(ProxyCircuitBreaker.REQUEST_REJECTED, breaker.allowRequest(now + 500));
+
+        assertEquals("probe let through", ProxyCircuitBreaker.REQUEST_PROBE, breaker.allowRequest(now + 1000));
+        assertEquals(ProxyCircuitBreaker.STATE_HALF_OPEN, breaker.getState());
+        assertEquals("one probe at a time", ProxyCircuitBreaker.REQUEST_REJECTED, breaker.allowRequest(now + 1000));
+        breaker.onFailure(now + 1100, true);
+        assertEquals("failed probe opens again", ProxyCircuitBreaker.STATE_OPEN, breaker.getState());
+
+        assertEquals(ProxyCircuitBreaker.REQUEST_PROBE, breaker.allowRequest(now + 2100));
+        breaker.onSuccess(true);
+        assertEquals(ProxyCircuitBreaker.STATE_CLOSED, breaker.getState());
+        assertEquals(2, breaker.getOpenedCount());
+        assertEquals(2, breaker.getRejectedCount());
+    }
+
+    public void testCircuitBreakerHalfOpenOnlyChangedByProbe() {
+        ProxyCircuitBreaker breaker = new ProxyCircuitBreaker("test", 1, 1000);
+        long now = 10000;
+        assertEquals(ProxyCircuitBreaker.REQUEST_ALLOWED, breaker.allowRequest(now));
+        assertEquals(ProxyCircuitBreaker.REQUEST_ALLOWED, breaker.allowRequest(now));
+        breaker.onFailure(now, false);
+        assertEquals(ProxyCircuitBreaker.STATE_OPEN, breaker.getState());
+
+        assertEquals(ProxyCircuitBreaker.REQUEST_PROBE, breaker.allowRequest(now + 1000));
+        breaker.onSuccess(false);
+        assertEquals("late success from before it opened", ProxyCircuitBreaker.STATE_HALF_OPEN, breaker.getState());
+        breaker.onFailure(now + 1000, false);
+        assertEquals("late failure from before it opened", ProxyCircuitBreaker.STATE_HALF_OPEN, breaker.getState());
+        assertEquals("probe still in flight", ProxyCircuitBreaker.REQUEST_REJECTED, breaker.allowRequest(now + 1000));
+
+        breaker.onSuccess(true);
+        assertEquals(ProxyCircuitBreaker.STATE_CLOSED, breaker.getState());
+        assertEquals(1, breaker.getOpenedCount());
+    }
+
+    public void testBulkhead() {
+        ProxyTargetGuard guard = new ProxyTargetGuard("http://a:80", 1, 0, 0);
+        assertEquals(ProxyCircuitBreaker.REQUEST_ALLOWED, guard.tryAcquire());
+        assertEquals(1, guard.getInFlight());
+        assertEquals(ProxyCircuitBreaker.REQUEST_REJECTED, guard.tryAcquire());
+        guard.release(ProxyCircuitBreaker.REQUEST_ALLOWED, false);
+        assertEquals(ProxyCircuitBreaker.REQUEST_ALLOWED, guard.tryAcquire());
+        assertEquals(1, guard.getBulkheadRejectedCount());
+        assertNull(guard.getCircuitBreaker());
+    }
+
+    public void testBreakerOpensOnFailures() throws Exception {
+        status.set(500);
+        ProxyOptions options = new ProxyOptions();
+        options.setBreakerFailures(2);
+        assertEquals(500, proxy(options).getStatus());
+        assertEquals(500, proxy(options).getStatus());
+        assertEquals("fast 503 when open", 503, proxy(options).getStatus());
+        assertEquals(2, targetRequests.get());
+        ProxyTargetGuard guard = proxyConnectionManager.getTargetGuards().get(serverUrl);
+        assertEquals("open", guard.getCircuitBreaker().getStateName());
+    }
+
+    public void testReadTimeout() throws Exception {
+        delay = 2000;
+        ProxyOptions options = new ProxyOptions();
+        options.setReadTimeout(100);
+        long start = System.currentTimeMillis();
+        try {
+            proxy(options);
+            fail("should time out");
+        } catch (IOException e) {
+            // expected
+        }
+        assertTrue(System.currentTimeMillis() - start < 1500);
+    }
+
+    public void testTotalTimeout() throws Exception {
+        delay = 2000;
+        ProxyOptions options = new ProxyOptions();
+        options.setTimeout(100);
+        options.setBreakerFailures(1);
+        long start = System.currentTimeMillis();
+        try {
+            proxy(options);
+            fail("should be aborted");
+        } catch (IOException e) {
+            // expected
+        }
+        assertTrue(System.currentTimeMillis() - start < 1500);
+        assertEquals("timeout counts as a failure", 503, proxy(options).getStatus());
+    }
+
+    private MockResponse proxy(ProxyOptions options) throws IOException {
+        return proxy(serverUrl + "/page", options);
+    }
+}
@@ -0,0 +1,143 @@
+/**
+ * Copyright (c) 2005-2007, Paul Tuckey
+ * All rights reserved.
+ * ====================================================================
+ * Licensed under the BSD License. Text as follows.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *   - Redistributions of source code must retain the above copyright
+ *     notice, this list of conditions and the following disclaimer.
+ *   - Redistributions in binary form must reproduce the above
+ *     copyright notice, this list of conditions and the following
+ *     disclaimer in the documentation and/or other materials provided
+ *     with the distribution.
+ *   - Neither the name tuckey.org nor the names of its contributors
+ *     may be used to endorse or promote products derived from this
+ *     software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ * COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN
+ * ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * ====================================================================
+ */
+package org.tuckey.web.filters.urlrewrite;
+
+import junit.framework.TestCase;
+import org.tuckey.web.filters.urlrewrite.utils.Log;
+import org.tuckey.web.filters.urlrewrite.utils.RegexPattern;
+import org.tuckey.web.filters.urlrewrite.utils.StringMatchingPatternSyntaxException;
+import org.tuckey.web.filters.urlrewrite.utils.WildcardPattern;
+import org.tuckey.web.testhelper.MockRequest;
+import org.tuckey.web.testhelper.MockResponse;
+
+import javax.servlet.ServletException;
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.util.BitSet;
+
+public class RulePrefixIndexTest extends TestCase {
+
+    public void setUp() {
+        Log.setLevel("DEBUG");
+    }
+
+    public void testRegexPrefix() throws StringMatchingPatternSyntaxException {
+        assertEquals("/foo/bar", regexPrefix("^/foo/bar(.*)$"));
+        assertEquals("/foo.bar/", regexPrefix("^/foo\\.bar/[0-9]+$"));
+        assertEquals("/foo", regexPrefix("^/foo/?$"));
+        assertEquals("/fo", regexPrefix("^/foo*"));
+        assertEquals("/foo", regexPrefix("^/foo+"));
+        assertEquals("/fo", regexPrefix("^/foo{2}"));
+        assertEquals("/a/", regexPrefix("^/a/\\d+"));
+        assertEquals("/a/", regexPrefix("^/a/(b|c)"));
+        assertEquals("", regexPrefix("/foo/bar"));
+        assertEquals("", regexPrefix("^(.*)$"));
+        assertEquals("", regexPrefix("^/a|/b"));
+        assertEquals("", regexPrefix("^/a[(]|/b"));
+        assertEquals("", regexPrefix("^\\Q/a\\E"));
+    }
+
+    public void testWildcardPrefix() {
+        assertEquals("/foo/", new WildcardPattern("/foo/**").getLiteralPrefix());
+        assertEquals("/foo*bar/", new WildcardPattern("/foo\\*bar/*").getLiteralPrefix());
+        assertEquals("", new WildcardPattern("*.html").getLiteralPrefix());
+    }
+
+    public void testCandidates() {
+        Conf conf = new Conf();
+        conf.addRule(rule("^/shop/(.*)$", false));
+        conf.addRule(rule("^/SHOP/item$", true));
+        conf.addRule(rule("\\.html$", false));
+        conf.addRule(rule("^/news/(.*)$", false));
+        NormalRule disabled = rule("^/shop/old", false);
+        disabled.setEnabled(false);
+        conf.addRule(disabled);
+        conf.initialise();
+
+        RulePrefixIndex index = conf.getRuleSnapshot().getPrefixIndex();
+        assertEquals(3, index.getIndexedCount());
+
+        BitSet candidates = index.getCandidateRules("/Shop/item");
+        assertTrue(candidates.get(0));
+        assertFalse("case sensitive rule should not be a candidate", candidates.get(1));
+        assertTrue(candidates.get(2));
+        assertFalse(candidates.get(3));
+        assertFalse(candidates.get(4));
+
+        candidates = index.getCandidateRules("/SHOP/item");
+        assertTrue(candidates.get(1));
+
+        candidates = index.getCandidateRules(null);
+        assertEquals(1, candidates.cardinality());
+        assertTrue(candidates.get(2));
+    }
+
+    public void testChainOrderAndLastKept() throws IOException, ServletException, InvocationTargetException {
+        Conf conf = new Conf();
+        conf.addRule(rule("^/a/(.*)$", "/b/$1", false));
+        conf.addRule(rule("^/c/(.*)$", "/never/$1", true));
+        conf.addRule(rule("^/b/(.*)$", "/c/$1", true));
+        conf.addRule(rule("^/c/(.*)$", "/d/$1", true));
+        conf.initialise();
+
+        UrlRewriter urlRewriter = new UrlRewriter(conf);
+        RewrittenUrl rewrittenUrl = urlRewriter.processRequest(new MockRequest("/a/x"), new MockResponse());
+        assertEquals("/c/x", rewrittenUrl.getTarget());
+
+        rewrittenUrl = urlRewriter.processRequest(new MockRequest("/c/x"), new MockResponse());
+        assertEquals("/never/x", rewrittenUrl.getTarget());
+
+        assertNull(urlRewriter.processRequest(new MockRequest("/z/x"), new MockResponse()));
+    }
+
+    private static String regexPrefix(String regex) throws StringMatchingPatternSyntaxException {
+        return new RegexPattern(regex, false).getLiteralPrefix();
+    }
+
+    private static NormalRule rule(String from, boolean caseSensitive) {
+        NormalRule rule = rule(from, "/to", false);
+        rule.setFromCaseSensitive(caseSensitive);
+        return rule;
+    }
+
+    private static NormalRule rule(String from, String to, boolean last) {
+        NormalRule rule = new NormalRule();
+        rule.setFrom(from);
+        rule.setTo(to);
+        rule.setToLast(String.valueOf(last));
+        return rule;
+    }
+
+}
@@ -0,0 +1,160 @@
+/**
+ * Copyright (c) 2005-2007, Paul Tuckey
+ * All rights reserved.
+ * ====================================================================
+ * Licensed under the BSD License. Text as follows.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *   - Redistributions of source code must retain the above copyright
+ *     notice, this list of conditions and the following disclaimer.
+ *   - Redistributions in binary form must reproduce the above
+ *     copyright notice, this list of conditions and the following
+ *     disclaimer in the documentation and/or other materials provided
+ *     with the distribution.
+ *   - Neither the name tuckey.org nor the names of its contributors
+ *     may be used to endorse or promote products derived from this
+ *     software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ * COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN
+ * ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * ====================================================================
+ */
+package org.tuckey.web.filters.urlrewrite;
+
+import junit.framework.TestCase;
+import org.tuckey.web.filters.urlrewrite.utils.Log;
+import org.tuckey.web.testhelper.MockRequest;
+import org.tuckey.web.testhelper.MockResponse;
+
+import javax.servlet.ServletException;
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.util.Arrays;
+
+public class RuleReordererTest extends TestCase {
+
+    public void setUp() {
+        Log.setLevel("DEBUG");
+    }
+
+    public void testDisjoint() {
+        assertTrue(RuleReorderer.isDisjoint(rule("^/a/(.*)$", true), rule("^/b/(.*)$", true)));
+        assertFalse(RuleReorderer.isDisjoint(rule("^/a/(.*)$", true), rule("^/a/b/(.*)$", true)));
+        assertFalse(RuleReorderer.isDisjoint(rule("^/a/(.*)$", true), rule("/b/(.*)$", true)));
+        // regex rules are case insensitive by default
+        assertFalse(RuleReorderer.isDisjoint(rule("^/a/(.*)$", true), rule("^/A/(.*)$", true)));
+        NormalRule disabled = rule("^/a/(.*)$", true);
+        disabled.setEnabled(false);
+        disabled.initialise(null);
+        assertTrue(RuleReorderer.isDisjoint(rule("^/a/(.*)$", true), disabled));
+    }
+
+    public void testIndependent() {
+        assertTrue(RuleReorderer.isIndependent(rule("^/a/(.*)$", true)));
+        assertFalse(RuleReorderer.isIndependent(rule("^/a/(.*)$", false)));
+        NormalRule withSet = rule("^/a/(.*)$", true);
+        SetAttribute setAttribute = new SetAttribute();
+        setAttribute.setName("a");
+        setAttribute.setValue("b");
+        withSet.addSetAttribute(setAttribute);
+        withSet.initialise(null);
+        assertFalse(RuleReorderer.isIndependent(withSet));
+    }
+
+    public void testGroups() {
+        Conf conf = new Conf();
+        conf.addRule(rule("^/a/(.*)$", true));
+        conf.addRule(rule("^/b/(.*)$", true));
+        conf.addRule(rule("^/a/x(.*)$", true));
+        conf.addRule(rule("^/c/(.*)$", true));
+        conf.addRule(rule("^/d/(.*)$", false));
+        conf.addRule(rule("^/e/(.*)$", true));
+        conf.setRuleReorderInterval(60);
+        conf.initialise();
+        // 0,1 then 2,3 (2 overlaps 0), 4 is not last
+        assertEquals(2, conf.getRuleReorderer().getGroupCount());
+
+        conf = new Conf();
+        conf.addRule(rule("^/a/(.*)$", false));
+        conf.addRule(rule("^/b/(.*)$", true));
+        conf.setRuleReorderInterval(60);
+        conf.initialise();
+        assertNull(conf.getRuleReorderer());
+    }
+
+    public void testReorder() throws IOException, ServletException, InvocationTargetException {
+        Conf conf = new Conf();
+        NormalRule rewrite = new NormalRule();
+        rewrite.setFrom("^/rewrite/(.*)$");
+        rewrite.setTo("/$1");
+        conf.addRule(rewrite);
+        conf.addRule(rule("^/a/(.*)$", true));
+        conf.addRule(rule("^/b/(.*)$", true));
+        conf.addRule(rule("^/c/(.*)$", true));
+        conf.setRuleReorderInterval(60);
+        conf.initialise();
+        UrlRewriter urlRewriter = new UrlRewriter(conf);
+        MockResponse response = new MockResponse();
+
+        for (int i = 0; i < 3; i++) {
+            assertEquals("/to/c/" + i, urlRewriter.processRequest(new MockRequest("/c/" + i), response).getTarget());
+        }
+        assertEquals("/to/b/1", urlRewriter.processRequest(new MockRequest("/rewrite/b/1"), response).getTarget());
+        assertEquals("[0, 3, 2, 1]", Arrays.toString(conf.getRuleReorderer().getOrder()));
+
+        RuleReorderer reorderer = new RuleReorderer(conf.getRules(), 0);
+        RuleSnapshot snapshot = new RuleSnapshot(conf.getRules(), null, reorderer.getMatchCounts(), null);
+        assertNull("snapshot has not changed", reorderer.reorderIfDue(snapshot));
+        snapshot.recordMatch(2);
+        RuleSnapshot reordered = reorderer.reorderIfDue(snapshot);
+        assertNotNull(reordered);
+        assertSame(conf.getRules().get(2), reordered.getRules().get(1));
+        assertEquals(2, reordered.getConfRuleIdx(1));
+        assertEquals(1, reordered.getPrefixIndex().getCandidateRules("/b/x").nextSetBit(1));
+    }
+
+    public void testReorderInBackground() throws IOException, ServletException, InvocationTargetException,
+            InterruptedException {
+        Conf conf = new Conf();
+        conf.addRule(rule("^/a/(.*)$", true));
+        conf.addRule(rule("^/b/(.*)$", true));
+        conf.setRuleReorderInterval(1);
+        conf.initialise();
+        UrlRewriter urlRewriter = new UrlRewriter(conf);
+        RuleSnapshot initial = conf.getRuleSnapshot();
+        urlRewriter.processRequest(new MockRequest("/b/1"), new MockResponse());
+        Thread.sleep(1100);
+
+        // the request that notices the reorder is due still runs on the current snapshot
+        assertEquals("/to/b/2", urlRewriter.processRequest(new MockRequest("/b/2"), new MockResponse()).getTarget());
+        for (int i = 0; i < 100 && conf.getRuleSnapshot() == initial; i++) {
+            Thread.sleep(20);
+        }
+        assertNotSame(initial, conf.getRuleSnapshot());
+        assertEquals(1, conf.getRuleSnapshot().getConfRuleIdx(0));
+        conf.destroy();
+    }
+
+    private static NormalRule rule(String from, boolean last) {
+        NormalRule rule = new NormalRule();
+        rule.setFrom(from);
+        rule.setTo("/to$0");
+        rule.setToLast(last ? "true" : "false");
+        rule.initialise(null);
+        return rule;
+    }
+
+}
@@ -41,6 +41,7 @@ import org.tuckey.web.testhelper.MockServletContext;
 import org.tuckey.web.testhelper.MockFilterChain;
 import org.tuckey.web.filters.urlrewrite.utils.Log;
 import org.tuckey.web.filters.urlrewrite.test.TestRunObj;
+import org.tuckey.web.filters.urlrewrite.test.TestStaticRunObj;
 
 import javax.servlet.ServletException;
 import java.io.IOException;
@@ -63,6 +64,7 @@ public class RunTest extends TestCase {
         request = new MockRequest();
         servletContext = new MockServletContext();
         TestRunObj.resetTestFlags();
+        TestStaticRunObj.resetTestFlags();
     }
 
     public void testRun01() throws IllegalAccessException, InvocationTargetException, InstantiationException, IOException, ServletException {
@@ -99,6 +101,16 @@ public class RunTest extends TestCase {
         // Should not error just do nothing
     }
 
+    public void testRunMissingMethodWithParams() throws IOException, ServletException, InvocationTargetException {
+        Run run = new Run();
+        run.setClassStr(TestRunObj.class.getName());
+        run.setMethodStr("noSuchMethod(int)");
+        run.initialise(servletContext);
+        assertTrue("Should be initialised " + run.getError(), run.isValid());
+        assertNull(run.execute(request, response, new Object[]{"1"}, null));
+        // Should not error just do nothing
+    }
+
     public void testRunThatReturns() throws IOException, ServletException, InvocationTargetException {
         Run run = new Run();
         run.setClassStr(TestRunObj.class.getName());
@@ -319,6 +331,34 @@ public class RunTest extends TestCase {
         // Should not error just do nothing, check log msgs
     }
 
+    public void testRunStaticMethods() throws IOException, ServletException, InvocationTargetException {
+        Run run = new Run();
+        run.setClassStr(TestStaticRunObj.class.getName());
+        run.setMethodStr("runWithParam(req, int)");
+        run.initialise(servletContext);
+        assertTrue("Should be initialised " + run.getError(), run.isValid());
+        assertTrue(TestStaticRunObj.isInitCalled());
+        MockRequest request = new MockRequest("/static");
+        run.execute(request, response, new Object[]{"99"}, null);
+        assertEquals("/static,99", TestStaticRunObj.getParamStr());
+        run.destroy();
+        assertTrue(TestStaticRunObj.isDestroyCalled());
+    }
+
+    public void testRunStaticExceptionMethod() {
+        Run run = new Run();
+        run.setClassStr(TestStaticRunObj.class.getName());
+        run.setMethodStr("runServletException");
+        run.initialise(servletContext);
+        assertTrue("Should be initialised " + run.getError(), run.isValid());
+        try {
+            run.execute(request, response, null, null);
+            fail("exception expected");
+        } catch (Throwable t) {
+            assertEquals(new ServletException("static run").toString(), t.getCause().toString());
+        }
+    }
+
     public void testRunNewEach() throws IOException, ServletException, InvocationTargetException {
         Run run = new Run();
         run.setClassStr(TestRunObj.class.getName());
@@ -79,4 +79,30 @@ public class UrlRewriteFilterTest extends TestCase {
         filter.init(mockFilterConfig);
     }
 
+    public void testProxyConnectionManagerCreatedForProxyRules() throws ServletException {
+        MockFilterConfig mockFilterConfig = new MockFilterConfig();
+        mockFilterConfig.setServletContext(new MockServletContext());
+        filter.init(mockFilterConfig);
+
+        filter.checkConf(conf("/b/$1", null));
+        assertNull("no proxy rules, httpclient may not be there", filter.getProxyConnectionManager());
+
+        filter.checkConf(conf("http://backend/$1", "proxy"));
+        ProxyConnectionManager proxyConnectionManager = filter.getProxyConnectionManager();
+        assertNotNull(proxyConnectionManager);
+        filter.checkConf(conf("http://backend/$1", "proxy"));
+        assertSame("kept across conf reloads", proxyConnectionManager, filter.getProxyConnectionManager());
+    }
+
+    private static Conf conf(String to, String toType) {
+        Conf conf = new Conf();
+        NormalRule rule = new NormalRule();
+        rule.setFrom("^/a/(.*)$");
+        rule.setTo(to);
+        if (toType != null) rule.setToType(toType);
+        conf.addRule(rule);
+        conf.initialise();
+        return conf;
+    }
+
 }
@@ -432,5 +432,159 @@ public class UrlRewriterTest extends TestCase {
         assertEquals("/?q=foo%2Bbar+gee", rewrittenRequest.getTarget());
     }
 
-}
+    public void testRewriteCache() throws IOException, ServletException, InvocationTargetException {
+        Conf conf = new Conf();
+        NormalRule rule1 = new NormalRule();
+        rule1.setFrom("^/products/([0-9]+)$");
+        rule1.setTo("/product.jsp?id=$1");
+        conf.addRule(rule1);
+        conf.initialise();
+        UrlRewriter urlRewriter = new UrlRewriter(conf);
+
+        RewrittenUrl first = urlRewriter.processRequest(new MockRequest("/products/12"), response);
+        assertEquals("/product.jsp?id=12", first.getTarget());
+        assertEquals(0, urlRewriter.getRewriteCache().getHitCount());
+        assertEquals(1, urlRewriter.getRewriteCache().size());
+
+        MockRequest request = new MockRequest("/products/12");
+        RewrittenUrl second = urlRewriter.processRequest(request, response);
+        assertSame(first, second);
+        assertEquals(Boolean.TRUE, request.getAttribute("org.tuckey.web.filters.urlrewrite.RuleMatched"));
+        assertEquals(1, urlRewriter.getRewriteCache().getHitCount());
+
+        assertEquals("/product.jsp?id=13", urlRewriter.processRequest(new MockRequest("/products/13"), response).getTarget());
+        // no match is not cached
+        assertNull(urlRewriter.processRequest(new MockRequest("/other"), response));
+        assertEquals(2, urlRewriter.getRewriteCache().size());
+    }
+
+    public void testRewriteCacheNotUsedWhenConditionRun() throws IOException, ServletException, InvocationTargetException {
+        Conf conf = new Conf();
+        NormalRule rule1 = new NormalRule();
+        rule1.setFrom("^/img/(.*)$");
+        rule1.setTo("/gif/$1");
+        Condition condition1 = new Condition();
+        condition1.setType("header");
+        condition1.setName("accept");
+        condition1.setValue(".*image/gif.*");
+        rule1.addCondition(condition1);
+        conf.addRule(rule1);
+        NormalRule rule2 = new NormalRule();
+        rule2.setFrom("^/img/(.*)$");
+        rule2.setTo("/png/$1");
+        conf.addRule(rule2);
+        conf.initialise();
+        UrlRewriter urlRewriter = new UrlRewriter(conf);
 
+        assertEquals("/png/a", urlRewriter.processRequest(new MockRequest("/img/a"), response).getTarget());
+        MockRequest request = new MockRequest("/img/a");
+        request.setHeader("accept", "image/gif");
+        assertEquals("/gif/a", urlRewriter.processRequest(request, response).getTarget());
+        assertEquals(0, urlRewriter.getRewriteCache().size());
+    }
+
+    public void testRewriteCacheVariables() throws IOException, ServletException, InvocationTargetException {
+        Conf conf = new Conf();
+        NormalRule rule1 = new NormalRule();
+        rule1.setFrom("^/lang/(.*)$");
+        rule1.setTo("/%{header:accept-language}/${lower:$1}");
+        conf.addRule(rule1);
+        NormalRule rule2 = new NormalRule();
+        rule2.setFrom("^/name/(.*)$");
+        rule2.setTo("/${upper:$1}");
+        conf.addRule(rule2);
+        conf.initialise();
+        UrlRewriter urlRewriter = new UrlRewriter(conf);
+
+        // functions only depend on the url so can be cached
+        assertEquals("/ABC", urlRewriter.processRequest(new MockRequest("/name/abc"), response).getTarget());
+        assertEquals(1, urlRewriter.getRewriteCache().size());
+
+        MockRequest request = new MockRequest("/lang/EN");
+        request.setHeader("accept-language", "en");
+        assertEquals("/en/en", urlRewriter.processRequest(request, response).getTarget());
+        request = new MockRequest("/lang/EN");
+        request.setHeader("accept-language", "fr");
+        assertEquals("/fr/en", urlRewriter.processRequest(request, response).getTarget());
+        assertEquals(1, urlRewriter.getRewriteCache().size());
+    }
+
+    public void testRewriteCacheQueryStringAppend() throws IOException, ServletException, InvocationTargetException {
+        Conf conf = new Conf();
+        NormalRule rule1 = new NormalRule();
+        rule1.setFrom("^/aaa$");
+        rule1.setTo("/bbb");
+        rule1.setQueryStringAppend("true");
+        conf.addRule(rule1);
+        conf.initialise();
+        UrlRewriter urlRewriter = new UrlRewriter(conf);
+
+        MockRequest request = new MockRequest("/aaa");
+        request.setQueryString("x=1");
+        assertEquals("/bbb?x=1", urlRewriter.processRequest(request, response).getTarget());
+        request = new MockRequest("/aaa");
+        request.setQueryString("x=2");
+        assertEquals("/bbb?x=2", urlRewriter.processRequest(request, response).getTarget());
+        request = new MockRequest("/aaa");
+        request.setQueryString("x=1");
+        assertEquals("/bbb?x=1", urlRewriter.processRequest(request, response).getTarget());
+        assertEquals(1, urlRewriter.getRewriteCache().getHitCount());
+    }
+
+    public void testRewriteCacheDisabled() throws IOException, ServletException, InvocationTargetException {
+        Conf conf = new Conf();
+        NormalRule rule1 = new NormalRule();
+        rule1.setFrom("^/aaa$");
+        rule1.setTo("/bbb");
+        conf.addRule(rule1);
+        conf.setRewriteCacheSize(0);
+        conf.initialise();
+        UrlRewriter urlRewriter = new UrlRewriter(conf);
+        assertNull(urlRewriter.getRewriteCache());
+        assertEquals("/bbb", urlRewriter.processRequest(new MockRequest("/aaa"), response).getTarget());
+    }
+
+    public void testNoMatchCache() throws IOException, ServletException, InvocationTargetException {
+        Conf conf = new Conf();
+        NormalRule rule1 = new NormalRule();
+        rule1.setFrom("^/products/([0-9]+)$");
+        rule1.setTo("/product.jsp?id=$1");
+        conf.addRule(rule1);
+        conf.setNoMatchCacheSize(10);
+        conf.initialise();
+        UrlRewriter urlRewriter = new UrlRewriter(conf);
+
+        assertTrue(urlRewriter.processRequest(new MockRequest("/css/site.css"), response, chain));
+        assertEquals(1, chain.getInvocationCount());
+        assertEquals(1, urlRewriter.getNoMatchCache().size());
+        // not handled, the filter passes it on to the rest of the chain
+        assertFalse(urlRewriter.processRequest(new MockRequest("/css/site.css"), response, chain));
+        assertEquals(1, urlRewriter.getNoMatchCache().getHitCount());
+        assertNull(urlRewriter.processRequest(new MockRequest("/css/site.css"), response));
+        assertEquals("/product.jsp?id=1", urlRewriter.processRequest(new MockRequest("/products/1"), response).getTarget());
+        assertEquals(1, urlRewriter.getNoMatchCache().size());
+    }
+
+    public void testNoMatchCacheNotUsedWhenConditionRun() throws IOException, ServletException, InvocationTargetException {
+        Conf conf = new Conf();
+        NormalRule rule1 = new NormalRule();
+        rule1.setFrom("^/img/(.*)$");
+        rule1.setTo("/gif/$1");
+        Condition condition1 = new Condition();
+        condition1.setType("header");
+        condition1.setName("accept");
+        condition1.setValue(".*image/gif.*");
+        rule1.addCondition(condition1);
+        conf.addRule(rule1);
+        conf.setNoMatchCacheSize(10);
+        conf.initialise();
+        UrlRewriter urlRewriter = new UrlRewriter(conf);
+
+        assertNull(urlRewriter.processRequest(new MockRequest("/img/a"), response));
+        MockRequest request = new MockRequest("/img/a");
+        request.setHeader("accept", "image/gif");
+        assertEquals("/gif/a", urlRewriter.processRequest(request, response).getTarget());
+        assertEquals(0, urlRewriter.getNoMatchCache().size());
+    }
+
+}
@@ -2,9 +2,11 @@ package org.tuckey.web.filters.urlrewrite;
 
 import junit.framework.TestCase;
 import org.tuckey.web.filters.urlrewrite.substitution.VariableReplacer;
+import org.tuckey.web.filters.urlrewrite.substitution.VariableResolver;
 import org.tuckey.web.testhelper.MockRequest;
 
 import javax.servlet.ServletContext;
+import javax.servlet.http.Cookie;
 
 /**
  * @author Tim Morrow
@@ -84,5 +86,23 @@ public class VariableReplacerTest extends TestCase {
         assertEquals("http://mybucket", result);
     }
 
-    
+    public final void testResolver() {
+        VariableResolver resolver = VariableReplacer.getResolver("header:user-agent");
+        assertTrue(resolver.isRequestDependent());
+        assertEquals("", resolver.resolve(request));
+        request.setHeader("user-agent", "Mozilla");
+        assertEquals("Mozilla", resolver.resolve(request));
+
+        resolver = VariableReplacer.getResolver("cookie:id");
+        assertEquals("", resolver.resolve(request));
+        request.addCookie(new Cookie("id", "123"));
+        assertEquals("123", resolver.resolve(request));
+    }
+
+    public final void testResolverInvalidType() {
+        VariableResolver resolver = VariableReplacer.getResolver("nothing:abc");
+        assertFalse(resolver.isRequestDependent());
+        assertEquals("", resolver.resolve(request));
+    }
+
 }
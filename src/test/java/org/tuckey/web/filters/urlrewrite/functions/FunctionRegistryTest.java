@@ -0,0 +1,65 @@
+package org.tuckey.web.filters.urlrewrite.functions;
+
+import junit.framework.TestCase;
+import org.tuckey.web.filters.urlrewrite.substitution.FunctionReplacer;
+import org.tuckey.web.filters.urlrewrite.substitution.SubstitutionContext;
+import org.tuckey.web.filters.urlrewrite.substitution.SubstitutionTemplate;
+import org.tuckey.web.testhelper.MockRequest;
+
+
+public class FunctionRegistryTest extends TestCase {
+
+    /**
+     * Reverses the subject, the first argument is the number of characters to keep.
+     */
+    public static class ReverseFunction implements UrlRewriteFunction {
+        public String[] getNames() {
+            return new String[]{"reverse"};
+        }
+
+        public FunctionCall parse(String arguments) {
+            final int keep = Integer.parseInt(arguments.substring(0, arguments.indexOf(':')));
+            return new FunctionCall(arguments.substring(arguments.indexOf(':') + 1)) {
+                public String apply(String substitutedSubject) {
+                    String reversed = new StringBuilder(substitutedSubject).reverse().toString();
+                    return reversed.substring(0, Math.min(keep, reversed.length()));
+                }
+            };
+        }
+    }
+
+    public void testBuiltIn() {
+        assertNotNull(FunctionRegistry.getFunction("replace"));
+        assertSame(FunctionRegistry.getFunction("replace"), FunctionRegistry.getFunction("REPLACEALL"));
+        assertSame(FunctionRegistry.getFunction("lower"), FunctionRegistry.getFunction("toLower"));
+        assertNull(FunctionRegistry.getFunction("nothing"));
+        assertNull(FunctionRegistry.getFunction(null));
+    }
+
+    public void testRegister() {
+        FunctionRegistry.register(new ReverseFunction());
+        assertEquals("a-cb-b", FunctionReplacer.replace("a-${reverse:2:abc}-b"));
+
+        SubstitutionTemplate template = new SubstitutionTemplate("/${reverse:3:${upper:abcd}}", true, false, false, null);
+        assertEquals("/DCB", template.substitute(new SubstitutionContext(new MockRequest(), null, null, null)));
+        assertTrue("custom functions may not be pure", template.isRequestDependent());
+    }
+
+    public void testBuiltInNotRequestDependent() {
+        SubstitutionTemplate template = new SubstitutionTemplate("/${replace:${lower:A-B}:-:_}/${escape:a b}", true,
+                false, false, null);
+        assertFalse(template.isRequestDependent());
+    }
+
+    public void testReplaceParsedOnce() {
+        FunctionCall call = FunctionRegistry.getFunction("replace").parse("a-b-c:-:_");
+        assertEquals("a-b-c", call.getSubject());
+        assertEquals("x_y_z", call.apply("x-y-z"));
+        assertEquals("x_y-z", FunctionRegistry.getFunction("replaceFirst").parse("a:-:_").apply("x-y-z"));
+    }
+
+    public void testReplaceInvalidExpression() {
+        assertEquals("ab", FunctionReplacer.replace("a${replace:xyz:(:_}b"));
+    }
+
+}
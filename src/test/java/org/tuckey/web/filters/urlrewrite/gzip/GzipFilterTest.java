@@ -0,0 +1,185 @@
+/**
+ * Copyright (c) 2005-2007, Paul Tuckey
+ * All rights reserved.
+ * ====================================================================
+ * Licensed under the BSD License. Text as follows.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *   - Redistributions of source code must retain the above copyright
+ *     notice, this list of conditions and the following disclaimer.
+ *   - Redistributions in binary form must reproduce the above
+ *     copyright notice, this list of conditions and the following
+ *     disclaimer in the documentation and/or other materials provided
+ *     with the distribution.
+ *   - Neither the name tuckey.org nor the names of its contributors
+ *     may be used to endorse or promote products derived from this
+ *     software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ * COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN
+ * ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * ====================================================================
+ */
+package org.tuckey.web.filters.urlrewrite.gzip;
+
+import junit.framework.TestCase;
+import org.tuckey.web.filters.urlrewrite.utils.Log;
+import org.tuckey.web.testhelper.MockFilterConfig;
+import org.tuckey.web.testhelper.MockRequest;
+import org.tuckey.web.testhelper.MockResponse;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletResponse;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+public class GzipFilterTest extends TestCase {
+
+    private final byte[] page = new byte[200000];
+
+    public void setUp() {
+        Log.setLevel("DEBUG");
+        for (int i = 0; i < page.length; i++) page[i] = (byte) ('a' + i % 26);
+    }
+
+    public void testBuffered() throws Exception {
+        final MockResponse response = new MockResponse();
+        final int[] writtenBeforeEnd = new int[1];
+        filter(false).doFilter(request("HTTP/1.1"), response, (req, res) -> {
+            write(res.getOutputStream(), true);
+            writtenBeforeEnd[0] = response.getOutputStreamAsBytes().length;
+        });
+        assertEquals(0, writtenBeforeEnd[0]);
+        assertEquals("gzip", response.getHeader("Content-Encoding"));
+        assertTrue(Arrays.equals(page, gunzip(response.getOutputStreamAsBytes())));
+    }
+
+    public void testStreaming() throws Exception {
+        final MockResponse response = new MockResponse();
+        final int[] writtenBeforeEnd = new int[1];
+        filter(true).doFilter(request("HTTP/1.1"), response, (req, res) -> {
+            ((HttpServletResponse) res).setHeader("Content-Length", String.valueOf(page.length));
+            write(res.getOutputStream(), true);
+            writtenBeforeEnd[0] = response.getOutputStreamAsBytes().length;
+        });
+        assertTrue("compressed as it is written", writtenBeforeEnd[0] > 0);
+        assertEquals("gzip", response.getHeader("Content-Encoding"));
+        assertNull("length before compression dropped", response.getHeader("Content-Length"));
+        assertTrue(Arrays.equals(page, gunzip(response.getOutputStreamAsBytes())));
+    }
+
+    public void testStreamingWriter() throws Exception {
+        MockResponse response = new MockResponse() {
+            public String getCharacterEncoding() {
+                return "UTF-8";
+            }
+        };
+        filter(true).doFilter(request("HTTP/1.1"), response, (req, res) -> res.getWriter().println("hello"));
+        assertEquals("hello" + System.lineSeparator(), new String(gunzip(response.getOutputStreamAsBytes()), "UTF-8"));
+    }
+
+    public void testStreamingHttp10Buffered() throws Exception {
+        final MockResponse response = new MockResponse();
+        final int[] writtenBeforeEnd = new int[1];
+        filter(true).doFilter(request("HTTP/1.0"), response, (req, res) -> {
+            write(res.getOutputStream(), true);
+            writtenBeforeEnd[0] = response.getOutputStreamAsBytes().length;
+        });
+        assertEquals("needs a length so is buffered", 0, writtenBeforeEnd[0]);
+        assertTrue(Arrays.equals(page, gunzip(response.getOutputStreamAsBytes())));
+    }
+
+    public void testStreamingAlreadyEncoded() throws Exception {
+        final byte[] encoded = gzip(page);
+        MockResponse response = new MockResponse();
+        filter(true).doFilter(request("HTTP/1.1"), response, (req, res) -> {
+            ((HttpServletResponse) res).setHeader("Content-Encoding", "gzip");
+            res.getOutputStream().write(encoded);
+        });
+        assertTrue("not compressed again", Arrays.equals(encoded, response.getOutputStreamAsBytes()));
+    }
+
+    public void testStreamingEmpty() throws Exception {
+        MockResponse response = new MockResponse();
+        filter(true).doFilter(request("HTTP/1.1"), response, (req, res) -> ((HttpServletResponse) res).setStatus(304));
+        assertNull(response.getHeader("Content-Encoding"));
+        assertEquals(0, response.getOutputStreamAsBytes().length);
+    }
+
+    public void testStreamingReset() throws Exception {
+        MockResponse response = new MockResponse();
+        final boolean[] resetRejected = new boolean[1];
+        filter(true).doFilter(request("HTTP/1.1"), response, (req, res) -> {
+            // nothing written yet, so the page can still start again
+            res.reset();
+            res.getOutputStream().write(page, 0, 10);
+            try {
+                res.resetBuffer();
+            } catch (IllegalStateException e) {
+                resetRejected[0] = true;
+            }
+            res.getOutputStream().write(page, 10, page.length - 10);
+        });
+        assertTrue("reset after compression started", resetRejected[0]);
+        assertEquals("gzip", response.getHeader("Content-Encoding"));
+        assertTrue(Arrays.equals(page, gunzip(response.getOutputStreamAsBytes())));
+    }
+
+    private void write(OutputStream out, boolean flushHalfWay) throws IOException {
+        out.write(page, 0, page.length / 2);
+        if (flushHalfWay) out.flush();
+        out.write(page, page.length / 2, page.length - page.length / 2);
+    }
+
+    private static GzipFilter filter(final boolean streaming) throws ServletException {
+        GzipFilter filter = new GzipFilter();
+        filter.init(new MockFilterConfig() {
+            public String getInitParameter(String name) {
+                return "streaming".equals(name) ? String.valueOf(streaming) : null;
+            }
+        });
+        return filter;
+    }
+
+    private static MockRequest request(String protocol) {
+        MockRequest request = new MockRequest("/report");
+        request.setProtocol(protocol);
+        request.setHeader("Accept-Encoding", "gzip, deflate");
+        return request;
+    }
+
+    private static byte[] gzip(byte[] data) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (OutputStream gzout = new GZIPOutputStream(out)) {
+            gzout.write(data);
+        }
+        return out.toByteArray();
+    }
+
+    private static byte[] gunzip(byte[] data) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (GZIPInputStream in = new GZIPInputStream(new ByteArrayInputStream(data))) {
+            byte[] buf = new byte[8192];
+            int count;
+            while ((count = in.read(buf)) != -1) out.write(buf, 0, count);
+        }
+        return out.toByteArray();
+    }
+}
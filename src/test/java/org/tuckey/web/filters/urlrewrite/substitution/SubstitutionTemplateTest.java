@@ -0,0 +1,157 @@
+/**
+ * Copyright (c) 2005-2007, Paul Tuckey
+ * All rights reserved.
+ * ====================================================================
+ * Licensed under the BSD License. Text as follows.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *   - Redistributions of source code must retain the above copyright
+ *     notice, this list of conditions and the following disclaimer.
+ *   - Redistributions in binary form must reproduce the above
+ *     copyright notice, this list of conditions and the following
+ *     disclaimer in the documentation and/or other materials provided
+ *     with the distribution.
+ *   - Neither the name tuckey.org nor the names of its contributors
+ *     may be used to endorse or promote products derived from this
+ *     software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ * COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN
+ * ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * ====================================================================
+ */
+package org.tuckey.web.filters.urlrewrite.substitution;
+
+import junit.framework.TestCase;
+import org.tuckey.web.filters.urlrewrite.ConditionMatch;
+import org.tuckey.web.filters.urlrewrite.utils.RegexPattern;
+import org.tuckey.web.filters.urlrewrite.utils.StringMatchingMatcher;
+import org.tuckey.web.filters.urlrewrite.utils.WildcardPattern;
+import org.tuckey.web.testhelper.MockRequest;
+
+import java.util.Random;
+
+public class SubstitutionTemplateTest extends TestCase {
+
+    private static final String[] TEMPLATES = {
+            "", "/plain/path", "/a/$1/$2", "/a/$3", "$0", "\\$1/$1", "/b/%1-%2", "/b/%3%1", "\\%1%1",
+            "/c/%{method}", "/c/%{header:user-agent}/%{query-string}", "%{unknown}", "%{parameter:p}",
+            "/d/${lower:HeLLo}", "/d/${upper:$1}", "/d/${trim: %1 }x", "${length:abc}", "${length}", "${trim}",
+            "${lower}", "${replace:a b c: :_}", "${replaceFirst:$1-x:-:+}", "${replaceAll:%{method}:G:g}",
+            "${escape:a b/c}", "${escape:UTF-16:a b}", "${escapePath:a b}", "${unescape:a+b%20c}",
+            "${unescapePath:a+b%20c}", "${unknown:x}", "${lower:${upper:ab}c}", "a${upper:%{method}}b${lower:X}c",
+            "${replace:$1:(.)(.):$2$1}", "a\\\\b", "a\\b\\c", "a\\${lower:X}", "\\%{method}", "${lower:a\\:B}",
+            "/e/$1${upper:%1}%{method}\\x",
+    };
+
+    private MockRequest request;
+
+    protected void setUp() {
+        request = new MockRequest("/aa/bb");
+        request.setMethod("GET");
+        request.setHeader("user-agent", "Moz");
+        request.setQueryString("x=1");
+    }
+
+    private static StringMatchingMatcher match(String from, String url) throws Exception {
+        StringMatchingMatcher matcher = new RegexPattern(from, true).matcher(url);
+        assertTrue(matcher.find());
+        return matcher;
+    }
+
+    private static ConditionMatch conditionMatch(StringMatchingMatcher matcher) {
+        ConditionMatch conditionMatch = new ConditionMatch();
+        conditionMatch.setMatcher(matcher);
+        return conditionMatch;
+    }
+
+    private void assertSameAsChain(String template, String url, SubstitutionContext ctx, boolean withWhole,
+                                   boolean withFunction, boolean withVariable, boolean withBackReference) {
+        String expected = ChainedSubstitutionFilters.getDefaultSubstitutionChain(true, withFunction, withVariable,
+                withBackReference).substitute(url, ctx);
+        SubstitutionTemplate compiled = new SubstitutionTemplate(template, withFunction, withVariable,
+                withBackReference, null);
+        assertEquals(template, expected, compiled.substituteMatches(url, ctx));
+        if (!withWhole) {
+            // the matcher has been run past the last match
+            return;
+        }
+
+        expected = ChainedSubstitutionFilters.getDefaultSubstitutionChain(false, withFunction, withVariable,
+                withBackReference).substitute(template, ctx);
+        assertEquals(template, expected, compiled.substitute(ctx));
+    }
+
+    private void assertSameAsChain(String template, String url, SubstitutionContext ctx, boolean withWhole) {
+        assertSameAsChain(template, url, ctx, withWhole, FunctionReplacer.containsFunction(template),
+                VariableReplacer.containsVariable(template), BackReferenceReplacer.containsBackRef(template));
+        assertSameAsChain(template, url, ctx, withWhole, true, true, true);
+    }
+
+    public void testSameAsChain() throws Exception {
+        String url = "/aa/bb";
+        StringMatchingMatcher matcher = match("^/(a+)/(b+)$", url);
+        ConditionMatch[] conditionMatches = {
+                null,
+                conditionMatch(match("(G)(E)", "GET")),
+                conditionMatch(match("GET", "GET")),
+                conditionMatch(null)
+        };
+        for (String template : TEMPLATES) {
+            for (ConditionMatch conditionMatch : conditionMatches) {
+                assertSameAsChain(template, url, new SubstitutionContext(request, matcher, conditionMatch, template), true);
+            }
+        }
+    }
+
+    public void testSameAsChainMultipleMatches() throws Exception {
+        String url = "/x/aa-bb/ab";
+        for (String template : TEMPLATES) {
+            StringMatchingMatcher matcher = new RegexPattern("(a+)(b*)", true).matcher(url);
+            assertSameAsChain(template, url, new SubstitutionContext(request, matcher, null, template), false);
+            matcher = new WildcardPattern("/x/**").matcher(url);
+            assertSameAsChain(template, url, new SubstitutionContext(request, matcher, null, template), false);
+        }
+    }
+
+    public void testSameAsChainRandom() throws Exception {
+        String[] pieces = {"a", "/", "$1", "$2", "$9", "%1", "%5", "%{method}", "%{header:user-agent}", "\\", ":",
+                "${lower:", "${upper:", "${replace:", "${escape:", "${trim:", "${length:", "}", "{", "%", "$", " "};
+        Random random = new Random(42);
+        String url = "/aa/bb";
+        StringMatchingMatcher matcher = match("^/(a+)/(b+)$", url);
+        ConditionMatch conditionMatch = conditionMatch(match("(G)(E)", "GET"));
+        for (int i = 0; i < 2000; i++) {
+            StringBuilder template = new StringBuilder();
+            int length = random.nextInt(8);
+            for (int j = 0; j < length; j++) {
+                template.append(pieces[random.nextInt(pieces.length)]);
+            }
+            String str = template.toString();
+            if (str.contains("${replace:") || str.contains("${escape:")) {
+                // a bad expression or missing argument fails in both, but not in the same place
+                continue;
+            }
+            assertSameAsChain(str, url, new SubstitutionContext(request, matcher,
+                    random.nextBoolean() ? conditionMatch : null, str), true);
+        }
+    }
+
+    public void testLiteralOnly() throws Exception {
+        SubstitutionTemplate compiled = new SubstitutionTemplate("/a\\$b", false, false, false, null);
+        assertEquals("/a$b", compiled.substitute(new SubstitutionContext(request, null, null, null)));
+    }
+
+}
@@ -0,0 +1,85 @@
+/**
+ * Copyright (c) 2005-2007, Paul Tuckey
+ * All rights reserved.
+ * ====================================================================
+ * Licensed under the BSD License. Text as follows.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *   - Redistributions of source code must retain the above copyright
+ *     notice, this list of conditions and the following disclaimer.
+ *   - Redistributions in binary form must reproduce the above
+ *     copyright notice, this list of conditions and the following
+ *     disclaimer in the documentation and/or other materials provided
+ *     with the distribution.
+ *   - Neither the name tuckey.org nor the names of its contributors
+ *     may be used to endorse or promote products derived from this
+ *     software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ * COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN
+ * ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * ====================================================================
+ */
+package org.tuckey.web.filters.urlrewrite.test;
+
+import javax.servlet.ServletConfig;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * RunObject with only static methods, used in RunTest.
+ */
+public class TestStaticRunObj {
+    private static boolean initCalled;
+    private static boolean destroyCalled;
+    private static String paramStr;
+
+    public static void init(ServletConfig config) {
+        initCalled = true;
+    }
+
+    public static void destroy() {
+        destroyCalled = true;
+    }
+
+    public static String runWithParam(HttpServletRequest httpServletRequest, int i) {
+        paramStr = httpServletRequest.getRequestURI() + "," + i;
+        return paramStr;
+    }
+
+    public static void runServletException(HttpServletRequest httpServletRequest,
+                                           HttpServletResponse httpServletResponse) throws ServletException {
+        throw new ServletException("static run");
+    }
+
+    public static void resetTestFlags() {
+        initCalled = false;
+        destroyCalled = false;
+        paramStr = null;
+    }
+
+    public static boolean isInitCalled() {
+        return initCalled;
+    }
+
+    public static boolean isDestroyCalled() {
+        return destroyCalled;
+    }
+
+    public static String getParamStr() {
+        return paramStr;
+    }
+}
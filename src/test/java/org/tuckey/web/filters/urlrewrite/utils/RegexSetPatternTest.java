@@ -0,0 +1,174 @@
+/**
+ * Copyright (c) 2005-2007, Paul Tuckey
+ * All rights reserved.
+ * ====================================================================
+ * Licensed under the BSD License. Text as follows.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *   - Redistributions of source code must retain the above copyright
+ *     notice, this list of conditions and the following disclaimer.
+ *   - Redistributions in binary form must reproduce the above
+ *     copyright notice, this list of conditions and the following
+ *     disclaimer in the documentation and/or other materials provided
+ *     with the distribution.
+ *   - Neither the name tuckey.org nor the names of its contributors
+ *     may be used to endorse or promote products derived from this
+ *     software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ * COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN
+ * ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * ====================================================================
+ */
+package org.tuckey.web.filters.urlrewrite.utils;
+
+import junit.framework.TestCase;
+
+import java.util.BitSet;
+import java.util.Random;
+import java.util.regex.Pattern;
+
+public class RegexSetPatternTest extends TestCase {
+
+    private static final String[] PATTERNS = {
+            "^/shop/([a-z]+)/([0-9]+)$",
+            "^/news/(.*)$",
+            "\\.html$",
+            "/img/",
+            "^/old-(?:site|shop)/(.*)",
+            "^/a(?=b)",
+            "^/(\\w+)/\\1$",
+            "^/CaseSensitive$",
+            "^/x{2,3}$",
+            "^/[^/]+/?$",
+            "^$",
+            "(?i)^/MiXeD",
+            "^/q\\?a=b",
+            "^/[\\d\\-]+$",
+    };
+
+    private static final boolean[] CASE_SENSITIVES = {
+            false, false, false, false, false, false, false, true, false, false, false, true, false, false
+    };
+
+    public void testMatching() {
+        RegexSetPattern set = new RegexSetPattern(PATTERNS, CASE_SENSITIVES);
+        assertFalse(set.isUnsupported(0));
+        assertTrue("lookahead is not supported", set.isUnsupported(5));
+        assertTrue("backreference is not supported", set.isUnsupported(6));
+
+        assertMatches(set, "/shop/abc/123", 0, 5, 6);
+        assertMatches(set, "/SHOP/abc/123", 0, 5, 6);
+        assertMatches(set, "/news/item.html", 1, 2, 5, 6);
+        assertMatches(set, "/a/img/b.gif", 3, 5, 6);
+        assertMatches(set, "/old-site/x", 4, 5, 6);
+        assertMatches(set, "/casesensitive", 5, 6, 9);
+        assertMatches(set, "/CaseSensitive", 5, 6, 7, 9);
+        assertMatches(set, "/xxx", 5, 6, 8, 9);
+        assertMatches(set, "", 5, 6, 10);
+        assertMatches(set, "/mixed/", 5, 6, 9, 11);
+        assertMatches(set, "/q?a=b", 5, 6, 9, 12);
+        assertMatches(set, "/12-3", 5, 6, 9, 13);
+    }
+
+    public void testLineTerminatorMatchesAll() {
+        RegexSetPattern set = new RegexSetPattern(PATTERNS, CASE_SENSITIVES);
+        assertEquals(PATTERNS.length, set.getMatchingPatterns("/a\n").cardinality());
+    }
+
+    public void testMatcher() {
+        RegexSetPattern set = new RegexSetPattern(new String[]{"^/a$", "^/b$"}, new boolean[]{false, false});
+        StringMatchingMatcher matcher = set.matcher("/b");
+        assertTrue(matcher.find());
+        assertEquals("/b", matcher.group(0));
+        assertFalse(set.matcher("/c").find());
+    }
+
+    /**
+     * Generate random patterns and strings, the set must never leave out a pattern java.util.regex matches.
+     */
+    public void testNeverMissesAMatch() {
+        Random random = new Random(42);
+        for (int round = 0; round < 50; round++) {
+            String[] patterns = new String[30];
+            boolean[] caseSensitives = new boolean[patterns.length];
+            Pattern[] compiled = new Pattern[patterns.length];
+            for (int i = 0; i < patterns.length; i++) {
+                caseSensitives[i] = random.nextBoolean();
+                while (compiled[i] == null) {
+                    patterns[i] = randomPattern(random);
+                    try {
+                        compiled[i] = Pattern.compile(patterns[i], caseSensitives[i] ? 0 : Pattern.CASE_INSENSITIVE);
+                    } catch (Exception e) {
+                        // try again
+                    }
+                }
+            }
+            RegexSetPattern set = new RegexSetPattern(patterns, caseSensitives);
+            for (int j = 0; j < 200; j++) {
+                String str = randomString(random);
+                BitSet matching = set.getMatchingPatterns(str);
+                for (int i = 0; i < patterns.length; i++) {
+                    if (compiled[i].matcher(str).find()) {
+                        assertTrue("pattern " + patterns[i] + " should match " + str, matching.get(i));
+                    }
+                }
+            }
+        }
+    }
+
+    private static final String[] ATOMS = {"a", "b", "A", "/", "-", ".", "\\.", "[a-c]", "[^b/]", "\\d", "\\w",
+            "\\s", "[]a]", "\\Q.*\\E", "\\b", "(?i)", "\\x41", "[\\w-]"};
+    private static final String[] QUANTIFIERS = {"", "", "", "*", "+", "?", "{2}", "{1,3}", "*?", "++", "{20,}"};
+
+    private static String randomPattern(Random random) {
+        StringBuilder sb = new StringBuilder();
+        if (random.nextBoolean()) sb.append('^');
+        int items = 1 + random.nextInt(5);
+        for (int i = 0; i < items; i++) {
+            if (random.nextInt(6) == 0) {
+                sb.append('(').append(random.nextBoolean() ? "?:" : "");
+                sb.append(ATOMS[random.nextInt(ATOMS.length)]).append('|').append(ATOMS[random.nextInt(ATOMS.length)]);
+                sb.append(')');
+            } else {
+                sb.append(ATOMS[random.nextInt(ATOMS.length)]);
+            }
+            sb.append(QUANTIFIERS[random.nextInt(QUANTIFIERS.length)]);
+        }
+        if (random.nextInt(3) == 0) sb.append('|').append(ATOMS[random.nextInt(ATOMS.length)]);
+        if (random.nextBoolean()) sb.append('$');
+        return sb.toString();
+    }
+
+    private static final String CHARS = "abcAB/-.1 ]*";
+
+    private static String randomString(Random random) {
+        int length = random.nextInt(8);
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < length; i++) {
+            sb.append(CHARS.charAt(random.nextInt(CHARS.length())));
+        }
+        return sb.toString();
+    }
+
+    private static void assertMatches(RegexSetPattern set, String str, int... expected) {
+        BitSet expectedSet = new BitSet();
+        for (int i : expected) {
+            expectedSet.set(i);
+        }
+        assertEquals("matching " + str, expectedSet, set.getMatchingPatterns(str));
+    }
+
+}
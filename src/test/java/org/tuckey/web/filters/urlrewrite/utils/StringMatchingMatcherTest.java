@@ -39,6 +39,10 @@ import org.tuckey.web.filters.urlrewrite.substitution.ChainedSubstitutionFilters
 import org.tuckey.web.filters.urlrewrite.substitution.SubstitutionContext;
 import org.tuckey.web.filters.urlrewrite.substitution.SubstitutionFilterChain;
 
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
 /**
  * @author Paul Tuckey
  * @version $Revision: 36 $ $Date: 2006-09-19 18:32:39 +1200 (Tue, 19 Sep 2006) $
@@ -104,4 +108,38 @@ public class StringMatchingMatcherTest extends TestCase {
 
     }
 
+    /**
+     * The offset based wildcard matching must give the same result as the original map based matching.
+     */
+    public void testWildcardGroupsSameAsMap() {
+        WildcardHelper wh = new WildcardHelper();
+        Random random = new Random(7);
+        String chars = "ab/*.";
+        for (int i = 0; i < 5000; i++) {
+            String patternStr = randomString(random, chars, 6);
+            String matchStr = randomString(random, "ab/.", 8);
+            int[] compiled = wh.compilePattern(patternStr);
+
+            Map<String, String> map = new HashMap<>();
+            boolean expected = wh.match(map, matchStr, compiled);
+            StringMatchingMatcher matcher = new WildcardPattern(patternStr).matcher(matchStr);
+            assertEquals(patternStr + " against " + matchStr, expected, matcher.find());
+            if (expected) {
+                assertEquals(map.size() - 1, matcher.groupCount());
+                for (int g = 0; g < map.size(); g++) {
+                    assertEquals(map.get(String.valueOf(g)), matcher.group(g));
+                }
+            }
+        }
+    }
+
+    private static String randomString(Random random, String chars, int maxLength) {
+        StringBuilder sb = new StringBuilder();
+        int length = random.nextInt(maxLength + 1);
+        for (int i = 0; i < length; i++) {
+            sb.append(chars.charAt(random.nextInt(chars.length())));
+        }
+        return sb.toString();
+    }
+
 }
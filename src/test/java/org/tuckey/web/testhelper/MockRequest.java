@@ -62,6 +62,7 @@ import java.util.Enumeration;
 import java.util.Hashtable;
 import java.util.Locale;
 import java.util.Map;
+import java.util.TreeMap;
 
 /**
  * @author Paul Tuckey
@@ -73,7 +74,7 @@ public class MockRequest implements HttpServletRequest {
     private int serverPort = 80;
     private String queryString;
     private String method = "GET";
-    private Hashtable headers = new Hashtable();
+    private Map headers = new TreeMap(String.CASE_INSENSITIVE_ORDER);
     private Hashtable attrs = new Hashtable();
     private Hashtable parameters = new Hashtable();
     private MockSession session = null;
@@ -137,11 +138,12 @@ public class MockRequest implements HttpServletRequest {
     }
 
     public Enumeration getHeaders(String s) {
-        return headers.elements();
+        Object value = s == null ? null : headers.get(s);
+        return Collections.enumeration(value == null ? Collections.emptyList() : Collections.singletonList(value));
     }
 
     public Enumeration getHeaderNames() {
-        return headers.keys();
+        return Collections.enumeration(headers.keySet());
     }
 
     public int getIntHeader(String s) {
@@ -44,9 +44,10 @@ import java.io.StringWriter;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
-import java.util.Hashtable;
 import java.util.List;
 import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
 
 /**
  * @author Paul Tuckey
@@ -54,7 +55,7 @@ import java.util.Locale;
  */
 public class MockResponse implements HttpServletResponse {
 
-    private Hashtable responseHeaders = new Hashtable();
+    private Map responseHeaders = new TreeMap(String.CASE_INSENSITIVE_ORDER);
     private int status = 200;
     private String redirectedUrl;
     private List cookies = new ArrayList();
@@ -68,7 +69,7 @@ public class MockResponse implements HttpServletResponse {
     }
 
     public boolean containsHeader(String s) {
-        return false;
+        return responseHeaders.containsKey(s);
     }
 
     public String encodeURL(String s) {
@@ -162,6 +163,10 @@ public class MockResponse implements HttpServletResponse {
         return mockSerlvetOutputStream.getAsString();
     }
 
+    public byte[] getOutputStreamAsBytes() {
+        return mockSerlvetOutputStream.baos.toByteArray();
+    }
+
     public PrintWriter getWriter() throws IOException {
         return writer;
     }
@@ -0,0 +1,118 @@
+/**
+ * Copyright (c) 2005-2007, Paul Tuckey
+ * All rights reserved.
+ * ====================================================================
+ * Licensed under the BSD License. Text as follows.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *   - Redistributions of source code must retain the above copyright
+ *     notice, this list of conditions and the following disclaimer.
+ *   - Redistributions in binary form must reproduce the above
+ *     copyright notice, this list of conditions and the following
+ *     disclaimer in the documentation and/or other materials provided
+ *     with the distribution.
+ *   - Neither the name tuckey.org nor the names of its contributors
+ *     may be used to endorse or promote products derived from this
+ *     software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ * COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN
+ * ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * ====================================================================
+ */
+package org.tuckey.web.testhelper;
+
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import junit.framework.TestCase;
+import org.tuckey.web.filters.urlrewrite.ProxyConnectionManager;
+import org.tuckey.web.filters.urlrewrite.ProxyOptions;
+import org.tuckey.web.filters.urlrewrite.RequestProxy;
+import org.tuckey.web.filters.urlrewrite.utils.Log;
+
+import javax.servlet.http.HttpServletRequest;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Base for tests that proxy to local target servers.  Gives each test a connection manager and stops it, and any
+ * servers started, afterwards.
+ */
+public abstract class ProxyTestCase extends TestCase {
+
+    protected ProxyConnectionManager proxyConnectionManager;
+    private final List<HttpServer> servers = new ArrayList<>();
+
+    public void setUp() throws Exception {
+        Log.setLevel("DEBUG");
+        proxyConnectionManager = createProxyConnectionManager();
+    }
+
+    public void tearDown() throws Exception {
+        proxyConnectionManager.shutdown();
+        for (HttpServer server : servers) {
+            server.stop(0);
+            ((ExecutorService) server.getExecutor()).shutdown();
+        }
+        servers.clear();
+    }
+
+    protected ProxyConnectionManager createProxyConnectionManager() {
+        return new ProxyConnectionManager();
+    }
+
+    /**
+     * Start a server on a free local port that handles every request with the handler, on a thread each.
+     */
+    protected HttpServer startServer(HttpHandler handler) throws IOException {
+        HttpServer server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/", handler);
+        server.setExecutor(Executors.newCachedThreadPool());
+        server.start();
+        servers.add(server);
+        return server;
+    }
+
+    /**
+     * @return url of the server without a trailing slash, eg, http://127.0.0.1:12345
+     */
+    protected static String serverUrl(HttpServer server) {
+        return "http://127.0.0.1:" + server.getAddress().getPort();
+    }
+
+    protected static MockRequest request(String uri, String method) {
+        MockRequest request = new MockRequest(uri);
+        request.setMethod(method);
+        return request;
+    }
+
+    /**
+     * Proxy a GET for the path of the target.
+     */
+    protected MockResponse proxy(String target, ProxyOptions options) throws IOException {
+        return proxy(target, request(URI.create(target).getPath(), "GET"), options);
+    }
+
+    protected MockResponse proxy(String target, HttpServletRequest request, ProxyOptions options) throws IOException {
+        MockResponse response = new MockResponse();
+        RequestProxy.execute(target, request, response, true, false, false, proxyConnectionManager, options);
+        return response;
+    }
+}